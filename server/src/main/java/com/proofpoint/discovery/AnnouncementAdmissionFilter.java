@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.proofpoint.reporting.Gauge;
+import com.proofpoint.stats.CounterStat;
+import org.weakref.jmx.Nested;
+
+import javax.inject.Inject;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Bounds the number of announcement requests handled at once, so a storm of
+ * announcements cannot take every request thread and service queries are still
+ * answered. Announcements beyond the bound are refused with 503 and asked to retry
+ * later, without waiting for a thread to free up.
+ */
+public class AnnouncementAdmissionFilter
+        implements Filter
+{
+    private static final String ANNOUNCEMENT_PATH = "/v1/announcement";
+
+    private final int maxConcurrentAnnouncements;
+    private final Semaphore permits;
+    private final String retryAfterSeconds;
+    private final CounterStat rejectedAnnouncements = new CounterStat();
+
+    @Inject
+    public AnnouncementAdmissionFilter(DiscoveryConfig config)
+    {
+        checkNotNull(config, "config is null");
+        maxConcurrentAnnouncements = config.getMaxConcurrentAnnouncements();
+        permits = new Semaphore(maxConcurrentAnnouncements);
+        retryAfterSeconds = String.valueOf((long) Math.ceil(config.getIngestionRetryAfter().getValue(TimeUnit.SECONDS)));
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig)
+    {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException
+    {
+        if (!(request instanceof HttpServletRequest) || !((HttpServletRequest) request).getRequestURI().startsWith(ANNOUNCEMENT_PATH)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        if (!permits.tryAcquire()) {
+            rejectedAnnouncements.update(1);
+            HttpServletResponse httpResponse = (HttpServletResponse) response;
+            httpResponse.setHeader("Retry-After", retryAfterSeconds);
+            httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        try {
+            chain.doFilter(request, response);
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    @Gauge
+    public int getAnnouncementsInProgress()
+    {
+        return maxConcurrentAnnouncements - permits.availablePermits();
+    }
+
+    /**
+     * Announcement requests refused because too many were in progress.
+     */
+    @Nested
+    public CounterStat getRejectedAnnouncements()
+    {
+        return rejectedAnnouncements;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.proofpoint.discovery.store.BatchProcessor;
+import com.proofpoint.discovery.store.BatchProcessor.BatchHandler;
+import com.proofpoint.discovery.store.BatchProcessor.Coalescer;
+import com.proofpoint.discovery.store.CoalescingQueue;
+import com.proofpoint.reporting.Gauge;
+import com.proofpoint.stats.CounterStat;
+import com.proofpoint.units.Duration;
+import org.weakref.jmx.Nested;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores dynamic announcements on dedicated threads, so a burst of announcements does
+ * not hold the server threads that answer queries.
+ * <p>
+ * Announcements are queued in partitions by node id, each drained by a single thread,
+ * so the announcements of a node are stored in the order they were received. A node
+ * has at most one announcement waiting: a newer one replaces it. When the partition of
+ * a node is full, the announcement is refused and the client is expected to retry later.
+ * <p>
+ * Deletions are queued the same way, so a deletion is not undone by an announcement of
+ * the node that was received before it and is still waiting. Services added, replaced or
+ * removed on their own are queued too; they don't replace what is waiting for the node
+ * but are applied after it, so they are not undone by it either.
+ */
+public class AnnouncementIngester
+{
+    private static final Coalescer<Ingestion> BY_NODE = new Coalescer<Ingestion>()
+    {
+        @Override
+        public Object getKey(Ingestion ingestion)
+        {
+            return ingestion.nodeId;
+        }
+
+        @Override
+        public Ingestion coalesce(Ingestion pending, Ingestion ingestion)
+        {
+            if (ingestion.deletion || ingestion.announcement != null) {
+                return ingestion;
+            }
+            return pending.followedBy(ingestion.serviceChanges);
+        }
+    };
+
+    private final boolean enabled;
+    private final Duration retryAfter;
+    private final int capacity;
+    private final List<BlockingQueue<Ingestion>> queues;
+    private final List<BatchProcessor<Ingestion>> processors;
+
+    private final CounterStat acceptedAnnouncements = new CounterStat();
+    private final CounterStat rejectedAnnouncements = new CounterStat();
+    private final CounterStat coalescedAnnouncements = new CounterStat();
+
+    @Inject
+    public AnnouncementIngester(final DynamicStore dynamicStore, DiscoveryConfig config)
+    {
+        Preconditions.checkNotNull(dynamicStore, "dynamicStore is null");
+        Preconditions.checkNotNull(config, "config is null");
+
+        enabled = config.isIngestionEnabled();
+        retryAfter = config.getIngestionRetryAfter();
+        capacity = config.getIngestionQueueSize() * config.getIngestionThreads();
+
+        BatchHandler<Ingestion> handler = new BatchHandler<Ingestion>()
+        {
+            @Override
+            public void processBatch(Collection<Ingestion> ingestions)
+            {
+                // several ingestions of a node in the batch are combined as they would have been in the queue
+                Map<Id<Node>, Ingestion> latest = new LinkedHashMap<>();
+                for (Ingestion ingestion : ingestions) {
+                    Ingestion pending = latest.get(ingestion.nodeId);
+                    latest.put(ingestion.nodeId, (pending == null) ? ingestion : BY_NODE.coalesce(pending, ingestion));
+                }
+
+                Map<Id<Node>, DynamicAnnouncement> announcements = new LinkedHashMap<>();
+                for (Ingestion ingestion : latest.values()) {
+                    if (ingestion.deletion) {
+                        dynamicStore.delete(ingestion.nodeId);
+                    }
+                    else if (ingestion.announcement != null) {
+                        announcements.put(ingestion.nodeId, ingestion.announcement);
+                    }
+                }
+                if (!announcements.isEmpty()) {
+                    dynamicStore.putAll(announcements);
+                }
+
+                for (Ingestion ingestion : latest.values()) {
+                    for (ServiceChange change : ingestion.serviceChanges) {
+                        if (change.serviceAnnouncement == null) {
+                            dynamicStore.deleteService(ingestion.nodeId, change.serviceId);
+                        }
+                        else {
+                            dynamicStore.putService(ingestion.nodeId, change.serviceAnnouncement);
+                        }
+                    }
+                }
+            }
+        };
+
+        ImmutableList.Builder<BlockingQueue<Ingestion>> queues = ImmutableList.builder();
+        ImmutableList.Builder<BatchProcessor<Ingestion>> processors = ImmutableList.builder();
+        if (enabled) {
+            for (int i = 0; i < config.getIngestionThreads(); i++) {
+                BlockingQueue<Ingestion> queue = new CoalescingQueue<>(config.getIngestionQueueSize(), BY_NODE, coalescedAnnouncements);
+                queues.add(queue);
+                processors.add(new BatchProcessor<>("ingestion-" + i,
+                        handler,
+                        config.getIngestionMaxBatchSize(),
+                        Long.MAX_VALUE,
+                        null,
+                        new Duration(0, TimeUnit.MILLISECONDS),
+                        queue));
+            }
+        }
+        this.queues = queues.build();
+        this.processors = processors.build();
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        for (BatchProcessor<Ingestion> processor : processors) {
+            processor.start();
+        }
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        for (BatchProcessor<Ingestion> processor : processors) {
+            processor.stop();
+        }
+    }
+
+    /**
+     * Stores the queued announcements and deletions on the calling thread, and returns
+     * how many there were. Only for an ingester that is not started.
+     */
+    int drain()
+    {
+        int drained = 0;
+        for (BatchProcessor<Ingestion> processor : processors) {
+            drained += processor.drain();
+        }
+        return drained;
+    }
+
+    /**
+     * Whether announcements are to be queued rather than stored by the request thread.
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Queues an announcement, which must already have been checked, to be stored.
+     *
+     * @return false if the queue is full and the announcement was refused
+     */
+    public boolean offer(Id<Node> nodeId, DynamicAnnouncement announcement)
+    {
+        Preconditions.checkState(enabled, "ingestion is not enabled");
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+        Preconditions.checkNotNull(announcement, "announcement is null");
+
+        return enqueue(new Ingestion(nodeId, announcement, false, ImmutableList.<ServiceChange>of()));
+    }
+
+    /**
+     * Queues the deletion of a node. It takes the place of an announcement of the node
+     * that is still waiting.
+     *
+     * @return false if the queue is full and the deletion was refused
+     */
+    public boolean offerDeletion(Id<Node> nodeId)
+    {
+        Preconditions.checkState(enabled, "ingestion is not enabled");
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+
+        return enqueue(new Ingestion(nodeId, null, true, ImmutableList.<ServiceChange>of()));
+    }
+
+    /**
+     * Queues a service to be added to the announcement of a node, or to replace the
+     * service with the same id. It is applied after what is waiting for the node; if the
+     * node has no announcement by then, it is dropped.
+     *
+     * @return false if the queue is full and the service was refused
+     */
+    public boolean offerService(Id<Node> nodeId, DynamicServiceAnnouncement serviceAnnouncement)
+    {
+        Preconditions.checkState(enabled, "ingestion is not enabled");
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+        Preconditions.checkNotNull(serviceAnnouncement, "serviceAnnouncement is null");
+
+        return enqueue(new Ingestion(nodeId, null, false, ImmutableList.of(new ServiceChange(serviceAnnouncement.getId(), serviceAnnouncement))));
+    }
+
+    /**
+     * Queues the removal of a service from the announcement of a node. It is applied
+     * after what is waiting for the node.
+     *
+     * @return false if the queue is full and the removal was refused
+     */
+    public boolean offerServiceDeletion(Id<Node> nodeId, Id<Service> serviceId)
+    {
+        Preconditions.checkState(enabled, "ingestion is not enabled");
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+        Preconditions.checkNotNull(serviceId, "serviceId is null");
+
+        return enqueue(new Ingestion(nodeId, null, false, ImmutableList.of(new ServiceChange(serviceId, null))));
+    }
+
+    private boolean enqueue(Ingestion ingestion)
+    {
+        BlockingQueue<Ingestion> queue = queues.get((ingestion.nodeId.hashCode() & Integer.MAX_VALUE) % queues.size());
+        if (!queue.offer(ingestion)) {
+            rejectedAnnouncements.update(1);
+            return false;
+        }
+        acceptedAnnouncements.update(1);
+        return true;
+    }
+
+    /**
+     * Returns the number of seconds a refused client is asked to wait before announcing again.
+     */
+    public long getRetryAfterSeconds()
+    {
+        return (long) Math.ceil(retryAfter.getValue(TimeUnit.SECONDS));
+    }
+
+    /**
+     * Returns the fraction of the queue that is in use, 0 when ingestion is not enabled.
+     */
+    public double getLoad()
+    {
+        if (!enabled) {
+            return 0;
+        }
+        return (double) getQueueSize() / capacity;
+    }
+
+    /**
+     * Announcements, deletions and service changes queued.
+     */
+    @Nested
+    public CounterStat getAcceptedAnnouncements()
+    {
+        return acceptedAnnouncements;
+    }
+
+    /**
+     * Announcements, deletions and service changes refused because the queue was full.
+     */
+    @Nested
+    public CounterStat getRejectedAnnouncements()
+    {
+        return rejectedAnnouncements;
+    }
+
+    /**
+     * Ingestions combined with a newer one of the same node before being stored: replaced
+     * by a newer announcement or deletion, or followed by service changes.
+     */
+    @Nested
+    public CounterStat getCoalescedAnnouncements()
+    {
+        return coalescedAnnouncements;
+    }
+
+    @Gauge
+    public long getQueueSize()
+    {
+        long size = 0;
+        for (BlockingQueue<Ingestion> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    private static class Ingestion
+    {
+        private final Id<Node> nodeId;
+        // null for a deletion or when only services change
+        private final DynamicAnnouncement announcement;
+        private final boolean deletion;
+        // applied in order after the announcement or deletion, if any
+        private final List<ServiceChange> serviceChanges;
+
+        private Ingestion(Id<Node> nodeId, DynamicAnnouncement announcement, boolean deletion, List<ServiceChange> serviceChanges)
+        {
+            this.nodeId = nodeId;
+            this.announcement = announcement;
+            this.deletion = deletion;
+            this.serviceChanges = serviceChanges;
+        }
+
+        private Ingestion followedBy(List<ServiceChange> changes)
+        {
+            return new Ingestion(nodeId, announcement, deletion, ImmutableList.<ServiceChange>builder()
+                    .addAll(serviceChanges)
+                    .addAll(changes)
+                    .build());
+        }
+    }
+
+    private static class ServiceChange
+    {
+        private final Id<Service> serviceId;
+        // null for a removal
+        private final DynamicServiceAnnouncement serviceAnnouncement;
+
+        private ServiceChange(Id<Service> serviceId, DynamicServiceAnnouncement serviceAnnouncement)
+        {
+            this.serviceId = serviceId;
+            this.serviceAnnouncement = serviceAnnouncement;
+        }
+    }
+}
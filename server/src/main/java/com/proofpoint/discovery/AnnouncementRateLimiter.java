@@ -0,0 +1,249 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.proofpoint.log.Logger;
+import com.proofpoint.reporting.Gauge;
+import com.proofpoint.stats.CounterStat;
+import org.weakref.jmx.Nested;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of announcements with a token bucket per node and per service type.
+ * The limit per service type is off unless a type rate is configured.
+ * <p>
+ * A bucket that has not been used for as long as it takes to fill up again is full,
+ * so it is dropped rather than kept: the memory used is proportional to the number of
+ * nodes that announced recently.
+ */
+@ThreadSafe
+public class AnnouncementRateLimiter
+{
+    private static final Logger log = Logger.get(AnnouncementRateLimiter.class);
+
+    private final double nodeRate;
+    private final int nodeBurst;
+    private final double typeRate;
+    private final int typeBurst;
+    private final Ticker ticker;
+
+    @GuardedBy("this")
+    private final Cache<Id<Node>, TokenBucket> nodeBuckets;
+
+    @GuardedBy("this")
+    private final Cache<String, TokenBucket> typeBuckets;
+
+    private final CounterStat nodeLimitedAnnouncements = new CounterStat();
+    private final CounterStat typeLimitedAnnouncements = new CounterStat();
+
+    @Inject
+    public AnnouncementRateLimiter(DiscoveryConfig config)
+    {
+        this(config, Ticker.systemTicker());
+    }
+
+    public AnnouncementRateLimiter(DiscoveryConfig config, Ticker ticker)
+    {
+        Preconditions.checkNotNull(config, "config is null");
+        Preconditions.checkNotNull(ticker, "ticker is null");
+
+        nodeRate = config.getNodeAnnouncementRate();
+        nodeBurst = config.getNodeAnnouncementBurst();
+        typeRate = config.getTypeAnnouncementRate();
+        typeBurst = config.getTypeAnnouncementBurst();
+        Preconditions.checkArgument(nodeRate > 0, "node announcement rate needs to be positive");
+        Preconditions.checkArgument(typeRate >= 0, "type announcement rate is negative");
+        Preconditions.checkArgument(typeRate == 0 || typeBurst > 0, "type announcement burst needs to be positive when the type rate is set");
+        this.ticker = ticker;
+
+        nodeBuckets = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterAccess(refillNanos(nodeRate, nodeBurst), TimeUnit.NANOSECONDS)
+                .build();
+        typeBuckets = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterAccess(typeRate == 0 ? 0 : refillNanos(typeRate, typeBurst), TimeUnit.NANOSECONDS)
+                .build();
+    }
+
+    /**
+     * Takes a token from the bucket of the node and from the bucket of each of the
+     * service types, or from none of them if any is empty.
+     *
+     * @return 0 if the announcement is admitted, otherwise the number of nanoseconds
+     * until it would be
+     */
+    public synchronized long tryAcquire(Id<Node> nodeId, Collection<String> types)
+    {
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+        Preconditions.checkNotNull(types, "types is null");
+
+        long now = ticker.read();
+
+        TokenBucket nodeBucket = nodeBuckets.getIfPresent(nodeId);
+        if (nodeBucket == null) {
+            nodeBucket = new TokenBucket(nodeRate, nodeBurst, now);
+            nodeBuckets.put(nodeId, nodeBucket);
+        }
+        long delay = nodeBucket.delayNanos(now);
+        if (delay > 0) {
+            nodeLimitedAnnouncements.update(1);
+            if (nodeBucket.startLimiting()) {
+                log.warn("Node %s is announcing faster than %s times per second", nodeId, nodeRate);
+            }
+            return delay;
+        }
+
+        if (typeRate == 0) {
+            nodeBucket.take();
+            return 0;
+        }
+
+        List<TokenBucket> buckets = new ArrayList<>(types.size() + 1);
+        buckets.add(nodeBucket);
+        for (String type : types) {
+            TokenBucket typeBucket = typeBuckets.getIfPresent(type);
+            if (typeBucket == null) {
+                typeBucket = new TokenBucket(typeRate, typeBurst, now);
+                typeBuckets.put(type, typeBucket);
+            }
+            delay = typeBucket.delayNanos(now);
+            if (delay > 0) {
+                typeLimitedAnnouncements.update(1);
+                if (typeBucket.startLimiting()) {
+                    log.warn("Service type %s is announced faster than %s times per second", type, typeRate);
+                }
+                return delay;
+            }
+            buckets.add(typeBucket);
+        }
+
+        for (TokenBucket bucket : buckets) {
+            bucket.take();
+        }
+        return 0;
+    }
+
+    /**
+     * Announcements refused because their node announced too often.
+     */
+    @Nested
+    public CounterStat getNodeLimitedAnnouncements()
+    {
+        return nodeLimitedAnnouncements;
+    }
+
+    /**
+     * Announcements refused because one of their service types was announced too often.
+     */
+    @Nested
+    public CounterStat getTypeLimitedAnnouncements()
+    {
+        return typeLimitedAnnouncements;
+    }
+
+    /**
+     * Number of nodes currently refused for announcing too often.
+     */
+    @Gauge
+    public synchronized long getLimitedNodes()
+    {
+        return countLimited(nodeBuckets.asMap().values());
+    }
+
+    /**
+     * Number of service types currently refused for being announced too often.
+     */
+    @Gauge
+    public synchronized long getLimitedTypes()
+    {
+        return countLimited(typeBuckets.asMap().values());
+    }
+
+    @GuardedBy("this")
+    private long countLimited(Collection<TokenBucket> buckets)
+    {
+        long now = ticker.read();
+        long count = 0;
+        for (TokenBucket bucket : buckets) {
+            if (bucket.delayNanos(now) > 0) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static long refillNanos(double rate, int burst)
+    {
+        return (long) Math.ceil(burst / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static class TokenBucket
+    {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+        private boolean limiting;
+
+        private TokenBucket(double tokensPerSecond, int capacity, long now)
+        {
+            this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = now;
+        }
+
+        private long delayNanos(long now)
+        {
+            if (now > lastRefill) {
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+                lastRefill = now;
+            }
+            if (tokens >= 1) {
+                limiting = false;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+
+        /**
+         * Returns true the first time the bucket is found empty since it last had a token.
+         */
+        private boolean startLimiting()
+        {
+            boolean started = !limiting;
+            limiting = true;
+            return started;
+        }
+
+        private void take()
+        {
+            tokens -= 1;
+        }
+    }
+}
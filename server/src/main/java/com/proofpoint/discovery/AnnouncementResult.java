@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Outcome of one announcement of a batch: the status a single announcement would have
+ * been answered with, and its message or entity tag.
+ */
+@Immutable
+public class AnnouncementResult
+{
+    private final int status;
+    private final String message;
+    private final String version;
+
+    public AnnouncementResult(int status, @Nullable String message, @Nullable String version)
+    {
+        this.status = status;
+        this.message = message;
+        this.version = version;
+    }
+
+    @JsonProperty
+    public int getStatus()
+    {
+        return status;
+    }
+
+    @Nullable
+    @JsonProperty
+    public String getMessage()
+    {
+        return message;
+    }
+
+    /**
+     * Entity tag to renew the announcement with.
+     */
+    @Nullable
+    @JsonProperty
+    public String getVersion()
+    {
+        return version;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.proofpoint.discovery.store.ReplicationCodec;
+
+import javax.inject.Inject;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Decodes announcement bodies sent with a {@code Content-Encoding}, so they are parsed
+ * as they are inflated rather than after. The resources see the body as if it had been
+ * sent without a coding; a coding that is not supported is refused with 415.
+ * <p>
+ * A body that inflates to more than the configured maximum is refused with 413. The
+ * body is read by the mapper of the resource, which answers a read error with a status
+ * of its own, so the status of a request whose body was cut short is replaced.
+ */
+public class ContentEncodingFilter
+        implements Filter
+{
+    private static final String ANNOUNCEMENT_PATH = "/v1/announcement";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final int SC_REQUEST_ENTITY_TOO_LARGE = 413;
+
+    private final long maxDecodedBytes;
+
+    @Inject
+    public ContentEncodingFilter(DiscoveryConfig config)
+    {
+        Preconditions.checkNotNull(config, "config is null");
+        maxDecodedBytes = config.getMaxDecodedAnnouncementSize().toBytes();
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig)
+    {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException
+    {
+        if (!(request instanceof HttpServletRequest) || !((HttpServletRequest) request).getRequestURI().startsWith(ANNOUNCEMENT_PATH)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        ReplicationCodec codec = ReplicationCodec.fromEncoding(httpRequest.getHeader(CONTENT_ENCODING));
+        if (codec == null) {
+            HttpServletResponse httpResponse = (HttpServletResponse) response;
+            httpResponse.setHeader("Accept-Encoding", ReplicationCodec.ACCEPT_ENCODING);
+            httpResponse.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+        if (codec == ReplicationCodec.IDENTITY) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        DecodedRequest decodedRequest = new DecodedRequest(httpRequest, codec, maxDecodedBytes);
+        DecodedResponse decodedResponse = new DecodedResponse((HttpServletResponse) response, decodedRequest);
+        try {
+            chain.doFilter(decodedRequest, decodedResponse);
+        }
+        catch (IOException | ServletException | RuntimeException e) {
+            if (!decodedRequest.isTooLarge() || response.isCommitted()) {
+                throw e;
+            }
+            decodedResponse.sendError(SC_REQUEST_ENTITY_TOO_LARGE);
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    private static class DecodedRequest
+            extends HttpServletRequestWrapper
+    {
+        private final ReplicationCodec codec;
+        private final long maxDecodedBytes;
+        private DecodedInputStream inputStream;
+
+        private DecodedRequest(HttpServletRequest request, ReplicationCodec codec, long maxDecodedBytes)
+        {
+            super(request);
+            this.codec = codec;
+            this.maxDecodedBytes = maxDecodedBytes;
+        }
+
+        @Override
+        public ServletInputStream getInputStream()
+                throws IOException
+        {
+            if (inputStream == null) {
+                inputStream = new DecodedInputStream(codec.decompress(super.getInputStream()), maxDecodedBytes);
+            }
+            return inputStream;
+        }
+
+        public boolean isTooLarge()
+        {
+            return inputStream != null && inputStream.isTooLarge();
+        }
+
+        @Override
+        public int getContentLength()
+        {
+            return -1;
+        }
+
+        @Override
+        public String getHeader(String name)
+        {
+            if (isHidden(name)) {
+                return null;
+            }
+            return super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name)
+        {
+            if (isHidden(name)) {
+                return Collections.emptyEnumeration();
+            }
+            return super.getHeaders(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames()
+        {
+            List<String> names = new ArrayList<>();
+            for (String name : Collections.list(super.getHeaderNames())) {
+                if (!isHidden(name)) {
+                    names.add(name);
+                }
+            }
+            return Collections.enumeration(names);
+        }
+
+        private static boolean isHidden(String name)
+        {
+            // the body is no longer encoded, and its length is no longer known
+            return CONTENT_ENCODING.equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name);
+        }
+    }
+
+    /**
+     * Answers 413 in place of the status the resource sets once the body turned out to
+     * be too large.
+     */
+    private static class DecodedResponse
+            extends HttpServletResponseWrapper
+    {
+        private final DecodedRequest request;
+
+        private DecodedResponse(HttpServletResponse response, DecodedRequest request)
+        {
+            super(response);
+            this.request = request;
+        }
+
+        @Override
+        public void setStatus(int status)
+        {
+            super.setStatus(statusOf(status));
+        }
+
+        @Override
+        public void sendError(int status)
+                throws IOException
+        {
+            super.sendError(statusOf(status));
+        }
+
+        @Override
+        public void sendError(int status, String message)
+                throws IOException
+        {
+            if (request.isTooLarge()) {
+                super.sendError(SC_REQUEST_ENTITY_TOO_LARGE);
+                return;
+            }
+            super.sendError(status, message);
+        }
+
+        private int statusOf(int status)
+        {
+            return request.isTooLarge() ? SC_REQUEST_ENTITY_TOO_LARGE : status;
+        }
+    }
+
+    private static class DecodedInputStream
+            extends ServletInputStream
+    {
+        private final InputStream delegate;
+        private long remaining;
+        private boolean finished;
+        private boolean tooLarge;
+
+        private DecodedInputStream(InputStream delegate, long maxBytes)
+        {
+            this.delegate = delegate;
+            this.remaining = maxBytes;
+        }
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            int value = delegate.read();
+            finished = value == -1;
+            if (!finished) {
+                consumed(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+                throws IOException
+        {
+            int count = delegate.read(buffer, offset, length);
+            finished = count == -1;
+            if (count > 0) {
+                consumed(count);
+            }
+            return count;
+        }
+
+        public boolean isTooLarge()
+        {
+            return tooLarge;
+        }
+
+        private void consumed(int count)
+                throws IOException
+        {
+            remaining -= count;
+            if (remaining < 0) {
+                // not a parse error: the mappers pass it on rather than answer 400
+                tooLarge = true;
+                throw new IOException("Decoded body is larger than the maximum");
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            delegate.close();
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener)
+        {
+            throw new IllegalStateException("decoded bodies are read synchronously");
+        }
+    }
+}
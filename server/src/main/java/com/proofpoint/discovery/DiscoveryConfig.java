@@ -19,9 +19,16 @@ import com.google.common.collect.ForwardingSet;
 import com.google.common.collect.ImmutableSet;
 import com.proofpoint.configuration.Config;
 import com.proofpoint.configuration.ConfigDescription;
+import com.proofpoint.units.DataSize;
+import com.proofpoint.units.DataSize.Unit;
 import com.proofpoint.units.Duration;
+import com.proofpoint.units.MinDataSize;
+import com.proofpoint.units.MinDuration;
 
 import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.net.URI;
 import java.util.Set;
@@ -33,6 +40,26 @@ public class DiscoveryConfig
     private StringSet proxyProxiedTypes = StringSet.of();
     private String proxyEnvironment = null;
     private URI proxyUri = null;
+    private boolean ingestionEnabled = false;
+    private int ingestionQueueSize = 1000;
+    private int ingestionThreads = 4;
+    private int ingestionMaxBatchSize = 100;
+    private Duration ingestionRetryAfter = new Duration(5, TimeUnit.SECONDS);
+    private double nodeAnnouncementRate = 1;
+    private int nodeAnnouncementBurst = 10;
+    private double typeAnnouncementRate = 0;
+    private int typeAnnouncementBurst = 0;
+    private Duration flapHalfLife = new Duration(1, TimeUnit.MINUTES);
+    private double flapSuppressThreshold = 4;
+    private double flapReuseThreshold = 2;
+    private double heartbeatJitter = 0.2;
+    private DataSize maxDecodedAnnouncementSize = new DataSize(16, Unit.MEGABYTE);
+    private int maxConcurrentAnnouncements = 100;
+    private boolean serviceLayout = false;
+    private boolean binaryValues = false;
+    private boolean dynamicBinaryKeys = false;
+    private boolean dynamicKeyMigration = true;
+    private boolean staticBinaryKeys = false;
 
     @NotNull
     public Duration getMaxAge()
@@ -87,6 +114,295 @@ public class DiscoveryConfig
         return this;
     }
 
+    public boolean isIngestionEnabled()
+    {
+        return ingestionEnabled;
+    }
+
+    @Config("discovery.ingestion.enabled")
+    @ConfigDescription("Store dynamic announcements on dedicated threads instead of the request thread")
+    public DiscoveryConfig setIngestionEnabled(boolean ingestionEnabled)
+    {
+        this.ingestionEnabled = ingestionEnabled;
+        return this;
+    }
+
+    @Min(1)
+    public int getIngestionQueueSize()
+    {
+        return ingestionQueueSize;
+    }
+
+    @Config("discovery.ingestion.queue-size")
+    @ConfigDescription("Number of nodes whose announcements may be waiting to be stored, per ingestion thread")
+    public DiscoveryConfig setIngestionQueueSize(int ingestionQueueSize)
+    {
+        this.ingestionQueueSize = ingestionQueueSize;
+        return this;
+    }
+
+    @Min(1)
+    public int getIngestionThreads()
+    {
+        return ingestionThreads;
+    }
+
+    @Config("discovery.ingestion.threads")
+    @ConfigDescription("Number of threads storing dynamic announcements")
+    public DiscoveryConfig setIngestionThreads(int ingestionThreads)
+    {
+        this.ingestionThreads = ingestionThreads;
+        return this;
+    }
+
+    @Min(1)
+    public int getIngestionMaxBatchSize()
+    {
+        return ingestionMaxBatchSize;
+    }
+
+    @Config("discovery.ingestion.max-batch-size")
+    @ConfigDescription("Maximum number of announcements stored together")
+    public DiscoveryConfig setIngestionMaxBatchSize(int ingestionMaxBatchSize)
+    {
+        this.ingestionMaxBatchSize = ingestionMaxBatchSize;
+        return this;
+    }
+
+    @MinDuration("1s")
+    @NotNull
+    public Duration getIngestionRetryAfter()
+    {
+        return ingestionRetryAfter;
+    }
+
+    @Config("discovery.ingestion.retry-after")
+    @ConfigDescription("Delay clients are asked to wait before announcing again when the ingestion queue is full or too many announcements are in progress")
+    public DiscoveryConfig setIngestionRetryAfter(Duration ingestionRetryAfter)
+    {
+        this.ingestionRetryAfter = ingestionRetryAfter;
+        return this;
+    }
+
+    @DecimalMin("0.001")
+    public double getNodeAnnouncementRate()
+    {
+        return nodeAnnouncementRate;
+    }
+
+    @Config("discovery.rate-limit.node-rate")
+    @ConfigDescription("Sustained number of announcements per second accepted from a single node")
+    public DiscoveryConfig setNodeAnnouncementRate(double nodeAnnouncementRate)
+    {
+        this.nodeAnnouncementRate = nodeAnnouncementRate;
+        return this;
+    }
+
+    @Min(1)
+    public int getNodeAnnouncementBurst()
+    {
+        return nodeAnnouncementBurst;
+    }
+
+    @Config("discovery.rate-limit.node-burst")
+    @ConfigDescription("Number of announcements a single node may send at once")
+    public DiscoveryConfig setNodeAnnouncementBurst(int nodeAnnouncementBurst)
+    {
+        this.nodeAnnouncementBurst = nodeAnnouncementBurst;
+        return this;
+    }
+
+    @DecimalMin("0")
+    public double getTypeAnnouncementRate()
+    {
+        return typeAnnouncementRate;
+    }
+
+    @Config("discovery.rate-limit.type-rate")
+    @ConfigDescription("Sustained number of announcements per second accepted for a single service type, 0 for no limit")
+    public DiscoveryConfig setTypeAnnouncementRate(double typeAnnouncementRate)
+    {
+        this.typeAnnouncementRate = typeAnnouncementRate;
+        return this;
+    }
+
+    @Min(0)
+    public int getTypeAnnouncementBurst()
+    {
+        return typeAnnouncementBurst;
+    }
+
+    @Config("discovery.rate-limit.type-burst")
+    @ConfigDescription("Number of announcements of a single service type that may be sent at once")
+    public DiscoveryConfig setTypeAnnouncementBurst(int typeAnnouncementBurst)
+    {
+        this.typeAnnouncementBurst = typeAnnouncementBurst;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    @NotNull
+    public Duration getFlapHalfLife()
+    {
+        return flapHalfLife;
+    }
+
+    @Config("discovery.flap-damping.half-life")
+    @ConfigDescription("Time for the flap penalty of a node to decay by half")
+    public DiscoveryConfig setFlapHalfLife(Duration flapHalfLife)
+    {
+        this.flapHalfLife = flapHalfLife;
+        return this;
+    }
+
+    public double getFlapSuppressThreshold()
+    {
+        return flapSuppressThreshold;
+    }
+
+    @Config("discovery.flap-damping.suppress-threshold")
+    @ConfigDescription("Flap penalty at which changes of a node stop being stored")
+    public DiscoveryConfig setFlapSuppressThreshold(double flapSuppressThreshold)
+    {
+        this.flapSuppressThreshold = flapSuppressThreshold;
+        return this;
+    }
+
+    @DecimalMin("0.001")
+    public double getFlapReuseThreshold()
+    {
+        return flapReuseThreshold;
+    }
+
+    @Config("discovery.flap-damping.reuse-threshold")
+    @ConfigDescription("Flap penalty at which changes of a suppressed node are stored again")
+    public DiscoveryConfig setFlapReuseThreshold(double flapReuseThreshold)
+    {
+        this.flapReuseThreshold = flapReuseThreshold;
+        return this;
+    }
+
+    @DecimalMin("0")
+    @DecimalMax("1")
+    public double getHeartbeatJitter()
+    {
+        return heartbeatJitter;
+    }
+
+    @Config("discovery.heartbeat.jitter")
+    @ConfigDescription("Largest fraction taken off at random from the delay recommended to announcers")
+    public DiscoveryConfig setHeartbeatJitter(double heartbeatJitter)
+    {
+        this.heartbeatJitter = heartbeatJitter;
+        return this;
+    }
+
+    @MinDataSize("1B")
+    @NotNull
+    public DataSize getMaxDecodedAnnouncementSize()
+    {
+        return maxDecodedAnnouncementSize;
+    }
+
+    @Config("discovery.announcement.max-decoded-size")
+    @ConfigDescription("Largest announcement body accepted once its Content-Encoding is decoded")
+    public DiscoveryConfig setMaxDecodedAnnouncementSize(DataSize maxDecodedAnnouncementSize)
+    {
+        this.maxDecodedAnnouncementSize = maxDecodedAnnouncementSize;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxConcurrentAnnouncements()
+    {
+        return maxConcurrentAnnouncements;
+    }
+
+    @Config("discovery.announcement.max-concurrent-requests")
+    @ConfigDescription("Announcement requests handled at once, leaving the other request threads to queries")
+    public DiscoveryConfig setMaxConcurrentAnnouncements(int maxConcurrentAnnouncements)
+    {
+        this.maxConcurrentAnnouncements = maxConcurrentAnnouncements;
+        return this;
+    }
+
+    public boolean isServiceLayout()
+    {
+        return serviceLayout;
+    }
+
+    @Config("discovery.dynamic.service-layout")
+    @ConfigDescription("Store each service of a dynamic announcement separately (enable once every server reads this layout)")
+    public DiscoveryConfig setServiceLayout(boolean serviceLayout)
+    {
+        this.serviceLayout = serviceLayout;
+        return this;
+    }
+
+    public boolean isBinaryValues()
+    {
+        return binaryValues;
+    }
+
+    @Config("discovery.store.binary-values")
+    @ConfigDescription("Store services in the binary format rather than JSON (enable once every server reads the binary format)")
+    public DiscoveryConfig setBinaryValues(boolean binaryValues)
+    {
+        this.binaryValues = binaryValues;
+        return this;
+    }
+
+    public boolean isDynamicBinaryKeys()
+    {
+        return dynamicBinaryKeys;
+    }
+
+    @Config("discovery.dynamic.binary-keys")
+    @ConfigDescription("Key dynamic announcements by the 16 bytes of their ids (enable once every server reads binary keys)")
+    public DiscoveryConfig setDynamicBinaryKeys(boolean dynamicBinaryKeys)
+    {
+        this.dynamicBinaryKeys = dynamicBinaryKeys;
+        return this;
+    }
+
+    public boolean isDynamicKeyMigration()
+    {
+        return dynamicKeyMigration;
+    }
+
+    @Config("discovery.dynamic.key-migration")
+    @ConfigDescription("Also look up dynamic announcements under keys of the format not configured (disable once every announcement has been written since the format changed)")
+    public DiscoveryConfig setDynamicKeyMigration(boolean dynamicKeyMigration)
+    {
+        this.dynamicKeyMigration = dynamicKeyMigration;
+        return this;
+    }
+
+    public boolean isStaticBinaryKeys()
+    {
+        return staticBinaryKeys;
+    }
+
+    @Config("discovery.static.binary-keys")
+    @ConfigDescription("Key static announcements by the 16 bytes of their ids, migrating stored keys on startup (enable once every server reads binary keys)")
+    public DiscoveryConfig setStaticBinaryKeys(boolean staticBinaryKeys)
+    {
+        this.staticBinaryKeys = staticBinaryKeys;
+        return this;
+    }
+
+    @AssertTrue(message = "discovery.rate-limit.type-burst specified if and only if discovery.rate-limit.type-rate")
+    public boolean isTypeRateAndBurst()
+    {
+        return (typeAnnouncementRate == 0) == (typeAnnouncementBurst == 0);
+    }
+
+    @AssertTrue(message = "discovery.flap-damping.reuse-threshold less than discovery.flap-damping.suppress-threshold")
+    public boolean isFlapReuseBelowSuppress()
+    {
+        return flapReuseThreshold < flapSuppressThreshold;
+    }
+
     @AssertTrue(message = "discovery.proxy.environment specified if and only if any proxy types")
     public boolean isProxyTypeAndEnvironment()
     {
@@ -38,17 +38,21 @@ import com.proofpoint.http.client.balancing.ForBalancingHttpClient;
 import com.proofpoint.http.client.balancing.HttpServiceBalancer;
 import com.proofpoint.http.client.balancing.HttpServiceBalancerImpl;
 import com.proofpoint.http.client.balancing.HttpServiceBalancerStats;
+import com.proofpoint.http.server.TheServlet;
 import com.proofpoint.node.NodeInfo;
 import com.proofpoint.reporting.ReportCollectionFactory;
 import org.weakref.jmx.ObjectNameBuilder;
 
 import javax.inject.Singleton;
+import javax.servlet.Filter;
 import java.util.List;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.inject.multibindings.Multibinder.newSetBinder;
 import static com.proofpoint.configuration.ConfigurationModule.bindConfig;
 import static com.proofpoint.discovery.client.DiscoveryBinder.discoveryBinder;
 import static com.proofpoint.http.client.HttpClientBinder.httpClientPrivateBinder;
+import static com.proofpoint.reporting.ReportBinder.reportBinder;
 import static org.weakref.jmx.guice.ExportBinder.newExporter;
 
 public class DiscoveryServerModule
@@ -59,11 +63,25 @@ public class DiscoveryServerModule
         bindConfig(binder).to(DiscoveryConfig.class);
         binder.bind(ServiceResource.class).in(Scopes.SINGLETON);
         binder.bind(InitializationTracker.class).in(Scopes.SINGLETON);
+        newSetBinder(binder, Filter.class, TheServlet.class).addBinding().to(StaleResponseFilter.class).in(Scopes.SINGLETON);
+        binder.bind(AnnouncementAdmissionFilter.class).in(Scopes.SINGLETON);
+        reportBinder(binder).export(AnnouncementAdmissionFilter.class).withGeneratedName();
+        newSetBinder(binder, Filter.class, TheServlet.class).addBinding().to(AnnouncementAdmissionFilter.class);
+        newSetBinder(binder, Filter.class, TheServlet.class).addBinding().to(ContentEncodingFilter.class).in(Scopes.SINGLETON);
 
         discoveryBinder(binder).bindHttpAnnouncement("discovery");
 
         // dynamic announcements
         binder.bind(DynamicAnnouncementResource.class).in(Scopes.SINGLETON);
+        reportBinder(binder).export(DynamicAnnouncementResource.class).withGeneratedName();
+        binder.bind(AnnouncementIngester.class).in(Scopes.SINGLETON);
+        reportBinder(binder).export(AnnouncementIngester.class).withGeneratedName();
+        binder.bind(AnnouncementRateLimiter.class).in(Scopes.SINGLETON);
+        reportBinder(binder).export(AnnouncementRateLimiter.class).withGeneratedName();
+        binder.bind(FlapDamper.class).in(Scopes.SINGLETON);
+        reportBinder(binder).export(FlapDamper.class).withGeneratedName();
+        binder.bind(HeartbeatAdvisor.class).in(Scopes.SINGLETON);
+        reportBinder(binder).export(HeartbeatAdvisor.class).withGeneratedName();
         binder.bind(DynamicStore.class).to(ReplicatedDynamicStore.class).in(Scopes.SINGLETON);
         binder.install(new ReplicatedStoreModule("dynamic", ForDynamicStore.class, InMemoryStore.class));
 
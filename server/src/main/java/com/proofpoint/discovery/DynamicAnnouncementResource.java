@@ -17,43 +17,217 @@ package com.proofpoint.discovery;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
 import com.proofpoint.node.NodeInfo;
+import com.proofpoint.reporting.Gauge;
+import com.proofpoint.stats.CounterStat;
+import org.weakref.jmx.Nested;
 
 import javax.inject.Inject;
+import javax.validation.ConstraintViolation;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import static com.proofpoint.discovery.store.SmileMapper.VALIDATOR;
 import static java.lang.String.format;
 import static javax.ws.rs.core.Response.Status.ACCEPTED;
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 import static javax.ws.rs.core.Response.Status.FORBIDDEN;
 import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static javax.ws.rs.core.Response.Status.PRECONDITION_FAILED;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
 
-@Path("/v1/announcement/{node_id}")
+@Path("/v1/announcement")
 public class DynamicAnnouncementResource
 {
+    private static final int TOO_MANY_REQUESTS = 429;
+
     private final NodeInfo nodeInfo;
     private final DynamicStore dynamicStore;
     private final Set<String> proxyTypes;
+    private final AnnouncementIngester ingester;
+    private final AnnouncementRateLimiter rateLimiter;
+    private final FlapDamper flapDamper;
+    private final HeartbeatAdvisor heartbeatAdvisor;
+    private final CounterStat announcements = new CounterStat();
+    private final CounterStat renewals = new CounterStat();
+    private final CounterStat rejectedRenewals = new CounterStat();
+    private final CounterStat serviceUpdates = new CounterStat();
 
     @Inject
-    public DynamicAnnouncementResource(DynamicStore dynamicStore, NodeInfo nodeInfo, DiscoveryConfig discoveryConfig)
+    public DynamicAnnouncementResource(DynamicStore dynamicStore,
+            NodeInfo nodeInfo,
+            DiscoveryConfig discoveryConfig,
+            AnnouncementIngester ingester,
+            AnnouncementRateLimiter rateLimiter,
+            FlapDamper flapDamper,
+            HeartbeatAdvisor heartbeatAdvisor)
     {
         this.dynamicStore = dynamicStore;
         this.nodeInfo = nodeInfo;
         proxyTypes = discoveryConfig.getProxyProxiedTypes();
+        this.ingester = ingester;
+        this.rateLimiter = rateLimiter;
+        this.flapDamper = flapDamper;
+        this.heartbeatAdvisor = heartbeatAdvisor;
     }
 
     @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Path("{node_id}")
+    @Consumes({MediaType.APPLICATION_JSON, "application/x-jackson-smile"})
     public Response put(@PathParam("node_id") Id<Node> nodeId, DynamicAnnouncement announcement)
+    {
+        Response rejection = check(announcement);
+        if (rejection == null) {
+            rejection = limit(nodeId, typesOf(announcement));
+        }
+        if (rejection != null) {
+            return rejection;
+        }
+
+        if (!flapDamper.recordAnnouncement(nodeId)) {
+            // the node keeps coming and going: what is stored for it stays as it is
+            return Response.status(ACCEPTED)
+                    .cacheControl(nextAnnouncement())
+                    .build();
+        }
+
+        if (ingester.isEnabled()) {
+            // stored later: there is no version to renew yet
+            if (!ingester.offer(nodeId, withLocation(nodeId, announcement))) {
+                return Response.status(SERVICE_UNAVAILABLE)
+                        .header("Retry-After", ingester.getRetryAfterSeconds())
+                        .build();
+            }
+            announcements.update(1);
+            return Response.status(ACCEPTED)
+                    .cacheControl(nextAnnouncement())
+                    .build();
+        }
+
+        dynamicStore.put(nodeId, withLocation(nodeId, announcement));
+        announcements.update(1);
+
+        Response.ResponseBuilder response = Response.status(ACCEPTED)
+                .cacheControl(nextAnnouncement());
+        String version = dynamicStore.getVersion(nodeId);
+        if (version != null) {
+            response.tag(new EntityTag(version));
+        }
+        return response.build();
+    }
+
+    /**
+     * Stores the announcements of several nodes, keyed by node id, at once. Each is checked
+     * as a single announcement would be; the result for each node has the status a single
+     * announcement would have been answered with.
+     * <p>
+     * When announcements are queued, those that did not fit have status 503 and are to be
+     * sent again later.
+     */
+    @POST
+    @Consumes({MediaType.APPLICATION_JSON, "application/x-jackson-smile"})
+    @Produces({MediaType.APPLICATION_JSON, "application/x-jackson-smile"})
+    public Map<String, AnnouncementResult> putAll(Map<String, DynamicAnnouncement> batch)
+    {
+        if (batch == null) {
+            throw new WebApplicationException(Response.status(BAD_REQUEST).entity("Batch is empty").build());
+        }
+
+        Map<String, AnnouncementResult> results = new LinkedHashMap<>();
+        Map<String, Id<Node>> nodeIds = new LinkedHashMap<>();
+        Set<Id<Node>> seen = new HashSet<>();
+        Set<Id<Node>> duplicates = new HashSet<>();
+        for (String key : batch.keySet()) {
+            Id<Node> nodeId;
+            try {
+                nodeId = Id.valueOf(key);
+            }
+            catch (IllegalArgumentException e) {
+                results.put(key, new AnnouncementResult(BAD_REQUEST.getStatusCode(), format("Invalid node id: %s", key), null));
+                continue;
+            }
+            nodeIds.put(key, nodeId);
+            if (!seen.add(nodeId)) {
+                duplicates.add(nodeId);
+            }
+        }
+
+        Map<Id<Node>, DynamicAnnouncement> accepted = new LinkedHashMap<>();
+        Map<Id<Node>, String> acceptedKeys = new LinkedHashMap<>();
+        for (Map.Entry<String, Id<Node>> item : nodeIds.entrySet()) {
+            Id<Node> nodeId = item.getValue();
+            if (duplicates.contains(nodeId)) {
+                // keys differing only in case name the same node, and neither is applied
+                results.put(item.getKey(), new AnnouncementResult(BAD_REQUEST.getStatusCode(), format("Duplicate node id: %s", nodeId), null));
+                continue;
+            }
+
+            DynamicAnnouncement announcement = batch.get(item.getKey());
+            Response rejection = (announcement == null) ? invalid("Announcement is null") : validate(announcement);
+            if (rejection == null) {
+                rejection = check(announcement);
+            }
+            if (rejection == null) {
+                rejection = limit(nodeId, typesOf(announcement));
+            }
+            if (rejection != null) {
+                results.put(item.getKey(), new AnnouncementResult(rejection.getStatus(), String.valueOf(rejection.getEntity()), null));
+                continue;
+            }
+
+            if (!flapDamper.recordAnnouncement(nodeId)) {
+                results.put(item.getKey(), new AnnouncementResult(ACCEPTED.getStatusCode(), null, null));
+                continue;
+            }
+
+            if (ingester.isEnabled()) {
+                if (ingester.offer(nodeId, withLocation(nodeId, announcement))) {
+                    announcements.update(1);
+                    results.put(item.getKey(), new AnnouncementResult(ACCEPTED.getStatusCode(), null, null));
+                }
+                else {
+                    results.put(item.getKey(), new AnnouncementResult(SERVICE_UNAVAILABLE.getStatusCode(), "Announcement queue is full", null));
+                }
+                continue;
+            }
+
+            accepted.put(nodeId, withLocation(nodeId, announcement));
+            acceptedKeys.put(nodeId, item.getKey());
+        }
+
+        dynamicStore.putAll(accepted);
+        announcements.update(accepted.size());
+
+        for (Map.Entry<Id<Node>, String> key : acceptedKeys.entrySet()) {
+            String version = dynamicStore.getVersion(key.getKey());
+            results.put(key.getValue(), new AnnouncementResult(ACCEPTED.getStatusCode(), null, version == null ? null : new EntityTag(version).toString()));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the response rejecting an announcement this server does not accept, or null.
+     */
+    private Response check(DynamicAnnouncement announcement)
     {
         if (!nodeInfo.getEnvironment().equals(announcement.getEnvironment())) {
             return Response.status(BAD_REQUEST)
@@ -76,24 +250,276 @@ public class DynamicAnnouncementResource
             }
         }
 
+        return null;
+    }
+
+    /**
+     * Returns the response refusing an announcement of a node or of service types that
+     * are announced too often, or null.
+     */
+    private Response limit(Id<Node> nodeId, Set<String> types)
+    {
+        long delayNanos = rateLimiter.tryAcquire(nodeId, types);
+        if (delayNanos == 0) {
+            return null;
+        }
+        return Response.status(TOO_MANY_REQUESTS)
+                .header("Retry-After", Math.max(1, (long) Math.ceil(delayNanos / 1.0e9)))
+                .entity("Announcing too often")
+                .build();
+    }
+
+    private static Set<String> typesOf(DynamicAnnouncement announcement)
+    {
+        Set<String> types = new HashSet<>();
+        for (DynamicServiceAnnouncement serviceAnnouncement : announcement.getServiceAnnouncements()) {
+            types.add(serviceAnnouncement.getType());
+        }
+        return types;
+    }
+
+    /**
+     * Checks the constraints the JSON provider checks for a single announcement, which
+     * it does not check for the announcements of a batch or for a single service.
+     */
+    private static <T> Response validate(T announcement)
+    {
+        Set<ConstraintViolation<T>> violations = VALIDATOR.validate(announcement);
+        if (violations.isEmpty()) {
+            return null;
+        }
+        List<String> messages = new ArrayList<>();
+        for (ConstraintViolation<T> violation : violations) {
+            messages.add(violation.getPropertyPath() + " " + violation.getMessage());
+        }
+        return invalid(format("Invalid announcement: %s", Joiner.on(", ").join(messages)));
+    }
+
+    /**
+     * Returns the cache control telling the announcer, through its max age, when to announce again.
+     */
+    private CacheControl nextAnnouncement()
+    {
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge((int) Math.max(1, heartbeatAdvisor.getNextAnnouncementDelay().getValue(TimeUnit.SECONDS)));
+        return cacheControl;
+    }
+
+    private static Response invalid(String message)
+    {
+        return Response.status(BAD_REQUEST).entity(message).build();
+    }
+
+    private static DynamicAnnouncement withLocation(Id<Node> nodeId, DynamicAnnouncement announcement)
+    {
         String location = Objects.firstNonNull(announcement.getLocation(), "/somewhere/" + nodeId.toString());
 
-        DynamicAnnouncement announcementWithLocation = DynamicAnnouncement.copyOf(announcement)
+        return DynamicAnnouncement.copyOf(announcement)
                 .setLocation(location)
                 .build();
+    }
+
+    /**
+     * Extends the expiration of an announcement without the announcement being sent again.
+     * The {@code If-Match} header carries the entity tag returned when it was announced;
+     * 412 means the announcement has changed or expired and must be sent in full.
+     */
+    @POST
+    @Path("{node_id}/renewal")
+    public Response renew(@PathParam("node_id") Id<Node> nodeId, @HeaderParam("If-Match") String ifMatch)
+    {
+        if (ifMatch == null) {
+            return Response.status(BAD_REQUEST)
+                    .entity("Renewal requires an If-Match header")
+                    .build();
+        }
+
+        EntityTag tag;
+        try {
+            tag = EntityTag.valueOf(ifMatch);
+        }
+        catch (IllegalArgumentException e) {
+            return Response.status(BAD_REQUEST)
+                    .entity(format("Invalid If-Match header: %s", ifMatch))
+                    .build();
+        }
+
+        Response rejection = limit(nodeId, ImmutableSet.<String>of());
+        if (rejection != null) {
+            return rejection;
+        }
+
+        if (!dynamicStore.renew(nodeId, tag.getValue())) {
+            rejectedRenewals.update(1);
+            return Response.status(PRECONDITION_FAILED).build();
+        }
+
+        renewals.update(1);
+        return Response.noContent()
+                .tag(tag)
+                .cacheControl(nextAnnouncement())
+                .build();
+    }
+
+    /**
+     * Adds a service to the announcement of a node, or replaces the service with the same
+     * id, leaving the other services of the node as they are. 404 means the node has no
+     * announcement to add the service to; when announcements are queued, the service is
+     * queued after them and the answer is 202 instead.
+     */
+    @PUT
+    @Path("{node_id}/service/{service_id}")
+    @Consumes({MediaType.APPLICATION_JSON, "application/x-jackson-smile"})
+    public Response putService(@PathParam("node_id") Id<Node> nodeId, @PathParam("service_id") Id<Service> serviceId, DynamicServiceAnnouncement serviceAnnouncement)
+    {
+        Response invalid = (serviceAnnouncement == null) ? invalid("Announcement is null") : validate(serviceAnnouncement);
+        if (invalid != null) {
+            return invalid;
+        }
+
+        if (!serviceId.equals(serviceAnnouncement.getId())) {
+            return invalid(format("Service id mismatch. Expected: %s, Provided: %s", serviceId, serviceAnnouncement.getId()));
+        }
+
+        if (proxyTypes.contains(serviceAnnouncement.getType())) {
+            return Response.status(FORBIDDEN)
+                    .entity(format("Cannot announce proxied type %s", serviceAnnouncement.getType()))
+                    .build();
+        }
+
+        Response rejection = limit(nodeId, ImmutableSet.of(serviceAnnouncement.getType()));
+        if (rejection != null) {
+            return rejection;
+        }
+
+        if (!flapDamper.recordServiceChange(nodeId)) {
+            // the node keeps coming and going: what is stored for it stays as it is
+            return Response.status(ACCEPTED).build();
+        }
+
+        if (ingester.isEnabled()) {
+            // stored after the announcement of the node still queued, which would otherwise replace it
+            if (!ingester.offerService(nodeId, serviceAnnouncement)) {
+                return Response.status(SERVICE_UNAVAILABLE)
+                        .header("Retry-After", ingester.getRetryAfterSeconds())
+                        .build();
+            }
+            serviceUpdates.update(1);
+            return Response.status(ACCEPTED).build();
+        }
+
+        if (!dynamicStore.putService(nodeId, serviceAnnouncement)) {
+            return Response.status(NOT_FOUND).build();
+        }
+
+        serviceUpdates.update(1);
+        return Response.noContent().build();
+    }
+
+    /**
+     * Removes a service from the announcement of a node. 404 means the node has no such
+     * service; when announcements are queued, the removal is queued after them and the
+     * answer is 202 instead.
+     */
+    @DELETE
+    @Path("{node_id}/service/{service_id}")
+    public Response deleteService(@PathParam("node_id") Id<Node> nodeId, @PathParam("service_id") Id<Service> serviceId)
+    {
+        Response rejection = limit(nodeId, ImmutableSet.<String>of());
+        if (rejection != null) {
+            return rejection;
+        }
+
+        if (!flapDamper.recordServiceChange(nodeId)) {
+            return Response.status(ACCEPTED).build();
+        }
+
+        if (ingester.isEnabled()) {
+            if (!ingester.offerServiceDeletion(nodeId, serviceId)) {
+                return Response.status(SERVICE_UNAVAILABLE)
+                        .header("Retry-After", ingester.getRetryAfterSeconds())
+                        .build();
+            }
+            serviceUpdates.update(1);
+            return Response.status(ACCEPTED).build();
+        }
 
-        dynamicStore.put(nodeId, announcementWithLocation);
+        if (!dynamicStore.deleteService(nodeId, serviceId)) {
+            return Response.status(NOT_FOUND).build();
+        }
 
-        return Response.status(ACCEPTED).build();
+        serviceUpdates.update(1);
+        return Response.noContent().build();
     }
 
     @DELETE
+    @Path("{node_id}")
     public Response delete(@PathParam("node_id") Id<Node> nodeId)
     {
+        Response rejection = limit(nodeId, ImmutableSet.<String>of());
+        if (rejection != null) {
+            return rejection;
+        }
+
+        if (!flapDamper.recordDeletion(nodeId)) {
+            // the announcement expires instead
+            return Response.noContent().build();
+        }
+
+        if (ingester.isEnabled()) {
+            // deleted after any announcement of the node still queued: whether there was one is not known yet
+            if (!ingester.offerDeletion(nodeId)) {
+                return Response.status(SERVICE_UNAVAILABLE)
+                        .header("Retry-After", ingester.getRetryAfterSeconds())
+                        .build();
+            }
+            return Response.noContent().build();
+        }
+
         if (!dynamicStore.delete(nodeId)) {
             return Response.status(NOT_FOUND).build();
         }
 
         return Response.noContent().build();
     }
+
+    @Nested
+    public CounterStat getAnnouncements()
+    {
+        return announcements;
+    }
+
+    @Nested
+    public CounterStat getRenewals()
+    {
+        return renewals;
+    }
+
+    /**
+     * Renewals refused because the announcement changed or expired, each followed by a full announcement.
+     */
+    @Nested
+    public CounterStat getRejectedRenewals()
+    {
+        return rejectedRenewals;
+    }
+
+    /**
+     * Services added, replaced or removed without the rest of their node's announcement.
+     */
+    @Nested
+    public CounterStat getServiceUpdates()
+    {
+        return serviceUpdates;
+    }
+
+    @Gauge
+    public double getRenewalRatio()
+    {
+        long total = announcements.getTotalCount();
+        if (total == 0) {
+            return 0;
+        }
+        return (double) renewals.getTotalCount() / total;
+    }
 }
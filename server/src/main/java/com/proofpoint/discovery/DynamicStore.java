@@ -15,13 +15,49 @@
  */
 package com.proofpoint.discovery;
 
+import javax.annotation.Nullable;
+import java.util.Map;
 import java.util.Set;
 
 public interface DynamicStore
 {
     boolean put(Id<Node> nodeId, DynamicAnnouncement announcement);
+
+    /**
+     * Stores the announcements of several nodes, replicating them together.
+     */
+    void putAll(Map<Id<Node>, DynamicAnnouncement> announcements);
+
+    /**
+     * Adds a service to the announcement of a node, or replaces the service with the same id.
+     *
+     * @return false if the node has no announcement
+     */
+    boolean putService(Id<Node> nodeId, DynamicServiceAnnouncement service);
+
+    /**
+     * Removes a service from the announcement of a node.
+     *
+     * @return false if the node has no announcement or it has no such service
+     */
+    boolean deleteService(Id<Node> nodeId, Id<Service> serviceId);
+
     boolean delete(Id<Node> nodeId);
 
+    /**
+     * Returns a version of the current announcement of a node that changes whenever its
+     * content does, or null if the node has no announcement.
+     */
+    @Nullable
+    String getVersion(Id<Node> nodeId);
+
+    /**
+     * Extends the expiration of the announcement of a node without sending it again.
+     *
+     * @return false if the node has no announcement or it is not of the given version
+     */
+    boolean renew(Id<Node> nodeId, String version);
+
     Set<Service> getAll();
     Set<Service> get(String type);
     Set<Service> get(String type, String pool);
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.proofpoint.log.Logger;
+import com.proofpoint.reporting.Gauge;
+import com.proofpoint.stats.CounterStat;
+import org.weakref.jmx.Nested;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Damps nodes that alternate between announcing and deleting their announcement.
+ * <p>
+ * Each switch between announcing and deleting adds a penalty to the node, which halves
+ * with every half-life. A node whose penalty reaches the suppress threshold is suppressed
+ * until its penalty decays to the reuse threshold. While a node is suppressed, what is
+ * stored for it does not change: an announcement that refreshes the stored announcement
+ * is stored, any other change is dropped. A deletion that is dropped is made up for by
+ * the expiration of the announcement.
+ * <p>
+ * The state of a node is dropped once its penalty would have decayed from the maximum
+ * to the reuse threshold, so the memory used is proportional to the number of nodes
+ * that changed recently.
+ */
+@ThreadSafe
+public class FlapDamper
+{
+    private static final Logger log = Logger.get(FlapDamper.class);
+
+    private static final double FLAP_PENALTY = 1.0;
+
+    private final double halfLifeNanos;
+    private final double suppressThreshold;
+    private final double reuseThreshold;
+    private final double maxPenalty;
+    private final Ticker ticker;
+
+    @GuardedBy("this")
+    private final Cache<Id<Node>, NodeState> nodes;
+
+    private final CounterStat flaps = new CounterStat();
+    private final CounterStat suppressions = new CounterStat();
+    private final CounterStat suppressedChanges = new CounterStat();
+
+    @Inject
+    public FlapDamper(DiscoveryConfig config)
+    {
+        this(config, Ticker.systemTicker());
+    }
+
+    public FlapDamper(DiscoveryConfig config, Ticker ticker)
+    {
+        Preconditions.checkNotNull(config, "config is null");
+        Preconditions.checkNotNull(ticker, "ticker is null");
+
+        halfLifeNanos = config.getFlapHalfLife().getValue(TimeUnit.NANOSECONDS);
+        suppressThreshold = config.getFlapSuppressThreshold();
+        reuseThreshold = config.getFlapReuseThreshold();
+        Preconditions.checkArgument(reuseThreshold > 0, "reuse threshold needs to be positive");
+        Preconditions.checkArgument(reuseThreshold < suppressThreshold, "reuse threshold needs to be less than the suppress threshold");
+        maxPenalty = 2 * suppressThreshold;
+        this.ticker = ticker;
+
+        long forgetNanos = (long) Math.ceil(halfLifeNanos * Math.log(maxPenalty / reuseThreshold) / Math.log(2));
+        nodes = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterAccess(forgetNanos, TimeUnit.NANOSECONDS)
+                .build();
+    }
+
+    /**
+     * Records an announcement of a node.
+     *
+     * @return false if the node is suppressed and the announcement is not to be stored
+     */
+    public boolean recordAnnouncement(Id<Node> nodeId)
+    {
+        return record(nodeId, true, false);
+    }
+
+    /**
+     * Records a service of a node being added, replaced or removed on its own. The node
+     * counts as announced, but the change is never a refresh of what is stored.
+     *
+     * @return false if the node is suppressed and the change is not to be applied
+     */
+    public boolean recordServiceChange(Id<Node> nodeId)
+    {
+        return record(nodeId, true, true);
+    }
+
+    /**
+     * Records the deletion of the announcement of a node.
+     *
+     * @return false if the node is suppressed and the deletion is not to be applied
+     */
+    public boolean recordDeletion(Id<Node> nodeId)
+    {
+        return record(nodeId, false, false);
+    }
+
+    private synchronized boolean record(Id<Node> nodeId, boolean announced, boolean serviceChange)
+    {
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+
+        long now = ticker.read();
+        NodeState state = nodes.getIfPresent(nodeId);
+        if (state == null) {
+            nodes.put(nodeId, new NodeState(announced, now));
+            return true;
+        }
+
+        state.decay(now);
+        if (state.announced != announced) {
+            state.announced = announced;
+            state.penalty = Math.min(maxPenalty, state.penalty + FLAP_PENALTY);
+            flaps.update(1);
+        }
+
+        if (!state.suppressed && state.penalty >= suppressThreshold) {
+            state.suppressed = true;
+            suppressions.update(1);
+            log.warn("Suppressing changes of node %s, which keeps announcing and deleting its announcement", nodeId);
+        }
+        else if (state.suppressed && state.penalty <= reuseThreshold) {
+            state.suppressed = false;
+        }
+
+        if (state.suppressed && !(announced && state.stored && !serviceChange)) {
+            suppressedChanges.update(1);
+            return false;
+        }
+        state.stored = announced;
+        return true;
+    }
+
+    /**
+     * Switches between announcing and deleting.
+     */
+    @Nested
+    public CounterStat getFlaps()
+    {
+        return flaps;
+    }
+
+    /**
+     * Times a node was suppressed.
+     */
+    @Nested
+    public CounterStat getSuppressions()
+    {
+        return suppressions;
+    }
+
+    /**
+     * Announcements and deletions dropped because their node was suppressed.
+     */
+    @Nested
+    public CounterStat getSuppressedChanges()
+    {
+        return suppressedChanges;
+    }
+
+    /**
+     * Number of nodes currently suppressed.
+     */
+    @Gauge
+    public synchronized long getSuppressedNodes()
+    {
+        long now = ticker.read();
+        long count = 0;
+        for (NodeState state : nodes.asMap().values()) {
+            state.decay(now);
+            if (state.suppressed && state.penalty <= reuseThreshold) {
+                state.suppressed = false;
+            }
+            if (state.suppressed) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private class NodeState
+    {
+        // last change requested by the node
+        private boolean announced;
+
+        // last change applied to the store
+        private boolean stored;
+
+        private double penalty;
+        private long lastUpdate;
+        private boolean suppressed;
+
+        private NodeState(boolean announced, long now)
+        {
+            this.announced = announced;
+            this.stored = announced;
+            this.lastUpdate = now;
+        }
+
+        private void decay(long now)
+        {
+            if (now > lastUpdate) {
+                penalty *= Math.pow(0.5, (now - lastUpdate) / halfLifeNanos);
+                lastUpdate = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.proofpoint.reporting.Gauge;
+import com.proofpoint.units.Duration;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.inject.Inject;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recommends to announcers how long to wait before announcing again.
+ * <p>
+ * The delay is a quarter of the max age of an announcement when the server is idle and
+ * grows with the load, up to half the max age, which leaves time for a failed
+ * announcement to be retried before the previous one expires. A random part of the delay
+ * is taken off so clients that announced together, such as after an outage, drift apart.
+ * <p>
+ * The load is the larger of the fill of the ingestion queue, when ingestion is enabled,
+ * and the surge of announcements: how far the rate of announcements over the last
+ * recommended delay exceeds the rate over the last few max ages. A surge of twice the
+ * usual rate is full load.
+ */
+public class HeartbeatAdvisor
+{
+    private final AnnouncementIngester ingester;
+    private final long maxAgeMillis;
+    private final double jitter;
+    private final Random random;
+    private final Ticker ticker;
+
+    @GuardedBy("this")
+    private final DecayingRate recentRate;
+
+    @GuardedBy("this")
+    private final DecayingRate usualRate;
+
+    @Inject
+    public HeartbeatAdvisor(DiscoveryConfig config, AnnouncementIngester ingester)
+    {
+        this(config, ingester, null, Ticker.systemTicker());
+    }
+
+    /**
+     * @param random source of the jitter, or null to use the random of the current thread
+     */
+    HeartbeatAdvisor(DiscoveryConfig config, AnnouncementIngester ingester, Random random, Ticker ticker)
+    {
+        Preconditions.checkNotNull(config, "config is null");
+        Preconditions.checkNotNull(ingester, "ingester is null");
+        Preconditions.checkNotNull(ticker, "ticker is null");
+
+        this.ingester = ingester;
+        this.maxAgeMillis = config.getMaxAge().toMillis();
+        this.jitter = config.getHeartbeatJitter();
+        this.random = random;
+        this.ticker = ticker;
+
+        double maxAgeNanos = config.getMaxAge().getValue(TimeUnit.NANOSECONDS);
+        long now = ticker.read();
+        recentRate = new DecayingRate(maxAgeNanos / 4, now);
+        usualRate = new DecayingRate(maxAgeNanos * 4, now);
+    }
+
+    /**
+     * Returns the delay to recommend to a client that just announced, and counts the
+     * announcement.
+     */
+    public Duration getNextAnnouncementDelay()
+    {
+        synchronized (this) {
+            long now = ticker.read();
+            recentRate.add(now);
+            usualRate.add(now);
+        }
+        double draw = (random == null) ? ThreadLocalRandom.current().nextDouble() : random.nextDouble();
+        return new Duration(getBaseDelayMillis() * (1 - jitter * draw), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Load between 0 and 1 the delay is based on.
+     */
+    @Gauge
+    public double getLoad()
+    {
+        double surge;
+        synchronized (this) {
+            long now = ticker.read();
+            double usual = usualRate.get(now);
+            surge = (usual == 0) ? 0 : recentRate.get(now) / usual - 1;
+        }
+        return Math.min(1, Math.max(0, Math.max(ingester.getLoad(), surge)));
+    }
+
+    /**
+     * Recommended delay in seconds before jitter.
+     */
+    @Gauge
+    public double getBaseDelay()
+    {
+        return getBaseDelayMillis() / 1000.0;
+    }
+
+    private double getBaseDelayMillis()
+    {
+        return maxAgeMillis / 4.0 * (1 + getLoad());
+    }
+
+    /**
+     * Rate of events with a weight that halves with every half-life. The weights of the
+     * time since it was created are what the count is divided by, so the rate is not
+     * underestimated before the first half-lives have passed.
+     */
+    private static class DecayingRate
+    {
+        private final double halfLifeNanos;
+        private final long start;
+        private double count;
+        private long lastUpdate;
+
+        private DecayingRate(double halfLifeNanos, long now)
+        {
+            this.halfLifeNanos = halfLifeNanos;
+            this.start = now;
+            this.lastUpdate = now;
+        }
+
+        public void add(long now)
+        {
+            decay(now);
+            count++;
+        }
+
+        /**
+         * Returns the rate in events per nanosecond.
+         */
+        public double get(long now)
+        {
+            decay(now);
+            double window = halfLifeNanos / Math.log(2) * (1 - Math.pow(0.5, (now - start) / halfLifeNanos));
+            return (window == 0) ? 0 : count / window;
+        }
+
+        private void decay(long now)
+        {
+            if (now > lastUpdate) {
+                count *= Math.pow(0.5, (now - lastUpdate) / halfLifeNanos);
+                lastUpdate = now;
+            }
+        }
+    }
+}
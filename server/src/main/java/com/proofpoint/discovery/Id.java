@@ -21,6 +21,7 @@ import com.google.common.base.Preconditions;
 
 import javax.annotation.concurrent.Immutable;
 
+import java.nio.ByteBuffer;
 import java.util.UUID;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -87,4 +88,15 @@ public class Id<T>
     {
         return toString().getBytes(UTF_8);
     }
+
+    /**
+     * Returns the 16 bytes of the id, most significant first.
+     */
+    public byte[] getBinaryBytes()
+    {
+        return ByteBuffer.allocate(16)
+                .putLong(id.getMostSignificantBits())
+                .putLong(id.getLeastSignificantBits())
+                .array();
+    }
 }
@@ -7,12 +7,24 @@ import java.util.Set;
 public class InitializationTracker
 {
     private final Set<CompletionNotifier> notifiers = new ConcurrentHashSet<>();
+    private final Set<CompletionNotifier> staleNotifiers = new ConcurrentHashSet<>();
 
+    /**
+     * Returns true if queries can't be answered yet.
+     */
     public boolean isPending()
     {
         return !notifiers.isEmpty();
     }
 
+    /**
+     * Returns true if queries can be answered, but possibly from stale data.
+     */
+    public boolean isStale()
+    {
+        return !staleNotifiers.isEmpty();
+    }
+
     public CompletionNotifier createTask()
     {
         CompletionNotifier notifier = new CompletionNotifier();
@@ -22,9 +34,21 @@ public class InitializationTracker
 
     public class CompletionNotifier
     {
-        public void complete()
+        /**
+         * Allows queries to be answered, marked as possibly stale, before the task completes.
+         */
+        public synchronized void allowStale()
+        {
+            if (notifiers.contains(this)) {
+                staleNotifiers.add(this);
+                notifiers.remove(this);
+            }
+        }
+
+        public synchronized void complete()
         {
             notifiers.remove(this);
+            staleNotifiers.remove(this);
         }
     }
 }
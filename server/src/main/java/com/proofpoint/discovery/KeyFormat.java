@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+/**
+ * How ids are written in the keys of a replicated store: as the 36 characters of their
+ * string form, or as their 16 bytes. The two never have the same length, so keys of
+ * either format can be read from the same store.
+ */
+enum KeyFormat
+{
+    TEXT(36) {
+        @Override
+        byte[] encode(Id<?> id)
+        {
+            return id.getBytes();
+        }
+    },
+    BINARY(16) {
+        @Override
+        byte[] encode(Id<?> id)
+        {
+            return id.getBinaryBytes();
+        }
+    };
+
+    private final int idLength;
+
+    KeyFormat(int idLength)
+    {
+        this.idLength = idLength;
+    }
+
+    abstract byte[] encode(Id<?> id);
+
+    int getIdLength()
+    {
+        return idLength;
+    }
+
+    KeyFormat other()
+    {
+        return (this == TEXT) ? BINARY : TEXT;
+    }
+
+    static KeyFormat of(boolean binary)
+    {
+        return binary ? BINARY : TEXT;
+    }
+}
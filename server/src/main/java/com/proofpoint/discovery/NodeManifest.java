@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.List;
+
+/**
+ * What is stored for a node whose services are stored as separate entries: the parts
+ * of its announcement shared by all of its services, and the ids of the services.
+ */
+@Immutable
+public class NodeManifest
+{
+    private final String pool;
+    private final String location;
+    private final List<Id<Service>> serviceIds;
+
+    @JsonCreator
+    public NodeManifest(
+            @JsonProperty("pool") String pool,
+            @JsonProperty("location") String location,
+            @JsonProperty("serviceIds") List<Id<Service>> serviceIds)
+    {
+        Preconditions.checkNotNull(pool, "pool is null");
+        Preconditions.checkNotNull(location, "location is null");
+        Preconditions.checkNotNull(serviceIds, "serviceIds is null");
+
+        this.pool = pool;
+        this.location = location;
+        this.serviceIds = ImmutableList.copyOf(serviceIds);
+    }
+
+    @JsonProperty
+    public String getPool()
+    {
+        return pool;
+    }
+
+    @JsonProperty
+    public String getLocation()
+    {
+        return location;
+    }
+
+    @JsonProperty
+    public List<Id<Service>> getServiceIds()
+    {
+        return serviceIds;
+    }
+}
@@ -15,7 +15,14 @@
  */
 package com.proofpoint.discovery;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Bytes;
+import com.google.common.util.concurrent.Striped;
 import com.proofpoint.discovery.store.DistributedStore;
 import com.proofpoint.discovery.store.Entry;
 import com.proofpoint.json.JsonCodec;
@@ -23,8 +30,13 @@ import com.proofpoint.units.Duration;
 
 import javax.inject.Inject;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Predicates.and;
 import static com.google.common.collect.ImmutableList.copyOf;
@@ -34,19 +46,51 @@ import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
 import static com.proofpoint.discovery.Service.matchesPool;
 import static com.proofpoint.discovery.Service.matchesType;
 
+/**
+ * Stores dynamic announcements in a {@link DistributedStore}, in one of two layouts.
+ * <p>
+ * In the node layout, the services of a node are stored together, as a list under the
+ * id of the node. In the service layout, each service is stored as a list of one under
+ * {@code <node id>/<service id>}, and a {@link NodeManifest} listing them is stored under
+ * {@code <node id>/}: a change to one service only writes, and replicates, that service.
+ * Both layouts are always read, so a cluster can switch once every server reads the
+ * service layout.
+ * <p>
+ * Ids are written in keys either as strings or as their 16 bytes, see {@link KeyFormat}.
+ * While key migration is on, a node not found under keys of the configured format is
+ * looked up under keys of the other format, and what is stored there is replaced when
+ * the node is next written. Once every node has been written since the format changed,
+ * turning migration off saves those lookups.
+ * <p>
+ * A write reads what is stored for the node to know what it replaces, so the writes of a
+ * node are serialized.
+ */
 public class ReplicatedDynamicStore
         implements DynamicStore
 {
-    private final JsonCodec<List<Service>> codec = JsonCodec.listJsonCodec(Service.class);
+    private static final HashFunction VERSION_HASH = Hashing.murmur3_128();
+    private static final byte SEPARATOR = '/';
+    private static final int NODE_LOCK_STRIPES = 64;
+
+    private final JsonCodec<NodeManifest> manifestCodec = JsonCodec.jsonCodec(NodeManifest.class);
 
+    private final ServiceCodec codec;
     private final DistributedStore store;
     private final Duration maxAge;
+    private final boolean serviceLayout;
+    private final KeyFormat keyFormat;
+    private final boolean keyMigration;
+    private final Striped<Lock> nodeLocks = Striped.lock(NODE_LOCK_STRIPES);
 
     @Inject
     public ReplicatedDynamicStore(@ForDynamicStore DistributedStore store, DiscoveryConfig config)
     {
         this.store = store;
         this.maxAge = config.getMaxAge();
+        this.serviceLayout = config.isServiceLayout();
+        this.keyFormat = KeyFormat.of(config.isDynamicBinaryKeys());
+        this.keyMigration = config.isDynamicKeyMigration();
+        this.codec = new ServiceCodec(config.isBinaryValues());
     }
 
     @Override
@@ -54,28 +98,212 @@ public class ReplicatedDynamicStore
     {
         List<Service> services = copyOf(transform(announcement.getServiceAnnouncements(), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool())));
 
-        byte[] key = nodeId.getBytes();
-        byte[] value = codec.toJsonBytes(services);
-
-        store.put(key, value, maxAge);
+        Lock lock = nodeLocks.get(nodeId);
+        lock.lock();
+        try {
+            Map<ByteBuffer, byte[]> values = new LinkedHashMap<>();
+            List<byte[]> deletions = new ArrayList<>();
+            addNode(nodeId, announcement.getPool(), announcement.getLocation(), services, values, deletions);
+            write(values, deletions);
+        }
+        finally {
+            lock.unlock();
+        }
 
         return true; // TODO
     }
 
+    @Override
+    public void putAll(Map<Id<Node>, DynamicAnnouncement> announcements)
+    {
+        // the locks are returned in a fixed order, so batches sharing nodes don't deadlock
+        Iterable<Lock> locks = nodeLocks.bulkGet(announcements.keySet());
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        try {
+            Map<ByteBuffer, byte[]> values = new LinkedHashMap<>();
+            List<byte[]> deletions = new ArrayList<>();
+            for (Map.Entry<Id<Node>, DynamicAnnouncement> entry : announcements.entrySet()) {
+                Id<Node> nodeId = entry.getKey();
+                DynamicAnnouncement announcement = entry.getValue();
+                List<Service> services = copyOf(transform(announcement.getServiceAnnouncements(), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool())));
+
+                addNode(nodeId, announcement.getPool(), announcement.getLocation(), services, values, deletions);
+            }
+
+            write(values, deletions);
+        }
+        finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean putService(Id<Node> nodeId, DynamicServiceAnnouncement serviceAnnouncement)
+    {
+        Lock lock = nodeLocks.get(nodeId);
+        lock.lock();
+        try {
+            return putServiceLocked(nodeId, serviceAnnouncement);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean putServiceLocked(Id<Node> nodeId, DynamicServiceAnnouncement serviceAnnouncement)
+    {
+        KeyFormat stored = getStoredFormat(nodeId);
+        NodeManifest manifest = getManifest(stored, nodeId);
+        if (serviceLayout && manifest != null && stored == keyFormat) {
+            Id<Service> serviceId = serviceAnnouncement.getId();
+            Service service = toServiceWith(nodeId, manifest.getLocation(), manifest.getPool()).apply(serviceAnnouncement);
+
+            Map<ByteBuffer, byte[]> values = new LinkedHashMap<>();
+            values.put(ByteBuffer.wrap(serviceKey(keyFormat, nodeId, serviceId)), codec.encode(ImmutableList.of(service)));
+            if (!manifest.getServiceIds().contains(serviceId)) {
+                List<Id<Service>> serviceIds = new ArrayList<>(manifest.getServiceIds());
+                serviceIds.add(serviceId);
+                values.put(ByteBuffer.wrap(manifestKey(keyFormat, nodeId)), manifestCodec.toJsonBytes(new NodeManifest(manifest.getPool(), manifest.getLocation(), serviceIds)));
+            }
+            store.putAll(values, maxAge);
+            return true;
+        }
+
+        StoredNode node = getNode(stored, nodeId, manifest);
+        if (node == null) {
+            return false;
+        }
+
+        Service service = toServiceWith(nodeId, node.location, node.pool).apply(serviceAnnouncement);
+        List<Service> services = new ArrayList<>();
+        boolean replaced = false;
+        for (Service existing : node.services) {
+            if (existing.getId().equals(service.getId())) {
+                services.add(service);
+                replaced = true;
+            }
+            else {
+                services.add(existing);
+            }
+        }
+        if (!replaced) {
+            services.add(service);
+        }
+
+        Map<ByteBuffer, byte[]> values = new LinkedHashMap<>();
+        List<byte[]> deletions = new ArrayList<>();
+        addNode(nodeId, node.pool, node.location, services, values, deletions);
+        write(values, deletions);
+        return true;
+    }
+
+    @Override
+    public boolean deleteService(Id<Node> nodeId, Id<Service> serviceId)
+    {
+        Lock lock = nodeLocks.get(nodeId);
+        lock.lock();
+        try {
+            return deleteServiceLocked(nodeId, serviceId);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean deleteServiceLocked(Id<Node> nodeId, Id<Service> serviceId)
+    {
+        KeyFormat stored = getStoredFormat(nodeId);
+        NodeManifest manifest = getManifest(stored, nodeId);
+        if (serviceLayout && manifest != null && stored == keyFormat) {
+            if (!manifest.getServiceIds().contains(serviceId)) {
+                return false;
+            }
+
+            List<Id<Service>> serviceIds = new ArrayList<>(manifest.getServiceIds());
+            serviceIds.remove(serviceId);
+            store.put(manifestKey(keyFormat, nodeId), manifestCodec.toJsonBytes(new NodeManifest(manifest.getPool(), manifest.getLocation(), serviceIds)), maxAge);
+            store.delete(serviceKey(keyFormat, nodeId, serviceId));
+            return true;
+        }
+
+        StoredNode node = getNode(stored, nodeId, manifest);
+        if (node == null) {
+            return false;
+        }
+
+        List<Service> services = new ArrayList<>();
+        for (Service existing : node.services) {
+            if (!existing.getId().equals(serviceId)) {
+                services.add(existing);
+            }
+        }
+        if (services.size() == node.services.size()) {
+            return false;
+        }
+
+        Map<ByteBuffer, byte[]> values = new LinkedHashMap<>();
+        List<byte[]> deletions = new ArrayList<>();
+        addNode(nodeId, node.pool, node.location, services, values, deletions);
+        write(values, deletions);
+        return true;
+    }
+
     @Override
     public boolean delete(Id<Node> nodeId)
     {
-        store.delete(nodeId.getBytes());
+        Lock lock = nodeLocks.get(nodeId);
+        lock.lock();
+        try {
+            List<byte[]> deletions = new ArrayList<>();
+            addDeletions(keyFormat, nodeId, !serviceLayout, deletions);
+            if (keyMigration) {
+                addDeletions(keyFormat.other(), nodeId, false, deletions);
+            }
+            write(ImmutableMap.<ByteBuffer, byte[]>of(), deletions);
+        }
+        finally {
+            lock.unlock();
+        }
 
         return true; // TODO
     }
 
+    @Override
+    public String getVersion(Id<Node> nodeId)
+    {
+        Map<ByteBuffer, byte[]> values = getValues(getStoredFormat(nodeId), nodeId);
+        if (values == null) {
+            return null;
+        }
+        return versionOf(values.values());
+    }
+
+    @Override
+    public boolean renew(Id<Node> nodeId, String version)
+    {
+        Map<ByteBuffer, byte[]> values = getValues(getStoredFormat(nodeId), nodeId);
+        if (values == null || !versionOf(values.values()).equals(version)) {
+            return false;
+        }
+
+        // the stored values are renewed as they are, and only if they are still the ones
+        // the version was computed from
+        return store.renew(values, maxAge);
+    }
+
     @Override
     public Set<Service> getAll()
     {
         ImmutableSet.Builder<Service> builder = ImmutableSet.builder();
         for (Entry entry : store.getAll()) {
-            builder.addAll(codec.fromJson(entry.getValue()));
+            if (isManifestKey(entry.getKey())) {
+                continue;
+            }
+            builder.addAll(codec.decode(entry.getValue()));
         }
 
         return builder.build();
@@ -92,4 +320,219 @@ public class ReplicatedDynamicStore
     {
         return ImmutableSet.copyOf(filter(getAll(), and(matchesType(type), matchesPool(pool))));
     }
+
+    /**
+     * Adds the writes storing the services of a node in the configured layout, and the
+     * deletions of what was stored for the node and is no longer part of it.
+     */
+    private void addNode(Id<Node> nodeId, String pool, String location, List<Service> services, Map<ByteBuffer, byte[]> values, List<byte[]> deletions)
+    {
+        KeyFormat stored = getStoredFormat(nodeId);
+        if (stored != keyFormat) {
+            // the keys of the other format are replaced by keys of the configured one
+            addDeletions(stored, nodeId, false, deletions);
+        }
+        NodeManifest previous = getManifest(keyFormat, nodeId);
+
+        if (!serviceLayout) {
+            values.put(ByteBuffer.wrap(nodeKey(keyFormat, nodeId)), codec.encode(services));
+            if (previous != null) {
+                deletions.add(manifestKey(keyFormat, nodeId));
+                for (Id<Service> serviceId : previous.getServiceIds()) {
+                    deletions.add(serviceKey(keyFormat, nodeId, serviceId));
+                }
+            }
+            return;
+        }
+
+        List<Id<Service>> serviceIds = new ArrayList<>();
+        for (Service service : services) {
+            serviceIds.add(service.getId());
+            values.put(ByteBuffer.wrap(serviceKey(keyFormat, nodeId, service.getId())), codec.encode(ImmutableList.of(service)));
+        }
+        values.put(ByteBuffer.wrap(manifestKey(keyFormat, nodeId)), manifestCodec.toJsonBytes(new NodeManifest(pool, location, serviceIds)));
+
+        if (previous != null) {
+            for (Id<Service> serviceId : previous.getServiceIds()) {
+                if (!serviceIds.contains(serviceId)) {
+                    deletions.add(serviceKey(keyFormat, nodeId, serviceId));
+                }
+            }
+        }
+        if (store.get(nodeKey(keyFormat, nodeId)) != null) {
+            deletions.add(nodeKey(keyFormat, nodeId));
+        }
+    }
+
+    /**
+     * Adds the deletions of what is stored for a node under keys of the given format.
+     *
+     * @param deleteNodeKey whether to delete the node layout key even if nothing is stored under it
+     */
+    private void addDeletions(KeyFormat format, Id<Node> nodeId, boolean deleteNodeKey, List<byte[]> deletions)
+    {
+        NodeManifest manifest = getManifest(format, nodeId);
+        if (manifest != null) {
+            deletions.add(manifestKey(format, nodeId));
+            for (Id<Service> serviceId : manifest.getServiceIds()) {
+                deletions.add(serviceKey(format, nodeId, serviceId));
+            }
+        }
+        if (deleteNodeKey || store.get(nodeKey(format, nodeId)) != null) {
+            deletions.add(nodeKey(format, nodeId));
+        }
+    }
+
+    private void write(Map<ByteBuffer, byte[]> values, List<byte[]> deletions)
+    {
+        if (!values.isEmpty()) {
+            store.putAll(values, maxAge);
+        }
+        for (byte[] key : deletions) {
+            store.delete(key);
+        }
+    }
+
+    /**
+     * Returns the stored values of a node, the manifest first, or null if the node has no
+     * announcement or not all of it is stored on this node. With partitioning a node only
+     * stores the keys it owns, so a node that is not an owner of every key of an
+     * announcement has no version for it: renewals it receives are answered 412 and the
+     * announcement is sent in full, which is forwarded to the owners. The other reads of
+     * this class go to the owners of keys this node does not own.
+     */
+    private Map<ByteBuffer, byte[]> getValues(KeyFormat format, Id<Node> nodeId)
+    {
+        Map<ByteBuffer, byte[]> values = new LinkedHashMap<>();
+
+        byte[] manifestValue = store.getLocal(manifestKey(format, nodeId));
+        if (manifestValue != null) {
+            values.put(ByteBuffer.wrap(manifestKey(format, nodeId)), manifestValue);
+            for (Id<Service> serviceId : manifestCodec.fromJson(manifestValue).getServiceIds()) {
+                byte[] key = serviceKey(format, nodeId, serviceId);
+                byte[] value = store.getLocal(key);
+                if (value == null) {
+                    return null;
+                }
+                values.put(ByteBuffer.wrap(key), value);
+            }
+            return values;
+        }
+
+        byte[] value = store.getLocal(nodeKey(format, nodeId));
+        if (value == null) {
+            return null;
+        }
+        values.put(ByteBuffer.wrap(nodeKey(format, nodeId)), value);
+        return values;
+    }
+
+    /**
+     * Returns the format of the keys a node is stored under, or the configured format if
+     * the node is not stored or key migration is off.
+     */
+    private KeyFormat getStoredFormat(Id<Node> nodeId)
+    {
+        if (keyMigration && !isStored(keyFormat, nodeId) && isStored(keyFormat.other(), nodeId)) {
+            return keyFormat.other();
+        }
+        return keyFormat;
+    }
+
+    private boolean isStored(KeyFormat format, Id<Node> nodeId)
+    {
+        // the key of the configured layout is looked up first, as it is the one usually found
+        if (serviceLayout) {
+            return store.get(manifestKey(format, nodeId)) != null || store.get(nodeKey(format, nodeId)) != null;
+        }
+        return store.get(nodeKey(format, nodeId)) != null || store.get(manifestKey(format, nodeId)) != null;
+    }
+
+    private NodeManifest getManifest(KeyFormat format, Id<Node> nodeId)
+    {
+        byte[] value = store.get(manifestKey(format, nodeId));
+        if (value == null) {
+            return null;
+        }
+        return manifestCodec.fromJson(value);
+    }
+
+    /**
+     * Returns what is stored for a node in either layout, or null if the node has no
+     * announcement or its location can't be told.
+     */
+    private StoredNode getNode(KeyFormat format, Id<Node> nodeId, NodeManifest manifest)
+    {
+        if (manifest != null) {
+            List<Service> services = new ArrayList<>();
+            for (Id<Service> serviceId : manifest.getServiceIds()) {
+                byte[] value = store.get(serviceKey(format, nodeId, serviceId));
+                if (value != null) {
+                    services.addAll(codec.decode(value));
+                }
+            }
+            return new StoredNode(manifest.getPool(), manifest.getLocation(), services);
+        }
+
+        byte[] value = store.get(nodeKey(format, nodeId));
+        if (value == null) {
+            return null;
+        }
+        List<Service> services = codec.decode(value);
+        if (services.isEmpty()) {
+            // the node layout keeps the location and pool with the services only
+            return null;
+        }
+        return new StoredNode(services.get(0).getPool(), services.get(0).getLocation(), services);
+    }
+
+    private static byte[] nodeKey(KeyFormat format, Id<Node> nodeId)
+    {
+        return format.encode(nodeId);
+    }
+
+    private static byte[] manifestKey(KeyFormat format, Id<Node> nodeId)
+    {
+        return Bytes.concat(format.encode(nodeId), new byte[] {SEPARATOR});
+    }
+
+    private static byte[] serviceKey(KeyFormat format, Id<Node> nodeId, Id<Service> serviceId)
+    {
+        return Bytes.concat(format.encode(nodeId), new byte[] {SEPARATOR}, format.encode(serviceId));
+    }
+
+    private static boolean isManifestKey(byte[] key)
+    {
+        // the length tells manifest keys from binary node keys, whose last byte may be the separator
+        for (KeyFormat format : KeyFormat.values()) {
+            if (key.length == format.getIdLength() + 1 && key[key.length - 1] == SEPARATOR) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String versionOf(Iterable<byte[]> values)
+    {
+        // the encoded values are the same on every node, so any node storing them can check a renewal
+        Hasher hasher = VERSION_HASH.newHasher();
+        for (byte[] value : values) {
+            hasher.putBytes(value);
+        }
+        return hasher.hash().toString();
+    }
+
+    private static class StoredNode
+    {
+        private final String pool;
+        private final String location;
+        private final List<Service> services;
+
+        private StoredNode(String pool, String location, List<Service> services)
+        {
+            this.pool = pool;
+            this.location = location;
+            this.services = services;
+        }
+    }
 }
@@ -15,11 +15,13 @@
  */
 package com.proofpoint.discovery;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.proofpoint.discovery.store.DistributedStore;
 import com.proofpoint.discovery.store.Entry;
-import com.proofpoint.json.JsonCodec;
+import com.proofpoint.log.Logger;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import java.util.Set;
 
@@ -28,31 +30,73 @@ import static com.google.common.collect.Iterables.filter;
 import static com.proofpoint.discovery.Service.matchesPool;
 import static com.proofpoint.discovery.Service.matchesType;
 
+/**
+ * Stores static announcements in a {@link DistributedStore}, each service under its id.
+ * <p>
+ * Ids are written in keys either as strings or as their 16 bytes, see {@link KeyFormat}.
+ * Keys of both formats are always read. As static announcements don't expire, services
+ * stored under string keys are moved to binary keys on startup once binary keys are
+ * configured.
+ */
 public class ReplicatedStaticStore
         implements StaticStore
 {
-    private final JsonCodec<Service> codec = JsonCodec.jsonCodec(Service.class);
+    private static final Logger log = Logger.get(ReplicatedStaticStore.class);
+
+    private final ServiceCodec codec;
     private final DistributedStore store;
+    private final KeyFormat keyFormat;
 
     @Inject
-    public ReplicatedStaticStore(@ForStaticStore DistributedStore store)
+    public ReplicatedStaticStore(@ForStaticStore DistributedStore store, DiscoveryConfig config)
     {
         this.store = store;
+        this.codec = new ServiceCodec(config.isBinaryValues());
+        this.keyFormat = KeyFormat.of(config.isStaticBinaryKeys());
+    }
+
+    @PostConstruct
+    public void migrateKeys()
+    {
+        if (keyFormat != KeyFormat.BINARY) {
+            return;
+        }
+
+        int migrated = 0;
+        for (Entry entry : ImmutableList.copyOf(store.getAll())) {
+            if (entry.getKey().length != KeyFormat.TEXT.getIdLength()) {
+                continue;
+            }
+            for (Service service : codec.decode(entry.getValue())) {
+                store.put(keyFormat.encode(service.getId()), codec.encode(service));
+            }
+            store.delete(entry.getKey());
+            ++migrated;
+        }
+        if (migrated > 0) {
+            log.info("Moved %d static announcements to binary keys", migrated);
+        }
     }
 
     @Override
     public void put(Service service)
     {
-        byte[] key = service.getId().getBytes();
-        byte[] value = codec.toJsonBytes(service);
+        byte[] key = keyFormat.encode(service.getId());
+        byte[] value = codec.encode(service);
 
         store.put(key, value);
+
+        byte[] otherKey = keyFormat.other().encode(service.getId());
+        if (store.get(otherKey) != null) {
+            store.delete(otherKey);
+        }
     }
 
     @Override
     public void delete(Id<Service> id)
     {
-        store.delete(id.getBytes());
+        store.delete(keyFormat.encode(id));
+        store.delete(keyFormat.other().encode(id));
     }
 
     @Override
@@ -60,7 +104,7 @@ public class ReplicatedStaticStore
     {
         ImmutableSet.Builder<Service> builder = ImmutableSet.builder();
         for (Entry entry : store.getAll()) {
-            builder.add(codec.fromJson(entry.getValue()));
+            builder.addAll(codec.decode(entry.getValue()));
         }
 
         return builder.build();
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.proofpoint.json.JsonCodec;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Encodes the services stored as the value of an entry of a replicated store.
+ * <p>
+ * Values are written either as JSON or in a binary format, and read in both: a binary
+ * value starts with {@link #BINARY_FORMAT}, which no JSON value starts with, and a JSON
+ * value is either a list of services or, as written by earlier static stores, a single
+ * service. The binary format is:
+ * <pre>
+ *     byte     {@link #BINARY_FORMAT}
+ *     varint   number of services, then for each service:
+ *     long     most significant bits of the id
+ *     long     least significant bits of the id
+ *     byte     1 if the node id follows, 0 if there is none
+ *     long     most significant bits of the node id
+ *     long     least significant bits of the node id
+ *     string   type
+ *     string   pool
+ *     string   location
+ *     varint   number of properties, then for each property:
+ *     varint   key code, followed by the key as a string if 0
+ *     string   value
+ * </pre>
+ * where a string is the varint length of its UTF-8 bytes followed by the bytes. A key
+ * code other than 0 refers to an entry of a dictionary that starts with
+ * {@link #WELL_KNOWN_KEYS} and to which each key written out in the value is appended,
+ * so a key is spelled out at most once per value.
+ */
+@ThreadSafe
+public final class ServiceCodec
+{
+    public static final byte BINARY_FORMAT = 1;
+
+    /**
+     * Property keys coded without being spelled out. Keys may be appended to this list
+     * once every server reads the longer list, but never removed or reordered.
+     */
+    static final List<String> WELL_KNOWN_KEYS = ImmutableList.of(
+            "http",
+            "https",
+            "http-external",
+            "https-external",
+            "jmx",
+            "admin",
+            "thrift",
+            "weight",
+            "datacenter",
+            "rack",
+            "version");
+
+    private static final byte NO_NODE_ID = 0;
+    private static final byte NODE_ID = 1;
+    private static final int LITERAL_KEY = 0;
+
+    private static final Map<String, Integer> WELL_KNOWN_CODES;
+
+    static {
+        ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+        for (int i = 0; i < WELL_KNOWN_KEYS.size(); i++) {
+            builder.put(WELL_KNOWN_KEYS.get(i), i + 1);
+        }
+        WELL_KNOWN_CODES = builder.build();
+    }
+
+    private final JsonCodec<List<Service>> listCodec = JsonCodec.listJsonCodec(Service.class);
+    private final JsonCodec<Service> serviceCodec = JsonCodec.jsonCodec(Service.class);
+    private final boolean binary;
+
+    /**
+     * @param binary whether to write values in the binary format rather than as JSON
+     */
+    public ServiceCodec(boolean binary)
+    {
+        this.binary = binary;
+    }
+
+    public byte[] encode(List<Service> services)
+    {
+        Preconditions.checkNotNull(services, "services is null");
+
+        if (!binary) {
+            return listCodec.toJsonBytes(services);
+        }
+        return encodeBinary(services);
+    }
+
+    /**
+     * Encodes a single service, which is written as a JSON object rather than a list so
+     * that servers which only read JSON objects can read it.
+     */
+    public byte[] encode(Service service)
+    {
+        Preconditions.checkNotNull(service, "service is null");
+
+        if (!binary) {
+            return serviceCodec.toJsonBytes(service);
+        }
+        return encodeBinary(ImmutableList.of(service));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value is not valid in either format
+     */
+    public List<Service> decode(byte[] value)
+    {
+        Preconditions.checkNotNull(value, "value is null");
+        Preconditions.checkArgument(value.length > 0, "value is empty");
+
+        if (value[0] == BINARY_FORMAT) {
+            return decodeBinary(value);
+        }
+        if (value[0] == '{') {
+            return ImmutableList.of(serviceCodec.fromJson(value));
+        }
+        return listCodec.fromJson(value);
+    }
+
+    private static byte[] encodeBinary(List<Service> services)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 128 * services.size());
+        out.write(BINARY_FORMAT);
+        writeVarInt(out, services.size());
+
+        Map<String, Integer> codes = new HashMap<>(WELL_KNOWN_CODES);
+        for (Service service : services) {
+            writeUuid(out, service.getId().get());
+            if (service.getNodeId() == null) {
+                out.write(NO_NODE_ID);
+            }
+            else {
+                out.write(NODE_ID);
+                writeUuid(out, service.getNodeId().get());
+            }
+            writeString(out, service.getType());
+            writeString(out, service.getPool());
+            writeString(out, service.getLocation());
+
+            writeVarInt(out, service.getProperties().size());
+            for (Map.Entry<String, String> property : service.getProperties().entrySet()) {
+                Integer code = codes.get(property.getKey());
+                if (code == null) {
+                    writeVarInt(out, LITERAL_KEY);
+                    writeString(out, property.getKey());
+                    codes.put(property.getKey(), codes.size() + 1);
+                }
+                else {
+                    writeVarInt(out, code);
+                }
+                writeString(out, property.getValue());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static List<Service> decodeBinary(byte[] value)
+    {
+        ByteBuffer in = ByteBuffer.wrap(value, 1, value.length - 1);
+        try {
+            int count = readVarInt(in);
+            ImmutableList.Builder<Service> services = ImmutableList.builder();
+
+            List<String> keys = new ArrayList<>(WELL_KNOWN_KEYS);
+            for (int i = 0; i < count; i++) {
+                Id<Service> id = Id.valueOf(readUuid(in));
+                Id<Node> nodeId = null;
+                byte hasNodeId = in.get();
+                if (hasNodeId == NODE_ID) {
+                    nodeId = Id.valueOf(readUuid(in));
+                }
+                else if (hasNodeId != NO_NODE_ID) {
+                    throw new IllegalArgumentException("Invalid node id marker " + hasNodeId);
+                }
+                String type = readString(in);
+                String pool = readString(in);
+                String location = readString(in);
+
+                int propertyCount = readVarInt(in);
+                ImmutableMap.Builder<String, String> properties = ImmutableMap.builder();
+                for (int j = 0; j < propertyCount; j++) {
+                    int code = readVarInt(in);
+                    String key;
+                    if (code == LITERAL_KEY) {
+                        key = readString(in);
+                        keys.add(key);
+                    }
+                    else {
+                        Preconditions.checkArgument(code <= keys.size(), "Unknown property key code %s", code);
+                        key = keys.get(code - 1);
+                    }
+                    properties.put(key, readString(in));
+                }
+
+                services.add(new Service(id, nodeId, type, pool, location, properties.build()));
+            }
+            Preconditions.checkArgument(!in.hasRemaining(), "Trailing bytes after services");
+            return services.build();
+        }
+        catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated value", e);
+        }
+    }
+
+    private static void writeUuid(ByteArrayOutputStream out, UUID uuid)
+    {
+        writeLong(out, uuid.getMostSignificantBits());
+        writeLong(out, uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(ByteBuffer in)
+    {
+        return new UUID(in.getLong(), in.getLong());
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value)
+    {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value)
+    {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in)
+    {
+        int length = readVarInt(in);
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer in)
+    {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                Preconditions.checkArgument(value >= 0, "Negative length or count");
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint is too long");
+    }
+}
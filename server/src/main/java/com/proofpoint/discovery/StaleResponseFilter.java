@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.inject.Inject;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Marks service queries answered while the stores are still catching up as possibly stale.
+ */
+public class StaleResponseFilter
+        implements Filter
+{
+    private static final String SERVICE_PATH = "/v1/service";
+    static final String STALE_WARNING = "110 - \"Response is Stale\"";
+
+    private final InitializationTracker initializationTracker;
+
+    @Inject
+    public StaleResponseFilter(InitializationTracker initializationTracker)
+    {
+        this.initializationTracker = checkNotNull(initializationTracker, "initializationTracker is null");
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig)
+    {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException
+    {
+        if (initializationTracker.isStale() && request instanceof HttpServletRequest && ((HttpServletRequest) request).getRequestURI().startsWith(SERVICE_PATH)) {
+            // set before the body is written, while headers can still be added
+            ((HttpServletResponse) response).addHeader("Warning", STALE_WARNING);
+        }
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+}
@@ -53,7 +53,7 @@ public class StaticAnnouncementResource
     }
 
     @POST
-    @Consumes("application/json")
+    @Consumes({"application/json", "application/x-jackson-smile"})
     public Response post(StaticAnnouncement announcement, @Context UriInfo uriInfo)
     {
         if (!nodeInfo.getEnvironment().equals(announcement.getEnvironment())) {
@@ -20,8 +20,12 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.proofpoint.log.Logger;
 import com.proofpoint.reporting.Gauge;
 import com.proofpoint.stats.CounterStat;
+import com.proofpoint.stats.DistributionStat;
+import com.proofpoint.stats.TimeStat;
+import com.proofpoint.units.Duration;
 import org.weakref.jmx.Nested;
 
+import javax.annotation.Nullable;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.util.ArrayList;
@@ -33,6 +37,7 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class BatchProcessor<T>
 {
@@ -40,27 +45,123 @@ public class BatchProcessor<T>
 
     private final BatchHandler<T> handler;
     private final int maxBatchSize;
+    private final long maxBatchBytes;
+    private final Weigher<T> weigher;
+    private final long maxLingerNanos;
     private final BlockingQueue<T> queue;
     private final String name;
 
     private ExecutorService executor;
     private volatile Future<?> future;
 
+    // entry that did not fit in the previous batch, only used by the thread taking batches
+    private T carryOver;
+
     private final CounterStat processedEntries = new CounterStat();
     private final CounterStat droppedEntries = new CounterStat();
+    private final CounterStat coalescedEntries;
     private final CounterStat errors = new CounterStat();
+    private final DistributionStat batchSize = new DistributionStat();
+    private final DistributionStat batchBytes = new DistributionStat();
+    private final TimeStat lingerTime = new TimeStat();
+    private final TimeStat sendTime = new TimeStat();
 
     public BatchProcessor(String name, BatchHandler<T> handler, int maxBatchSize, int queueSize)
+    {
+        this(name, handler, maxBatchSize, queueSize, null);
+    }
+
+    /**
+     * @param coalescer if not null, pending entries with the same key are coalesced
+     * into a single entry and the queue size bounds the number of distinct keys
+     */
+    public BatchProcessor(String name, BatchHandler<T> handler, int maxBatchSize, int queueSize, @Nullable Coalescer<T> coalescer)
+    {
+        this(name, handler, maxBatchSize, Long.MAX_VALUE, null, new Duration(0, TimeUnit.MILLISECONDS), queueSize, coalescer);
+    }
+
+    /**
+     * @param maxBatchBytes upper bound on the total weight of a batch, as computed by the weigher.
+     * A single entry heavier than the bound is still sent, in a batch of its own.
+     * @param weigher if null, batches are only bounded by the number of entries
+     * @param maxLinger maximum time to wait for more entries after the first entry of a batch is available
+     * @param coalescer if not null, pending entries with the same key are coalesced
+     * into a single entry and the queue size bounds the number of distinct keys
+     */
+    public BatchProcessor(String name,
+            BatchHandler<T> handler,
+            int maxBatchSize,
+            long maxBatchBytes,
+            @Nullable Weigher<T> weigher,
+            Duration maxLinger,
+            int queueSize,
+            @Nullable Coalescer<T> coalescer)
+    {
+        this(name, handler, maxBatchSize, maxBatchBytes, weigher, maxLinger, queueSize, coalescer, new CounterStat());
+    }
+
+    private BatchProcessor(String name,
+            BatchHandler<T> handler,
+            int maxBatchSize,
+            long maxBatchBytes,
+            @Nullable Weigher<T> weigher,
+            Duration maxLinger,
+            int queueSize,
+            @Nullable Coalescer<T> coalescer,
+            CounterStat coalescedEntries)
+    {
+        this(name, handler, maxBatchSize, maxBatchBytes, weigher, maxLinger, newQueue(queueSize, coalescer, coalescedEntries), coalescedEntries);
+    }
+
+    /**
+     * Creates a processor that consumes entries from the specified queue. Entries
+     * are typically added to the queue by its owner rather than through {@link #put}.
+     */
+    public BatchProcessor(String name,
+            BatchHandler<T> handler,
+            int maxBatchSize,
+            long maxBatchBytes,
+            @Nullable Weigher<T> weigher,
+            Duration maxLinger,
+            BlockingQueue<T> queue)
+    {
+        this(name, handler, maxBatchSize, maxBatchBytes, weigher, maxLinger, queue, new CounterStat());
+    }
+
+    private BatchProcessor(String name,
+            BatchHandler<T> handler,
+            int maxBatchSize,
+            long maxBatchBytes,
+            @Nullable Weigher<T> weigher,
+            Duration maxLinger,
+            BlockingQueue<T> queue,
+            CounterStat coalescedEntries)
     {
         Preconditions.checkNotNull(name, "name is null");
         Preconditions.checkNotNull(handler, "handler is null");
-        Preconditions.checkArgument(queueSize > 0, "queue size needs to be a positive integer");
+        Preconditions.checkNotNull(maxLinger, "maxLinger is null");
+        Preconditions.checkNotNull(queue, "queue is null");
         Preconditions.checkArgument(maxBatchSize > 0, "max batch size needs to be a positive integer");
+        Preconditions.checkArgument(maxBatchBytes > 0, "max batch bytes needs to be a positive integer");
 
         this.name = name;
         this.handler = handler;
         this.maxBatchSize = maxBatchSize;
-        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.maxBatchBytes = maxBatchBytes;
+        this.weigher = weigher;
+        this.maxLingerNanos = maxLinger.roundTo(TimeUnit.NANOSECONDS);
+        this.queue = queue;
+        this.coalescedEntries = coalescedEntries;
+    }
+
+    private static <T> BlockingQueue<T> newQueue(int queueSize, @Nullable Coalescer<T> coalescer, CounterStat coalescedEntries)
+    {
+        Preconditions.checkArgument(queueSize > 0, "queue size needs to be a positive integer");
+
+        if (coalescer == null) {
+            return new ArrayBlockingQueue<>(queueSize);
+        }
+        return new CoalescingQueue<>(queueSize, coalescer, coalescedEntries);
     }
 
     @PostConstruct
@@ -73,23 +174,15 @@ public class BatchProcessor<T>
                 public void run()
                 {
                     while (!Thread.interrupted()) {
-                        final List<T> entries = new ArrayList<>(maxBatchSize);
-
                         try {
-                            T first = queue.take();
-                            entries.add(first);
-                            queue.drainTo(entries, maxBatchSize - 1);
-
-                            handler.processBatch(Collections.unmodifiableList(entries));
-
-                            processedEntries.update(entries.size());
+                            processBatch(takeBatch());
                         }
                         catch (InterruptedException e) {
                             Thread.currentThread().interrupt();
                         }
                         catch (Throwable t) {
                             errors.update(1);
-                            log.warn(t, "Error handling batch");
+                            log.warn(t, "Error taking batch");
                         }
 
                         // TODO: expose timestamp of last execution via jmx
@@ -99,6 +192,109 @@ public class BatchProcessor<T>
         }
     }
 
+    /**
+     * Processes the queued entries on the calling thread, in batches, and returns the
+     * number of entries processed. Only for a processor that is not started.
+     */
+    public int drain()
+    {
+        synchronized (this) {
+            Preconditions.checkState(future == null, "Processor is running");
+        }
+
+        int processed = 0;
+        while (carryOver != null || !queue.isEmpty()) {
+            List<T> entries;
+            try {
+                entries = takeBatch();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            processBatch(entries);
+            processed += entries.size();
+        }
+        return processed;
+    }
+
+    private void processBatch(List<T> entries)
+    {
+        try {
+            long sendStart = System.nanoTime();
+            handler.processBatch(Collections.unmodifiableList(entries));
+            sendTime.add(System.nanoTime() - sendStart, TimeUnit.NANOSECONDS);
+
+            processedEntries.update(entries.size());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable t) {
+            errors.update(1);
+            log.warn(t, "Error handling batch");
+        }
+    }
+
+    /**
+     * Waits for the first entry of a batch, then adds entries until the batch is full
+     * or no entry arrived within the linger time. An entry that would make the batch
+     * heavier than the byte bound is kept for the next batch.
+     */
+    List<T> takeBatch()
+            throws InterruptedException
+    {
+        List<T> entries = new ArrayList<>(maxBatchSize);
+
+        T first = carryOver;
+        carryOver = null;
+        if (first == null) {
+            first = queue.take();
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + maxLingerNanos;
+
+        entries.add(first);
+        long bytes = weigh(first);
+
+        while (entries.size() < maxBatchSize && bytes < maxBatchBytes) {
+            T next = queue.poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    break;
+                }
+            }
+
+            long weight = weigh(next);
+            if (bytes + weight > maxBatchBytes) {
+                carryOver = next;
+                break;
+            }
+
+            entries.add(next);
+            bytes += weight;
+        }
+
+        lingerTime.add(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        batchSize.add(entries.size());
+        batchBytes.add(bytes);
+        return entries;
+    }
+
+    private long weigh(T entry)
+    {
+        if (weigher == null) {
+            return 0;
+        }
+        return weigher.weigh(entry);
+    }
+
     @Nested
     public CounterStat getProcessedEntries()
     {
@@ -111,12 +307,46 @@ public class BatchProcessor<T>
         return droppedEntries;
     }
 
+    @Nested
+    public CounterStat getCoalescedEntries()
+    {
+        return coalescedEntries;
+    }
+
     @Nested
     public CounterStat getErrors()
     {
         return errors;
     }
 
+    @Nested
+    public DistributionStat getBatchSize()
+    {
+        return batchSize;
+    }
+
+    @Nested
+    public DistributionStat getBatchBytes()
+    {
+        return batchBytes;
+    }
+
+    @Nested
+    public TimeStat getLingerTime()
+    {
+        return lingerTime;
+    }
+
+    /**
+     * Time the handler took to process a batch. A handler that sends batches without
+     * waiting for the response reports the round trip itself.
+     */
+    @Nested
+    public TimeStat getSendTime()
+    {
+        return sendTime;
+    }
+
     @Gauge
     public long getQueueSize()
     {
@@ -152,4 +382,26 @@ public class BatchProcessor<T>
         void processBatch(Collection<T> entries)
                 throws Exception;
     }
+
+    public static interface Weigher<T>
+    {
+        /**
+         * Returns the approximate number of bytes the entry adds to a batch.
+         */
+        int weigh(T entry);
+    }
+
+    public static interface Coalescer<T>
+    {
+        /**
+         * Returns the key identifying entries that supersede each other.
+         * The key must implement equals and hashCode.
+         */
+        Object getKey(T entry);
+
+        /**
+         * Returns the entry to keep queued when an entry with the same key as a pending one is added.
+         */
+        T coalesce(T pending, T entry);
+    }
 }
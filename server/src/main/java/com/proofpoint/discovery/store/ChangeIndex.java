@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Version of a local store, and the version at which each of its keys last changed,
+ * so a pull can be served the entries changed since the puller's watermark rather
+ * than the whole store. The versions only exist in memory, which is enough as a
+ * restarted store has a new replication epoch.
+ * <p>
+ * A store records a change after writing the entry, so the entry of a key listed as
+ * changed is at least as new as the change.
+ */
+@ThreadSafe
+class ChangeIndex
+{
+    @GuardedBy("this")
+    private long version;
+
+    @GuardedBy("this")
+    private final Map<StoreKey, Long> keyVersions = new HashMap<>();
+
+    @GuardedBy("this")
+    private final NavigableMap<Long, StoreKey> changedKeys = new TreeMap<>();
+
+    /**
+     * Records a change of the entry of a key.
+     *
+     * @return the version of the change
+     */
+    public synchronized long recordChange(StoreKey key)
+    {
+        ++version;
+        Long previous = keyVersions.put(key, version);
+        if (previous != null) {
+            changedKeys.remove(previous);
+        }
+        changedKeys.put(version, key);
+        return version;
+    }
+
+    /**
+     * Stops listing a removed key, unless it changed again after the removal.
+     */
+    public synchronized void forget(StoreKey key, long removalVersion)
+    {
+        Long current = keyVersions.get(key);
+        if (current != null && current == removalVersion) {
+            keyVersions.remove(key);
+            changedKeys.remove(removalVersion);
+        }
+    }
+
+    public synchronized long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Returns the keys whose last change is newer than the version.
+     */
+    public synchronized List<StoreKey> getChangedSince(long version)
+    {
+        return ImmutableList.copyOf(changedKeys.tailMap(version, false).values());
+    }
+}
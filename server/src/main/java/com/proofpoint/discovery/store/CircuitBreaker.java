@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.proofpoint.units.Duration;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the health of a single remote peer.
+ * <p>
+ * The circuit opens after a number of consecutive failures. While open, no
+ * requests are allowed until the backoff expires, at which point a single trial
+ * request is let through. If the trial fails, the circuit opens again with twice
+ * the backoff, up to the maximum; if it succeeds, the circuit closes.
+ */
+@ThreadSafe
+public class CircuitBreaker
+{
+    public enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long minBackoffNanos;
+    private final long maxBackoffNanos;
+    private final Ticker ticker;
+
+    @GuardedBy("this")
+    private State state = State.CLOSED;
+
+    @GuardedBy("this")
+    private int consecutiveFailures;
+
+    @GuardedBy("this")
+    private long backoffNanos;
+
+    @GuardedBy("this")
+    private long openUntil;
+
+    public CircuitBreaker(int failureThreshold, Duration minBackoff, Duration maxBackoff, Ticker ticker)
+    {
+        Preconditions.checkArgument(failureThreshold > 0, "failure threshold needs to be a positive integer");
+        Preconditions.checkNotNull(minBackoff, "minBackoff is null");
+        Preconditions.checkNotNull(maxBackoff, "maxBackoff is null");
+        Preconditions.checkNotNull(ticker, "ticker is null");
+        Preconditions.checkArgument(minBackoff.compareTo(maxBackoff) <= 0, "minBackoff is greater than maxBackoff");
+
+        this.failureThreshold = failureThreshold;
+        this.minBackoffNanos = minBackoff.roundTo(TimeUnit.NANOSECONDS);
+        this.maxBackoffNanos = maxBackoff.roundTo(TimeUnit.NANOSECONDS);
+        this.ticker = ticker;
+        this.backoffNanos = minBackoffNanos;
+    }
+
+    /**
+     * Returns true if a request may be sent to the peer now.
+     */
+    public synchronized boolean allowRequest()
+    {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (ticker.read() - openUntil >= 0) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                // a trial request is already in progress
+                return false;
+        }
+    }
+
+    /**
+     * Records a successful request.
+     *
+     * @return true if the peer was previously considered unhealthy
+     */
+    public synchronized boolean recordSuccess()
+    {
+        boolean recovered = state != State.CLOSED || consecutiveFailures > 0;
+
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        backoffNanos = minBackoffNanos;
+
+        return recovered;
+    }
+
+    public synchronized void recordFailure()
+    {
+        ++consecutiveFailures;
+
+        if (state == State.HALF_OPEN) {
+            backoffNanos = Math.min(backoffNanos * 2, maxBackoffNanos);
+            open();
+        }
+        else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures()
+    {
+        return consecutiveFailures;
+    }
+
+    @GuardedBy("this")
+    private void open()
+    {
+        state = State.OPEN;
+        openUntil = ticker.read() + backoffNanos;
+    }
+}
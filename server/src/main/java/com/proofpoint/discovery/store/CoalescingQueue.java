@@ -0,0 +1,280 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.proofpoint.discovery.store.BatchProcessor.Coalescer;
+import com.proofpoint.stats.CounterStat;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded blocking queue that holds at most one pending element per key.
+ * <p>
+ * Offering an element whose key is already queued replaces the pending element
+ * in place with the result of {@link Coalescer#coalesce}, so the capacity is
+ * bounded by the number of distinct keys rather than by the number of offers.
+ */
+public class CoalescingQueue<T>
+        extends AbstractQueue<T>
+        implements BlockingQueue<T>
+{
+    private final int capacity;
+    private final Coalescer<T> coalescer;
+    private final CounterStat coalescedEntries;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    @GuardedBy("lock")
+    private final LinkedHashMap<Object, T> pending = new LinkedHashMap<>();
+
+    public CoalescingQueue(int capacity, Coalescer<T> coalescer, CounterStat coalescedEntries)
+    {
+        Preconditions.checkArgument(capacity > 0, "capacity needs to be a positive integer");
+        Preconditions.checkNotNull(coalescer, "coalescer is null");
+        Preconditions.checkNotNull(coalescedEntries, "coalescedEntries is null");
+
+        this.capacity = capacity;
+        this.coalescer = coalescer;
+        this.coalescedEntries = coalescedEntries;
+    }
+
+    @Override
+    public boolean offer(T element)
+    {
+        Preconditions.checkNotNull(element, "element is null");
+
+        lock.lock();
+        try {
+            return insert(element);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(T element, long timeout, TimeUnit unit)
+            throws InterruptedException
+    {
+        Preconditions.checkNotNull(element, "element is null");
+
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!insert(element)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(T element)
+            throws InterruptedException
+    {
+        Preconditions.checkNotNull(element, "element is null");
+
+        lock.lockInterruptibly();
+        try {
+            while (!insert(element)) {
+                notFull.await();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T poll()
+    {
+        lock.lock();
+        try {
+            return pending.isEmpty() ? null : removeFirst();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit)
+            throws InterruptedException
+    {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (pending.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeFirst();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T take()
+            throws InterruptedException
+    {
+        lock.lockInterruptibly();
+        try {
+            while (pending.isEmpty()) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T peek()
+    {
+        lock.lock();
+        try {
+            return pending.isEmpty() ? null : pending.values().iterator().next();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        lock.lock();
+        try {
+            return pending.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity()
+    {
+        lock.lock();
+        try {
+            return capacity - pending.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> collection)
+    {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> collection, int maxElements)
+    {
+        Preconditions.checkNotNull(collection, "collection is null");
+        Preconditions.checkArgument(collection != this, "cannot drain queue to itself");
+
+        lock.lock();
+        try {
+            int count = 0;
+            Iterator<T> iterator = pending.values().iterator();
+            while (count < maxElements && iterator.hasNext()) {
+                collection.add(iterator.next());
+                iterator.remove();
+                ++count;
+            }
+            if (count > 0) {
+                notFull.signalAll();
+            }
+            return count;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the pending elements. The iterator does not support removal.
+     */
+    @Override
+    public Iterator<T> iterator()
+    {
+        lock.lock();
+        try {
+            return ImmutableList.copyOf(pending.values()).iterator();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean insert(T element)
+    {
+        Object key = coalescer.getKey(element);
+
+        T existing = pending.get(key);
+        if (existing != null) {
+            // replacing the value of an existing key keeps its position in the queue
+            pending.put(key, coalescer.coalesce(existing, element));
+            coalescedEntries.update(1);
+            return true;
+        }
+
+        if (pending.size() >= capacity) {
+            return false;
+        }
+
+        pending.put(key, element);
+        notEmpty.signal();
+        return true;
+    }
+
+    @GuardedBy("lock")
+    private T removeFirst()
+    {
+        Iterator<T> iterator = pending.values().iterator();
+        T element = iterator.next();
+        iterator.remove();
+        notFull.signal();
+        return element;
+    }
+}
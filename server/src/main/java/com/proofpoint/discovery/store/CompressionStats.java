@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.io.CountingOutputStream;
+import com.proofpoint.reporting.Gauge;
+import com.proofpoint.stats.CounterStat;
+import com.proofpoint.stats.TimeStat;
+import org.weakref.jmx.Nested;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the bytes saved by compressing replication bodies and the CPU time it costs.
+ */
+public class CompressionStats
+{
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final CounterStat uncompressedBytes = new CounterStat();
+    private final CounterStat compressedBytes = new CounterStat();
+    private final TimeStat compressionCpuTime = new TimeStat();
+
+    /**
+     * Wraps a stream so that what is written to it is encoded with the codec and measured.
+     * Closing the returned stream finishes the encoding but leaves the underlying stream open.
+     */
+    public OutputStream compress(ReplicationCodec codec, OutputStream out)
+            throws IOException
+    {
+        final CountingOutputStream compressed = new CountingOutputStream(new FilterOutputStream(out)
+        {
+            @Override
+            public void write(byte[] bytes, int offset, int length)
+                    throws IOException
+            {
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close()
+                    throws IOException
+            {
+                flush();
+            }
+        });
+        final OutputStream encoder = codec.compress(compressed);
+
+        return new OutputStream()
+        {
+            private long uncompressed;
+            private long cpuNanos;
+            private boolean closed;
+
+            @Override
+            public void write(int b)
+                    throws IOException
+            {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length)
+                    throws IOException
+            {
+                long start = currentThreadCpuTime();
+                encoder.write(bytes, offset, length);
+                cpuNanos += currentThreadCpuTime() - start;
+                uncompressed += length;
+            }
+
+            @Override
+            public void flush()
+                    throws IOException
+            {
+                encoder.flush();
+            }
+
+            @Override
+            public void close()
+                    throws IOException
+            {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+
+                long start = currentThreadCpuTime();
+                encoder.close();
+                cpuNanos += currentThreadCpuTime() - start;
+
+                uncompressedBytes.update(uncompressed);
+                compressedBytes.update(compressed.getCount());
+                compressionCpuTime.add(cpuNanos, TimeUnit.NANOSECONDS);
+            }
+        };
+    }
+
+    @Nested
+    public CounterStat getUncompressedBytes()
+    {
+        return uncompressedBytes;
+    }
+
+    @Nested
+    public CounterStat getCompressedBytes()
+    {
+        return compressedBytes;
+    }
+
+    /**
+     * CPU time spent compressing each body, or wall time if the JVM does not measure thread CPU time.
+     */
+    @Nested
+    public TimeStat getCompressionCpuTime()
+    {
+        return compressionCpuTime;
+    }
+
+    @Gauge
+    public double getCompressionRatio()
+    {
+        long compressed = compressedBytes.getTotalCount();
+        if (compressed == 0) {
+            return 0;
+        }
+        return (double) uncompressedBytes.getTotalCount() / compressed;
+    }
+
+    private static long currentThreadCpuTime()
+    {
+        if (THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) {
+            return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Maps keys to the nodes that own them. Each node is placed on the ring at a
+ * number of pseudo-random points, and a key is owned by the first distinct nodes
+ * found walking clockwise from the key's hash, so adding or removing a node only
+ * moves the keys adjacent to its points.
+ */
+@Immutable
+public class ConsistentHashRing
+{
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final Set<String> nodes;
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    public ConsistentHashRing(Collection<String> nodes, int pointsPerNode)
+    {
+        Preconditions.checkNotNull(nodes, "nodes is null");
+        Preconditions.checkArgument(pointsPerNode > 0, "points per node needs to be a positive integer");
+
+        this.nodes = ImmutableSet.copyOf(nodes);
+        for (String node : this.nodes) {
+            for (int i = 0; i < pointsPerNode; i++) {
+                ring.put(hash((node + "#" + i).getBytes(UTF_8)), node);
+            }
+        }
+    }
+
+    public Set<String> getNodes()
+    {
+        return nodes;
+    }
+
+    /**
+     * Returns up to {@code count} distinct nodes that own the key, in ring order.
+     */
+    public List<String> getOwners(byte[] key, int count)
+    {
+        Preconditions.checkNotNull(key, "key is null");
+
+        int owners = Math.min(count, nodes.size());
+        if (owners == 0) {
+            return ImmutableList.of();
+        }
+
+        List<String> result = new ArrayList<>(owners);
+        long hash = hash(key);
+        Iterator<String> iterator = ring.tailMap(hash, true).values().iterator();
+        boolean wrapped = false;
+        while (result.size() < owners) {
+            if (!iterator.hasNext()) {
+                Preconditions.checkState(!wrapped, "ring is inconsistent");
+                iterator = ring.values().iterator();
+                wrapped = true;
+            }
+            String node = iterator.next();
+            if (!result.contains(node)) {
+                result.add(node);
+            }
+        }
+        return result;
+    }
+
+    public boolean isOwner(String node, byte[] key, int count)
+    {
+        return getOwners(key, count).contains(node);
+    }
+
+    private static long hash(byte[] bytes)
+    {
+        return HASH_FUNCTION.hashBytes(bytes).asLong();
+    }
+}
@@ -18,6 +18,7 @@ package com.proofpoint.discovery.store;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.proofpoint.reporting.Gauge;
@@ -25,11 +26,15 @@ import com.proofpoint.units.Duration;
 import org.joda.time.DateTime;
 import org.weakref.jmx.Managed;
 
+import javax.annotation.Nullable;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -49,12 +54,30 @@ public class DistributedStore
     private final Supplier<DateTime> timeSupplier;
     private final Duration tombstoneMaxAge;
     private final Duration garbageCollectionInterval;
+    private final Partitioner partitioner;
+    private final PartitionedReader partitionedReader;
 
     private final ScheduledExecutorService garbageCollector;
     private final AtomicLong lastGcTimestamp = new AtomicLong();
 
     @Inject
     public DistributedStore(String name, LocalStore localStore, RemoteStore remoteStore, StoreConfig config, Supplier<DateTime> timeSupplier)
+    {
+        this(name, localStore, remoteStore, config, timeSupplier, null, null);
+    }
+
+    /**
+     * @param partitioner if not null, entries are only stored locally if this node owns them
+     * @param partitionedReader if not null, {@link #getAll} gathers entries from every partition
+     * and {@link #get} reads keys this node does not own from their owners
+     */
+    public DistributedStore(String name,
+            LocalStore localStore,
+            RemoteStore remoteStore,
+            StoreConfig config,
+            Supplier<DateTime> timeSupplier,
+            @Nullable Partitioner partitioner,
+            @Nullable PartitionedReader partitionedReader)
     {
         Preconditions.checkNotNull(name, "name is null");
         Preconditions.checkNotNull(localStore, "localStore is null");
@@ -66,6 +89,8 @@ public class DistributedStore
         this.localStore = localStore;
         this.remoteStore = remoteStore;
         this.timeSupplier = timeSupplier;
+        this.partitioner = partitioner;
+        this.partitionedReader = partitionedReader;
 
         tombstoneMaxAge = config.getTombstoneMaxAge();
         garbageCollectionInterval = config.getGarbageCollectionInterval();
@@ -126,7 +151,7 @@ public class DistributedStore
     {
         long ageInMs = timeSupplier.get().getMillis() - entry.getTimestamp();
 
-        return entry.getValue() == null && ageInMs > tombstoneMaxAge.toMillis() ||  // TODO: this is repeated in StoreResource
+        return entry.getValue() == null && ageInMs > tombstoneMaxAge.toMillis() ||  // TODO: this is repeated in ReplicationEndpoint
                 entry.getMaxAgeInMs() != null && ageInMs > entry.getMaxAgeInMs();
     }
 
@@ -145,7 +170,7 @@ public class DistributedStore
 
         Entry entry = new Entry(key, value, now, null);
 
-        localStore.put(entry);
+        putLocal(entry);
         remoteStore.put(entry);
     }
     
@@ -159,16 +184,113 @@ public class DistributedStore
 
         Entry entry = new Entry(key, value, now, maxAge.toMillis());
 
-        localStore.put(entry);
-        remoteStore.put(entry);
+        // read before the write, which replaces the entry
+        boolean unchanged = isUnchanged(entry);
+        putLocal(entry);
+        if (unchanged) {
+            remoteStore.touch(entry);
+        }
+        else {
+            remoteStore.put(entry);
+        }
     }
 
+    /**
+     * Writes several values at once, replicating them together.
+     */
+    public void putAll(Map<ByteBuffer, byte[]> values, Duration maxAge)
+    {
+        Preconditions.checkNotNull(values, "values is null");
+        Preconditions.checkNotNull(maxAge, "maxAge is null");
+
+        long now = timeSupplier.get().getMillis();
+
+        ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+        for (Map.Entry<ByteBuffer, byte[]> value : values.entrySet()) {
+            Preconditions.checkNotNull(value.getValue(), "value is null");
+            byte[] key = new byte[value.getKey().remaining()];
+            value.getKey().duplicate().get(key);
+
+            Entry entry = new Entry(key, value.getValue(), now, maxAge.toMillis());
+            boolean unchanged = isUnchanged(entry);
+            putLocal(entry);
+            entries.add(unchanged ? new Touch(entry) : entry);
+        }
+        remoteStore.putAll(entries.build());
+    }
+
+    /**
+     * Extends the expiration of entries without changing their values. Each entry is
+     * renewed only if it still holds the given value, so a write made since the values
+     * were read is never replaced by the value it superseded.
+     *
+     * @return false if any of the entries is missing, expired or holds another value
+     */
+    public boolean renew(Map<ByteBuffer, byte[]> values, Duration maxAge)
+    {
+        Preconditions.checkNotNull(values, "values is null");
+        Preconditions.checkNotNull(maxAge, "maxAge is null");
+
+        long now = timeSupplier.get().getMillis();
+
+        boolean renewed = true;
+        ImmutableList.Builder<Entry> touches = ImmutableList.builder();
+        for (Map.Entry<ByteBuffer, byte[]> value : values.entrySet()) {
+            byte[] key = new byte[value.getKey().remaining()];
+            value.getKey().duplicate().get(key);
+
+            Entry existing = localStore.get(key);
+            if (existing == null || existing.getValue() == null || isExpired(existing) || !Arrays.equals(existing.getValue(), value.getValue())) {
+                renewed = false;
+                continue;
+            }
+            if (existing.getTimestamp() >= now) {
+                // written no earlier than now: there is nothing to extend
+                continue;
+            }
+
+            Entry entry = new Entry(key, existing.getValue(), now, maxAge.toMillis());
+            if (localStore.replace(existing, entry)) {
+                touches.add(new Touch(entry));
+            }
+            else {
+                renewed = false;
+            }
+        }
+        List<Entry> renewedEntries = touches.build();
+        if (!renewedEntries.isEmpty()) {
+            remoteStore.putAll(renewedEntries);
+        }
+        return renewed;
+    }
+
+    /**
+     * Returns the value stored for a key. With partitioning, a key this node does not own
+     * is read from its owners.
+     */
     public byte[] get(byte[] key)
     {
         Preconditions.checkNotNull(key, "key is null");
 
-        Entry entry = localStore.get(key);
-        
+        if (partitionedReader != null && partitioner != null && !partitioner.isLocal(key)) {
+            return valueOf(partitionedReader.get(key));
+        }
+        return valueOf(localStore.get(key));
+    }
+
+    /**
+     * Returns the value stored locally for a key. With partitioning, keys this node does
+     * not own read as absent.
+     */
+    public byte[] getLocal(byte[] key)
+    {
+        Preconditions.checkNotNull(key, "key is null");
+
+        return valueOf(localStore.get(key));
+    }
+
+    private byte[] valueOf(Entry entry)
+    {
         byte[] result = null;
         if (entry != null && entry.getValue() != null && !isExpired(entry)) {
             result = Arrays.copyOf(entry.getValue(), entry.getValue().length);
@@ -185,13 +307,42 @@ public class DistributedStore
 
         Entry entry = new Entry(key, null, now, null);
 
-        localStore.put(entry);
+        putLocal(entry);
         remoteStore.put(entry);
     }
 
     public Iterable<Entry> getAll()
     {
-        return Iterables.filter(localStore.getAll(), and(not(expired()), not(tombstone())));
+        Iterable<Entry> entries = (partitionedReader == null) ? localStore.getAll() : partitionedReader.getAll();
+        return Iterables.filter(entries, and(not(expired()), not(tombstone())));
+    }
+
+    /**
+     * Returns true if the local store holds a live entry for the key with the same value,
+     * or if the key is stored only on other nodes. Those can't be compared here, so a touch
+     * is sent: the owners apply it if they hold the same value, and otherwise ask for the
+     * entry to be sent again in full.
+     */
+    private boolean isUnchanged(Entry entry)
+    {
+        if (partitioner != null && !partitioner.isLocal(entry.getKey())) {
+            return true;
+        }
+
+        Entry existing = localStore.get(entry.getKey());
+        return existing != null &&
+                existing.getValue() != null &&
+                !isExpired(existing) &&
+                existing.getTimestamp() < entry.getTimestamp() &&
+                Arrays.equals(existing.getValue(), entry.getValue());
+    }
+
+    private void putLocal(Entry entry)
+    {
+        // the remote store forwards writes for keys we don't own to their owners
+        if (partitioner == null || partitioner.isLocal(entry.getKey())) {
+            localStore.put(entry);
+        }
     }
 
     private Predicate<? super Entry> expired()
@@ -31,6 +31,9 @@ public class Entry
     private final long timestamp;
     private final Long maxAgeInMs;
 
+    // computed on first use; racing threads compute equal keys
+    private StoreKey storeKey;
+
     @JsonCreator
     public Entry(@JsonProperty("key") byte[] key,
             @JsonProperty("value") byte[] value,
@@ -77,6 +80,19 @@ public class Entry
         return maxAgeInMs;
     }
 
+    /**
+     * Returns the key wrapped for hash maps, hashed once for the life of the entry.
+     */
+    StoreKey getStoreKey()
+    {
+        StoreKey result = storeKey;
+        if (result == null) {
+            result = StoreKey.wrap(key);
+            storeKey = result;
+        }
+        return result;
+    }
+
     @Override
     public int hashCode()
     {
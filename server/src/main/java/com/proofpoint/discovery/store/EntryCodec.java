@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Splitter;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Version 2 of the replication wire format.
+ * <p>
+ * Version 1 is the Smile encoding of the {@link Entry} bean, which repeats the field
+ * names of every entry, carries the deprecated {@code version} object next to the
+ * timestamp, and escapes the key and value to 7-bit binary. Version 2 writes each
+ * entry as a frame:
+ * <pre>
+ *     int    length of the rest of the frame
+ *     long   timestamp
+ *     long   max age in ms, or -1
+ *     int    key length, followed by the key
+ *     int    value length, or -1 for a tombstone, followed by the value
+ * </pre>
+ * and ends the stream with a length of -1. Readers skip any bytes left in a frame
+ * after the fields they know, so fields can be appended without a new version.
+ * <p>
+ * A {@link Touch} is written with a value length of -2 followed by the long digest of
+ * the value instead of the value itself. Earlier readers reject such frames, so touches
+ * are only written to nodes that send {@link #TOUCH_HEADER} with their acknowledgements.
+ * <p>
+ * Nodes list {@link #MEDIA_TYPE} in {@code Accept} when pulling and in the
+ * {@code Accept-Post} header of their acknowledgements, and peers only send it once
+ * it has been offered, so nodes that only know version 1 keep working.
+ */
+public final class EntryCodec
+{
+    public static final String MEDIA_TYPE = "application/x-proofpoint-replication-v2";
+
+    /**
+     * {@code Accept} header for pulls: version 2 if the peer has it, otherwise Smile.
+     */
+    public static final String ACCEPT = MEDIA_TYPE + ", application/x-jackson-smile;q=0.5";
+
+    /**
+     * Acknowledgement header of nodes that apply touch frames.
+     */
+    public static final String TOUCH_HEADER = "X-Proofpoint-Replication-Touch";
+
+    private static final int END_OF_ENTRIES = -1;
+    private static final int NULL_LENGTH = -1;
+    private static final int TOUCH_LENGTH = -2;
+    private static final int FIXED_FIELDS_SIZE = 8 + 8 + 4 + 4;
+    private static final int BUFFER_SIZE = 8192;
+    private static final Splitter MEDIA_TYPE_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private EntryCodec()
+    {
+    }
+
+    /**
+     * Returns true if an {@code Accept} or {@code Accept-Post} header lists version 2.
+     */
+    public static boolean isAccepted(@Nullable String mediaTypes)
+    {
+        return mediaTypes != null && listsMediaType(mediaTypes);
+    }
+
+    /**
+     * Returns true if a {@code Content-Type} is version 2.
+     */
+    public static boolean isEncoded(@Nullable String contentType)
+    {
+        return contentType != null && listsMediaType(contentType);
+    }
+
+    /**
+     * Writes the entries and the end marker, with touches in full. The stream is flushed
+     * but not closed.
+     */
+    public static void writeEntries(Iterable<Entry> entries, OutputStream out)
+            throws IOException
+    {
+        writeEntries(entries, out, false);
+    }
+
+    /**
+     * Writes the entries and the end marker. The stream is flushed but not closed.
+     *
+     * @param touches whether to write touches as touch frames rather than in full
+     */
+    public static void writeEntries(Iterable<Entry> entries, OutputStream out, boolean touches)
+            throws IOException
+    {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        for (Entry entry : entries) {
+            byte[] key = entry.getKey();
+            byte[] value = entry.getValue();
+            Long maxAge = entry.getMaxAgeInMs();
+            boolean touch = touches && entry instanceof Touch;
+
+            output.writeInt(FIXED_FIELDS_SIZE + key.length + (touch ? 8 : (value == null ? 0 : value.length)));
+            output.writeLong(entry.getTimestamp());
+            output.writeLong(maxAge == null ? NULL_LENGTH : maxAge);
+            output.writeInt(key.length);
+            output.write(key);
+            if (touch) {
+                output.writeInt(TOUCH_LENGTH);
+                output.writeLong(((Touch) entry).getValueDigest());
+            }
+            else if (value == null) {
+                output.writeInt(NULL_LENGTH);
+            }
+            else {
+                output.writeInt(value.length);
+                output.write(value);
+            }
+        }
+        output.writeInt(END_OF_ENTRIES);
+        output.flush();
+    }
+
+    /**
+     * Reads entries up to the end marker.
+     *
+     * @throws java.io.EOFException if the stream ends before the end marker
+     * @throws StreamCorruptedException if a frame is malformed
+     */
+    public static List<Entry> readEntries(InputStream in)
+            throws IOException
+    {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        List<Entry> entries = new ArrayList<>();
+        while (true) {
+            int length = input.readInt();
+            if (length == END_OF_ENTRIES) {
+                return entries;
+            }
+            if (length < FIXED_FIELDS_SIZE) {
+                throw new StreamCorruptedException("invalid frame length " + length);
+            }
+
+            long timestamp = input.readLong();
+            long maxAge = input.readLong();
+            byte[] key = readBytes(input, length - FIXED_FIELDS_SIZE);
+            if (key == null) {
+                throw new StreamCorruptedException("entry has no key");
+            }
+            if (maxAge != NULL_LENGTH && maxAge <= 0) {
+                throw new StreamCorruptedException("invalid max age " + maxAge);
+            }
+
+            int valueLength = input.readInt();
+            int remaining = length - FIXED_FIELDS_SIZE - key.length;
+            if (valueLength == TOUCH_LENGTH) {
+                if (remaining < 8) {
+                    throw new StreamCorruptedException("touch has no digest");
+                }
+                entries.add(new Touch(key, timestamp, maxAge == NULL_LENGTH ? null : maxAge, input.readLong()));
+                remaining -= 8;
+            }
+            else {
+                byte[] value = readBytes(input, valueLength, remaining);
+                entries.add(new Entry(key, value, timestamp, maxAge == NULL_LENGTH ? null : maxAge));
+                remaining -= (value == null ? 0 : value.length);
+            }
+
+            if (remaining > 0) {
+                // fields added by a later revision
+                input.readFully(new byte[remaining]);
+            }
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream input, int limit)
+            throws IOException
+    {
+        return readBytes(input, input.readInt(), limit);
+    }
+
+    private static byte[] readBytes(DataInputStream input, int length, int limit)
+            throws IOException
+    {
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (length < 0 || length > limit) {
+            throw new StreamCorruptedException("invalid field length " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    private static boolean listsMediaType(String mediaTypes)
+    {
+        for (String mediaType : MEDIA_TYPE_SPLITTER.split(mediaTypes)) {
+            int parameters = mediaType.indexOf(';');
+            String type = (parameters < 0 ? mediaType : mediaType.substring(0, parameters)).trim();
+            if (type.toLowerCase(Locale.ENGLISH).equals(MEDIA_TYPE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
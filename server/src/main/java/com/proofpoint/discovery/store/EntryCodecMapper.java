@@ -0,0 +1,84 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.proofpoint.log.Logger;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Reads replication batches sent in the {@link EntryCodec} format.
+ */
+@Provider
+@Consumes(EntryCodec.MEDIA_TYPE)
+public class EntryCodecMapper
+        implements MessageBodyReader<List<Entry>>
+{
+    private static final Logger log = Logger.get(EntryCodecMapper.class);
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+    {
+        if (type != List.class || !(genericType instanceof ParameterizedType)) {
+            return false;
+        }
+        Type[] arguments = ((ParameterizedType) genericType).getActualTypeArguments();
+        return arguments.length == 1 && arguments[0] == Entry.class;
+    }
+
+    @Override
+    public List<Entry> readFrom(Class<List<Entry>> type,
+            Type genericType,
+            Annotation[] annotations,
+            MediaType mediaType,
+            MultivaluedMap<String, String> httpHeaders,
+            InputStream inputStream)
+            throws IOException
+    {
+        ReplicationCodec codec = ReplicationCodec.fromEncoding(httpHeaders.getFirst("Content-Encoding"));
+        if (codec == null) {
+            throw new WebApplicationException(Response.status(Response.Status.UNSUPPORTED_MEDIA_TYPE)
+                    .header("Accept-Encoding", ReplicationCodec.ACCEPT_ENCODING)
+                    .build());
+        }
+
+        try {
+            return EntryCodec.readEntries(codec.decompress(inputStream));
+        }
+        catch (EOFException | StreamCorruptedException | ZipException | IllegalArgumentException e) {
+            // malformed batch; any other IOException is a real IO problem
+            log.debug(e, "Invalid replication batch");
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                    .entity("Invalid replication batch")
+                    .build());
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.client.ServiceSelector;
+import com.proofpoint.http.client.AsyncHttpClient;
+import com.proofpoint.http.client.BodyGenerator;
+import com.proofpoint.http.client.Request;
+import com.proofpoint.http.client.Response;
+import com.proofpoint.http.client.ResponseHandler;
+import com.proofpoint.log.Logger;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.reporting.Gauge;
+import com.proofpoint.stats.CounterStat;
+import com.proofpoint.stats.DistributionStat;
+import com.proofpoint.units.Duration;
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Predicates.not;
+import static com.google.common.collect.Iterables.filter;
+
+/**
+ * Replicates writes by gossip instead of pushing every write to every peer.
+ * <p>
+ * Every round, the entries learned since the previous round are sent to a few
+ * randomly chosen peers, along with the number of times they may still be
+ * forwarded. A peer that receives an entry it does not already have (by key and
+ * timestamp) applies it and forwards it in its next round; duplicates are dropped.
+ * Each node therefore sends a constant number of messages per round regardless of
+ * cluster size. Entries gossip fails to deliver are repaired by the {@link Replicator}.
+ */
+public class GossipRemoteStore
+        implements RemoteStore
+{
+    /**
+     * Number of times the receiver may forward the entries in the request.
+     */
+    public static final String HOPS_REMAINING_HEADER = "X-Proofpoint-Gossip-Hops";
+
+    private static final Logger log = Logger.get(GossipRemoteStore.class);
+
+    private static final ResponseHandler<Void, Exception> RESPONSE_HANDLER = new ResponseHandler<Void, Exception>()
+    {
+        @Override
+        public Void handleException(Request request, Exception exception)
+                throws Exception
+        {
+            throw exception;
+        }
+
+        @Override
+        public Void handle(Request request, Response response)
+                throws Exception
+        {
+            if (response.getStatusCode() >= 300) {
+                throw new Exception("Remote server returned " + response.getStatusCode() + " status code");
+            }
+            return null;
+        }
+    };
+
+    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory());
+
+    private final String name;
+    private final ServiceSelector selector;
+    private final AsyncHttpClient httpClient;
+    private final LocalStore localStore;
+    private final ConflictResolver resolver;
+    private final Predicate<ServiceDescriptor> ourNodeIdPredicate;
+    private final int fanOut;
+    private final int ttl;
+    private final int maxBatchSize;
+    private final int maxPendingEntries;
+    private final Duration interval;
+
+    // entries to send in the next round, by the number of hops remaining for the receiver
+    @GuardedBy("this")
+    private final Map<Integer, Map<ByteBuffer, Entry>> pending = new TreeMap<>();
+
+    @GuardedBy("this")
+    private int pendingEntries;
+
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> future;
+
+    private final AtomicLong lastRoundTimestamp = new AtomicLong();
+    private final CounterStat sentEntries = new CounterStat();
+    private final CounterStat failedBatches = new CounterStat();
+    private final CounterStat droppedEntries = new CounterStat();
+    private final CounterStat receivedEntries = new CounterStat();
+    private final CounterStat duplicateEntries = new CounterStat();
+    private final DistributionStat propagationDelay = new DistributionStat();
+
+    public GossipRemoteStore(String name,
+            final NodeInfo node,
+            ServiceSelector selector,
+            StoreConfig config,
+            AsyncHttpClient httpClient,
+            ConflictResolver resolver,
+            LocalStore localStore)
+    {
+        checkNotNull(name, "name is null");
+        checkNotNull(node, "node is null");
+        checkNotNull(selector, "selector is null");
+        checkNotNull(config, "config is null");
+        checkNotNull(httpClient, "httpClient is null");
+        checkNotNull(resolver, "resolver is null");
+        checkNotNull(localStore, "localStore is null");
+
+        this.name = name;
+        this.selector = selector;
+        this.httpClient = httpClient;
+        this.resolver = resolver;
+        this.localStore = localStore;
+
+        fanOut = config.getGossipFanOut();
+        ttl = config.getGossipTtl();
+        interval = config.getGossipInterval();
+        maxBatchSize = config.getMaxBatchSize();
+        maxPendingEntries = config.getQueueSize();
+        ourNodeIdPredicate = new Predicate<ServiceDescriptor>()
+        {
+            @Override
+            public boolean apply(ServiceDescriptor input)
+            {
+                return node.getNodeId().equals(input.getNodeId());
+            }
+        };
+    }
+
+    @PostConstruct
+    public synchronized void start()
+    {
+        if (future == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("gossip-remote-store-" + name + "-%d").setDaemon(true).build());
+
+            future = executor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        gossip();
+                    }
+                    catch (Throwable t) {
+                        log.warn(t, "Error gossiping entries");
+                    }
+                }
+            }, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown()
+    {
+        if (future != null) {
+            future.cancel(true);
+            executor.shutdownNow();
+
+            executor = null;
+            future = null;
+        }
+    }
+
+    @Override
+    public void put(Entry entry)
+    {
+        enqueue(entry, ttl);
+    }
+
+    @Override
+    public void touch(Entry entry)
+    {
+        // gossip is not acknowledged, so a peer that missed the value would never get it
+        put(entry);
+    }
+
+    @Override
+    public void putAll(Collection<Entry> entries)
+    {
+        for (Entry entry : entries) {
+            put(entry instanceof Touch ? new Entry(entry.getKey(), entry.getValue(), entry.getTimestamp(), entry.getMaxAgeInMs()) : entry);
+        }
+    }
+
+    /**
+     * Applies entries gossiped by a peer to the local store and schedules the
+     * new ones to be forwarded.
+     *
+     * @param hopsRemaining number of times the entries may still be forwarded
+     */
+    public void receive(Entry entry, int hopsRemaining)
+    {
+        receivedEntries.update(1);
+
+        Entry existing = localStore.get(entry.getKey());
+        if (existing != null && existing.getTimestamp() >= entry.getTimestamp()) {
+            duplicateEntries.update(1);
+            return;
+        }
+
+        localStore.put(entry);
+        propagationDelay.add(Math.max(0, System.currentTimeMillis() - entry.getTimestamp()));
+
+        if (hopsRemaining > 0) {
+            enqueue(entry, hopsRemaining - 1);
+        }
+    }
+
+    @Managed
+    public long getLastRoundTimestamp()
+    {
+        return lastRoundTimestamp.get();
+    }
+
+    @Gauge
+    public synchronized long getPendingEntries()
+    {
+        return pendingEntries;
+    }
+
+    @Nested
+    public CounterStat getSentEntries()
+    {
+        return sentEntries;
+    }
+
+    @Nested
+    public CounterStat getFailedBatches()
+    {
+        return failedBatches;
+    }
+
+    @Nested
+    public CounterStat getDroppedEntries()
+    {
+        return droppedEntries;
+    }
+
+    @Nested
+    public CounterStat getReceivedEntries()
+    {
+        return receivedEntries;
+    }
+
+    @Nested
+    public CounterStat getDuplicateEntries()
+    {
+        return duplicateEntries;
+    }
+
+    /**
+     * Time in milliseconds between an entry being written and it reaching this node by gossip.
+     */
+    @Nested
+    public DistributionStat getPropagationDelay()
+    {
+        return propagationDelay;
+    }
+
+    private synchronized void enqueue(Entry entry, int hopsRemaining)
+    {
+        Map<ByteBuffer, Entry> entries = pending.get(hopsRemaining);
+        if (entries == null) {
+            entries = new LinkedHashMap<>();
+            pending.put(hopsRemaining, entries);
+        }
+
+        ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+        Entry existing = entries.get(key);
+        if (existing != null) {
+            entries.put(key, resolver.resolve(existing, entry));
+            return;
+        }
+
+        if (pendingEntries >= maxPendingEntries) {
+            // the replicator will pick it up
+            droppedEntries.update(1);
+            return;
+        }
+        entries.put(key, entry);
+        ++pendingEntries;
+    }
+
+    void gossip()
+    {
+        Map<Integer, Map<ByteBuffer, Entry>> round;
+        synchronized (this) {
+            if (pendingEntries == 0) {
+                return;
+            }
+            round = new TreeMap<>(pending);
+            pending.clear();
+            pendingEntries = 0;
+        }
+
+        List<ServiceDescriptor> peers = new ArrayList<>();
+        for (ServiceDescriptor peer : filter(selector.selectAllServices(), not(ourNodeIdPredicate))) {
+            if (peer.getProperties().get("http") == null) {
+                log.warn("Not gossiping to %s, which has no http property", peer.getNodeId());
+                continue;
+            }
+            peers.add(peer);
+        }
+        for (Map.Entry<Integer, Map<ByteBuffer, Entry>> entry : round.entrySet()) {
+            // pick different peers for each group so load spreads evenly
+            Collections.shuffle(peers, ThreadLocalRandom.current());
+            for (ServiceDescriptor peer : peers.subList(0, Math.min(fanOut, peers.size()))) {
+                for (List<Entry> batch : Iterables.partition(entry.getValue().values(), maxBatchSize)) {
+                    send(peer, batch, entry.getKey());
+                }
+            }
+        }
+
+        lastRoundTimestamp.set(System.currentTimeMillis());
+    }
+
+    private void send(final ServiceDescriptor peer, final List<Entry> entries, int hopsRemaining)
+    {
+        // TODO: build URI from resource class
+        URI uri = URI.create(peer.getProperties().get("http") + "/v1/store/" + name);
+        Request request = Request.Builder.preparePost()
+                .setUri(uri)
+                .setHeader("Content-Type", "application/x-jackson-smile")
+                .setHeader(HOPS_REMAINING_HEADER, String.valueOf(hopsRemaining))
+                .setBodyGenerator(new BodyGenerator()
+                {
+                    @Override
+                    public void write(OutputStream out)
+                            throws Exception
+                    {
+                        mapper.writeValue(out, entries);
+                    }
+                })
+                .build();
+
+        ListenableFuture<Void> future;
+        try {
+            future = httpClient.executeAsync(request, RESPONSE_HANDLER);
+        }
+        catch (RuntimeException e) {
+            future = Futures.immediateFailedFuture(e);
+        }
+
+        Futures.addCallback(future, new FutureCallback<Void>()
+        {
+            @Override
+            public void onSuccess(Void result)
+            {
+                sentEntries.update(entries.size());
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+                failedBatches.update(1);
+                log.debug(t, "Error gossiping %s entries to %s", entries.size(), peer.getNodeId());
+            }
+        });
+    }
+}
@@ -15,76 +15,127 @@
  */
 package com.proofpoint.discovery.store;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.proofpoint.discovery.client.ServiceDescriptor;
 import com.proofpoint.discovery.client.ServiceSelector;
-import com.proofpoint.http.client.BodyGenerator;
-import com.proofpoint.http.client.HttpClient;
-import com.proofpoint.http.client.Request;
-import com.proofpoint.http.client.Response;
-import com.proofpoint.http.client.ResponseHandler;
 import com.proofpoint.log.Logger;
 import com.proofpoint.node.NodeInfo;
+import com.proofpoint.reporting.Gauge;
 import com.proofpoint.reporting.ReportExporter;
+import com.proofpoint.stats.CounterStat;
+import com.proofpoint.stats.TimeStat;
 import com.proofpoint.units.Duration;
 import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
 import org.weakref.jmx.ObjectNameBuilder;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
 import javax.inject.Inject;
-import java.io.OutputStream;
-import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Predicates.and;
 import static com.google.common.base.Predicates.compose;
 import static com.google.common.base.Predicates.in;
 import static com.google.common.base.Predicates.not;
+import static com.google.common.base.Predicates.notNull;
 import static com.google.common.base.Throwables.propagate;
 import static com.google.common.collect.Iterables.filter;
 import static com.google.common.collect.Iterables.transform;
 
+/**
+ * Pushes writes to the other nodes through a {@link ReplicationTransport}, which is
+ * HTTP only by default. The name predates the transport abstraction and is kept, as
+ * it is part of the names of the exported beans and metrics.
+ */
 public class HttpRemoteStore
         implements RemoteStore
 {
     private static final Logger log = Logger.get(HttpRemoteStore.class);
-    private static final Pattern HTTP_PATTERN = Pattern.compile("^http(?:s)?://");
+    private static final String TARGET_TYPE = "ReplicationTarget";
+    private static final String CURSOR_TYPE = "ReplicationLogCursor";
+    private static final String CHANNEL_TYPE = "ReplicationChannel";
+
+    /**
+     * Site of the node that sent the entries, when replication is locality aware.
+     */
+    public static final String SITE_HEADER = "X-Proofpoint-Replication-Site";
+    static final BatchProcessor.Weigher<Entry> ENTRY_WEIGHER = new BatchProcessor.Weigher<Entry>()
+    {
+        @Override
+        public int weigh(Entry entry)
+        {
+            // key and value plus a rough allowance for the timestamp, max age and field names
+            return entry.getKey().length + (entry.getValue() == null ? 0 : entry.getValue().length) + 64;
+        }
+    };
 
     private final int maxBatchSize;
-    private final int queueSize;
+    private final long maxBatchBytes;
+    private final Duration maxBatchLinger;
     private final Duration updateInterval;
-
+    private final int maxInFlightBatches;
+    private final int maxAttempts;
+    private final Duration minBackoff;
+    private final Duration maxBackoff;
+    private final int failureThreshold;
+    private final int maxUndeliveredKeys;
+    private final ReplicationCodec compressionCodec;
+
+    private final ReplicationLog replicationLog;
     private final ConcurrentMap<String, BatchProcessor<Entry>> processors = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MyBatchHandler> handlers = new ConcurrentHashMap<>();
     private final String name;
     private final ServiceSelector selector;
-    private final HttpClient httpClient;
+    private final ReplicationTransport transport;
+    private final LocalStore localStore;
+    private final ConflictResolver resolver;
+    private final Partitioner partitioner;
+    private final NodeInfo node;
+    private final boolean topologyEnabled;
+    private volatile ReplicationTopology topology;
 
     private Future<?> future;
+    private Future<?> recoveryFuture;
     private ScheduledExecutorService executor;
 
+    // only accessed by the executor thread
+    private boolean initialRefreshDone;
+    private ScheduledExecutorService retryExecutor;
+
     private final AtomicLong lastRemoteServerRefreshTimestamp = new AtomicLong();
+    private final CounterStat supersededRelays = new CounterStat();
     private final ReportExporter reportExporter;
     private final Predicate<ServiceDescriptor> ourNodeIdPredicate;
 
@@ -94,24 +145,45 @@ public class HttpRemoteStore
             final NodeInfo node,
             ServiceSelector selector,
             StoreConfig config,
-            HttpClient httpClient,
-            ReportExporter reportExporter)
+            ReplicationTransport transport,
+            ReportExporter reportExporter,
+            ConflictResolver resolver,
+            LocalStore localStore,
+            Partitioner partitioner)
     {
         checkNotNull(name, "name is null");
         checkNotNull(node, "node is null");
         checkNotNull(selector, "selector is null");
-        checkNotNull(httpClient, "httpClient is null");
+        checkNotNull(transport, "transport is null");
         checkNotNull(config, "config is null");
         checkNotNull(reportExporter, "reportExporter is null");
+        checkNotNull(resolver, "resolver is null");
+        checkNotNull(localStore, "localStore is null");
+        checkNotNull(partitioner, "partitioner is null");
 
         this.name = name;
         this.selector = selector;
-        this.httpClient = httpClient;
+        this.transport = transport;
         this.reportExporter = reportExporter;
+        this.localStore = localStore;
+        this.resolver = resolver;
+        this.partitioner = partitioner;
+        this.node = node;
 
+        topologyEnabled = config.isTopologyEnabled();
         maxBatchSize = config.getMaxBatchSize();
-        queueSize = config.getQueueSize();
+        maxBatchBytes = config.getMaxBatchBytes().toBytes();
+        maxBatchLinger = config.getMaxBatchLinger();
         updateInterval = config.getRemoteUpdateInterval();
+        maxInFlightBatches = config.getMaxInFlightBatches();
+        maxAttempts = config.getMaxAttempts();
+        minBackoff = config.getMinBackoff();
+        maxBackoff = config.getMaxBackoff();
+        failureThreshold = config.getFailureThreshold();
+        maxUndeliveredKeys = config.getMaxUndeliveredKeys();
+        compressionCodec = config.getCompressionCodec();
+        // with coalescing enabled, peers skip entries that are superseded later in the log
+        replicationLog = new ReplicationLog(config.getQueueSize(), localStore, config.isCoalesceEntries() ? resolver : null, config.isPrioritizeEntries());
         ourNodeIdPredicate = new Predicate<ServiceDescriptor>()
         {
             @Override
@@ -128,6 +200,7 @@ public class HttpRemoteStore
         if (future == null) {
             // note: this *must* be single threaded for the shutdown logic to work correctly
             executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("http-remote-store-" + name + "-%d").setDaemon(true).build());
+            retryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("http-remote-store-retry-" + name + "-%d").setDaemon(true).build());
 
             future = executor.scheduleWithFixedDelay(new Runnable()
             {
@@ -142,6 +215,21 @@ public class HttpRemoteStore
                     }
                 }
             }, 0, updateInterval.toMillis(), TimeUnit.MILLISECONDS);
+
+            // catch-up may wait for batches in flight, so it runs here rather than on the retry executor
+            recoveryFuture = executor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        recoverTargets();
+                    }
+                    catch (Throwable e) {
+                        log.warn(e, "Error catching up targets");
+                    }
+                }
+            }, minBackoff.toMillis(), minBackoff.toMillis(), TimeUnit.MILLISECONDS);
         }
     }
 
@@ -150,6 +238,7 @@ public class HttpRemoteStore
     {
         if (future != null) {
             future.cancel(true);
+            recoveryFuture.cancel(true);
 
             try {
                 // schedule a task to shut down all processors and wait for it to complete. We rely on the executor
@@ -169,52 +258,110 @@ public class HttpRemoteStore
             }
 
             executor.shutdownNow();
+            retryExecutor.shutdownNow();
 
             future = null;
+            recoveryFuture = null;
         }
     }
 
-    private void updateProcessors(List<ServiceDescriptor> descriptors)
+    void updateProcessors(List<ServiceDescriptor> descriptors)
     {
-        Set<String> hostPorts = ImmutableSet.copyOf(transform(descriptors, getHostPortFunction()));
+        ReplicationTopology topology = null;
+        if (topologyEnabled) {
+            topology = new ReplicationTopology(node, descriptors);
+            this.topology = topology;
+            descriptors = topology.getReplicationPeers();
+        }
+
+        Set<String> targets = ImmutableSet.copyOf(filter(transform(descriptors, getTargetFunction()), notNull()));
 
         // remove old ones
         Iterator<Map.Entry<String, BatchProcessor<Entry>>> iterator = processors.entrySet().iterator();
         while (iterator.hasNext()) {
             Map.Entry<String, BatchProcessor<Entry>> entry = iterator.next();
 
-            if (!hostPorts.contains(entry.getKey())) {
+            if (!targets.contains(entry.getKey())) {
                 iterator.remove();
+                handlers.remove(entry.getKey());
                 entry.getValue().stop();
-                reportExporter.unexport(nameFor(entry.getKey()));
+                reportExporter.unexport(nameFor(BatchProcessor.class.getSimpleName(), entry.getKey()));
+                reportExporter.unexport(nameFor(TARGET_TYPE, entry.getKey()));
+                reportExporter.unexport(nameFor(CURSOR_TYPE, entry.getKey()));
+                reportExporter.unexport(nameFor(CHANNEL_TYPE, entry.getKey()));
             }
         }
 
 
-        Predicate<ServiceDescriptor> predicate = and(not(ourNodeIdPredicate), compose(not(in(processors.keySet())), getHostPortFunction()));
+        Predicate<ServiceDescriptor> predicate = and(not(ourNodeIdPredicate), compose(and(notNull(), not(in(processors.keySet()))), getTargetFunction()));
         Iterable<ServiceDescriptor> newDescriptors = filter(descriptors, predicate);
 
         for (ServiceDescriptor descriptor : newDescriptors) {
-            String hostPort = getHostPort(descriptor);
-            BatchProcessor<Entry> processor = new BatchProcessor<>(hostPort,
-                    new MyBatchHandler(name, descriptor, httpClient),
+            String target = transport.getTarget(descriptor);
+            CircuitBreaker circuitBreaker = new CircuitBreaker(failureThreshold, minBackoff, maxBackoff, Ticker.systemTicker());
+            ReplicationLog.Cursor cursor;
+            String site = null;
+            ReplicationCodec codec = compressionCodec;
+            if (topology == null) {
+                cursor = replicationLog.newCursor();
+            }
+            else if (topology.isLocalSite(descriptor)) {
+                site = topology.getSite();
+                cursor = replicationLog.newCursor(EnumSet.of(ReplicationLog.Source.LOCAL, ReplicationLog.Source.REMOTE_SITE));
+            }
+            else {
+                // relay of another site: send what was written in our site, favoring size over speed
+                site = topology.getSite();
+                codec = ReplicationCodec.GZIP;
+                cursor = replicationLog.newCursor(EnumSet.of(ReplicationLog.Source.LOCAL, ReplicationLog.Source.SITE));
+            }
+            ReplicationTransport.Channel channel = transport.connect(name, descriptor, site, codec);
+            MyBatchHandler handler = new MyBatchHandler(target, descriptor, channel, retryExecutor, localStore, partitioner, circuitBreaker, cursor, maxInFlightBatches, maxAttempts, minBackoff, maxBackoff, maxBatchSize, maxUndeliveredKeys);
+            BatchProcessor<Entry> processor = new BatchProcessor<>(target,
+                    handler,
                     maxBatchSize,
-                    queueSize);
+                    maxBatchBytes,
+                    ENTRY_WEIGHER,
+                    maxBatchLinger,
+                    cursor);
+
+            if (initialRefreshDone) {
+                // a node that joined after we started may be empty: send it our state
+                // rather than making it wait for its next pass over all peers
+                cursor.resetToSnapshot();
+            }
 
             processor.start();
-            processors.put(hostPort, processor);
-            reportExporter.export(nameFor(hostPort), processor);
+            processors.put(target, processor);
+            handlers.put(target, handler);
+            reportExporter.export(nameFor(BatchProcessor.class.getSimpleName(), target), processor);
+            reportExporter.export(nameFor(TARGET_TYPE, target), handler);
+            reportExporter.export(nameFor(CURSOR_TYPE, target), cursor);
+            reportExporter.export(nameFor(CHANNEL_TYPE, target), channel);
         }
 
+        initialRefreshDone = true;
         lastRemoteServerRefreshTimestamp.set(System.currentTimeMillis());
     }
 
-    private String nameFor(String hostPort)
+    /**
+     * Catches up the targets that missed entries while they were unreachable, for
+     * which no batch is being processed to do it.
+     */
+    void recoverTargets()
+            throws InterruptedException
+    {
+        for (MyBatchHandler handler : handlers.values()) {
+            handler.recover();
+        }
+    }
+
+    private String nameFor(String type, String target)
     {
         return new ObjectNameBuilder(BatchProcessor.class.getPackage().getName())
-                .withProperty("type", BatchProcessor.class.getSimpleName())
+                .withProperty("type", type)
                 .withProperty("name", name)
-                .withProperty("target", hostPort)
+                .withProperty("target", target)
                 .build();
     }
 
@@ -224,87 +371,592 @@ public class HttpRemoteStore
         return lastRemoteServerRefreshTimestamp.get();
     }
 
-    private static Function<ServiceDescriptor, String> getHostPortFunction()
+    private Function<ServiceDescriptor, String> getTargetFunction()
     {
         return new Function<ServiceDescriptor, String>()
         {
             public String apply(ServiceDescriptor descriptor)
             {
-                return getHostPort(descriptor);
+                return transport.getTarget(descriptor);
             }
         };
     }
 
-    private static String getHostPort(ServiceDescriptor descriptor)
+    @Managed
+    public long getReplicationLogSequence()
     {
-        return HTTP_PATTERN.matcher(descriptor.getProperties().get("http")).replaceFirst("");
+        return replicationLog.getNextSequence();
     }
 
     @Override
     public void put(Entry entry)
     {
-        for (BatchProcessor<Entry> processor : processors.values()) {
-            processor.put(entry);
+        replicationLog.append(entry);
+    }
+
+    @Override
+    public void touch(Entry entry)
+    {
+        replicationLog.append(new Touch(entry));
+    }
+
+    @Override
+    public void putAll(Collection<Entry> entries)
+    {
+        replicationLog.appendAll(entries, ReplicationLog.Source.LOCAL);
+    }
+
+    /**
+     * Relays entries received from another node, if this node is responsible for
+     * forwarding them. Entries from the relay of another site are forwarded to the
+     * nodes of this site; entries from this site are forwarded to the other sites
+     * if this node is the relay of its site. Entries the local store already holds a
+     * newer version of are not forwarded, as the newer version is forwarded in turn.
+     */
+    public void relay(Collection<Entry> entries, String senderSite)
+    {
+        ReplicationTopology topology = this.topology;
+        if (topology == null) {
+            return;
+        }
+
+        ReplicationLog.Source source;
+        if (!senderSite.equals(topology.getSite())) {
+            source = ReplicationLog.Source.REMOTE_SITE;
+        }
+        else if (topology.isRelay()) {
+            source = ReplicationLog.Source.SITE;
+        }
+        else {
+            return;
+        }
+
+        for (Entry entry : entries) {
+            Entry current = localStore.get(entry.getKey());
+            if (current != null && resolver.isNewer(current, entry.getTimestamp())) {
+                supersededRelays.update(1);
+                continue;
+            }
+            replicationLog.append(entry, source);
         }
     }
 
-    private static class MyBatchHandler
-            implements BatchProcessor.BatchHandler<Entry>
+    /**
+     * Received entries not relayed because the local store held a newer version.
+     */
+    @Nested
+    public CounterStat getSupersededRelays()
     {
-        private final ObjectMapper mapper = new ObjectMapper(new SmileFactory()).disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        return supersededRelays;
+    }
 
-        private final URI uri;
-        private final HttpClient httpClient;
+    @Managed
+    public String getSite()
+    {
+        ReplicationTopology topology = this.topology;
+        return topology == null ? null : topology.getSite();
+    }
 
-        public MyBatchHandler(String name, ServiceDescriptor descriptor, HttpClient httpClient)
-        {
-            this.httpClient = httpClient;
+    @Managed
+    public boolean isSiteRelay()
+    {
+        ReplicationTopology topology = this.topology;
+        return topology != null && topology.isRelay();
+    }
 
-            // TODO: build URI from resource class
-            uri = URI.create(descriptor.getProperties().get("http") + "/v1/store/" + name);
+    /**
+     * Sends batches to a single peer without waiting for the response, keeping up to
+     * a fixed number of requests outstanding so throughput is not bounded by the round
+     * trip time. Completions are acknowledged in send order: the acknowledged count only
+     * advances past a batch once every earlier batch has been delivered or given up on.
+     */
+    static class MyBatchHandler
+            implements BatchProcessor.BatchHandler<Entry>
+    {
+        private final String target;
+        private final ReplicationTransport.Channel channel;
+        private final ScheduledExecutorService retryExecutor;
+        private final LocalStore localStore;
+        private final Predicate<Entry> ownedByTarget;
+        private final boolean partitioned;
+        private final CircuitBreaker circuitBreaker;
+        private final ReplicationLog.Cursor cursor;
+        private final int maxInFlightBatches;
+        private final Semaphore inFlightBatches;
+        private final int maxAttempts;
+        private final long minBackoffMillis;
+        private final long maxBackoffMillis;
+        private final int maxBatchSize;
+        private final int maxUndeliveredKeys;
+
+        // serializes the batch processor thread and recovery
+        private final Object submitLock = new Object();
+
+        @GuardedBy("submitLock")
+        private long nextBatchSequence;
+
+        @GuardedBy("this")
+        private final Set<Long> completedBatches = new TreeSet<>();
+
+        // every batch with a lower sequence has completed
+        @GuardedBy("this")
+        private long acknowledgedBatches;
+
+        // keys of entries that could not be delivered
+        @GuardedBy("this")
+        private final Set<ByteBuffer> undeliveredKeys = new LinkedHashSet<>();
+
+        @GuardedBy("this")
+        private boolean undeliveredKeysOverflowed;
+
+        private volatile boolean catchUpNeeded;
+
+        // epoch of the target's store, from its acknowledgements
+        @GuardedBy("this")
+        private String targetEpoch;
+
+        @GuardedBy("this")
+        private long acknowledgedTimestamp;
+
+        private final CounterStat retries = new CounterStat();
+        private final CounterStat failedBatches = new CounterStat();
+        private final CounterStat rejectedBatches = new CounterStat();
+        private final CounterStat catchUpEntries = new CounterStat();
+        private final CounterStat resentTouches = new CounterStat();
+        private final TimeStat requestTime = new TimeStat();
+        private final TimeStat deliveryTime = new TimeStat();
+        private final CounterStat targetRestarts = new CounterStat();
+
+        public MyBatchHandler(String target,
+                ServiceDescriptor descriptor,
+                ReplicationTransport.Channel channel,
+                ScheduledExecutorService retryExecutor,
+                LocalStore localStore,
+                Partitioner partitioner,
+                CircuitBreaker circuitBreaker,
+                ReplicationLog.Cursor cursor,
+                int maxInFlightBatches,
+                int maxAttempts,
+                Duration minBackoff,
+                Duration maxBackoff,
+                int maxBatchSize,
+                int maxUndeliveredKeys)
+        {
+            this.target = target;
+            this.channel = channel;
+            this.retryExecutor = retryExecutor;
+            this.localStore = localStore;
+            this.ownedByTarget = partitioner.ownedBy(descriptor.getNodeId());
+            this.partitioned = partitioner.isEnabled();
+            this.circuitBreaker = circuitBreaker;
+            this.cursor = cursor;
+            this.maxInFlightBatches = maxInFlightBatches;
+            this.inFlightBatches = new Semaphore(maxInFlightBatches);
+            this.maxAttempts = maxAttempts;
+            this.minBackoffMillis = minBackoff.toMillis();
+            this.maxBackoffMillis = maxBackoff.toMillis();
+            this.maxBatchSize = maxBatchSize;
+            this.maxUndeliveredKeys = maxUndeliveredKeys;
         }
 
         @Override
-        public void processBatch(final Collection<Entry> entries)
+        public void processBatch(Collection<Entry> entries)
                 throws Exception
         {
-            final Request request = Request.Builder.preparePost()
-                    .setUri(uri)
-                    .setHeader("Content-Type", "application/x-jackson-smile")
-                    .setBodyGenerator(new BodyGenerator() {
-                        @Override
-                        public void write(OutputStream out)
-                                throws Exception
-                        {
-                            mapper.writeValue(out, entries);
-                        }
-                    })
-                    .build();
+            if (partitioned) {
+                entries = ImmutableList.copyOf(filter(entries, ownedByTarget));
+                if (entries.isEmpty()) {
+                    return;
+                }
+            }
+
+            synchronized (submitLock) {
+                if (!circuitBreaker.allowRequest()) {
+                    // peer is considered down; remember what it missed and catch it up once it is back
+                    rejectedBatches.update(1);
+                    markUndelivered(entries);
+                    return;
+                }
+
+                if (catchUpNeeded) {
+                    catchUp();
+                }
+
+                // the batch processor allocates a new collection for every batch, so it is safe to hold on to
+                submit(entries);
+            }
+        }
+
+        /**
+         * Sends the target what it missed while it was unreachable, if no batch has done
+         * so yet. Catch-up otherwise precedes the next batch, which never comes once the
+         * store is idle. While the circuit is open, this is the trial request once the
+         * backoff has passed.
+         */
+        public void recover()
+                throws InterruptedException
+        {
+            synchronized (submitLock) {
+                if (hasUndeliveredKeys() && (catchUpNeeded || circuitBreaker.allowRequest())) {
+                    catchUp();
+                }
+            }
+        }
+
+        /**
+         * Returns true if every entry appended to the log since this handler started has
+         * been delivered to the target.
+         */
+        public boolean isCurrent()
+        {
+            return cursor.isCaughtUp() && getInFlightBatches() == 0 && !catchUpNeeded && !hasUndeliveredKeys();
+        }
+
+        @Nested
+        public CounterStat getRetries()
+        {
+            return retries;
+        }
+
+        @Nested
+        public CounterStat getFailedBatches()
+        {
+            return failedBatches;
+        }
+
+        @Nested
+        public CounterStat getRejectedBatches()
+        {
+            return rejectedBatches;
+        }
+
+        @Nested
+        public CounterStat getCatchUpEntries()
+        {
+            return catchUpEntries;
+        }
+
+        /**
+         * Touches the target could not apply, as it lacked the value, sent again in full.
+         */
+        @Nested
+        public CounterStat getResentTouches()
+        {
+            return resentTouches;
+        }
+
+        @Nested
+        public TimeStat getRequestTime()
+        {
+            return requestTime;
+        }
+
+        /**
+         * Time from submitting a batch until the target acknowledged it or it was given
+         * up on, including retries.
+         */
+        @Nested
+        public TimeStat getDeliveryTime()
+        {
+            return deliveryTime;
+        }
+
+        @Gauge
+        public synchronized long getUndeliveredKeys()
+        {
+            return undeliveredKeys.size();
+        }
+
+        @Gauge
+        public long getConsecutiveFailures()
+        {
+            return circuitBreaker.getConsecutiveFailures();
+        }
+
+        @Gauge
+        public long getInFlightBatches()
+        {
+            return maxInFlightBatches - inFlightBatches.availablePermits();
+        }
+
+        @Gauge
+        public synchronized long getAcknowledgedBatches()
+        {
+            return acknowledgedBatches;
+        }
+
+        /**
+         * Newest entry timestamp the target has acknowledged applying.
+         */
+        @Gauge
+        public synchronized long getAcknowledgedTimestamp()
+        {
+            return acknowledgedTimestamp;
+        }
+
+        @Nested
+        public CounterStat getTargetRestarts()
+        {
+            return targetRestarts;
+        }
+
+        private void acknowledge(ReplicationTransport.Acknowledgement acknowledgement)
+        {
+            String epoch = acknowledgement.getEpoch();
+            boolean restarted = false;
+            synchronized (this) {
+                acknowledgedTimestamp = Math.max(acknowledgedTimestamp, acknowledgement.getAppliedTimestamp());
+                if (epoch != null) {
+                    restarted = targetEpoch != null && !targetEpoch.equals(epoch);
+                    targetEpoch = epoch;
+                }
+            }
+
+            if (restarted) {
+                // the target came back with a new store, which lacks what was pushed before
+                targetRestarts.update(1);
+                cursor.resetToSnapshot();
+            }
+        }
 
+        @GuardedBy("submitLock")
+        private void submit(Collection<Entry> entries)
+                throws InterruptedException
+        {
+            inFlightBatches.acquire();
+            send(new PendingBatch(nextBatchSequence++, entries, minBackoffMillis));
+        }
+
+        private void send(final PendingBatch batch)
+        {
+            final long start = System.nanoTime();
+
+            ListenableFuture<ReplicationTransport.Acknowledgement> future;
             try {
-                httpClient.execute(request, new ResponseHandler<Void, Exception>()
+                future = channel.push(batch.getEntries());
+            }
+            catch (RuntimeException e) {
+                future = Futures.immediateFailedFuture(e);
+            }
+
+            Futures.addCallback(future, new FutureCallback<ReplicationTransport.Acknowledgement>()
+            {
+                @Override
+                public void onSuccess(ReplicationTransport.Acknowledgement acknowledgement)
                 {
-                    @Override
-                    public Void handleException(Request request, Exception exception)
-                            throws Exception
-                    {
-                        throw exception;
+                    requestTime.add(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    acknowledge(acknowledgement);
+                    circuitBreaker.recordSuccess();
+                    List<Entry> missed = fullEntriesOf(batch.getEntries(), acknowledgement.getMissedTouches());
+                    if (!missed.isEmpty()) {
+                        // the batch is only delivered once the target has the values it lacked
+                        resentTouches.update(missed.size());
+                        send(batch.withEntries(missed, minBackoffMillis));
+                        return;
+                    }
+                    if (hasUndeliveredKeys()) {
+                        catchUpNeeded = true;
                     }
+                    complete(batch);
+                }
+
+                @Override
+                public void onFailure(Throwable t)
+                {
+                    requestTime.add(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    circuitBreaker.recordFailure();
+                    if (batch.getAttempts() < maxAttempts && circuitBreaker.allowRequest()) {
+                        retry(batch);
+                    }
+                    else {
+                        log.warn("Error replicating %s entries to %s: %s", batch.getEntries().size(), target, t.getMessage());
+                        giveUp(batch);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Returns the touches of a batch whose keys are listed, as entries carrying their value.
+         */
+        private List<Entry> fullEntriesOf(Collection<Entry> entries, List<byte[]> missedTouches)
+        {
+            if (missedTouches.isEmpty()) {
+                return ImmutableList.of();
+            }
 
+            Set<ByteBuffer> keys = new HashSet<>();
+            for (byte[] key : missedTouches) {
+                keys.add(ByteBuffer.wrap(key));
+            }
+            ImmutableList.Builder<Entry> builder = ImmutableList.builder();
+            for (Entry entry : entries) {
+                if (entry instanceof Touch && entry.getValue() != null && keys.contains(ByteBuffer.wrap(entry.getKey()))) {
+                    builder.add(new Entry(entry.getKey(), entry.getValue(), entry.getTimestamp(), entry.getMaxAgeInMs()));
+                }
+            }
+            return builder.build();
+        }
+
+        private void retry(final PendingBatch batch)
+        {
+            retries.update(1);
+            try {
+                retryExecutor.schedule(new Runnable()
+                {
                     @Override
-                    public Void handle(Request request, Response response)
-                            throws Exception
+                    public void run()
                     {
-                        if (response.getStatusCode() >= 300) {
-                            throw new Exception("Remote server returned " + response.getStatusCode() + " status code");
-                        }
-                        return null;
+                        send(batch);
                     }
-                });
+                }, batch.nextAttempt(maxBackoffMillis), TimeUnit.MILLISECONDS);
             }
-            catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+            catch (RejectedExecutionException e) {
+                // the store is shutting down
+                giveUp(batch);
             }
         }
+
+        private void giveUp(PendingBatch batch)
+        {
+            failedBatches.update(1);
+            markUndelivered(batch.getEntries());
+            complete(batch);
+        }
+
+        private void complete(PendingBatch batch)
+        {
+            deliveryTime.add(System.nanoTime() - batch.getSubmitTime(), TimeUnit.NANOSECONDS);
+            synchronized (this) {
+                completedBatches.add(batch.getSequence());
+                while (completedBatches.remove(acknowledgedBatches)) {
+                    ++acknowledgedBatches;
+                }
+            }
+            inFlightBatches.release();
+        }
+
+        private synchronized boolean hasUndeliveredKeys()
+        {
+            return undeliveredKeysOverflowed || !undeliveredKeys.isEmpty();
+        }
+
+        private synchronized void markUndelivered(Collection<Entry> entries)
+        {
+            if (undeliveredKeysOverflowed) {
+                return;
+            }
+
+            for (Entry entry : entries) {
+                undeliveredKeys.add(ByteBuffer.wrap(entry.getKey()));
+            }
+
+            if (undeliveredKeys.size() > maxUndeliveredKeys) {
+                // too much to track individually, push everything once the peer is back
+                undeliveredKeys.clear();
+                undeliveredKeysOverflowed = true;
+            }
+        }
+
+        @GuardedBy("submitLock")
+        private void catchUp()
+                throws InterruptedException
+        {
+            boolean overflowed;
+            List<ByteBuffer> keys;
+            synchronized (this) {
+                overflowed = undeliveredKeysOverflowed;
+                keys = ImmutableList.copyOf(undeliveredKeys);
+                undeliveredKeys.clear();
+                undeliveredKeysOverflowed = false;
+                catchUpNeeded = false;
+            }
+
+            Iterable<Entry> entries;
+            if (overflowed) {
+                entries = localStore.getAll();
+            }
+            else {
+                ImmutableList.Builder<Entry> builder = ImmutableList.builder();
+                for (ByteBuffer key : keys) {
+                    Entry entry = localStore.get(key.array());
+                    if (entry != null) {
+                        builder.add(entry);
+                    }
+                }
+                entries = builder.build();
+            }
+
+            if (partitioned) {
+                entries = filter(entries, ownedByTarget);
+            }
+
+            // catch-up batches go through the same pipeline, so failures are tracked again
+            for (List<Entry> batch : Iterables.partition(entries, maxBatchSize)) {
+                catchUpEntries.update(batch.size());
+                submit(batch);
+            }
+        }
+    }
+
+    private static class PendingBatch
+    {
+        private final long sequence;
+        private final Collection<Entry> entries;
+        private final long submitTime;
+        private int attempts = 1;
+        private long backoffMillis;
+
+        private PendingBatch(long sequence, Collection<Entry> entries, long backoffMillis)
+        {
+            this(sequence, entries, backoffMillis, System.nanoTime());
+        }
+
+        private PendingBatch(long sequence, Collection<Entry> entries, long backoffMillis, long submitTime)
+        {
+            this.sequence = sequence;
+            this.entries = entries;
+            this.backoffMillis = backoffMillis;
+            this.submitTime = submitTime;
+        }
+
+        /**
+         * Returns a batch sending other entries as part of the delivery of this one.
+         */
+        public PendingBatch withEntries(Collection<Entry> entries, long backoffMillis)
+        {
+            return new PendingBatch(sequence, entries, backoffMillis, submitTime);
+        }
+
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        public Collection<Entry> getEntries()
+        {
+            return entries;
+        }
+
+        public long getSubmitTime()
+        {
+            return submitTime;
+        }
+
+        public synchronized int getAttempts()
+        {
+            return attempts;
+        }
+
+        /**
+         * Returns the delay before the next attempt, doubling it for the one after.
+         */
+        public synchronized long nextAttempt(long maxBackoffMillis)
+        {
+            long delay = backoffMillis;
+            backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+            ++attempts;
+            return delay;
+        }
     }
 }
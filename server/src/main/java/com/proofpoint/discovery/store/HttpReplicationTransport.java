@@ -0,0 +1,362 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.http.client.AsyncHttpClient;
+import com.proofpoint.http.client.BodyGenerator;
+import com.proofpoint.http.client.Request;
+import com.proofpoint.http.client.Response;
+import com.proofpoint.http.client.ResponseHandler;
+import com.proofpoint.http.client.balancing.HttpServiceBalancerStats;
+import com.proofpoint.http.client.balancing.HttpServiceBalancerStats.Status;
+import com.proofpoint.stats.CounterStat;
+import org.weakref.jmx.Nested;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Replicates over HTTP to the {@link StoreResource} of each peer, found through the
+ * {@code http} property of its service descriptor.
+ */
+public class HttpReplicationTransport
+        implements ReplicationTransport
+{
+    private static final Pattern HTTP_PATTERN = Pattern.compile("^http(?:s)?://");
+
+    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory()).disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    private final AsyncHttpClient httpClient;
+    private final HttpServiceBalancerStats httpServiceBalancerStats;
+    private final long compressionThreshold;
+
+    public HttpReplicationTransport(AsyncHttpClient httpClient, HttpServiceBalancerStats httpServiceBalancerStats, StoreConfig config)
+    {
+        checkNotNull(httpClient, "httpClient is null");
+        checkNotNull(httpServiceBalancerStats, "httpServiceBalancerStats is null");
+        checkNotNull(config, "config is null");
+
+        this.httpClient = httpClient;
+        this.httpServiceBalancerStats = httpServiceBalancerStats;
+        this.compressionThreshold = config.getCompressionThreshold().toBytes();
+    }
+
+    @Override
+    public String getTarget(ServiceDescriptor peer)
+    {
+        String uri = peer.getProperties().get("http");
+        if (uri == null) {
+            return null;
+        }
+        return HTTP_PATTERN.matcher(uri).replaceFirst("");
+    }
+
+    @Override
+    public Channel connect(String storeName, ServiceDescriptor peer, @Nullable String site, ReplicationCodec preferredCodec)
+    {
+        return new HttpChannel(storeUri(peer, storeName), site, preferredCodec);
+    }
+
+    @Override
+    public ListenableFuture<PullResult> pull(String storeName, ServiceDescriptor peer, @Nullable ReplicationWatermarks.Watermark watermark)
+    {
+        final URI uri = storeUri(peer, storeName);
+        Request.Builder builder = Request.Builder.prepareGet()
+                .setUri(uri)
+                .setHeader("Accept", EntryCodec.ACCEPT)
+                .setHeader(ReplicationCodec.ACCEPT_ENCODING_HEADER, ReplicationCodec.ACCEPT_ENCODING);
+        if (watermark != null) {
+            builder.setHeader(ReplicationWatermarks.WATERMARK_HEADER, watermark.toString());
+        }
+
+        final URI serviceUri = URI.create(peer.getProperties().get("http"));
+        final long startTime = System.nanoTime();
+        return httpClient.executeAsync(builder.build(), new ResponseHandler<PullResult, Exception>()
+        {
+            @Override
+            public PullResult handleException(Request request, Exception exception)
+                    throws Exception
+            {
+                httpServiceBalancerStats.responseTime(serviceUri, Status.FAILURE).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                httpServiceBalancerStats.failure(serviceUri, exception.getClass().getSimpleName()).update(1);
+                throw exception;
+            }
+
+            @Override
+            public PullResult handle(Request request, Response response)
+                    throws Exception
+            {
+                // TODO: read server date (to use to calibrate entry dates)
+
+                if (response.getStatusCode() == 304) {
+                    // the peer's store has not changed since our last pull
+                    httpServiceBalancerStats.responseTime(serviceUri, Status.SUCCESS).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                    return PullResult.notModified();
+                }
+                if (response.getStatusCode() != 200) {
+                    httpServiceBalancerStats.responseTime(serviceUri, Status.FAILURE).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                    httpServiceBalancerStats.failure(serviceUri, response.getStatusCode() + " status code").update(1);
+                    throw new Exception("Remote server returned " + response.getStatusCode() + " status code");
+                }
+
+                String encoding = response.getHeader(ReplicationCodec.ENCODING_HEADER);
+                ReplicationCodec codec = ReplicationCodec.fromEncoding(encoding);
+                if (codec == null) {
+                    httpServiceBalancerStats.responseTime(serviceUri, Status.FAILURE).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                    httpServiceBalancerStats.failure(serviceUri, "unsupported encoding").update(1);
+                    throw new Exception("Remote server returned unsupported encoding " + encoding);
+                }
+
+                httpServiceBalancerStats.responseTime(serviceUri, Status.SUCCESS).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                List<Entry> entries;
+                if (EntryCodec.isEncoded(response.getHeader("Content-Type"))) {
+                    // the format has an end marker, so running out of input means the response was cut short
+                    entries = EntryCodec.readEntries(codec.decompress(response.getInputStream()));
+                }
+                else {
+                    try {
+                        entries = mapper.readValue(codec.decompress(response.getInputStream()), new TypeReference<List<Entry>>() {});
+                    }
+                    catch (EOFException e) {
+                        entries = ImmutableList.of();
+                    }
+                }
+                return PullResult.entries(entries,
+                        ReplicationWatermarks.Watermark.valueOf(response.getHeader(ReplicationWatermarks.WATERMARK_HEADER)),
+                        Boolean.parseBoolean(response.getHeader(ReplicationWatermarks.INITIALIZED_HEADER)));
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<List<Entry>> lookup(String storeName, ServiceDescriptor peer, final List<byte[]> keys)
+    {
+        Request request = Request.Builder.preparePost()
+                .setUri(URI.create(storeUri(peer, storeName) + "/lookup"))
+                .setHeader("Content-Type", "application/x-jackson-smile")
+                .setHeader("Accept", "application/x-jackson-smile")
+                .setBodyGenerator(new BodyGenerator()
+                {
+                    @Override
+                    public void write(OutputStream out)
+                            throws Exception
+                    {
+                        mapper.writeValue(out, keys);
+                    }
+                })
+                .build();
+
+        return httpClient.executeAsync(request, new ResponseHandler<List<Entry>, Exception>()
+        {
+            @Override
+            public List<Entry> handleException(Request request, Exception exception)
+                    throws Exception
+            {
+                throw exception;
+            }
+
+            @Override
+            public List<Entry> handle(Request request, Response response)
+                    throws Exception
+            {
+                if (response.getStatusCode() != 200) {
+                    throw new Exception("Remote server returned " + response.getStatusCode() + " status code");
+                }
+                return mapper.readValue(response.getInputStream(), new TypeReference<List<Entry>>() {});
+            }
+        });
+    }
+
+    private static URI storeUri(ServiceDescriptor peer, String storeName)
+    {
+        String uri = peer.getProperties().get("http");
+        checkNotNull(uri, "service descriptor for node %s is missing http uri", peer.getNodeId());
+        // TODO: build URI from resource class
+        return URI.create(uri + "/v1/store/" + storeName);
+    }
+
+    /**
+     * Pushes to one peer, remembering what the peer has said it can decode.
+     */
+    private class HttpChannel
+            implements Channel
+    {
+        private final ResponseHandler<Acknowledgement, Exception> responseHandler = new ResponseHandler<Acknowledgement, Exception>()
+        {
+            @Override
+            public Acknowledgement handleException(Request request, Exception exception)
+                    throws Exception
+            {
+                throw exception;
+            }
+
+            @Override
+            public Acknowledgement handle(Request request, Response response)
+                    throws Exception
+            {
+                if (response.getStatusCode() == 415) {
+                    // the target can't decode what we sent
+                    codec = ReplicationCodec.IDENTITY;
+                    binaryFormat = false;
+                    touches = false;
+                }
+                if (response.getStatusCode() >= 300) {
+                    throw new Exception("Remote server returned " + response.getStatusCode() + " status code");
+                }
+                codec = ReplicationCodec.negotiate(response.getHeader("Accept-Encoding"), preferredCodec);
+                binaryFormat = EntryCodec.isAccepted(response.getHeader("Accept-Post"));
+                touches = binaryFormat && Boolean.parseBoolean(response.getHeader(EntryCodec.TOUCH_HEADER));
+
+                long appliedTimestamp = 0;
+                String appliedTimestampHeader = response.getHeader(ReplicationWatermarks.APPLIED_TIMESTAMP_HEADER);
+                if (appliedTimestampHeader != null) {
+                    try {
+                        appliedTimestamp = Long.parseLong(appliedTimestampHeader);
+                    }
+                    catch (NumberFormatException ignored) {
+                    }
+                }
+
+                List<byte[]> missedTouches = ImmutableList.of();
+                if (response.getStatusCode() == 200) {
+                    // the body lists the touches the target could not apply
+                    missedTouches = mapper.readValue(response.getInputStream(), new TypeReference<List<byte[]>>() {});
+                }
+                return new Acknowledgement(response.getHeader(ReplicationWatermarks.EPOCH_HEADER), appliedTimestamp, missedTouches);
+            }
+        };
+
+        private final URI uri;
+        private final String site;
+        private final ReplicationCodec preferredCodec;
+
+        // codec the target is known to accept; nothing is compressed until it has answered
+        private volatile ReplicationCodec codec = ReplicationCodec.IDENTITY;
+
+        // whether the target has offered the version 2 wire format
+        private volatile boolean binaryFormat;
+
+        // whether the target applies touch frames
+        private volatile boolean touches;
+
+        private final CounterStat sentBytes = new CounterStat();
+        private final CounterStat sentTouches = new CounterStat();
+        private final CompressionStats compression = new CompressionStats();
+
+        private HttpChannel(URI uri, @Nullable String site, ReplicationCodec preferredCodec)
+        {
+            this.uri = uri;
+            this.site = site;
+            this.preferredCodec = checkNotNull(preferredCodec, "preferredCodec is null");
+        }
+
+        @Override
+        public ListenableFuture<Acknowledgement> push(Collection<Entry> entries)
+        {
+            return httpClient.executeAsync(buildRequest(entries), responseHandler);
+        }
+
+        /**
+         * Bytes of request bodies sent to the target, as they appear on the wire.
+         */
+        @Nested
+        public CounterStat getSentBytes()
+        {
+            return sentBytes;
+        }
+
+        /**
+         * Touches sent without their value.
+         */
+        @Nested
+        public CounterStat getSentTouches()
+        {
+            return sentTouches;
+        }
+
+        @Nested
+        public CompressionStats getCompression()
+        {
+            return compression;
+        }
+
+        private Request buildRequest(final Collection<Entry> entries)
+        {
+            final boolean binary = binaryFormat;
+            final boolean compactTouches = binary && touches;
+            Request.Builder builder = Request.Builder.preparePost()
+                    .setUri(uri)
+                    .setHeader("Content-Type", binary ? EntryCodec.MEDIA_TYPE : "application/x-jackson-smile");
+            if (site != null) {
+                builder.setHeader(HttpRemoteStore.SITE_HEADER, site);
+            }
+
+            long estimatedSize = 0;
+            int touchCount = 0;
+            for (Entry entry : entries) {
+                if (compactTouches && entry instanceof Touch) {
+                    estimatedSize += entry.getKey().length + 32;
+                    ++touchCount;
+                }
+                else {
+                    estimatedSize += HttpRemoteStore.ENTRY_WEIGHER.weigh(entry);
+                }
+            }
+            final int sentTouchCount = touchCount;
+            final ReplicationCodec batchCodec = (estimatedSize >= compressionThreshold) ? codec : ReplicationCodec.IDENTITY;
+            if (batchCodec != ReplicationCodec.IDENTITY) {
+                builder.setHeader("Content-Encoding", batchCodec.getEncoding());
+            }
+
+            return builder.setBodyGenerator(new BodyGenerator() {
+                        @Override
+                        public void write(OutputStream out)
+                                throws Exception
+                        {
+                            CountingOutputStream wire = new CountingOutputStream(out);
+                            OutputStream body = (batchCodec == ReplicationCodec.IDENTITY) ? wire : compression.compress(batchCodec, wire);
+                            if (binary) {
+                                EntryCodec.writeEntries(entries, body, compactTouches);
+                                body.close();
+                            }
+                            else {
+                                // closing the body also finishes the compressed stream
+                                mapper.writeValue(body, entries);
+                            }
+                            sentBytes.update(wire.getCount());
+                            sentTouches.update(sentTouchCount);
+                        }
+                    })
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.stats.CounterStat;
+import org.weakref.jmx.Nested;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Replicates between nodes running in the same JVM by calling the
+ * {@link ReplicationEndpoint} of the target directly, without encoding entries.
+ * <p>
+ * Every node of a simulated cluster shares one instance and registers its endpoint
+ * under its node id. Requests complete before they return, on the thread that sent
+ * them. A node can be made unreachable to inject failures: requests to it fail as a
+ * connection to a crashed or partitioned node would.
+ */
+@ThreadSafe
+public class InMemoryReplicationTransport
+        implements ReplicationTransport
+{
+    private final ConcurrentMap<String, ReplicationEndpoint> endpoints = new ConcurrentHashMap<>();
+    private final Set<String> unreachable = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public void register(String nodeId, ReplicationEndpoint endpoint)
+    {
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+        Preconditions.checkNotNull(endpoint, "endpoint is null");
+        endpoints.put(nodeId, endpoint);
+    }
+
+    public void unregister(String nodeId)
+    {
+        endpoints.remove(nodeId);
+    }
+
+    public void setReachable(String nodeId, boolean reachable)
+    {
+        if (reachable) {
+            unreachable.remove(nodeId);
+        }
+        else {
+            unreachable.add(nodeId);
+        }
+    }
+
+    @Override
+    public String getTarget(ServiceDescriptor peer)
+    {
+        // a peer that is not registered yet behaves like one that is down
+        return peer.getNodeId();
+    }
+
+    @Override
+    public Channel connect(String storeName, ServiceDescriptor peer, @Nullable String site, ReplicationCodec preferredCodec)
+    {
+        return new InMemoryChannel(storeName, peer.getNodeId(), site);
+    }
+
+    @Override
+    public ListenableFuture<PullResult> pull(String storeName, ServiceDescriptor peer, @Nullable ReplicationWatermarks.Watermark watermark)
+    {
+        ReplicationEndpoint endpoint;
+        try {
+            endpoint = getEndpoint(peer.getNodeId());
+        }
+        catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+
+        PullResult result = endpoint.serve(storeName, watermark);
+        if (result == null) {
+            return Futures.immediateFailedFuture(new IOException("node " + peer.getNodeId() + " has no store " + storeName));
+        }
+        return Futures.immediateFuture(result);
+    }
+
+    @Override
+    public ListenableFuture<List<Entry>> lookup(String storeName, ServiceDescriptor peer, List<byte[]> keys)
+    {
+        ReplicationEndpoint endpoint;
+        try {
+            endpoint = getEndpoint(peer.getNodeId());
+        }
+        catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+
+        List<Entry> entries = endpoint.lookup(storeName, keys);
+        if (entries == null) {
+            return Futures.immediateFailedFuture(new IOException("node " + peer.getNodeId() + " has no store " + storeName));
+        }
+        return Futures.immediateFuture(entries);
+    }
+
+    private ReplicationEndpoint getEndpoint(String nodeId)
+            throws IOException
+    {
+        ReplicationEndpoint endpoint = endpoints.get(nodeId);
+        if (endpoint == null || unreachable.contains(nodeId)) {
+            throw new IOException("node " + nodeId + " is unreachable");
+        }
+        return endpoint;
+    }
+
+    private class InMemoryChannel
+            implements Channel
+    {
+        private final String storeName;
+        private final String nodeId;
+        private final String site;
+        private final CounterStat deliveredEntries = new CounterStat();
+
+        private InMemoryChannel(String storeName, String nodeId, @Nullable String site)
+        {
+            this.storeName = storeName;
+            this.nodeId = nodeId;
+            this.site = site;
+        }
+
+        @Override
+        public ListenableFuture<Acknowledgement> push(Collection<Entry> entries)
+        {
+            ReplicationEndpoint endpoint;
+            try {
+                endpoint = getEndpoint(nodeId);
+            }
+            catch (IOException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+
+            Acknowledgement acknowledgement = endpoint.receive(storeName, ImmutableList.copyOf(entries), null, site);
+            if (acknowledgement == null) {
+                return Futures.immediateFailedFuture(new IOException("node " + nodeId + " has no store " + storeName));
+            }
+            deliveredEntries.update(entries.size());
+            return Futures.immediateFuture(acknowledgement);
+        }
+
+        @Nested
+        public CounterStat getDeliveredEntries()
+        {
+            return deliveredEntries;
+        }
+    }
+}
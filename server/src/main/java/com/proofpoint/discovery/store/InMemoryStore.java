@@ -19,14 +19,17 @@ import com.google.common.base.Preconditions;
 import com.proofpoint.discovery.DiscoveryConfig;
 
 import javax.inject.Inject;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 public class InMemoryStore
         implements LocalStore
 {
-    private final ConcurrentMap<ByteBuffer, Entry> map = new ConcurrentHashMap<>();
+    private final ConcurrentMap<StoreKey, Entry> map = new ConcurrentHashMap<>();
+    private final ChangeIndex changes = new ChangeIndex();
     private final ConflictResolver resolver;
     private final long maxAgeInMs;
 
@@ -47,18 +50,24 @@ public class InMemoryStore
                     maxAgeInMs);
         }
 
-        ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+        StoreKey key = entry.getStoreKey();
 
         boolean done = false;
         while (!done) {
             Entry old = map.putIfAbsent(key, entry);
 
             done = true;
-            if (old != null) {
+            if (old == null) {
+                changes.recordChange(key);
+            }
+            else {
                 entry = resolver.resolve(old, entry);
 
                 if (entry != old) {
                     done = map.replace(key, old, entry);
+                    if (done) {
+                        changes.recordChange(key);
+                    }
                 }
             }
         }
@@ -69,7 +78,7 @@ public class InMemoryStore
     {
         Preconditions.checkNotNull(key, "key is null");
 
-        return map.get(ByteBuffer.wrap(key));
+        return map.get(StoreKey.wrap(key));
     }
 
     @Override
@@ -77,7 +86,7 @@ public class InMemoryStore
     {
         Preconditions.checkNotNull(key, "key is null");
 
-        ByteBuffer wrappedKey = ByteBuffer.wrap(key);
+        StoreKey wrappedKey = StoreKey.wrap(key);
 
         boolean done = false;
         while (!done) {
@@ -86,6 +95,12 @@ public class InMemoryStore
             done = true;
             if (old != null && !resolver.isNewer(old, timestamp)) {
                 done = map.remove(wrappedKey, old);
+                if (done) {
+                    long removalVersion = changes.recordChange(wrappedKey);
+                    if (!map.containsKey(wrappedKey)) {
+                        changes.forget(wrappedKey, removalVersion);
+                    }
+                }
             }
         }
     }
@@ -95,4 +110,35 @@ public class InMemoryStore
     {
         return map.values();
     }
+
+    @Override
+    public boolean replace(Entry expected, Entry entry)
+    {
+        Preconditions.checkArgument(Arrays.equals(expected.getKey(), entry.getKey()), "entries have different keys");
+
+        boolean replaced = map.replace(entry.getStoreKey(), expected, entry);
+        if (replaced) {
+            changes.recordChange(entry.getStoreKey());
+        }
+        return replaced;
+    }
+
+    @Override
+    public long getVersion()
+    {
+        return changes.getVersion();
+    }
+
+    @Override
+    public Iterable<Entry> getChangedSince(long version)
+    {
+        List<Entry> entries = new ArrayList<>();
+        for (StoreKey key : changes.getChangedSince(version)) {
+            Entry entry = map.get(key);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
 }
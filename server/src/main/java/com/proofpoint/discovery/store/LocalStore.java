@@ -21,4 +21,23 @@ public interface LocalStore
     Entry get(byte[] key);
     void delete(byte[] key, long timestamp);
     Iterable<Entry> getAll();
+
+    /**
+     * Replaces the entry stored for a key only if it is still the expected one.
+     *
+     * @return false if the key has been written or deleted since the expected entry was read
+     */
+    boolean replace(Entry expected, Entry entry);
+
+    /**
+     * Returns a number that changes whenever the content of the store changes,
+     * whatever the change came from.
+     */
+    long getVersion();
+
+    /**
+     * Returns the entries written since the store had the specified version. Entries
+     * removed since are not listed.
+     */
+    Iterable<Entry> getChangedSince(long version);
 }
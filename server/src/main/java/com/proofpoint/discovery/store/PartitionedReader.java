@@ -0,0 +1,258 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.client.ServiceSelector;
+import com.proofpoint.discovery.store.ReplicationTransport.PullResult;
+import com.proofpoint.log.Logger;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.stats.CounterStat;
+import com.proofpoint.stats.TimeStat;
+import org.weakref.jmx.Nested;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads the entries of a partitioned store by gathering the local entries of
+ * every discovery node. Each key is held by several owners, so the newest copy
+ * of each key wins; a node that fails to respond in time is skipped, leaving its
+ * keys to be served by their other owners. Entries are gathered in the background
+ * once per refresh interval, so queries read the last result rather than each
+ * waiting on every partition. Single keys, read to decide what a write replaces,
+ * are looked up on their owners instead.
+ */
+@ThreadSafe
+public class PartitionedReader
+{
+    private static final Logger log = Logger.get(PartitionedReader.class);
+
+    private final String name;
+    private final NodeInfo node;
+    private final ServiceSelector selector;
+    private final ReplicationTransport transport;
+    private final LocalStore localStore;
+    private final ConflictResolver resolver;
+    private final Partitioner partitioner;
+    private final long timeoutNanos;
+    private final long refreshMillis;
+
+    // result of the last gather in the background, null until there is one
+    private volatile List<Entry> entries;
+
+    @GuardedBy("this")
+    private ScheduledExecutorService executor;
+
+    private final TimeStat gatherTime = new TimeStat();
+    private final CounterStat failedReads = new CounterStat();
+
+    public PartitionedReader(String name,
+            NodeInfo node,
+            ServiceSelector selector,
+            ReplicationTransport transport,
+            LocalStore localStore,
+            ConflictResolver resolver,
+            Partitioner partitioner,
+            StoreConfig config)
+    {
+        Preconditions.checkNotNull(name, "name is null");
+        Preconditions.checkNotNull(node, "node is null");
+        Preconditions.checkNotNull(selector, "selector is null");
+        Preconditions.checkNotNull(transport, "transport is null");
+        Preconditions.checkNotNull(localStore, "localStore is null");
+        Preconditions.checkNotNull(resolver, "resolver is null");
+        Preconditions.checkNotNull(partitioner, "partitioner is null");
+        Preconditions.checkNotNull(config, "config is null");
+
+        this.name = name;
+        this.node = node;
+        this.selector = selector;
+        this.transport = transport;
+        this.localStore = localStore;
+        this.resolver = resolver;
+        this.partitioner = partitioner;
+        this.timeoutNanos = config.getPartitionedReadTimeout().roundTo(TimeUnit.NANOSECONDS);
+        this.refreshMillis = config.getPartitionedReadCacheTtl().toMillis();
+    }
+
+    public synchronized void start()
+    {
+        if (refreshMillis > 0 && executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("partitioned-reader-" + name + "-%d").setDaemon(true).build());
+            executor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        entries = gather();
+                    }
+                    catch (Throwable t) {
+                        log.warn(t, "Error gathering store %s", name);
+                    }
+                }
+            }, 0, refreshMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void shutdown()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns the newest copy of every entry in the store, including tombstones and expired entries.
+     */
+    public List<Entry> getAll()
+    {
+        List<Entry> entries = this.entries;
+        if (entries == null) {
+            // nothing gathered in the background yet, or refreshing is off
+            return gather();
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the newest copy of the entry for a key among its owners, including a tombstone
+     * or an expired entry, or null if none of the owners that responded in time holds one.
+     * The owners are asked rather than the last gathered result, so what a write replaces is
+     * read as of the time of the write; a write this node forwarded is seen once the owners
+     * have applied it.
+     */
+    @Nullable
+    public Entry get(byte[] key)
+    {
+        Preconditions.checkNotNull(key, "key is null");
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        List<ListenableFuture<List<Entry>>> futures = new ArrayList<>();
+        for (ServiceDescriptor descriptor : selector.selectAllServices()) {
+            if (descriptor.getNodeId().equals(node.getNodeId()) || transport.getTarget(descriptor) == null || !partitioner.isOwner(descriptor.getNodeId(), key)) {
+                continue;
+            }
+
+            try {
+                futures.add(transport.lookup(name, descriptor, ImmutableList.of(key)));
+            }
+            catch (RuntimeException e) {
+                failedReads.update(1);
+            }
+        }
+
+        // this node may be one of the owners
+        Entry result = localStore.get(key);
+        for (ListenableFuture<List<Entry>> future : futures) {
+            try {
+                for (Entry entry : future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    result = (result == null) ? entry : resolver.resolve(result, entry);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (ExecutionException | TimeoutException e) {
+                failedReads.update(1);
+                future.cancel(true);
+                log.debug(e, "Error looking up a key of store %s", name);
+            }
+        }
+        return result;
+    }
+
+    @Nested
+    public TimeStat getGatherTime()
+    {
+        return gatherTime;
+    }
+
+    @Nested
+    public CounterStat getFailedReads()
+    {
+        return failedReads;
+    }
+
+    private List<Entry> gather()
+    {
+        long start = System.nanoTime();
+
+        Map<String, ListenableFuture<PullResult>> futures = new HashMap<>();
+        for (ServiceDescriptor descriptor : selector.selectAllServices()) {
+            if (descriptor.getNodeId().equals(node.getNodeId()) || transport.getTarget(descriptor) == null) {
+                continue;
+            }
+
+            try {
+                // without a watermark the peer always sends its entries
+                futures.put(descriptor.getNodeId(), transport.pull(name, descriptor, null));
+            }
+            catch (RuntimeException e) {
+                failedReads.update(1);
+            }
+        }
+
+        Map<ByteBuffer, Entry> merged = new HashMap<>();
+        merge(merged, localStore.getAll());
+
+        long deadline = start + timeoutNanos;
+        for (Map.Entry<String, ListenableFuture<PullResult>> future : futures.entrySet()) {
+            try {
+                merge(merged, future.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS).getEntries());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (ExecutionException | TimeoutException e) {
+                failedReads.update(1);
+                future.getValue().cancel(true);
+                log.debug(e, "Error reading store %s from node %s", name, future.getKey());
+            }
+        }
+
+        gatherTime.add(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return ImmutableList.copyOf(merged.values());
+    }
+
+    private void merge(Map<ByteBuffer, Entry> merged, Iterable<Entry> entries)
+    {
+        for (Entry entry : entries) {
+            ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+            Entry existing = merged.get(key);
+            merged.put(key, existing == null ? entry : resolver.resolve(existing, entry));
+        }
+    }
+}
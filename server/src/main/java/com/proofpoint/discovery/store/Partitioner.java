@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.client.ServiceSelector;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.reporting.Gauge;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which discovery nodes store each key of a store.
+ * <p>
+ * When partitioning is disabled every node owns every key. Otherwise keys are
+ * placed on a {@link ConsistentHashRing} over the discovery nodes currently known
+ * to the service selector, and each key is owned by the replication factor's worth
+ * of nodes. The ring is rebuilt at most once per remote update interval.
+ */
+@ThreadSafe
+public class Partitioner
+{
+    private static final int POINTS_PER_NODE = 100;
+
+    private final boolean enabled;
+    private final String nodeId;
+    private final int replicationFactor;
+    private final Supplier<ConsistentHashRing> ring;
+
+    public Partitioner(final NodeInfo node, final ServiceSelector selector, StoreConfig config)
+    {
+        Preconditions.checkNotNull(node, "node is null");
+        Preconditions.checkNotNull(selector, "selector is null");
+        Preconditions.checkNotNull(config, "config is null");
+
+        enabled = config.isPartitioningEnabled();
+        nodeId = node.getNodeId();
+        replicationFactor = config.getReplicationFactor();
+        ring = Suppliers.memoizeWithExpiration(new Supplier<ConsistentHashRing>()
+        {
+            @Override
+            public ConsistentHashRing get()
+            {
+                ImmutableSet.Builder<String> nodes = ImmutableSet.builder();
+                // we own part of the ring even before our own announcement shows up
+                nodes.add(nodeId);
+                for (ServiceDescriptor descriptor : selector.selectAllServices()) {
+                    nodes.add(descriptor.getNodeId());
+                }
+                return new ConsistentHashRing(nodes.build(), POINTS_PER_NODE);
+            }
+        }, config.getRemoteUpdateInterval().toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Returns true if this node should store the key.
+     */
+    public boolean isLocal(byte[] key)
+    {
+        return isOwner(nodeId, key);
+    }
+
+    public boolean isOwner(String nodeId, byte[] key)
+    {
+        return !enabled || ring.get().isOwner(nodeId, key, replicationFactor);
+    }
+
+    public Predicate<Entry> ownedBy(final String nodeId)
+    {
+        return new Predicate<Entry>()
+        {
+            @Override
+            public boolean apply(Entry entry)
+            {
+                return isOwner(nodeId, entry.getKey());
+            }
+        };
+    }
+
+    @Gauge
+    public long getRingSize()
+    {
+        return enabled ? ring.get().getNodes().size() : 0;
+    }
+}
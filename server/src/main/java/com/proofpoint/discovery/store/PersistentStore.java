@@ -28,7 +28,9 @@ import org.iq80.leveldb.impl.Iq80DBFactory;
 
 import javax.inject.Inject;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import static com.google.common.base.Predicates.notNull;
@@ -38,6 +40,7 @@ public class PersistentStore
 {
     private static final Logger log = Logger.get(PersistentStore.class);
     private final DB db;
+    private final ChangeIndex changes = new ChangeIndex();
     private final ObjectMapper mapper = new ObjectMapper(new SmileFactory()).disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
 
     @Inject
@@ -59,13 +62,19 @@ public class PersistentStore
         }
 
         db.put(entry.getKey(), dbEntry);
+        changes.recordChange(entry.getStoreKey());
     }
 
     @Override
     public Entry get(byte[] key)
     {
+        byte[] dbEntry = db.get(key);
+        if (dbEntry == null) {
+            return null;
+        }
+
         try {
-            return mapper.readValue(db.get(key), Entry.class);
+            return mapper.readValue(dbEntry, Entry.class);
         }
         catch (IOException e) {
             throw Throwables.propagate(e);
@@ -76,6 +85,41 @@ public class PersistentStore
     public void delete(byte[] key, long timestamp)
     {
         db.delete(key);
+        StoreKey storeKey = StoreKey.wrap(key);
+        long removalVersion = changes.recordChange(storeKey);
+        if (db.get(key) == null) {
+            changes.forget(storeKey, removalVersion);
+        }
+    }
+
+    @Override
+    public synchronized boolean replace(Entry expected, Entry entry)
+    {
+        // puts are not serialized with replacements, as writes to this store are not resolved either
+        if (!expected.equals(get(entry.getKey()))) {
+            return false;
+        }
+        put(entry);
+        return true;
+    }
+
+    @Override
+    public long getVersion()
+    {
+        return changes.getVersion();
+    }
+
+    @Override
+    public Iterable<Entry> getChangedSince(long version)
+    {
+        List<Entry> entries = new ArrayList<>();
+        for (StoreKey key : changes.getChangedSince(version)) {
+            Entry entry = get(key.getKey());
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
     }
 
     @Override
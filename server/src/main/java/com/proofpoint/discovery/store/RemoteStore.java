@@ -15,7 +15,21 @@
  */
 package com.proofpoint.discovery.store;
 
+import java.util.Collection;
+
 public interface RemoteStore
 {
     void put(Entry entry);
+
+    /**
+     * Replicates an entry whose value is the same as that of the entry it replaces, so
+     * peers that already have the value only need its new timestamp and max age.
+     */
+    void touch(Entry entry);
+
+    /**
+     * Replicates entries written together. Entries that are a {@link Touch} are replicated
+     * as by {@link #touch}.
+     */
+    void putAll(Collection<Entry> entries);
 }
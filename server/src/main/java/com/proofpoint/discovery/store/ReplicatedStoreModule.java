@@ -25,12 +25,13 @@ import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
 import com.proofpoint.discovery.InitializationTracker;
 import com.proofpoint.discovery.client.ServiceSelector;
-import com.proofpoint.http.client.HttpClient;
+import com.proofpoint.http.client.AsyncHttpClient;
 import com.proofpoint.http.client.balancing.HttpServiceBalancerStats;
 import com.proofpoint.node.NodeInfo;
 import com.proofpoint.reporting.ReportCollectionFactory;
 import com.proofpoint.reporting.ReportExporter;
 import org.joda.time.DateTime;
+import org.weakref.jmx.MBeanExporter;
 import org.weakref.jmx.ObjectNameBuilder;
 
 import javax.annotation.PreDestroy;
@@ -73,36 +74,69 @@ public class ReplicatedStoreModule
 
         // global
         binder.bind(StoreResource.class).in(Scopes.SINGLETON);
+        binder.bind(ReplicationEndpoint.class).in(Scopes.SINGLETON);
         binder.bind(new TypeLiteral<Supplier<DateTime>>() {}).to(RealTimeSupplier.class).in(Scopes.SINGLETON);
         binder.bind(SmileMapper.class).in(Scopes.SINGLETON);
+        binder.bind(EntryCodecMapper.class).in(Scopes.SINGLETON);
         binder.bind(ConflictResolver.class).in(Scopes.SINGLETON);
 
         // per store
-        Key<HttpClient> httpClientKey = Key.get(HttpClient.class, annotation);
+        Key<AsyncHttpClient> asyncHttpClientKey = Key.get(AsyncHttpClient.class, annotation);
         Key<LocalStore> localStoreKey = Key.get(LocalStore.class, annotation);
         Key<StoreConfig> storeConfigKey = Key.get(StoreConfig.class, annotation);
         Key<RemoteStore> remoteStoreKey = Key.get(RemoteStore.class, annotation);
+        Key<HttpRemoteStore> httpRemoteStoreKey = Key.get(HttpRemoteStore.class, annotation);
+        Key<GossipRemoteStore> gossipRemoteStoreKey = Key.get(GossipRemoteStore.class, annotation);
+        Key<Partitioner> partitionerKey = Key.get(Partitioner.class, annotation);
+        Key<ReplicationWatermarks> watermarksKey = Key.get(ReplicationWatermarks.class, annotation);
+        Key<CompressionStats> compressionStatsKey = Key.get(CompressionStats.class, annotation);
+        Key<TouchStats> touchStatsKey = Key.get(TouchStats.class, annotation);
+        Key<ReplicationTransport> transportKey = Key.get(ReplicationTransport.class, annotation);
 
         bindConfig(binder).annotatedWith(annotation).prefixedWith(name).to(StoreConfig.class);
-        httpClientBinder(binder).bindHttpClient(name, annotation);
-        binder.bind(DistributedStore.class).annotatedWith(annotation).toProvider(new DistributedStoreProvider(name, localStoreKey, storeConfigKey, remoteStoreKey)).in(Scopes.SINGLETON);
-        binder.bind(Replicator.class).annotatedWith(annotation).toProvider(new ReplicatorProvider(name, localStoreKey, httpClientKey, storeConfigKey)).in(Scopes.SINGLETON);
-        binder.bind(HttpRemoteStore.class).annotatedWith(annotation).toProvider(new RemoteHttpStoreProvider(name, httpClientKey, storeConfigKey)).in(Scopes.SINGLETON);
+        httpClientBinder(binder).bindAsyncHttpClient(name, annotation);
+        binder.bind(transportKey).toProvider(new HttpReplicationTransportProvider(name, asyncHttpClientKey, storeConfigKey)).in(Scopes.SINGLETON);
+        binder.bind(DistributedStore.class).annotatedWith(annotation).toProvider(new DistributedStoreProvider(name, localStoreKey, storeConfigKey, remoteStoreKey, partitionerKey, transportKey)).in(Scopes.SINGLETON);
+        binder.bind(Replicator.class).annotatedWith(annotation).toProvider(new ReplicatorProvider(name, localStoreKey, transportKey, storeConfigKey, partitionerKey, watermarksKey)).in(Scopes.SINGLETON);
+        binder.bind(HttpRemoteStore.class).annotatedWith(annotation).toProvider(new RemoteHttpStoreProvider(name, transportKey, storeConfigKey, localStoreKey, partitionerKey)).in(Scopes.SINGLETON);
+        binder.bind(GossipRemoteStore.class).annotatedWith(annotation).toProvider(new GossipRemoteStoreProvider(name, asyncHttpClientKey, storeConfigKey, localStoreKey)).in(Scopes.SINGLETON);
         binder.bind(LocalStore.class).annotatedWith(annotation).to(localStoreClass).in(Scopes.SINGLETON);
+        binder.bind(Partitioner.class).annotatedWith(annotation).toProvider(new PartitionerProvider(storeConfigKey)).in(Scopes.SINGLETON);
+        binder.bind(watermarksKey).toInstance(new ReplicationWatermarks());
+        binder.bind(compressionStatsKey).toInstance(new CompressionStats());
+        binder.bind(touchStatsKey).toInstance(new TouchStats());
 
-        binder.bind(RemoteStore.class).annotatedWith(annotation).to(Key.get(HttpRemoteStore.class, annotation));
+        // only the selected implementation is created; it exports itself
+        binder.bind(RemoteStore.class).annotatedWith(annotation).toProvider(new RemoteStoreProvider(storeConfigKey, httpRemoteStoreKey, gossipRemoteStoreKey));
 
         reportBinder(binder).export(DistributedStore.class).annotatedWith(annotation).as(generatedNameOf(DistributedStore.class, named(name)));
-        newExporter(binder).export(HttpRemoteStore.class).annotatedWith(annotation).as(generatedNameOf(HttpRemoteStore.class, named(name)));
         newExporter(binder).export(Replicator.class).annotatedWith(annotation).as(generatedNameOf(Replicator.class, named(name)));
+        reportBinder(binder).export(CompressionStats.class).annotatedWith(annotation).as(generatedNameOf(CompressionStats.class, named(name)));
+        reportBinder(binder).export(TouchStats.class).annotatedWith(annotation).as(generatedNameOf(TouchStats.class, named(name)));
 
         newMapBinder(binder, String.class, LocalStore.class)
             .addBinding(name)
             .to(localStoreKey);
 
+        newMapBinder(binder, String.class, RemoteStore.class)
+                .addBinding(name)
+                .to(remoteStoreKey);
+
         newMapBinder(binder, String.class, StoreConfig.class)
                 .addBinding(name)
                 .to(storeConfigKey);
+
+        newMapBinder(binder, String.class, ReplicationWatermarks.class)
+                .addBinding(name)
+                .to(watermarksKey);
+
+        newMapBinder(binder, String.class, CompressionStats.class)
+                .addBinding(name)
+                .to(compressionStatsKey);
+
+        newMapBinder(binder, String.class, TouchStats.class)
+                .addBinding(name)
+                .to(touchStatsKey);
     }
 
     @ThreadSafe
@@ -111,8 +145,10 @@ public class ReplicatedStoreModule
     {
         private final String name;
         private final Key<? extends LocalStore> localStoreKey;
-        private final Key<? extends HttpClient> httpClientKey;
+        private final Key<ReplicationTransport> transportKey;
         private final Key<StoreConfig> storeConfigKey;
+        private final Key<Partitioner> partitionerKey;
+        private final Key<ReplicationWatermarks> watermarksKey;
 
         @GuardedBy("this")
         private Injector injector;
@@ -123,15 +159,31 @@ public class ReplicatedStoreModule
         @GuardedBy("this")
         private ServiceSelector serviceSelector;
 
+        @GuardedBy("this")
+        private Supplier<DateTime> timeSupplier;
+
+        @GuardedBy("this")
+        private MBeanExporter mbeanExporter;
+
         @GuardedBy("this")
         private Replicator replicator;
 
-        private ReplicatorProvider(String name, Key<? extends LocalStore> localStoreKey, Key<? extends HttpClient> httpClientKey, Key<StoreConfig> storeConfigKey)
+        @GuardedBy("this")
+        private StoreCheckpointer checkpointer;
+
+        private ReplicatorProvider(String name,
+                Key<? extends LocalStore> localStoreKey,
+                Key<ReplicationTransport> transportKey,
+                Key<StoreConfig> storeConfigKey,
+                Key<Partitioner> partitionerKey,
+                Key<ReplicationWatermarks> watermarksKey)
         {
             this.name = name;
             this.localStoreKey = localStoreKey;
-            this.httpClientKey = httpClientKey;
+            this.transportKey = transportKey;
             this.storeConfigKey = storeConfigKey;
+            this.partitionerKey = partitionerKey;
+            this.watermarksKey = watermarksKey;
         }
 
         @Override
@@ -139,17 +191,23 @@ public class ReplicatedStoreModule
         {
             if (replicator == null) {
                 LocalStore localStore = injector.getInstance(localStoreKey);
-                HttpClient httpClient = injector.getInstance(httpClientKey);
+                ReplicationTransport transport = injector.getInstance(transportKey);
                 StoreConfig storeConfig = injector.getInstance(storeConfigKey);
+                Partitioner partitioner = injector.getInstance(partitionerKey);
+                ReplicationWatermarks watermarks = injector.getInstance(watermarksKey);
                 InitializationTracker initializationTracker = injector.getInstance(InitializationTracker.class);
 
-                ReportCollectionFactory reportCollectionFactory = injector.getInstance(ReportCollectionFactory.class);
-                String objectName = new ObjectNameBuilder(HttpServiceBalancerStats.class.getPackage().getName())
-                        .withProperty("serviceType", "replicator-" + name)
-                        .build();
-                HttpServiceBalancerStats httpServiceBalancerStats = reportCollectionFactory.createReportCollection(HttpServiceBalancerStats.class, objectName);
-
-                replicator = new Replicator(name, nodeInfo, serviceSelector, httpClient, httpServiceBalancerStats, localStore, storeConfig, initializationTracker);
+                if (storeConfig.isSnapshotEnabled()) {
+                    // restore before replicating so that the replicator only fills in what changed
+                    checkpointer = new StoreCheckpointer(name, localStore, storeConfig, timeSupplier);
+                    checkpointer.start();
+                    mbeanExporter.export(generatedNameOf(StoreCheckpointer.class, named(name)), checkpointer);
+                }
+
+                replicator = new Replicator(name, nodeInfo, serviceSelector, transport, localStore, storeConfig, partitioner, watermarks, initializationTracker);
+                if (checkpointer != null && checkpointer.isRestored() && storeConfig.isSnapshotServeStale()) {
+                    replicator.allowStaleReads();
+                }
                 replicator.start();
             }
 
@@ -162,6 +220,10 @@ public class ReplicatedStoreModule
             if (replicator != null) {
                 replicator.shutdown();
             }
+            if (checkpointer != null) {
+                mbeanExporter.unexport(generatedNameOf(StoreCheckpointer.class, named(name)));
+                checkpointer.shutdown();
+            }
         }
 
         @Inject
@@ -181,6 +243,18 @@ public class ReplicatedStoreModule
         {
             this.serviceSelector = serviceSelector;
         }
+
+        @Inject
+        public synchronized void setTimeSupplier(Supplier<DateTime> timeSupplier)
+        {
+            this.timeSupplier = timeSupplier;
+        }
+
+        @Inject
+        public synchronized void setMBeanExporter(MBeanExporter mbeanExporter)
+        {
+            this.mbeanExporter = mbeanExporter;
+        }
     }
 
     @ThreadSafe
@@ -202,27 +276,135 @@ public class ReplicatedStoreModule
         @GuardedBy("this")
         private ReportExporter reportExporter;
 
+        @GuardedBy("this")
+        private MBeanExporter mbeanExporter;
+
         private final String name;
-        private final Key<? extends HttpClient> httpClientKey;
+        private final Key<ReplicationTransport> transportKey;
         private final Key<StoreConfig> storeConfigKey;
+        private final Key<? extends LocalStore> localStoreKey;
+        private final Key<Partitioner> partitionerKey;
 
 
         @Inject
-        private RemoteHttpStoreProvider(String name, Key<? extends HttpClient> httpClientKey, Key<StoreConfig> storeConfigKey)
+        private RemoteHttpStoreProvider(String name,
+                Key<ReplicationTransport> transportKey,
+                Key<StoreConfig> storeConfigKey,
+                Key<? extends LocalStore> localStoreKey,
+                Key<Partitioner> partitionerKey)
         {
             this.name = name;
-            this.httpClientKey = httpClientKey;
+            this.transportKey = transportKey;
             this.storeConfigKey = storeConfigKey;
+            this.localStoreKey = localStoreKey;
+            this.partitionerKey = partitionerKey;
         }
 
         public synchronized HttpRemoteStore get()
         {
             if (remoteStore == null) {
-                HttpClient httpClient = injector.getInstance(httpClientKey);
+                ReplicationTransport transport = injector.getInstance(transportKey);
+                StoreConfig storeConfig = injector.getInstance(storeConfigKey);
+                ConflictResolver resolver = injector.getInstance(ConflictResolver.class);
+                LocalStore localStore = injector.getInstance(localStoreKey);
+
+                Partitioner partitioner = injector.getInstance(partitionerKey);
+
+                remoteStore = new HttpRemoteStore(name, nodeInfo, serviceSelector, storeConfig, transport, reportExporter, resolver, localStore, partitioner);
+                remoteStore.start();
+                mbeanExporter.export(generatedNameOf(HttpRemoteStore.class, named(name)), remoteStore);
+            }
+
+            return remoteStore;
+        }
+
+        @PreDestroy
+        public synchronized void shutdown()
+        {
+            if (remoteStore != null) {
+                mbeanExporter.unexport(generatedNameOf(HttpRemoteStore.class, named(name)));
+                remoteStore.shutdown();
+            }
+        }
+
+        @Inject
+        public synchronized void setInjector(Injector injector)
+        {
+            this.injector = injector;
+        }
+
+        @Inject
+        public synchronized void setNodeInfo(NodeInfo nodeInfo)
+        {
+            this.nodeInfo = nodeInfo;
+        }
+
+        @Inject
+        public synchronized void setServiceSelector(ServiceSelector serviceSelector)
+        {
+            this.serviceSelector = serviceSelector;
+        }
+
+        @Inject
+        private synchronized void setReportExporter(ReportExporter reportExporter)
+        {
+            this.reportExporter = reportExporter;
+        }
+
+        @Inject
+        private synchronized void setMBeanExporter(MBeanExporter mbeanExporter)
+        {
+            this.mbeanExporter = mbeanExporter;
+        }
+    }
+
+    @ThreadSafe
+    private static class GossipRemoteStoreProvider
+            implements Provider<GossipRemoteStore>
+    {
+        @GuardedBy("this")
+        private GossipRemoteStore remoteStore;
+
+        @GuardedBy("this")
+        private Injector injector;
+
+        @GuardedBy("this")
+        private NodeInfo nodeInfo;
+
+        @GuardedBy("this")
+        private ServiceSelector serviceSelector;
+
+        @GuardedBy("this")
+        private ReportExporter reportExporter;
+
+        @GuardedBy("this")
+        private MBeanExporter mbeanExporter;
+
+        private final String name;
+        private final Key<? extends AsyncHttpClient> httpClientKey;
+        private final Key<StoreConfig> storeConfigKey;
+        private final Key<? extends LocalStore> localStoreKey;
+
+        private GossipRemoteStoreProvider(String name, Key<? extends AsyncHttpClient> httpClientKey, Key<StoreConfig> storeConfigKey, Key<? extends LocalStore> localStoreKey)
+        {
+            this.name = name;
+            this.httpClientKey = httpClientKey;
+            this.storeConfigKey = storeConfigKey;
+            this.localStoreKey = localStoreKey;
+        }
+
+        public synchronized GossipRemoteStore get()
+        {
+            if (remoteStore == null) {
+                AsyncHttpClient httpClient = injector.getInstance(httpClientKey);
                 StoreConfig storeConfig = injector.getInstance(storeConfigKey);
+                ConflictResolver resolver = injector.getInstance(ConflictResolver.class);
+                LocalStore localStore = injector.getInstance(localStoreKey);
 
-                remoteStore = new HttpRemoteStore(name, nodeInfo, serviceSelector, storeConfig, httpClient, reportExporter);
+                remoteStore = new GossipRemoteStore(name, nodeInfo, serviceSelector, storeConfig, httpClient, resolver, localStore);
                 remoteStore.start();
+                mbeanExporter.export(generatedNameOf(GossipRemoteStore.class, named(name)), remoteStore);
+                reportExporter.export(generatedNameOf(GossipRemoteStore.class, named(name)), remoteStore);
             }
 
             return remoteStore;
@@ -232,6 +414,8 @@ public class ReplicatedStoreModule
         public synchronized void shutdown()
         {
             if (remoteStore != null) {
+                mbeanExporter.unexport(generatedNameOf(GossipRemoteStore.class, named(name)));
+                reportExporter.unexport(generatedNameOf(GossipRemoteStore.class, named(name)));
                 remoteStore.shutdown();
             }
         }
@@ -259,6 +443,47 @@ public class ReplicatedStoreModule
         {
             this.reportExporter = reportExporter;
         }
+
+        @Inject
+        private synchronized void setMBeanExporter(MBeanExporter mbeanExporter)
+        {
+            this.mbeanExporter = mbeanExporter;
+        }
+    }
+
+    /**
+     * Selects push or gossip replication based on the store configuration.
+     */
+    private static class RemoteStoreProvider
+            implements Provider<RemoteStore>
+    {
+        private final Key<StoreConfig> storeConfigKey;
+        private final Key<HttpRemoteStore> httpRemoteStoreKey;
+        private final Key<GossipRemoteStore> gossipRemoteStoreKey;
+
+        private Injector injector;
+
+        private RemoteStoreProvider(Key<StoreConfig> storeConfigKey, Key<HttpRemoteStore> httpRemoteStoreKey, Key<GossipRemoteStore> gossipRemoteStoreKey)
+        {
+            this.storeConfigKey = storeConfigKey;
+            this.httpRemoteStoreKey = httpRemoteStoreKey;
+            this.gossipRemoteStoreKey = gossipRemoteStoreKey;
+        }
+
+        @Override
+        public RemoteStore get()
+        {
+            if (injector.getInstance(storeConfigKey).isGossipEnabled()) {
+                return injector.getInstance(gossipRemoteStoreKey);
+            }
+            return injector.getInstance(httpRemoteStoreKey);
+        }
+
+        @Inject
+        public void setInjector(Injector injector)
+        {
+            this.injector = injector;
+        }
     }
 
     private static class DistributedStoreProvider
@@ -268,20 +493,30 @@ public class ReplicatedStoreModule
         private final Key<? extends LocalStore> localStoreKey;
         private final Key<StoreConfig> storeConfigKey;
         private final Key<? extends RemoteStore> remoteStoreKey;
+        private final Key<Partitioner> partitionerKey;
+        private final Key<ReplicationTransport> transportKey;
 
         private Injector injector;
         private Supplier<DateTime> timeSupplier;
+        private NodeInfo nodeInfo;
+        private ServiceSelector serviceSelector;
+        private ReportExporter reportExporter;
         private DistributedStore store;
+        private PartitionedReader partitionedReader;
 
         public DistributedStoreProvider(String name,
                 Key<? extends LocalStore> localStoreKey,
                 Key<StoreConfig> storeConfigKey,
-                Key<? extends RemoteStore> remoteStoreKey)
+                Key<? extends RemoteStore> remoteStoreKey,
+                Key<Partitioner> partitionerKey,
+                Key<ReplicationTransport> transportKey)
         {
             this.name = name;
             this.localStoreKey = localStoreKey;
             this.storeConfigKey = storeConfigKey;
             this.remoteStoreKey = remoteStoreKey;
+            this.partitionerKey = partitionerKey;
+            this.transportKey = transportKey;
         }
 
         @Override
@@ -291,8 +526,20 @@ public class ReplicatedStoreModule
                 LocalStore localStore = injector.getInstance(localStoreKey);
                 StoreConfig storeConfig = injector.getInstance(storeConfigKey);
                 RemoteStore remoteStore = injector.getInstance(remoteStoreKey);
-
-                store = new DistributedStore(name, localStore, remoteStore, storeConfig, timeSupplier);
+                Partitioner partitioner = injector.getInstance(partitionerKey);
+
+                if (partitioner.isEnabled()) {
+                    ReplicationTransport transport = injector.getInstance(transportKey);
+                    ConflictResolver resolver = injector.getInstance(ConflictResolver.class);
+                    partitionedReader = new PartitionedReader(name, nodeInfo, serviceSelector, transport, localStore, resolver, partitioner, storeConfig);
+                    partitionedReader.start();
+                    reportExporter.export(generatedNameOf(PartitionedReader.class, named(name)), partitionedReader);
+                    reportExporter.export(generatedNameOf(Partitioner.class, named(name)), partitioner);
+                    store = new DistributedStore(name, localStore, remoteStore, storeConfig, timeSupplier, partitioner, partitionedReader);
+                }
+                else {
+                    store = new DistributedStore(name, localStore, remoteStore, storeConfig, timeSupplier);
+                }
                 store.start();
             }
 
@@ -305,6 +552,29 @@ public class ReplicatedStoreModule
             if (store != null) {
                 store.shutdown();
             }
+            if (partitionedReader != null) {
+                partitionedReader.shutdown();
+                reportExporter.unexport(generatedNameOf(PartitionedReader.class, named(name)));
+                reportExporter.unexport(generatedNameOf(Partitioner.class, named(name)));
+            }
+        }
+
+        @Inject
+        public synchronized void setNodeInfo(NodeInfo nodeInfo)
+        {
+            this.nodeInfo = nodeInfo;
+        }
+
+        @Inject
+        public synchronized void setServiceSelector(ServiceSelector serviceSelector)
+        {
+            this.serviceSelector = serviceSelector;
+        }
+
+        @Inject
+        public synchronized void setReportExporter(ReportExporter reportExporter)
+        {
+            this.reportExporter = reportExporter;
         }
 
         @Inject
@@ -319,4 +589,86 @@ public class ReplicatedStoreModule
             this.timeSupplier = timeSupplier;
         }
     }
+
+    @ThreadSafe
+    private static class HttpReplicationTransportProvider
+            implements Provider<ReplicationTransport>
+    {
+        private final String name;
+        private final Key<? extends AsyncHttpClient> httpClientKey;
+        private final Key<StoreConfig> storeConfigKey;
+
+        @GuardedBy("this")
+        private Injector injector;
+
+        private HttpReplicationTransportProvider(String name, Key<? extends AsyncHttpClient> httpClientKey, Key<StoreConfig> storeConfigKey)
+        {
+            this.name = name;
+            this.httpClientKey = httpClientKey;
+            this.storeConfigKey = storeConfigKey;
+        }
+
+        @Override
+        public synchronized ReplicationTransport get()
+        {
+            ReportCollectionFactory reportCollectionFactory = injector.getInstance(ReportCollectionFactory.class);
+            String objectName = new ObjectNameBuilder(HttpServiceBalancerStats.class.getPackage().getName())
+                    .withProperty("serviceType", "replicator-" + name)
+                    .build();
+            HttpServiceBalancerStats httpServiceBalancerStats = reportCollectionFactory.createReportCollection(HttpServiceBalancerStats.class, objectName);
+
+            return new HttpReplicationTransport(injector.getInstance(httpClientKey), httpServiceBalancerStats, injector.getInstance(storeConfigKey));
+        }
+
+        @Inject
+        public synchronized void setInjector(Injector injector)
+        {
+            this.injector = injector;
+        }
+    }
+
+    @ThreadSafe
+    private static class PartitionerProvider
+            implements Provider<Partitioner>
+    {
+        private final Key<StoreConfig> storeConfigKey;
+
+        @GuardedBy("this")
+        private Injector injector;
+
+        @GuardedBy("this")
+        private NodeInfo nodeInfo;
+
+        @GuardedBy("this")
+        private ServiceSelector serviceSelector;
+
+        private PartitionerProvider(Key<StoreConfig> storeConfigKey)
+        {
+            this.storeConfigKey = storeConfigKey;
+        }
+
+        @Override
+        public synchronized Partitioner get()
+        {
+            return new Partitioner(nodeInfo, serviceSelector, injector.getInstance(storeConfigKey));
+        }
+
+        @Inject
+        public synchronized void setInjector(Injector injector)
+        {
+            this.injector = injector;
+        }
+
+        @Inject
+        public synchronized void setNodeInfo(NodeInfo nodeInfo)
+        {
+            this.nodeInfo = nodeInfo;
+        }
+
+        @Inject
+        public synchronized void setServiceSelector(ServiceSelector serviceSelector)
+        {
+            this.serviceSelector = serviceSelector;
+        }
+    }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import org.iq80.snappy.SnappyInputStream;
+import org.iq80.snappy.SnappyOutputStream;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content codings for replication bodies.
+ * <p>
+ * Push requests are encoded with {@code Content-Encoding}, and the receiver lists the
+ * codings it accepts in the {@code Accept-Encoding} header of its acknowledgement, so
+ * a sender only compresses once it knows the peer can decode. Pull responses use the
+ * {@link #ACCEPT_ENCODING_HEADER} and {@link #ENCODING_HEADER} pair instead of the
+ * standard headers, which the HTTP client and server may act on by themselves.
+ */
+public enum ReplicationCodec
+{
+    IDENTITY("identity")
+    {
+        @Override
+        public OutputStream compress(OutputStream out)
+        {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in)
+        {
+            return in;
+        }
+    },
+    GZIP("gzip")
+    {
+        @Override
+        public OutputStream compress(OutputStream out)
+                throws IOException
+        {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in)
+                throws IOException
+        {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+    },
+    SNAPPY("x-snappy")
+    {
+        @Override
+        public OutputStream compress(OutputStream out)
+                throws IOException
+        {
+            return new SnappyOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in)
+                throws IOException
+        {
+            return new SnappyInputStream(in);
+        }
+    };
+
+    public static final String ACCEPT_ENCODING_HEADER = "X-Proofpoint-Replication-Accept-Encoding";
+    public static final String ENCODING_HEADER = "X-Proofpoint-Replication-Encoding";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final Splitter ENCODING_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    /**
+     * Codings this node can decode, in order of preference.
+     */
+    public static final List<ReplicationCodec> SUPPORTED = ImmutableList.of(SNAPPY, GZIP);
+
+    /**
+     * Value of an {@code Accept-Encoding} header listing the supported codings.
+     */
+    public static final String ACCEPT_ENCODING = Joiner.on(", ").join(ImmutableList.of(SNAPPY.getEncoding(), GZIP.getEncoding()));
+
+    private final String encoding;
+
+    ReplicationCodec(String encoding)
+    {
+        this.encoding = encoding;
+    }
+
+    public String getEncoding()
+    {
+        return encoding;
+    }
+
+    /**
+     * Wraps a stream so that what is written to it is encoded. Closing the returned
+     * stream finishes the encoding and closes the underlying stream.
+     */
+    public abstract OutputStream compress(OutputStream out)
+            throws IOException;
+
+    public abstract InputStream decompress(InputStream in)
+            throws IOException;
+
+    /**
+     * Returns the codec for a content coding, treating a missing coding as identity.
+     *
+     * @return null if the coding is not supported
+     */
+    @Nullable
+    public static ReplicationCodec fromEncoding(@Nullable String encoding)
+    {
+        if (encoding == null) {
+            return IDENTITY;
+        }
+        String normalized = encoding.trim().toLowerCase(Locale.ENGLISH);
+        for (ReplicationCodec codec : values()) {
+            if (codec.encoding.equals(normalized)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the coding to use with a peer: the preferred one if the peer accepts it,
+     * otherwise the first supported coding the peer accepts, otherwise identity.
+     * Quality values are not interpreted.
+     */
+    public static ReplicationCodec negotiate(@Nullable String acceptEncoding, ReplicationCodec preferred)
+    {
+        if (acceptEncoding == null || preferred == IDENTITY) {
+            return IDENTITY;
+        }
+
+        List<ReplicationCodec> accepted = parse(acceptEncoding);
+        if (accepted.contains(preferred)) {
+            return preferred;
+        }
+        for (ReplicationCodec codec : SUPPORTED) {
+            if (accepted.contains(codec)) {
+                return codec;
+            }
+        }
+        return IDENTITY;
+    }
+
+    private static List<ReplicationCodec> parse(String acceptEncoding)
+    {
+        ImmutableList.Builder<ReplicationCodec> codecs = ImmutableList.builder();
+        for (String token : ENCODING_SPLITTER.split(acceptEncoding)) {
+            int parameters = token.indexOf(';');
+            ReplicationCodec codec = fromEncoding(parameters < 0 ? token : token.substring(0, parameters));
+            if (codec != null) {
+                codecs.add(codec);
+            }
+        }
+        return codecs.build();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.proofpoint.discovery.InitializationTracker;
+import com.proofpoint.discovery.store.ReplicationTransport.Acknowledgement;
+import com.proofpoint.discovery.store.ReplicationTransport.PullResult;
+import com.proofpoint.units.Duration;
+import org.joda.time.DateTime;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Receiving side of replication: applies pushed batches and serves pulls for the
+ * stores of this node, independent of the transport they arrived through.
+ */
+public class ReplicationEndpoint
+{
+    private final Map<String, LocalStore> localStores;
+    private final Map<String, RemoteStore> remoteStores;
+    private final Map<String, Duration> tombstoneMaxAges;
+    private final Map<String, ReplicationWatermarks> watermarks;
+    private final Map<String, TouchStats> touchStats;
+    private final Supplier<DateTime> timeSupplier;
+    private final InitializationTracker initializationTracker;
+
+    @Inject
+    public ReplicationEndpoint(Map<String, LocalStore> localStores,
+            Map<String, RemoteStore> remoteStores,
+            Map<String, StoreConfig> configs,
+            Map<String, ReplicationWatermarks> watermarks,
+            Map<String, TouchStats> touchStats,
+            Supplier<DateTime> timeSupplier,
+            InitializationTracker initializationTracker)
+    {
+        checkNotNull(timeSupplier, "timeSupplier is null");
+        checkNotNull(initializationTracker, "initializationTracker is null");
+
+        this.localStores = ImmutableMap.copyOf(localStores);
+        this.remoteStores = ImmutableMap.copyOf(remoteStores);
+        this.watermarks = ImmutableMap.copyOf(watermarks);
+        this.touchStats = ImmutableMap.copyOf(touchStats);
+        this.timeSupplier = timeSupplier;
+        this.initializationTracker = initializationTracker;
+        this.tombstoneMaxAges = ImmutableMap.copyOf(Maps.transformValues(configs, new Function<StoreConfig, Duration>()
+        {
+            @Override
+            public Duration apply(StoreConfig config)
+            {
+                return config.getTombstoneMaxAge();
+            }
+        }));
+    }
+
+    /**
+     * Applies a pushed batch to the local store, forwarding it if this node relays or
+     * gossips the store. A {@link Touch} is applied to the value the store holds; if the
+     * store holds a different value or none, its key is reported in the acknowledgement
+     * so the sender sends the entry again in full.
+     *
+     * @param hopsRemaining hops left for a gossiped batch, or null for a push
+     * @param senderSite site of the sender, when replication is locality aware
+     * @return null if there is no such store
+     */
+    @Nullable
+    public Acknowledgement receive(String storeName, List<Entry> entries, @Nullable Integer hopsRemaining, @Nullable String senderSite)
+    {
+        LocalStore store = localStores.get(storeName);
+        Duration tombstoneMaxAge = tombstoneMaxAges.get(storeName);
+        if (store == null || tombstoneMaxAge == null) {
+            return null;
+        }
+
+        GossipRemoteStore gossip = null;
+        if (hopsRemaining != null && remoteStores.get(storeName) instanceof GossipRemoteStore) {
+            gossip = (GossipRemoteStore) remoteStores.get(storeName);
+        }
+
+        TouchStats stats = touchStats.get(storeName);
+        ImmutableList.Builder<Entry> applied = ImmutableList.builder();
+        ImmutableList.Builder<byte[]> missedTouches = ImmutableList.builder();
+        long appliedTimestamp = 0;
+        for (Entry entry : entries) {
+            boolean touch = entry instanceof Touch;
+            if (touch) {
+                Entry existing = store.get(entry.getKey());
+                Entry touched = (existing == null) ? null : ((Touch) entry).applyTo(existing);
+                if (touched == null) {
+                    if (stats != null) {
+                        stats.getMissedTouches().update(1);
+                    }
+                    missedTouches.add(entry.getKey());
+                    continue;
+                }
+                if (stats != null) {
+                    stats.getAppliedTouches().update(1);
+                }
+                entry = touched;
+            }
+            if (isExpired(tombstoneMaxAge, entry)) {
+                continue;
+            }
+            if (gossip != null) {
+                gossip.receive(entry, hopsRemaining);
+            }
+            else {
+                store.put(entry);
+                // relayed as a touch too, as the next site got the value the same way we did
+                applied.add(touch ? new Touch(entry) : entry);
+            }
+            appliedTimestamp = Math.max(appliedTimestamp, entry.getTimestamp());
+        }
+
+        if (senderSite != null && remoteStores.get(storeName) instanceof HttpRemoteStore) {
+            ((HttpRemoteStore) remoteStores.get(storeName)).relay(applied.build(), senderSite);
+        }
+
+        // lets the sender notice when this store has been restarted
+        ReplicationWatermarks storeWatermarks = watermarks.get(storeName);
+        return new Acknowledgement(storeWatermarks == null ? null : storeWatermarks.getEpoch(), appliedTimestamp, missedTouches.build());
+    }
+
+    /**
+     * Returns the entries of the local store for a pull. A puller presenting the
+     * watermark of a previous pull from this store instance is only sent the entries
+     * changed since, or that it is already current if nothing changed. Changes of any
+     * origin count, so entries that reached this node from a third node are served to
+     * a puller they never reached.
+     *
+     * @return null if there is no such store
+     */
+    @Nullable
+    public PullResult serve(String storeName, @Nullable ReplicationWatermarks.Watermark watermark)
+    {
+        LocalStore store = localStores.get(storeName);
+        if (store == null) {
+            return null;
+        }
+
+        // a store restored from a snapshot is not caught up until its first pass over the peers
+        boolean initialized = !initializationTracker.isPending() && !initializationTracker.isStale();
+
+        ReplicationWatermarks storeWatermarks = watermarks.get(storeName);
+        if (storeWatermarks == null) {
+            return PullResult.entries(store.getAll(), null, initialized);
+        }
+
+        // read before the entries, so the entries include every change up to this version
+        long version = store.getVersion();
+        ReplicationWatermarks.Watermark current = new ReplicationWatermarks.Watermark(storeWatermarks.getEpoch(), version);
+        if (watermark == null || !watermark.getEpoch().equals(storeWatermarks.getEpoch()) || watermark.getVersion() > version) {
+            return PullResult.entries(store.getAll(), current, initialized);
+        }
+        if (watermark.getVersion() == version) {
+            return PullResult.notModified();
+        }
+        return PullResult.entries(store.getChangedSince(watermark.getVersion()), current, initialized);
+    }
+
+    /**
+     * Returns the entries of the local store for the keys that have one, including
+     * tombstones and expired entries.
+     *
+     * @return null if there is no such store
+     */
+    @Nullable
+    public List<Entry> lookup(String storeName, List<byte[]> keys)
+    {
+        LocalStore store = localStores.get(storeName);
+        if (store == null) {
+            return null;
+        }
+
+        ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+        for (byte[] key : keys) {
+            Entry entry = store.get(key);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries.build();
+    }
+
+    private boolean isExpired(Duration tombstoneMaxAge, Entry entry)
+    {
+        long ageInMs = timeSupplier.get().getMillis() - entry.getTimestamp();
+
+        return entry.getValue() == null && ageInMs > tombstoneMaxAge.toMillis() ||
+                entry.getMaxAgeInMs() != null && ageInMs > entry.getMaxAgeInMs();
+    }
+}
@@ -0,0 +1,756 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.proofpoint.reporting.Gauge;
+import com.proofpoint.stats.CounterStat;
+import com.proofpoint.stats.TimeStat;
+import org.weakref.jmx.Nested;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only, bounded, in-memory log of the entries written to a store.
+ * <p>
+ * Every peer reads the log through its own {@link Cursor}, so a write costs a
+ * single append regardless of the number of peers. Only the most recent
+ * entries are retained; a cursor that falls behind the retained window
+ * catches up by reading a snapshot of the local store and then resumes
+ * reading the log.
+ * <p>
+ * When prioritization is enabled, every entry is classified as it is appended and
+ * each cursor buffers what it reads in one lane per {@link Priority}. Lanes are
+ * drained by weight, so a tombstone or a node's first announcement is not stuck
+ * behind thousands of routine refreshes, while refreshes still get a share of
+ * every batch.
+ */
+@ThreadSafe
+public class ReplicationLog
+{
+    /**
+     * Where an entry in the log came from.
+     */
+    public enum Source
+    {
+        /**
+         * Written on this node.
+         */
+        LOCAL,
+        /**
+         * Received from another node in this node's site, to be relayed to other sites.
+         */
+        SITE,
+        /**
+         * Received from the relay of another site, to be relayed within this node's site.
+         */
+        REMOTE_SITE
+    }
+
+    /**
+     * Replication priority of an entry, from highest to lowest.
+     */
+    public enum Priority
+    {
+        /**
+         * A deleted key.
+         */
+        TOMBSTONE(8),
+        /**
+         * A key the log has not seen before, such as a node's first announcement.
+         */
+        NEW_KEY(4),
+        /**
+         * A key whose value changed.
+         */
+        CHANGE(2),
+        /**
+         * A key written again with the same value, which only extends its lifetime.
+         */
+        REFRESH(1);
+
+        private final int weight;
+
+        Priority(int weight)
+        {
+            this.weight = weight;
+        }
+
+        /**
+         * Returns how many entries of this priority are sent for each round of the lanes.
+         */
+        public int getWeight()
+        {
+            return weight;
+        }
+    }
+
+    private static final int MAX_CLASSIFIED_KEYS = 100_000;
+
+    private final int capacity;
+    private final LocalStore localStore;
+    private final ConflictResolver resolver;
+    private final boolean prioritize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    @GuardedBy("lock")
+    private final Entry[] entries;
+
+    @GuardedBy("lock")
+    private final Source[] sources;
+
+    @GuardedBy("lock")
+    private final Priority[] priorities;
+
+    @GuardedBy("lock")
+    private final long[] appendTimes;
+
+    // hash of the last value appended for each live key, used to classify entries
+    @GuardedBy("lock")
+    private final Map<StoreKey, Integer> valueHashes;
+
+    // sequence of the latest retained entry for each key, used to skip superseded entries
+    @GuardedBy("lock")
+    private final Map<StoreKey, Long> latestSequences;
+
+    @GuardedBy("lock")
+    private long nextSequence;
+
+    @GuardedBy("lock")
+    private int waiters;
+
+    /**
+     * @param resolver if not null, cursors skip entries that are superseded by a
+     * newer entry for the same key that is still ahead of them in the log
+     */
+    public ReplicationLog(int capacity, LocalStore localStore, @Nullable ConflictResolver resolver)
+    {
+        this(capacity, localStore, resolver, false);
+    }
+
+    /**
+     * @param resolver if not null, cursors skip entries that are superseded by a
+     * newer entry for the same key that is still ahead of them in the log
+     * @param prioritize if true, cursors return entries by {@link Priority} rather than in log order
+     */
+    public ReplicationLog(int capacity, LocalStore localStore, @Nullable ConflictResolver resolver, boolean prioritize)
+    {
+        Preconditions.checkArgument(capacity > 0, "capacity needs to be a positive integer");
+        Preconditions.checkNotNull(localStore, "localStore is null");
+
+        this.capacity = capacity;
+        this.localStore = localStore;
+        this.resolver = resolver;
+        this.entries = new Entry[capacity];
+        this.sources = new Source[capacity];
+        this.prioritize = prioritize;
+        this.priorities = new Priority[capacity];
+        this.appendTimes = new long[capacity];
+        // keys that expire without a tombstone are forgotten eventually; if they come back they count as new
+        this.valueHashes = prioritize ? new LinkedHashMap<StoreKey, Integer>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StoreKey, Integer> eldest)
+            {
+                return size() > MAX_CLASSIFIED_KEYS;
+            }
+        } : null;
+        this.latestSequences = (resolver == null) ? null : new HashMap<StoreKey, Long>();
+    }
+
+    public void append(Entry entry)
+    {
+        append(entry, Source.LOCAL);
+    }
+
+    public void append(Entry entry, Source source)
+    {
+        Preconditions.checkNotNull(entry, "entry is null");
+        Preconditions.checkNotNull(source, "source is null");
+
+        lock.lock();
+        try {
+            appendLocked(entry, source);
+
+            // cursors that are busy sending don't wait, so under load this is usually skipped
+            if (waiters > 0) {
+                notEmpty.signalAll();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends written entries together, so cursors wake up once and read them in as few batches as possible.
+     */
+    public void appendAll(Collection<Entry> entries, Source source)
+    {
+        Preconditions.checkNotNull(entries, "entries is null");
+        Preconditions.checkNotNull(source, "source is null");
+
+        lock.lock();
+        try {
+            for (Entry entry : entries) {
+                Preconditions.checkNotNull(entry, "entry is null");
+                appendLocked(entry, source);
+            }
+
+            if (waiters > 0 && !entries.isEmpty()) {
+                notEmpty.signalAll();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void appendLocked(Entry entry, Source source)
+    {
+        int index = indexOf(nextSequence);
+        Entry evicted = entries[index];
+        if (evicted != null && latestSequences != null) {
+            StoreKey evictedKey = evicted.getStoreKey();
+            Long latest = latestSequences.get(evictedKey);
+            if (latest != null && latest == nextSequence - capacity) {
+                latestSequences.remove(evictedKey);
+            }
+        }
+
+        entries[index] = entry;
+        sources[index] = source;
+        appendTimes[index] = System.nanoTime();
+        if (prioritize) {
+            priorities[index] = classify(entry);
+        }
+        if (latestSequences != null) {
+            latestSequences.put(entry.getStoreKey(), nextSequence);
+        }
+        ++nextSequence;
+    }
+
+    public long getNextSequence()
+    {
+        lock.lock();
+        try {
+            return nextSequence;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Creates a cursor positioned at the end of the log. It will see entries appended from now on.
+     */
+    public Cursor newCursor()
+    {
+        return newCursor(EnumSet.allOf(Source.class));
+    }
+
+    /**
+     * Creates a cursor positioned at the end of the log that only sees entries from the specified sources.
+     */
+    public Cursor newCursor(Set<Source> sources)
+    {
+        Preconditions.checkNotNull(sources, "sources is null");
+
+        lock.lock();
+        try {
+            return new Cursor(nextSequence, EnumSet.copyOf(sources));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private Priority classify(Entry entry)
+    {
+        StoreKey key = entry.getStoreKey();
+        if (entry.getValue() == null) {
+            valueHashes.remove(key);
+            return Priority.TOMBSTONE;
+        }
+
+        int hash = Arrays.hashCode(entry.getValue());
+        Integer previous = valueHashes.put(key, hash);
+        if (previous == null) {
+            return Priority.NEW_KEY;
+        }
+        if (previous != hash) {
+            return Priority.CHANGE;
+        }
+        return Priority.REFRESH;
+    }
+
+    private int indexOf(long sequence)
+    {
+        return (int) (sequence % capacity);
+    }
+
+    /**
+     * A read-only queue view of the log for a single consumer thread.
+     */
+    public class Cursor
+            extends AbstractQueue<Entry>
+            implements BlockingQueue<Entry>
+    {
+        private final CounterStat snapshotCatchUps = new CounterStat();
+        private final CounterStat coalescedEntries = new CounterStat();
+        private final Set<Source> acceptedSources;
+        private final Map<Priority, TimeStat> latencies = new EnumMap<>(Priority.class);
+
+        @GuardedBy("lock")
+        private long position;
+
+        private volatile boolean snapshotRequested;
+        private volatile boolean readingSnapshot;
+
+        // only accessed by the consumer thread
+        private Iterator<Entry> snapshot;
+        private Entry peeked;
+
+        // entries read from the log but not yet returned, by priority; only accessed by the consumer thread
+        private final Map<Priority, Queue<QueuedEntry>> lanes = new EnumMap<>(Priority.class);
+        private final Map<Priority, Integer> credits = new EnumMap<>(Priority.class);
+
+        // written only by the consumer thread
+        private volatile int buffered;
+
+        private Cursor(long position, Set<Source> acceptedSources)
+        {
+            this.position = position;
+            this.acceptedSources = acceptedSources;
+            for (Priority priority : Priority.values()) {
+                latencies.put(priority, new TimeStat());
+                lanes.put(priority, new ArrayDeque<QueuedEntry>());
+                credits.put(priority, priority.getWeight());
+            }
+        }
+
+        /**
+         * Makes the consumer discard its current position and catch up from a snapshot of the
+         * local store. May be called from any thread.
+         */
+        public void resetToSnapshot()
+        {
+            lock.lock();
+            try {
+                snapshotRequested = true;
+                notEmpty.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Entry poll()
+        {
+            if (snapshotRequested) {
+                snapshotRequested = false;
+                lock.lock();
+                try {
+                    startSnapshot();
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+
+            if (peeked != null) {
+                Entry entry = peeked;
+                peeked = null;
+                return entry;
+            }
+
+            Entry entry = nextFromSnapshot();
+            if (entry != null) {
+                return entry;
+            }
+
+            lock.lock();
+            try {
+                if (prioritize) {
+                    fillLanes();
+                }
+                else {
+                    entry = nextFromLog();
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+
+            if (prioritize) {
+                entry = nextFromLanes();
+            }
+            if (entry == null) {
+                // we may have fallen behind and switched to a snapshot
+                entry = nextFromSnapshot();
+            }
+            return entry;
+        }
+
+        @Override
+        public Entry poll(long timeout, TimeUnit unit)
+                throws InterruptedException
+        {
+            long nanos = unit.toNanos(timeout);
+            while (true) {
+                Entry entry = poll();
+                if (entry != null) {
+                    return entry;
+                }
+
+                lock.lockInterruptibly();
+                try {
+                    if (position != nextSequence || snapshotRequested) {
+                        continue;
+                    }
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    ++waiters;
+                    try {
+                        nanos = notEmpty.awaitNanos(nanos);
+                    }
+                    finally {
+                        --waiters;
+                    }
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public Entry take()
+                throws InterruptedException
+        {
+            return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public Entry peek()
+        {
+            if (peeked == null) {
+                peeked = poll();
+            }
+            return peeked;
+        }
+
+        /**
+         * Returns the number of retained log entries that have not been returned yet.
+         */
+        @Override
+        public int size()
+        {
+            lock.lock();
+            try {
+                return (int) Math.min(nextSequence - position, capacity) + buffered;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Returns true if the consumer has read everything in the log and is not catching up from a snapshot.
+         */
+        public boolean isCaughtUp()
+        {
+            return !snapshotRequested && !readingSnapshot && size() == 0;
+        }
+
+        @Gauge
+        public long getLag()
+        {
+            return size();
+        }
+
+        @Nested
+        public CounterStat getSnapshotCatchUps()
+        {
+            return snapshotCatchUps;
+        }
+
+        @Nested
+        public CounterStat getCoalescedEntries()
+        {
+            return coalescedEntries;
+        }
+
+        /**
+         * Time tombstones spent in the log before being read, when prioritization is enabled.
+         */
+        @Nested
+        public TimeStat getTombstoneLatency()
+        {
+            return latencies.get(Priority.TOMBSTONE);
+        }
+
+        @Nested
+        public TimeStat getNewKeyLatency()
+        {
+            return latencies.get(Priority.NEW_KEY);
+        }
+
+        @Nested
+        public TimeStat getChangeLatency()
+        {
+            return latencies.get(Priority.CHANGE);
+        }
+
+        @Nested
+        public TimeStat getRefreshLatency()
+        {
+            return latencies.get(Priority.REFRESH);
+        }
+
+        @Override
+        public int remainingCapacity()
+        {
+            return 0;
+        }
+
+        @Override
+        public boolean offer(Entry entry)
+        {
+            throw new UnsupportedOperationException("entries must be appended to the log");
+        }
+
+        @Override
+        public boolean offer(Entry entry, long timeout, TimeUnit unit)
+        {
+            throw new UnsupportedOperationException("entries must be appended to the log");
+        }
+
+        @Override
+        public void put(Entry entry)
+        {
+            throw new UnsupportedOperationException("entries must be appended to the log");
+        }
+
+        @Override
+        public int drainTo(Collection<? super Entry> collection)
+        {
+            return drainTo(collection, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(Collection<? super Entry> collection, int maxElements)
+        {
+            int count = 0;
+            while (count < maxElements) {
+                Entry entry = poll();
+                if (entry == null) {
+                    break;
+                }
+                collection.add(entry);
+                ++count;
+            }
+            return count;
+        }
+
+        @Override
+        public Iterator<Entry> iterator()
+        {
+            throw new UnsupportedOperationException("cursors can only be consumed");
+        }
+
+        private Entry nextFromSnapshot()
+        {
+            if (snapshot == null) {
+                return null;
+            }
+            if (snapshot.hasNext()) {
+                return snapshot.next();
+            }
+            snapshot = null;
+            readingSnapshot = false;
+            return null;
+        }
+
+        @GuardedBy("lock")
+        private Entry nextFromLog()
+        {
+            if (nextSequence - position > capacity) {
+                startSnapshot();
+                return null;
+            }
+
+            while (position < nextSequence) {
+                long sequence = position++;
+                int index = indexOf(sequence);
+                if (!acceptedSources.contains(sources[index])) {
+                    continue;
+                }
+                Entry entry = entries[index];
+                if (!isSuperseded(entry, sequence)) {
+                    return entry;
+                }
+                coalescedEntries.update(1);
+            }
+            return null;
+        }
+
+        /**
+         * Moves the entries available in the log into the lanes, holding at most a log's worth.
+         */
+        @GuardedBy("lock")
+        private void fillLanes()
+        {
+            if (nextSequence - position > capacity) {
+                startSnapshot();
+                return;
+            }
+
+            int count = buffered;
+            while (position < nextSequence && count < capacity) {
+                long sequence = position++;
+                int index = indexOf(sequence);
+                if (!acceptedSources.contains(sources[index])) {
+                    continue;
+                }
+                Entry entry = entries[index];
+                if (isSuperseded(entry, sequence)) {
+                    coalescedEntries.update(1);
+                    continue;
+                }
+                lanes.get(priorities[index]).add(new QueuedEntry(entry, priorities[index], appendTimes[index]));
+                ++count;
+            }
+            buffered = count;
+        }
+
+        /**
+         * Returns the next entry from the lanes, by weighted round robin: each round, every
+         * priority may return up to its weight in entries, higher priorities first.
+         */
+        private Entry nextFromLanes()
+        {
+            if (buffered == 0) {
+                return null;
+            }
+
+            while (true) {
+                for (Priority priority : Priority.values()) {
+                    Queue<QueuedEntry> lane = lanes.get(priority);
+                    int credit = credits.get(priority);
+                    if (credit > 0 && !lane.isEmpty()) {
+                        credits.put(priority, credit - 1);
+                        QueuedEntry queued = lane.remove();
+                        --buffered;
+                        latencies.get(queued.getPriority()).add(System.nanoTime() - queued.getAppendTime(), TimeUnit.NANOSECONDS);
+                        return queued.getEntry();
+                    }
+                }
+
+                // every non-empty lane has used its share of this round
+                for (Priority priority : Priority.values()) {
+                    credits.put(priority, priority.getWeight());
+                }
+            }
+        }
+
+        @GuardedBy("lock")
+        private boolean isSuperseded(Entry entry, long sequence)
+        {
+            if (latestSequences == null) {
+                return false;
+            }
+            Long latest = latestSequences.get(entry.getStoreKey());
+            if (latest == null || latest <= sequence || !acceptedSources.contains(sources[indexOf(latest)])) {
+                return false;
+            }
+            Entry newer = entries[indexOf(latest)];
+            if (newer instanceof Touch && !(entry instanceof Touch)) {
+                // the peer may only have the value from this entry; the touch doesn't carry it
+                return false;
+            }
+            return resolver.resolve(entry, newer) == newer;
+        }
+
+        @GuardedBy("lock")
+        private void startSnapshot()
+        {
+            // everything appended from here on is read from the log after the snapshot
+            position = nextSequence;
+            snapshot = localStore.getAll().iterator();
+            readingSnapshot = true;
+            peeked = null;
+            for (Queue<QueuedEntry> lane : lanes.values()) {
+                lane.clear();
+            }
+            buffered = 0;
+            snapshotCatchUps.update(1);
+        }
+    }
+
+    private static class QueuedEntry
+    {
+        private final Entry entry;
+        private final Priority priority;
+        private final long appendTime;
+
+        private QueuedEntry(Entry entry, Priority priority, long appendTime)
+        {
+            this.entry = entry;
+            this.priority = priority;
+            this.appendTime = appendTime;
+        }
+
+        public Entry getEntry()
+        {
+            return entry;
+        }
+
+        public Priority getPriority()
+        {
+            return priority;
+        }
+
+        public long getAppendTime()
+        {
+            return appendTime;
+        }
+    }
+}
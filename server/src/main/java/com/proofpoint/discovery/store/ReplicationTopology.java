@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.node.NodeInfo;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Groups the discovery nodes into sites and elects one relay per site.
+ * <p>
+ * A node's site is the first segment of its location (for example {@code us-east}
+ * for {@code /us-east/rack-12/host-3}), or its pool if it has no location. Nodes
+ * replicate directly to the other nodes in their site; only the relay of each site,
+ * the node with the lowest node id, exchanges entries with the relays of other sites.
+ * Every node computes the same relays from the same view of the discovery nodes.
+ */
+@Immutable
+public class ReplicationTopology
+{
+    private static final Splitter LOCATION_SPLITTER = Splitter.on('/').omitEmptyStrings().trimResults();
+
+    private final String site;
+    private final boolean relay;
+    private final List<ServiceDescriptor> sitePeers;
+    private final List<ServiceDescriptor> remoteRelays;
+
+    public ReplicationTopology(NodeInfo node, Iterable<ServiceDescriptor> descriptors)
+    {
+        Preconditions.checkNotNull(node, "node is null");
+        Preconditions.checkNotNull(descriptors, "descriptors is null");
+
+        site = siteOf(node.getLocation(), node.getPool());
+
+        ImmutableList.Builder<ServiceDescriptor> sitePeers = ImmutableList.builder();
+        Map<String, ServiceDescriptor> relays = new TreeMap<>();
+        for (ServiceDescriptor descriptor : descriptors) {
+            String descriptorSite = siteOf(descriptor);
+            ServiceDescriptor currentRelay = relays.get(descriptorSite);
+            if (currentRelay == null || descriptor.getNodeId().compareTo(currentRelay.getNodeId()) < 0) {
+                relays.put(descriptorSite, descriptor);
+            }
+
+            if (descriptorSite.equals(site) && !descriptor.getNodeId().equals(node.getNodeId())) {
+                sitePeers.add(descriptor);
+            }
+        }
+
+        // we may not have seen our own announcement yet
+        ServiceDescriptor siteRelay = relays.remove(site);
+        this.relay = siteRelay == null || node.getNodeId().compareTo(siteRelay.getNodeId()) <= 0;
+        this.sitePeers = sitePeers.build();
+        this.remoteRelays = ImmutableList.copyOf(relays.values());
+    }
+
+    public String getSite()
+    {
+        return site;
+    }
+
+    /**
+     * Returns true if this node relays entries between its site and the other sites.
+     */
+    public boolean isRelay()
+    {
+        return relay;
+    }
+
+    /**
+     * Returns the other discovery nodes in this node's site.
+     */
+    public List<ServiceDescriptor> getSitePeers()
+    {
+        return sitePeers;
+    }
+
+    /**
+     * Returns the relay of every other site.
+     */
+    public List<ServiceDescriptor> getRemoteRelays()
+    {
+        return remoteRelays;
+    }
+
+    /**
+     * Returns the nodes this node exchanges entries with: its site peers and,
+     * if it is the relay of its site, the relays of the other sites.
+     */
+    public List<ServiceDescriptor> getReplicationPeers()
+    {
+        if (!relay) {
+            return sitePeers;
+        }
+        return ImmutableList.<ServiceDescriptor>builder().addAll(sitePeers).addAll(remoteRelays).build();
+    }
+
+    public boolean isLocalSite(ServiceDescriptor descriptor)
+    {
+        return siteOf(descriptor).equals(site);
+    }
+
+    public static String siteOf(ServiceDescriptor descriptor)
+    {
+        return siteOf(descriptor.getLocation(), descriptor.getPool());
+    }
+
+    public static String siteOf(@Nullable String location, String pool)
+    {
+        if (location != null) {
+            Iterator<String> segments = LOCATION_SPLITTER.split(location).iterator();
+            if (segments.hasNext()) {
+                return segments.next();
+            }
+        }
+        return pool;
+    }
+}
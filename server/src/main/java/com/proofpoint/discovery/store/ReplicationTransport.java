@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Carries replication traffic between the stores of discovery nodes.
+ * <p>
+ * The sending side of the pushes ({@link HttpRemoteStore}) and of the pulls
+ * ({@link Replicator}, {@link PartitionedReader}) goes through a transport; the
+ * receiving side is a {@link ReplicationEndpoint}. Implementations decide how peers
+ * are addressed and how entries are encoded, and report failures by failing the
+ * returned futures.
+ */
+public interface ReplicationTransport
+{
+    /**
+     * Returns the name of the peer used to key per-target state and metrics, or null
+     * if the peer can't be reached with this transport.
+     */
+    @Nullable
+    String getTarget(ServiceDescriptor peer);
+
+    /**
+     * Opens a channel for pushing entries of a store to a peer that has a target.
+     *
+     * @param site site of this node, sent along when replication is locality aware
+     * @param preferredCodec codec to compress with, if the transport compresses and the peer supports it
+     */
+    Channel connect(String storeName, ServiceDescriptor peer, @Nullable String site, ReplicationCodec preferredCodec);
+
+    /**
+     * Reads the entries of a store on a peer.
+     *
+     * @param watermark watermark of the previous pull from the peer, if any
+     */
+    ListenableFuture<PullResult> pull(String storeName, ServiceDescriptor peer, @Nullable ReplicationWatermarks.Watermark watermark);
+
+    /**
+     * Reads the entries a peer stores for some keys. Keys the peer holds no entry for
+     * are left out of the result.
+     */
+    ListenableFuture<List<Entry>> lookup(String storeName, ServiceDescriptor peer, List<byte[]> keys);
+
+    interface Channel
+    {
+        /**
+         * Sends a batch of entries. The future fails if the peer did not apply them.
+         */
+        ListenableFuture<Acknowledgement> push(Collection<Entry> entries);
+    }
+
+    /**
+     * What a peer reports after applying a pushed batch.
+     */
+    @Immutable
+    class Acknowledgement
+    {
+        private final String epoch;
+        private final long appliedTimestamp;
+        private final List<byte[]> missedTouches;
+
+        public Acknowledgement(@Nullable String epoch, long appliedTimestamp)
+        {
+            this(epoch, appliedTimestamp, ImmutableList.<byte[]>of());
+        }
+
+        public Acknowledgement(@Nullable String epoch, long appliedTimestamp, List<byte[]> missedTouches)
+        {
+            this.epoch = epoch;
+            this.appliedTimestamp = appliedTimestamp;
+            this.missedTouches = ImmutableList.copyOf(Preconditions.checkNotNull(missedTouches, "missedTouches is null"));
+        }
+
+        /**
+         * Epoch of the peer's store, or null if the peer does not report one.
+         */
+        @Nullable
+        public String getEpoch()
+        {
+            return epoch;
+        }
+
+        /**
+         * Newest timestamp among the entries applied, or 0 if none were.
+         */
+        public long getAppliedTimestamp()
+        {
+            return appliedTimestamp;
+        }
+
+        /**
+         * Keys of the touches the peer could not apply, as it does not hold the touched
+         * value. Their entries need to be sent again in full.
+         */
+        public List<byte[]> getMissedTouches()
+        {
+            return missedTouches;
+        }
+    }
+
+    /**
+     * Entries read from a peer, or the peer's answer that its store has not changed since the previous pull.
+     */
+    @Immutable
+    class PullResult
+    {
+        private static final PullResult NOT_MODIFIED = new PullResult(true, ImmutableList.<Entry>of(), null, false);
+
+        private final boolean notModified;
+        private final List<Entry> entries;
+        private final ReplicationWatermarks.Watermark watermark;
+        private final boolean initialized;
+
+        private PullResult(boolean notModified, List<Entry> entries, @Nullable ReplicationWatermarks.Watermark watermark, boolean initialized)
+        {
+            this.notModified = notModified;
+            this.entries = entries;
+            this.watermark = watermark;
+            this.initialized = initialized;
+        }
+
+        public static PullResult notModified()
+        {
+            return NOT_MODIFIED;
+        }
+
+        /**
+         * @param initialized whether the peer's store had caught up with its own peers
+         */
+        public static PullResult entries(Iterable<Entry> entries, @Nullable ReplicationWatermarks.Watermark watermark, boolean initialized)
+        {
+            Preconditions.checkNotNull(entries, "entries is null");
+            return new PullResult(false, ImmutableList.copyOf(entries), watermark, initialized);
+        }
+
+        public boolean isNotModified()
+        {
+            return notModified;
+        }
+
+        public List<Entry> getEntries()
+        {
+            return entries;
+        }
+
+        /**
+         * Watermark to present on the next pull, or null if the peer does not track them.
+         */
+        @Nullable
+        public ReplicationWatermarks.Watermark getWatermark()
+        {
+            return watermark;
+        }
+
+        /**
+         * Returns true if the peer reported that its store had caught up with its own
+         * peers, so the entries are a complete copy of the store. Peers that don't
+         * report it are taken to be still starting.
+         */
+        public boolean isInitialized()
+        {
+            return initialized;
+        }
+    }
+}
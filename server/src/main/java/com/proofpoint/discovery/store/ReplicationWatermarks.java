@@ -0,0 +1,160 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the version of each peer's store as of the last pull from it.
+ * <p>
+ * Every store instance has a random epoch, so a peer that restarts with an empty
+ * store is never mistaken for the one that came before it. When a peer serves a
+ * pull it reports its epoch and the version its store had reached; every change
+ * to the peer's store before that version is in the response, whether it was written
+ * on the peer or received from another node. The next pull presents that watermark,
+ * and the peer only sends the entries changed since, or answers that there is nothing
+ * new if its store has not changed.
+ */
+@ThreadSafe
+public class ReplicationWatermarks
+{
+    /**
+     * Epoch of the store instance that sent a request or response.
+     */
+    public static final String EPOCH_HEADER = "X-Proofpoint-Replication-Epoch";
+
+    /**
+     * Watermark of the last pull from the peer, as {@code epoch:version}.
+     */
+    public static final String WATERMARK_HEADER = "X-Proofpoint-Replication-Watermark";
+
+    /**
+     * Newest timestamp among the entries applied from a push.
+     */
+    public static final String APPLIED_TIMESTAMP_HEADER = "X-Proofpoint-Replication-Applied-Timestamp";
+
+    /**
+     * Set on a pull response when the store serving it has caught up with its own peers.
+     */
+    public static final String INITIALIZED_HEADER = "X-Proofpoint-Replication-Initialized";
+
+    private final String epoch = UUID.randomUUID().toString();
+    private final ConcurrentMap<String, Watermark> pulled = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the epoch of the local store instance.
+     */
+    public String getEpoch()
+    {
+        return epoch;
+    }
+
+    @Nullable
+    public Watermark getPulled(String nodeId)
+    {
+        return pulled.get(nodeId);
+    }
+
+    public void recordPull(String nodeId, Watermark watermark)
+    {
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+        Preconditions.checkNotNull(watermark, "watermark is null");
+        pulled.put(nodeId, watermark);
+    }
+
+    public void clearPulled(String nodeId)
+    {
+        pulled.remove(nodeId);
+    }
+
+    @Immutable
+    public static class Watermark
+    {
+        private final String epoch;
+        private final long version;
+
+        public Watermark(String epoch, long version)
+        {
+            Preconditions.checkNotNull(epoch, "epoch is null");
+            this.epoch = epoch;
+            this.version = version;
+        }
+
+        /**
+         * Parses a watermark header, returning null if it is missing or malformed.
+         */
+        @Nullable
+        public static Watermark valueOf(@Nullable String value)
+        {
+            if (value == null) {
+                return null;
+            }
+            int separator = value.lastIndexOf(':');
+            if (separator <= 0) {
+                return null;
+            }
+            try {
+                return new Watermark(value.substring(0, separator), Long.parseLong(value.substring(separator + 1)));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        public String getEpoch()
+        {
+            return epoch;
+        }
+
+        public long getVersion()
+        {
+            return version;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Watermark other = (Watermark) obj;
+            return epoch.equals(other.epoch) && version == other.version;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(epoch, version);
+        }
+
+        @Override
+        public String toString()
+        {
+            return epoch + ":" + version;
+        }
+    }
+}
@@ -15,36 +15,35 @@
  */
 package com.proofpoint.discovery.store;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.proofpoint.discovery.InitializationTracker;
 import com.proofpoint.discovery.InitializationTracker.CompletionNotifier;
 import com.proofpoint.discovery.client.ServiceDescriptor;
 import com.proofpoint.discovery.client.ServiceSelector;
-import com.proofpoint.http.client.HttpClient;
-import com.proofpoint.http.client.Request;
-import com.proofpoint.http.client.Response;
-import com.proofpoint.http.client.ResponseHandler;
-import com.proofpoint.http.client.balancing.HttpServiceBalancerStats;
-import com.proofpoint.http.client.balancing.HttpServiceBalancerStats.Status;
+import com.proofpoint.discovery.store.ReplicationTransport.PullResult;
 import com.proofpoint.log.Logger;
 import com.proofpoint.node.NodeInfo;
+import com.proofpoint.stats.CounterStat;
 import com.proofpoint.units.Duration;
 import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
 
+import javax.annotation.Nullable;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import java.io.EOFException;
-import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Replicator
 {
@@ -53,33 +52,43 @@ public class Replicator
     private final String name;
     private final NodeInfo node;
     private final ServiceSelector selector;
-    private final HttpClient httpClient;
-    private final HttpServiceBalancerStats httpServiceBalancerStats;
+    private final ReplicationTransport transport;
     private final LocalStore localStore;
+    private final Partitioner partitioner;
+    private final ReplicationWatermarks watermarks;
+    private final boolean topologyEnabled;
     private final Duration replicationInterval;
     private final CompletionNotifier completionNotifier;
 
     private ScheduledFuture<?> future;
     private ScheduledExecutorService executor;
 
-    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory()).disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
     private final AtomicLong lastReplicationTimestamp = new AtomicLong();
+    private final AtomicReference<Duration> bootstrapTime = new AtomicReference<>();
+    private final CounterStat skippedPulls = new CounterStat();
+    private final CounterStat pulledEntries = new CounterStat();
+
+    // only accessed by the replication thread
+    private boolean bootstrapped;
 
     public Replicator(String name,
             NodeInfo node,
             ServiceSelector selector,
-            HttpClient httpClient,
-            HttpServiceBalancerStats httpServiceBalancerStats,
+            ReplicationTransport transport,
             LocalStore localStore,
             StoreConfig config,
+            Partitioner partitioner,
+            ReplicationWatermarks watermarks,
             InitializationTracker initializationTracker)
     {
         this.name = name;
         this.node = node;
         this.selector = selector;
-        this.httpClient = httpClient;
-        this.httpServiceBalancerStats = httpServiceBalancerStats;
+        this.transport = transport;
         this.localStore = localStore;
+        this.partitioner = partitioner;
+        this.watermarks = watermarks;
+        this.topologyEnabled = config.isTopologyEnabled();
 
         this.replicationInterval = config.getReplicationInterval();
         completionNotifier = initializationTracker.createTask();
@@ -121,82 +130,154 @@ public class Replicator
         }
     }
 
+    /**
+     * Lets queries be answered, marked as possibly stale, before the local store has
+     * caught up with the peers. Used when the local store was restored from a snapshot.
+     */
+    public void allowStaleReads()
+    {
+        completionNotifier.allowStale();
+    }
+
     @Managed
     public long getLastReplicationTimestamp()
     {
         return lastReplicationTimestamp.get();
     }
 
-    private void synchronize()
+    @Managed
+    public Duration getBootstrapTime()
     {
-        for (ServiceDescriptor descriptor : selector.selectAllServices()) {
-            if (descriptor.getNodeId().equals(node.getNodeId())) {
-                // don't write to ourselves
-                continue;
-            }
+        return bootstrapTime.get();
+    }
+
+    /**
+     * Pulls the peer answered without entries because its store had not changed since the previous pull.
+     */
+    @Nested
+    public CounterStat getSkippedPulls()
+    {
+        return skippedPulls;
+    }
 
-            final String uri = descriptor.getProperties().get("http");
-            if (uri == null) {
-                log.error("service descriptor for node %s is missing http uri", descriptor.getNodeId());
+    /**
+     * Entries received from pulls, which after the first pull from a peer are only
+     * those that changed since the previous one.
+     */
+    @Nested
+    public CounterStat getPulledEntries()
+    {
+        return pulledEntries;
+    }
+
+    void synchronize()
+    {
+        List<ServiceDescriptor> descriptors = selector.selectAllServices();
+        if (topologyEnabled) {
+            // only pull across sites between relays
+            descriptors = new ReplicationTopology(node, descriptors).getReplicationPeers();
+        }
+
+        Set<String> pulledNodeIds = ImmutableSet.of();
+        if (!bootstrapped) {
+            pulledNodeIds = bootstrap(descriptors);
+            bootstrapped = true;
+        }
+
+        for (ServiceDescriptor descriptor : descriptors) {
+            if (descriptor.getNodeId().equals(node.getNodeId()) || pulledNodeIds.contains(descriptor.getNodeId())) {
+                // don't write to ourselves, and don't read the peers tried by the bootstrap twice in a row
                 continue;
             }
+            pull(descriptor);
+        }
 
-            // TODO: build URI from resource class
-            Request request = Request.Builder.prepareGet()
-                    .setUri(URI.create(uri + "/v1/store/" + name))
-                    .build();
+        completionNotifier.complete();
+        lastReplicationTimestamp.set(System.currentTimeMillis());
+    }
 
-            try {
-                final long startTime = System.nanoTime();
-                httpClient.execute(request, new ResponseHandler<Void, Exception>()
-                {
-                    @Override
-                    public Void handleException(Request request, Exception exception)
-                            throws Exception
-                    {
-                        URI uri1 = URI.create(uri);
-                        httpServiceBalancerStats.responseTime(uri1, Status.FAILURE).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
-                        httpServiceBalancerStats.failure(uri1, exception.getClass().getSimpleName()).update(1);
-                        throw exception;
-                    }
+    /**
+     * Loads the full state of the first peer that responds and reports that it has
+     * caught up itself, so that the node can start serving without waiting for a pass
+     * over every peer. A peer that is still starting may hold only part of the state:
+     * its entries are kept, but the node stays uninitialized until a peer that has
+     * caught up responds, or until the pass over every peer completes.
+     *
+     * @return the node ids of the peers that were pulled
+     */
+    private Set<String> bootstrap(List<ServiceDescriptor> descriptors)
+    {
+        List<ServiceDescriptor> candidates = new ArrayList<>(descriptors);
+        // spread the load of nodes starting at the same time
+        Collections.shuffle(candidates);
 
-                    @Override
-                    public Void handle(Request request, Response response)
-                            throws Exception
-                    {
-                        // TODO: read server date (to use to calibrate entry dates)
-
-                        URI uri1 = URI.create(uri);
-                        if (response.getStatusCode() == 200) {
-                            httpServiceBalancerStats.responseTime(uri1, Status.SUCCESS).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
-                            try {
-                                List<Entry> entries = mapper.readValue(response.getInputStream(), new TypeReference<List<Entry>>() {});
-                                for (Entry entry : entries) {
-                                    localStore.put(entry);
-                                }
-                            }
-                            catch (EOFException e) {
-                                // ignore
-                            }
-                        }
-                        else {
-                            httpServiceBalancerStats.responseTime(uri1, Status.FAILURE).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
-                            httpServiceBalancerStats.failure(uri1, response.getStatusCode() + " status code").update(1);
-                        }
-
-                        return null;
-                    }
-                });
+        Set<String> pulledNodeIds = new HashSet<>();
+        long start = System.nanoTime();
+        for (ServiceDescriptor descriptor : candidates) {
+            if (descriptor.getNodeId().equals(node.getNodeId())) {
+                continue;
             }
-            catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+            PullResult result = pull(descriptor);
+            if (result == null) {
+                continue;
             }
-            catch (Exception e) {
-                // ignore
+            pulledNodeIds.add(descriptor.getNodeId());
+            if (result.isInitialized()) {
+                bootstrapTime.set(new Duration(System.nanoTime() - start, TimeUnit.NANOSECONDS).convertToMostSuccinctTimeUnit());
+                log.info("Bootstrapped store %s from node %s", name, descriptor.getNodeId());
+                completionNotifier.complete();
+                break;
             }
         }
+        return pulledNodeIds;
+    }
 
-        completionNotifier.complete();
-        lastReplicationTimestamp.set(System.currentTimeMillis());
+    /**
+     * Copies the entries of a peer into the local store.
+     *
+     * @return the result of the pull, or null if the entries could not be read
+     */
+    @Nullable
+    private PullResult pull(ServiceDescriptor descriptor)
+    {
+        String nodeId = descriptor.getNodeId();
+        if (transport.getTarget(descriptor) == null) {
+            log.error("service descriptor for node %s has no address for the replication transport", nodeId);
+            return null;
+        }
+
+        PullResult result;
+        try {
+            result = transport.pull(name, descriptor, watermarks.getPulled(nodeId)).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException | RuntimeException e) {
+            log.debug(e, "Error pulling store %s from node %s", name, nodeId);
+            return null;
+        }
+
+        if (result.isNotModified()) {
+            // the peer's store has not changed since our last pull
+            skippedPulls.update(1);
+            return result;
+        }
+
+        pulledEntries.update(result.getEntries().size());
+        for (Entry entry : result.getEntries()) {
+            if (partitioner.isLocal(entry.getKey())) {
+                localStore.put(entry);
+            }
+        }
+
+        if (result.getWatermark() != null) {
+            watermarks.recordPull(nodeId, result.getWatermark());
+        }
+        else {
+            watermarks.clearPulled(nodeId);
+        }
+        return result;
     }
 }
@@ -47,6 +47,7 @@ import java.lang.reflect.Type;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.ZipException;
 
 // This code is based on JacksonJsonProvider
 @Provider
@@ -76,6 +77,9 @@ public class SmileMapper
 
     public static final Logger log = Logger.get(SmileMapper.class);
 
+    // factories are thread safe, and keep the symbol tables that make parsing cheaper
+    private static final SmileFactory SMILE_FACTORY = new SmileFactory();
+
     private final ObjectMapper objectMapper;
 
     @Inject
@@ -118,7 +122,16 @@ public class SmileMapper
     {
         Object object;
         try {
-            JsonParser jsonParser = new SmileFactory().createParser(inputStream);
+            // replication batches may be compressed
+            ReplicationCodec codec = ReplicationCodec.fromEncoding(httpHeaders.getFirst("Content-Encoding"));
+            if (codec == null) {
+                throw new WebApplicationException(Response.status(Response.Status.UNSUPPORTED_MEDIA_TYPE)
+                        .header("Accept-Encoding", ReplicationCodec.ACCEPT_ENCODING)
+                        .build());
+            }
+            inputStream = codec.decompress(inputStream);
+
+            JsonParser jsonParser = SMILE_FACTORY.createParser(inputStream);
 
             // Important: we are NOT to close the underlying stream after
             // mapping, so we need to instruct parser:
@@ -127,8 +140,12 @@ public class SmileMapper
             object = objectMapper.readValue(jsonParser, objectMapper.getTypeFactory().constructType(genericType));
         }
         catch (Exception e) {
+            if (e instanceof WebApplicationException) {
+                throw (WebApplicationException) e;
+            }
+
             // we want to return a 400 for bad JSON but not for a real IO exception
-            if (e instanceof IOException && !(e instanceof JsonProcessingException) && !(e instanceof EOFException)) {
+            if (e instanceof IOException && !(e instanceof JsonProcessingException) && !(e instanceof EOFException) && !(e instanceof ZipException)) {
                 throw (IOException) e;
             }
 
@@ -172,7 +189,7 @@ public class SmileMapper
             OutputStream outputStream)
             throws IOException
     {
-        JsonGenerator jsonGenerator = new SmileFactory().createGenerator(outputStream);
+        JsonGenerator jsonGenerator = SMILE_FACTORY.createGenerator(outputStream);
 
         // Important: we are NOT to close the underlying stream after
         // mapping, so we need to instruct generator:
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.log.Logger;
+import com.proofpoint.stats.CounterStat;
+import com.proofpoint.stats.TimeStat;
+import com.proofpoint.units.Duration;
+import org.joda.time.DateTime;
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Periodically saves the entries of a local store to a snapshot file and reloads
+ * them at startup, so that a restarted node does not begin empty.
+ * <p>
+ * The file holds a header, the entries in a length-prefixed binary encoding, an
+ * end marker and a CRC32 of everything before it. A new snapshot is written to a
+ * temporary file and renamed over the previous one, so a crash while writing leaves
+ * the previous snapshot intact. A snapshot with a bad checksum is ignored as a whole.
+ */
+public class StoreCheckpointer
+{
+    private static final Logger log = Logger.get(StoreCheckpointer.class);
+
+    private static final int MAGIC = 0x44534e50; // "DSNP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int END_OF_ENTRIES = -1;
+    private static final int NULL_LENGTH = -1;
+
+    private final String name;
+    private final LocalStore localStore;
+    private final Supplier<DateTime> timeSupplier;
+    private final File file;
+    private final File temporaryFile;
+    private final Duration interval;
+
+    private final TimeStat checkpointTime = new TimeStat();
+    private final CounterStat failedCheckpoints = new CounterStat();
+    private final AtomicLong lastCheckpointTimestamp = new AtomicLong();
+    private final AtomicLong restoredEntries = new AtomicLong();
+    private final AtomicLong expiredEntries = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> future;
+
+    public StoreCheckpointer(String name, LocalStore localStore, StoreConfig config, Supplier<DateTime> timeSupplier)
+    {
+        Preconditions.checkNotNull(name, "name is null");
+        Preconditions.checkNotNull(localStore, "localStore is null");
+        Preconditions.checkNotNull(config, "config is null");
+        Preconditions.checkNotNull(timeSupplier, "timeSupplier is null");
+
+        this.name = name;
+        this.localStore = localStore;
+        this.timeSupplier = timeSupplier;
+        this.file = new File(config.getSnapshotDirectory(), name + ".snapshot");
+        this.temporaryFile = new File(config.getSnapshotDirectory(), name + ".snapshot.tmp");
+        this.interval = config.getSnapshotInterval();
+    }
+
+    /**
+     * Loads the snapshot, if there is one, and starts checkpointing.
+     */
+    @PostConstruct
+    public synchronized void start()
+    {
+        if (future != null) {
+            return;
+        }
+
+        restore();
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("checkpoint-" + name + "-%d").setDaemon(true).build());
+        future = executor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                checkpoint();
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public synchronized void shutdown()
+    {
+        if (future != null) {
+            future.cancel(false);
+            executor.shutdown();
+            try {
+                executor.awaitTermination(interval.toMillis(), TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            // save the latest state for the next start
+            checkpoint();
+
+            executor = null;
+            future = null;
+        }
+    }
+
+    /**
+     * Returns true if entries were loaded from a snapshot at startup.
+     */
+    public boolean isRestored()
+    {
+        return restoredEntries.get() > 0;
+    }
+
+    @Managed
+    public long getRestoredEntries()
+    {
+        return restoredEntries.get();
+    }
+
+    @Managed
+    public long getExpiredEntries()
+    {
+        return expiredEntries.get();
+    }
+
+    @Managed
+    public long getLastCheckpointTimestamp()
+    {
+        return lastCheckpointTimestamp.get();
+    }
+
+    @Nested
+    public TimeStat getCheckpointTime()
+    {
+        return checkpointTime;
+    }
+
+    @Nested
+    public CounterStat getFailedCheckpoints()
+    {
+        return failedCheckpoints;
+    }
+
+    void checkpoint()
+    {
+        long start = System.nanoTime();
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            try (FileOutputStream fileOutput = new FileOutputStream(temporaryFile)) {
+                CheckedOutputStream checkedOutput = new CheckedOutputStream(new BufferedOutputStream(fileOutput), new CRC32());
+                DataOutputStream output = new DataOutputStream(checkedOutput);
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                for (Entry entry : localStore.getAll()) {
+                    writeEntry(output, entry);
+                }
+                output.writeInt(END_OF_ENTRIES);
+                output.writeLong(checkedOutput.getChecksum().getValue());
+                output.flush();
+                fileOutput.getFD().sync();
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            lastCheckpointTimestamp.set(System.currentTimeMillis());
+        }
+        catch (IOException | RuntimeException e) {
+            failedCheckpoints.update(1);
+            log.warn(e, "Error saving snapshot of store %s to %s", name, file);
+        }
+        finally {
+            checkpointTime.add(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void restore()
+    {
+        List<Entry> entries;
+        try {
+            entries = read();
+        }
+        catch (FileNotFoundException e) {
+            return;
+        }
+        catch (IOException | RuntimeException e) {
+            log.warn(e, "Ignoring unreadable snapshot of store %s at %s", name, file);
+            return;
+        }
+
+        long now = timeSupplier.get().getMillis();
+        long restored = 0;
+        long expired = 0;
+        for (Entry entry : entries) {
+            if (entry.getMaxAgeInMs() != null && entry.getTimestamp() + entry.getMaxAgeInMs() < now) {
+                ++expired;
+                continue;
+            }
+            localStore.put(entry);
+            ++restored;
+        }
+        restoredEntries.set(restored);
+        expiredEntries.set(expired);
+        log.info("Restored %s entries of store %s from %s, skipped %s expired entries", restored, name, file, expired);
+    }
+
+    private List<Entry> read()
+            throws IOException
+    {
+        try (CheckedInputStream checkedInput = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32())) {
+            DataInputStream input = new DataInputStream(checkedInput);
+            if (input.readInt() != MAGIC) {
+                throw new IOException("not a snapshot file");
+            }
+            int version = input.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("unsupported snapshot version " + version);
+            }
+
+            List<Entry> entries = new ArrayList<>();
+            while (true) {
+                // keys are never null, so a null key is the end marker
+                byte[] key = readBytes(input);
+                if (key == null) {
+                    break;
+                }
+                byte[] value = readBytes(input);
+                long timestamp = input.readLong();
+                long maxAge = input.readLong();
+                entries.add(new Entry(key, value, timestamp, maxAge == NULL_LENGTH ? null : maxAge));
+            }
+
+            long checksum = checkedInput.getChecksum().getValue();
+            if (input.readLong() != checksum) {
+                throw new IOException("snapshot checksum mismatch");
+            }
+            return entries;
+        }
+    }
+
+    private static void writeEntry(DataOutputStream output, Entry entry)
+            throws IOException
+    {
+        writeBytes(output, entry.getKey());
+        writeBytes(output, entry.getValue());
+        output.writeLong(entry.getTimestamp());
+        output.writeLong(entry.getMaxAgeInMs() == null ? NULL_LENGTH : entry.getMaxAgeInMs());
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes)
+            throws IOException
+    {
+        if (bytes == null) {
+            output.writeInt(NULL_LENGTH);
+            return;
+        }
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream input)
+            throws IOException
+    {
+        int length = input.readInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("invalid length " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+}
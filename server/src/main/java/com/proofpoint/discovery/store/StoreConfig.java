@@ -16,11 +16,17 @@
 package com.proofpoint.discovery.store;
 
 import com.proofpoint.configuration.Config;
+import com.proofpoint.configuration.ConfigDescription;
+import com.proofpoint.units.DataSize;
+import com.proofpoint.units.DataSize.Unit;
 import com.proofpoint.units.Duration;
+import com.proofpoint.units.MinDataSize;
 import com.proofpoint.units.MinDuration;
 
+import javax.validation.constraints.AssertTrue;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.io.File;
 import java.util.concurrent.TimeUnit;
 
 public class StoreConfig
@@ -28,9 +34,34 @@ public class StoreConfig
     private Duration tombstoneMaxAge = new Duration(1, TimeUnit.DAYS);
     private Duration garbageCollectionInterval = new Duration(1, TimeUnit.HOURS);
     private int maxBatchSize = 1000;
+    private DataSize maxBatchBytes = new DataSize(1, Unit.MEGABYTE);
+    private Duration maxBatchLinger = new Duration(0, TimeUnit.MILLISECONDS);
     private int queueSize = 1000;
+    private boolean coalesceEntries = false;
+    private boolean prioritizeEntries = true;
+    private ReplicationCodec compressionCodec = ReplicationCodec.SNAPPY;
+    private DataSize compressionThreshold = new DataSize(4, Unit.KILOBYTE);
+    private int maxInFlightBatches = 4;
+    private int maxAttempts = 3;
+    private Duration minBackoff = new Duration(100, TimeUnit.MILLISECONDS);
+    private Duration maxBackoff = new Duration(30, TimeUnit.SECONDS);
+    private int failureThreshold = 5;
+    private int maxUndeliveredKeys = 10_000;
     private Duration remoteUpdateInterval = new Duration(5, TimeUnit.SECONDS);
     private Duration replicationInterval = new Duration(1, TimeUnit.MINUTES);
+    private boolean gossipEnabled = false;
+    private int gossipFanOut = 3;
+    private int gossipTtl = 3;
+    private Duration gossipInterval = new Duration(100, TimeUnit.MILLISECONDS);
+    private boolean partitioningEnabled = false;
+    private int replicationFactor = 2;
+    private Duration partitionedReadCacheTtl = new Duration(1, TimeUnit.SECONDS);
+    private Duration partitionedReadTimeout = new Duration(2, TimeUnit.SECONDS);
+    private boolean topologyEnabled = false;
+    private boolean snapshotEnabled = false;
+    private File snapshotDirectory = new File("var/snapshot");
+    private Duration snapshotInterval = new Duration(30, TimeUnit.SECONDS);
+    private boolean snapshotServeStale = false;
 
     @NotNull
     public Duration getTombstoneMaxAge()
@@ -71,6 +102,35 @@ public class StoreConfig
         return this;
     }
 
+    @MinDataSize("1B")
+    @NotNull
+    public DataSize getMaxBatchBytes()
+    {
+        return maxBatchBytes;
+    }
+
+    @Config("store.remote.max-batch-bytes")
+    @ConfigDescription("Approximate upper bound on the size of the entries in a replication batch")
+    public StoreConfig setMaxBatchBytes(DataSize maxBatchBytes)
+    {
+        this.maxBatchBytes = maxBatchBytes;
+        return this;
+    }
+
+    @NotNull
+    public Duration getMaxBatchLinger()
+    {
+        return maxBatchLinger;
+    }
+
+    @Config("store.remote.max-batch-linger")
+    @ConfigDescription("Maximum time to wait for a replication batch to fill before sending it")
+    public StoreConfig setMaxBatchLinger(Duration maxBatchLinger)
+    {
+        this.maxBatchLinger = maxBatchLinger;
+        return this;
+    }
+
     @Min(1)
     public int getQueueSize()
     {
@@ -78,12 +138,159 @@ public class StoreConfig
     }
 
     @Config("store.remote.queue-size")
+    @ConfigDescription("Number of recent entries retained in the replication log; peers further behind catch up from a snapshot")
     public StoreConfig setQueueSize(int queueSize)
     {
         this.queueSize = queueSize;
         return this;
     }
 
+    public boolean isCoalesceEntries()
+    {
+        return coalesceEntries;
+    }
+
+    @Config("store.remote.coalesce-entries")
+    @ConfigDescription("Skip replication log entries that are superseded by a newer entry for the same key")
+    public StoreConfig setCoalesceEntries(boolean coalesceEntries)
+    {
+        this.coalesceEntries = coalesceEntries;
+        return this;
+    }
+
+    public boolean isPrioritizeEntries()
+    {
+        return prioritizeEntries;
+    }
+
+    @Config("store.remote.prioritize-entries")
+    @ConfigDescription("Replicate tombstones and new keys ahead of changed entries, and changed entries ahead of refreshes")
+    public StoreConfig setPrioritizeEntries(boolean prioritizeEntries)
+    {
+        this.prioritizeEntries = prioritizeEntries;
+        return this;
+    }
+
+    @NotNull
+    public ReplicationCodec getCompressionCodec()
+    {
+        return compressionCodec;
+    }
+
+    @Config("store.remote.compression-codec")
+    @ConfigDescription("Codec for replication bodies, if the peer supports it: identity, gzip or snappy")
+    public StoreConfig setCompressionCodec(ReplicationCodec compressionCodec)
+    {
+        this.compressionCodec = compressionCodec;
+        return this;
+    }
+
+    @NotNull
+    public DataSize getCompressionThreshold()
+    {
+        return compressionThreshold;
+    }
+
+    @Config("store.remote.compression-threshold")
+    @ConfigDescription("Replication bodies smaller than this are sent uncompressed")
+    public StoreConfig setCompressionThreshold(DataSize compressionThreshold)
+    {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxInFlightBatches()
+    {
+        return maxInFlightBatches;
+    }
+
+    @Config("store.remote.max-in-flight-batches")
+    @ConfigDescription("Number of replication batches that may be awaiting a response from a single peer")
+    public StoreConfig setMaxInFlightBatches(int maxInFlightBatches)
+    {
+        this.maxInFlightBatches = maxInFlightBatches;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    @Config("store.remote.max-attempts")
+    @ConfigDescription("Number of times a replication batch is sent to a peer before giving up")
+    public StoreConfig setMaxAttempts(int maxAttempts)
+    {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    @NotNull
+    public Duration getMinBackoff()
+    {
+        return minBackoff;
+    }
+
+    @Config("store.remote.min-backoff")
+    @ConfigDescription("Delay before the first retry of a failed replication batch")
+    public StoreConfig setMinBackoff(Duration minBackoff)
+    {
+        this.minBackoff = minBackoff;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    @NotNull
+    public Duration getMaxBackoff()
+    {
+        return maxBackoff;
+    }
+
+    @Config("store.remote.max-backoff")
+    @ConfigDescription("Upper bound on retry delays and on the time a failing peer is skipped")
+    public StoreConfig setMaxBackoff(Duration maxBackoff)
+    {
+        this.maxBackoff = maxBackoff;
+        return this;
+    }
+
+    @Min(1)
+    public int getFailureThreshold()
+    {
+        return failureThreshold;
+    }
+
+    @Config("store.remote.failure-threshold")
+    @ConfigDescription("Consecutive failures after which replication to a peer is suspended")
+    public StoreConfig setFailureThreshold(int failureThreshold)
+    {
+        this.failureThreshold = failureThreshold;
+        return this;
+    }
+
+    @Min(0)
+    public int getMaxUndeliveredKeys()
+    {
+        return maxUndeliveredKeys;
+    }
+
+    @Config("store.remote.max-undelivered-keys")
+    @ConfigDescription("Number of undelivered keys tracked per peer before falling back to a full catch-up")
+    public StoreConfig setMaxUndeliveredKeys(int maxUndeliveredKeys)
+    {
+        this.maxUndeliveredKeys = maxUndeliveredKeys;
+        return this;
+    }
+
+    @AssertTrue(message = "store.remote.min-backoff must not be greater than store.remote.max-backoff")
+    public boolean isBackoffRangeValid()
+    {
+        return minBackoff == null || maxBackoff == null || minBackoff.compareTo(maxBackoff) <= 0;
+    }
+
     @MinDuration("1ms")
     @NotNull
     public Duration getRemoteUpdateInterval()
@@ -110,4 +317,194 @@ public class StoreConfig
         this.replicationInterval = replicationInterval;
         return this;
     }
+
+    public boolean isGossipEnabled()
+    {
+        return gossipEnabled;
+    }
+
+    @Config("store.gossip.enabled")
+    @ConfigDescription("Replicate writes by forwarding them to a few random peers instead of pushing to every peer")
+    public StoreConfig setGossipEnabled(boolean gossipEnabled)
+    {
+        this.gossipEnabled = gossipEnabled;
+        return this;
+    }
+
+    @Min(1)
+    public int getGossipFanOut()
+    {
+        return gossipFanOut;
+    }
+
+    @Config("store.gossip.fan-out")
+    @ConfigDescription("Number of random peers each gossip round is sent to")
+    public StoreConfig setGossipFanOut(int gossipFanOut)
+    {
+        this.gossipFanOut = gossipFanOut;
+        return this;
+    }
+
+    @Min(0)
+    public int getGossipTtl()
+    {
+        return gossipTtl;
+    }
+
+    @Config("store.gossip.ttl")
+    @ConfigDescription("Number of times an entry is forwarded beyond the node that wrote it")
+    public StoreConfig setGossipTtl(int gossipTtl)
+    {
+        this.gossipTtl = gossipTtl;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    @NotNull
+    public Duration getGossipInterval()
+    {
+        return gossipInterval;
+    }
+
+    @Config("store.gossip.interval")
+    @ConfigDescription("Delay between gossip rounds")
+    public StoreConfig setGossipInterval(Duration gossipInterval)
+    {
+        this.gossipInterval = gossipInterval;
+        return this;
+    }
+
+    public boolean isPartitioningEnabled()
+    {
+        return partitioningEnabled;
+    }
+
+    @Config("store.partitioning.enabled")
+    @ConfigDescription("Store each key only on the discovery nodes that own it on a consistent-hash ring")
+    public StoreConfig setPartitioningEnabled(boolean partitioningEnabled)
+    {
+        this.partitioningEnabled = partitioningEnabled;
+        return this;
+    }
+
+    @Min(1)
+    public int getReplicationFactor()
+    {
+        return replicationFactor;
+    }
+
+    @Config("store.partitioning.replication-factor")
+    @ConfigDescription("Number of discovery nodes that own each key")
+    public StoreConfig setReplicationFactor(int replicationFactor)
+    {
+        this.replicationFactor = replicationFactor;
+        return this;
+    }
+
+    @NotNull
+    public Duration getPartitionedReadCacheTtl()
+    {
+        return partitionedReadCacheTtl;
+    }
+
+    @Config("store.partitioning.read-cache-ttl")
+    @ConfigDescription("How often the entries of all partitions are gathered for queries, 0 to gather on every query")
+    public StoreConfig setPartitionedReadCacheTtl(Duration partitionedReadCacheTtl)
+    {
+        this.partitionedReadCacheTtl = partitionedReadCacheTtl;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    @NotNull
+    public Duration getPartitionedReadTimeout()
+    {
+        return partitionedReadTimeout;
+    }
+
+    @Config("store.partitioning.read-timeout")
+    @ConfigDescription("Maximum time to wait for other partitions when gathering all entries")
+    public StoreConfig setPartitionedReadTimeout(Duration partitionedReadTimeout)
+    {
+        this.partitionedReadTimeout = partitionedReadTimeout;
+        return this;
+    }
+
+    public boolean isTopologyEnabled()
+    {
+        return topologyEnabled;
+    }
+
+    @Config("store.topology.enabled")
+    @ConfigDescription("Replicate directly within a site and through one relay per site across sites")
+    public StoreConfig setTopologyEnabled(boolean topologyEnabled)
+    {
+        this.topologyEnabled = topologyEnabled;
+        return this;
+    }
+
+    public boolean isSnapshotEnabled()
+    {
+        return snapshotEnabled;
+    }
+
+    @Config("store.snapshot.enabled")
+    @ConfigDescription("Periodically save the store to a local file and reload it at startup")
+    public StoreConfig setSnapshotEnabled(boolean snapshotEnabled)
+    {
+        this.snapshotEnabled = snapshotEnabled;
+        return this;
+    }
+
+    @NotNull
+    public File getSnapshotDirectory()
+    {
+        return snapshotDirectory;
+    }
+
+    @Config("store.snapshot.directory")
+    public StoreConfig setSnapshotDirectory(File snapshotDirectory)
+    {
+        this.snapshotDirectory = snapshotDirectory;
+        return this;
+    }
+
+    @MinDuration("1s")
+    @NotNull
+    public Duration getSnapshotInterval()
+    {
+        return snapshotInterval;
+    }
+
+    @Config("store.snapshot.interval")
+    public StoreConfig setSnapshotInterval(Duration snapshotInterval)
+    {
+        this.snapshotInterval = snapshotInterval;
+        return this;
+    }
+
+    public boolean isSnapshotServeStale()
+    {
+        return snapshotServeStale;
+    }
+
+    @Config("store.snapshot.serve-stale")
+    @ConfigDescription("Serve queries from a reloaded snapshot, marked as possibly stale, until replication catches up")
+    public StoreConfig setSnapshotServeStale(boolean snapshotServeStale)
+    {
+        this.snapshotServeStale = snapshotServeStale;
+        return this;
+    }
+
+    @AssertTrue(message = "only one of store.gossip.enabled, store.partitioning.enabled and store.topology.enabled may be set")
+    public boolean isReplicationModeValid()
+    {
+        int modes = 0;
+        for (boolean enabled : new boolean[] {gossipEnabled, partitioningEnabled, topologyEnabled}) {
+            if (enabled) {
+                ++modes;
+            }
+        }
+        return modes <= 1;
+    }
 }
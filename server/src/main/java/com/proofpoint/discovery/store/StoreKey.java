@@ -0,0 +1,79 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Arrays;
+
+/**
+ * Key of an entry, for use in hash maps. Unlike a wrapping {@link java.nio.ByteBuffer},
+ * the hash of the key is computed once, rather than on every lookup, and retries of a
+ * compare-and-set loop don't hash the key again. An {@link Entry} keeps the key it was
+ * wrapped in, so the stores and the replication log hash the key of an entry once
+ * however many maps it goes through; only lookups by raw key bytes wrap them anew.
+ * <p>
+ * The key bytes are not copied, so they must not be modified once wrapped.
+ */
+@Immutable
+final class StoreKey
+{
+    private final byte[] key;
+    private final int hashCode;
+
+    private StoreKey(byte[] key)
+    {
+        this.key = key;
+        this.hashCode = Arrays.hashCode(key);
+    }
+
+    static StoreKey wrap(byte[] key)
+    {
+        Preconditions.checkNotNull(key, "key is null");
+        return new StoreKey(key);
+    }
+
+    byte[] getKey()
+    {
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        StoreKey that = (StoreKey) o;
+        return hashCode == that.hashCode && Arrays.equals(key, that.key);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hashCode;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(key);
+    }
+}
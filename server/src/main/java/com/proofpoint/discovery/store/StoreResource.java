@@ -15,43 +15,52 @@
  */
 package com.proofpoint.discovery.store;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.base.Charsets;
-import com.google.common.base.Function;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Maps;
-import com.proofpoint.units.Duration;
+import com.proofpoint.discovery.store.ReplicationTransport.Acknowledgement;
+import com.proofpoint.discovery.store.ReplicationTransport.PullResult;
 
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 @Path("/v1/store/{store}")
 public class StoreResource
 {
     private final Map<String, LocalStore> localStores;
-    private final Map<String, Duration> tombstoneMaxAges;
+    private final ReplicationEndpoint endpoint;
+    private final Map<String, StoreConfig> configs;
+    private final Map<String, CompressionStats> compressionStats;
+    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory());
 
     @Inject
-    public StoreResource(Map<String, LocalStore> localStores, Map<String, StoreConfig> configs)
+    public StoreResource(Map<String, LocalStore> localStores,
+            ReplicationEndpoint endpoint,
+            Map<String, StoreConfig> configs,
+            Map<String, CompressionStats> compressionStats)
     {
         this.localStores = ImmutableMap.copyOf(localStores);
-        this.tombstoneMaxAges = ImmutableMap.copyOf(Maps.transformValues(configs, new Function<StoreConfig, Duration>()
-        {
-            @Override
-            public Duration apply(StoreConfig config)
-            {
-                return config.getTombstoneMaxAge();
-            }
-        }));
+        this.endpoint = checkNotNull(endpoint, "endpoint is null");
+        this.configs = ImmutableMap.copyOf(configs);
+        this.compressionStats = ImmutableMap.copyOf(compressionStats);
     }
 
     @PUT
@@ -65,39 +74,139 @@ public class StoreResource
     }
     
     @POST
-    @Consumes({"application/x-jackson-smile", "application/json"})
-    public Response setMultipleEntries(@PathParam("store") String storeName, List<Entry> entries)
+    @Consumes({EntryCodec.MEDIA_TYPE, "application/x-jackson-smile", "application/json"})
+    public Response setMultipleEntries(@PathParam("store") String storeName,
+            @HeaderParam(GossipRemoteStore.HOPS_REMAINING_HEADER) Integer hopsRemaining,
+            @HeaderParam(HttpRemoteStore.SITE_HEADER) String senderSite,
+            List<Entry> entries)
     {
-        LocalStore store = localStores.get(storeName);
-        Duration tombstoneMaxAge = tombstoneMaxAges.get(storeName);
-        if (store == null || tombstoneMaxAge == null) {
+        Acknowledgement acknowledgement = endpoint.receive(storeName, entries, hopsRemaining, senderSite);
+        if (acknowledgement == null) {
             return Response.status(Status.NOT_FOUND).build();
         }
 
-        for (Entry entry : entries) {
-            if (!isExpired(tombstoneMaxAge, entry)) {
-                store.put(entry);
-            }
+        ResponseBuilder response;
+        if (acknowledgement.getMissedTouches().isEmpty()) {
+            response = Response.noContent();
+        }
+        else {
+            // the keys of the touches to send again in full
+            response = Response.ok(acknowledgement.getMissedTouches(), "application/x-jackson-smile");
+        }
+        if (acknowledgement.getEpoch() != null) {
+            response.header(ReplicationWatermarks.EPOCH_HEADER, acknowledgement.getEpoch());
         }
-        return Response.noContent().build();
+        response.header("Accept-Encoding", ReplicationCodec.ACCEPT_ENCODING);
+        response.header("Accept-Post", EntryCodec.MEDIA_TYPE + ", application/x-jackson-smile");
+        response.header(EntryCodec.TOUCH_HEADER, "true");
+        if (acknowledgement.getAppliedTimestamp() > 0) {
+            response.header(ReplicationWatermarks.APPLIED_TIMESTAMP_HEADER, acknowledgement.getAppliedTimestamp());
+        }
+        return response.build();
     }
 
-    @GET
+    /**
+     * Returns the entries stored locally for the keys in the body, for a node that does
+     * not own the keys and reads them from their owners.
+     */
+    @POST
+    @Path("lookup")
+    @Consumes({"application/x-jackson-smile", "application/json"})
     @Produces({"application/x-jackson-smile", "application/json"})
-    public Response getAll(@PathParam("store") String storeName)
+    public Response lookup(@PathParam("store") String storeName, List<byte[]> keys)
     {
-        LocalStore store = localStores.get(storeName);
-        if (store == null) {
+        if (keys == null) {
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        List<Entry> entries = endpoint.lookup(storeName, keys);
+        if (entries == null) {
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        return Response.ok(entries).build();
+    }
+
+    @GET
+    @Produces({"application/x-jackson-smile", "application/json", EntryCodec.MEDIA_TYPE})
+    public Response getAll(@PathParam("store") String storeName,
+            @HeaderParam(ReplicationWatermarks.WATERMARK_HEADER) String watermarkHeader,
+            @HeaderParam("Accept") String accept,
+            @HeaderParam(ReplicationCodec.ACCEPT_ENCODING_HEADER) String acceptEncoding)
+    {
+        PullResult result = endpoint.serve(storeName, ReplicationWatermarks.Watermark.valueOf(watermarkHeader));
+        if (result == null) {
             return Response.status(Status.NOT_FOUND).build();
         }
-        return Response.ok(store.getAll()).build();
+        if (result.isNotModified()) {
+            return Response.notModified().build();
+        }
+
+        ResponseBuilder response = entriesResponse(storeName, result.getEntries(), accept, acceptEncoding);
+        if (result.getWatermark() != null) {
+            response.header(ReplicationWatermarks.WATERMARK_HEADER, result.getWatermark());
+        }
+        if (result.isInitialized()) {
+            response.header(ReplicationWatermarks.INITIALIZED_HEADER, "true");
+        }
+        return response.build();
     }
 
-    private boolean isExpired(Duration tombstoneMaxAge, Entry entry)
+    /**
+     * Encodes the entries in the newest format the client accepts, compressed if the
+     * client accepts a codec and there are enough of them to be worth it.
+     */
+    private ResponseBuilder entriesResponse(String storeName, final List<Entry> entries, String accept, String acceptEncoding)
     {
-        long ageInMs = System.currentTimeMillis() - entry.getTimestamp();
+        final boolean binary = EntryCodec.isAccepted(accept);
+        StoreConfig config = configs.get(storeName);
+        final CompressionStats stats = compressionStats.get(storeName);
+        ReplicationCodec negotiated = ReplicationCodec.negotiate(acceptEncoding, config.getCompressionCodec());
+        if (negotiated != ReplicationCodec.IDENTITY && (stats == null || estimatedSize(entries) < config.getCompressionThreshold().toBytes())) {
+            negotiated = ReplicationCodec.IDENTITY;
+        }
+        final ReplicationCodec codec = negotiated;
+
+        if (!binary && codec == ReplicationCodec.IDENTITY) {
+            return Response.ok(entries);
+        }
 
-        return entry.getValue() == null && ageInMs > tombstoneMaxAge.toMillis() ||
-                entry.getMaxAgeInMs() != null && ageInMs > entry.getMaxAgeInMs();
+        StreamingOutput body = new StreamingOutput()
+        {
+            @Override
+            public void write(OutputStream output)
+                    throws IOException
+            {
+                if (codec == ReplicationCodec.IDENTITY) {
+                    EntryCodec.writeEntries(entries, output);
+                    return;
+                }
+                // closing finishes the compressed stream but leaves the response open
+                try (OutputStream compressed = stats.compress(codec, output)) {
+                    if (binary) {
+                        EntryCodec.writeEntries(entries, compressed);
+                    }
+                    else {
+                        mapper.writeValue(compressed, entries);
+                    }
+                }
+            }
+        };
+        ResponseBuilder response = Response.ok(body, binary ? EntryCodec.MEDIA_TYPE : "application/x-jackson-smile");
+        if (codec != ReplicationCodec.IDENTITY) {
+            response.header(ReplicationCodec.ENCODING_HEADER, codec.getEncoding());
+        }
+        return response;
+    }
+
+    /**
+     * Estimates the encoded size of the entries from their count and the size of the
+     * first one, as the entries of a store are much alike, rather than weighing every
+     * entry before they are written.
+     */
+    private static long estimatedSize(List<Entry> entries)
+    {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        return (long) entries.size() * HttpRemoteStore.ENTRY_WEIGHER.weigh(entries.get(0));
     }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An entry written again with the value it already had, which only extends its lifetime.
+ * <p>
+ * On the sending side a touch still carries its value, so it can be sent in full to peers
+ * that can't apply touches. A touch read from the wire has no value: it identifies the
+ * value by its digest and only applies to a store that holds a value with that digest.
+ */
+@Immutable
+public class Touch
+        extends Entry
+{
+    private static final HashFunction DIGEST_FUNCTION = Hashing.murmur3_128();
+
+    private final long valueDigest;
+
+    /**
+     * Creates the touch for an entry whose value did not change.
+     */
+    public Touch(Entry entry)
+    {
+        this(entry.getKey(), entry.getValue(), entry.getTimestamp(), entry.getMaxAgeInMs(), digestOf(entry.getValue()));
+    }
+
+    /**
+     * Creates a touch read from the wire.
+     */
+    public Touch(byte[] key, long timestamp, Long maxAgeInMs, long valueDigest)
+    {
+        this(key, null, timestamp, maxAgeInMs, valueDigest);
+    }
+
+    private Touch(byte[] key, byte[] value, long timestamp, Long maxAgeInMs, long valueDigest)
+    {
+        super(key, value, timestamp, maxAgeInMs);
+        this.valueDigest = valueDigest;
+    }
+
+    @JsonIgnore
+    public long getValueDigest()
+    {
+        return valueDigest;
+    }
+
+    /**
+     * Returns the entry this touch makes of an entry holding the same value, or null if
+     * the value of the entry is not the one that was touched.
+     */
+    public Entry applyTo(Entry entry)
+    {
+        byte[] value = entry.getValue();
+        if (value == null || digestOf(value) != valueDigest) {
+            return null;
+        }
+        return new Entry(getKey(), value, getTimestamp(), getMaxAgeInMs());
+    }
+
+    public static long digestOf(byte[] value)
+    {
+        return DIGEST_FUNCTION.hashBytes(value).asLong();
+    }
+}
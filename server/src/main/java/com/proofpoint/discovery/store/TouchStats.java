@@ -0,0 +1,44 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.proofpoint.stats.CounterStat;
+import org.weakref.jmx.Nested;
+
+/**
+ * Counts the {@link Touch touches} a store received from its peers.
+ */
+public class TouchStats
+{
+    private final CounterStat appliedTouches = new CounterStat();
+    private final CounterStat missedTouches = new CounterStat();
+
+    @Nested
+    public CounterStat getAppliedTouches()
+    {
+        return appliedTouches;
+    }
+
+    /**
+     * Touches of a value the store did not hold, which are dropped. The value arrives
+     * later in full, by push or by pull.
+     */
+    @Nested
+    public CounterStat getMissedTouches()
+    {
+        return missedTouches;
+    }
+}
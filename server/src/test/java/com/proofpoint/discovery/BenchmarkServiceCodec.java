@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the binary and JSON formats of stored services, for the services of one node.
+ * {@link #main} also prints the bytes per service of each format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkServiceCodec
+{
+    private final ServiceCodec jsonCodec = new ServiceCodec(false);
+    private final ServiceCodec binaryCodec = new ServiceCodec(true);
+
+    @Param({"1", "10", "100"})
+    private int servicesPerNode;
+
+    private List<Service> services;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup
+    public void setup()
+    {
+        services = createServices(servicesPerNode);
+        json = jsonCodec.encode(services);
+        binary = binaryCodec.encode(services);
+    }
+
+    @Benchmark
+    public byte[] encodeJson()
+    {
+        return jsonCodec.encode(services);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary()
+    {
+        return binaryCodec.encode(services);
+    }
+
+    @Benchmark
+    public List<Service> decodeJson()
+    {
+        return jsonCodec.decode(json);
+    }
+
+    @Benchmark
+    public List<Service> decodeBinary()
+    {
+        return binaryCodec.decode(binary);
+    }
+
+    private static List<Service> createServices(int count)
+    {
+        Random random = new Random(0);
+        Id<Node> nodeId = Id.random();
+        String location = "/" + random.nextInt(100) + "/" + random.nextInt(100);
+        String host = "10.0." + random.nextInt(256) + "." + random.nextInt(256);
+
+        List<Service> services = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            services.add(new Service(Id.<Service>random(), nodeId, "type" + i, "general", location, ImmutableMap.of(
+                    "http", "http://" + host + ":" + (8000 + i),
+                    "https", "https://" + host + ":" + (9000 + i),
+                    "jmx", "service:jmx:rmi:///jndi/rmi://" + host + ":" + (7000 + i) + "/jmxrmi")));
+        }
+        return services;
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        for (int count : new int[] {1, 10, 100}) {
+            List<Service> services = createServices(count);
+            System.out.printf("%d services per node: JSON %d bytes per service, binary %d bytes per service%n",
+                    count,
+                    new ServiceCodec(false).encode(services).length / count,
+                    new ServiceCodec(true).encode(services).length / count);
+        }
+
+        Options options = new OptionsBuilder()
+                .include(".*" + BenchmarkServiceCodec.class.getSimpleName() + ".*")
+                .build();
+        new Runner(options).run();
+    }
+}
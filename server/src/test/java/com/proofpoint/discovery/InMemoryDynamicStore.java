@@ -65,6 +65,72 @@ public class InMemoryDynamicStore
         return old == null || old.getExpiration().isBefore(currentTime.get());
     }
 
+    @Override
+    public synchronized void putAll(Map<Id<Node>, DynamicAnnouncement> announcements)
+    {
+        Preconditions.checkNotNull(announcements, "announcements is null");
+
+        for (Map.Entry<Id<Node>, DynamicAnnouncement> entry : announcements.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public synchronized boolean putService(Id<Node> nodeId, DynamicServiceAnnouncement serviceAnnouncement)
+    {
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+        Preconditions.checkNotNull(serviceAnnouncement, "serviceAnnouncement is null");
+
+        removeExpired();
+        Entry entry = descriptors.get(nodeId);
+        if (entry == null || entry.getServices().isEmpty()) {
+            return false;
+        }
+
+        Service any = entry.getServices().iterator().next();
+        Service service = toServiceWith(nodeId, any.getLocation(), any.getPool()).apply(serviceAnnouncement);
+        ImmutableSet.Builder<Service> services = ImmutableSet.builder();
+        for (Service existing : entry.getServices()) {
+            if (!existing.getId().equals(service.getId())) {
+                services.add(existing);
+            }
+        }
+        services.add(service);
+
+        descriptors.put(nodeId, new Entry(entry.getExpiration(), services.build()));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean deleteService(Id<Node> nodeId, Id<Service> serviceId)
+    {
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+        Preconditions.checkNotNull(serviceId, "serviceId is null");
+
+        removeExpired();
+        Entry entry = descriptors.get(nodeId);
+        if (entry == null) {
+            return false;
+        }
+
+        ImmutableSet.Builder<Service> services = ImmutableSet.builder();
+        boolean found = false;
+        for (Service existing : entry.getServices()) {
+            if (existing.getId().equals(serviceId)) {
+                found = true;
+            }
+            else {
+                services.add(existing);
+            }
+        }
+        if (!found) {
+            return false;
+        }
+
+        descriptors.put(nodeId, new Entry(entry.getExpiration(), services.build()));
+        return true;
+    }
+
     @Override
     public synchronized boolean delete(Id<Node> nodeId)
     {
@@ -73,6 +139,34 @@ public class InMemoryDynamicStore
         return descriptors.remove(nodeId) != null;
     }
 
+    @Override
+    public synchronized String getVersion(Id<Node> nodeId)
+    {
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+
+        removeExpired();
+        Entry entry = descriptors.get(nodeId);
+        if (entry == null) {
+            return null;
+        }
+        return Integer.toHexString(entry.getServices().hashCode());
+    }
+
+    @Override
+    public synchronized boolean renew(Id<Node> nodeId, String version)
+    {
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+        Preconditions.checkNotNull(version, "version is null");
+
+        if (!version.equals(getVersion(nodeId))) {
+            return false;
+        }
+
+        DateTime expiration = currentTime.get().plusMillis((int) maxAge.toMillis());
+        descriptors.put(nodeId, new Entry(expiration, descriptors.get(nodeId).getServices()));
+        return true;
+    }
+
     @Override
     public synchronized Set<Service> getAll()
     {
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.proofpoint.units.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestAnnouncementAdmissionFilter
+{
+    private AnnouncementAdmissionFilter filter;
+    private BlockingChain chain;
+    private ExecutorService executor;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        filter = new AnnouncementAdmissionFilter(new DiscoveryConfig()
+                .setMaxConcurrentAnnouncements(2)
+                .setIngestionRetryAfter(new Duration(3, TimeUnit.SECONDS)));
+        chain = new BlockingChain();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        chain.release();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testQueriesServedWhileAnnouncementsSaturated()
+            throws Exception
+    {
+        Future<?> first = announce();
+        Future<?> second = announce();
+        assertTrue(chain.awaitBlocked(10, TimeUnit.SECONDS));
+        assertEquals(filter.getAnnouncementsInProgress(), 2);
+
+        // a further announcement is turned away rather than taking a thread
+        HttpServletResponse rejected = mock(HttpServletResponse.class);
+        filter.doFilter(requestFor("/v1/announcement/node"), rejected, chain);
+        verify(rejected).setHeader("Retry-After", "3");
+        verify(rejected).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        assertEquals(filter.getRejectedAnnouncements().getTotalCount(), 1);
+
+        // while a query still goes through
+        HttpServletResponse query = mock(HttpServletResponse.class);
+        filter.doFilter(requestFor("/v1/service/apple"), query, chain);
+        verify(query, never()).sendError(anyInt());
+        assertEquals(chain.getQueries(), 1);
+
+        // once the announcements in progress finish, the next one is admitted
+        chain.release();
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        assertEquals(filter.getAnnouncementsInProgress(), 0);
+
+        HttpServletResponse admitted = mock(HttpServletResponse.class);
+        filter.doFilter(requestFor("/v1/announcement/node"), admitted, chain);
+        verify(admitted, never()).sendError(anyInt());
+    }
+
+    private Future<?> announce()
+    {
+        return executor.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                filter.doFilter(requestFor("/v1/announcement/node"), mock(HttpServletResponse.class), chain);
+                return null;
+            }
+        });
+    }
+
+    private static HttpServletRequest requestFor(String uri)
+    {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRequestURI()).thenReturn(uri);
+        return request;
+    }
+
+    /**
+     * Holds announcements until released, as a slow store would.
+     */
+    private static class BlockingChain
+            implements FilterChain
+    {
+        private final CountDownLatch blocked = new CountDownLatch(2);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private int queries;
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response)
+        {
+            if (((HttpServletRequest) request).getRequestURI().startsWith("/v1/service")) {
+                synchronized (this) {
+                    ++queries;
+                }
+                return;
+            }
+            blocked.countDown();
+            try {
+                released.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public boolean awaitBlocked(long timeout, TimeUnit unit)
+                throws InterruptedException
+        {
+            return blocked.await(timeout, unit);
+        }
+
+        public void release()
+        {
+            released.countDown();
+        }
+
+        public synchronized int getQueries()
+        {
+            return queries;
+        }
+    }
+}
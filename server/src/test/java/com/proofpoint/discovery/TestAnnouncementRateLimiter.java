@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestAnnouncementRateLimiter
+{
+    private TestingTicker ticker;
+    private AnnouncementRateLimiter rateLimiter;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        ticker = new TestingTicker();
+        rateLimiter = new AnnouncementRateLimiter(new DiscoveryConfig()
+                .setNodeAnnouncementRate(1)
+                .setNodeAnnouncementBurst(2)
+                .setTypeAnnouncementRate(1)
+                .setTypeAnnouncementBurst(3),
+                ticker);
+    }
+
+    @Test
+    public void testNodeLimit()
+    {
+        Id<Node> nodeId = Id.random();
+        assertEquals(rateLimiter.tryAcquire(nodeId, ImmutableSet.<String>of()), 0);
+        assertEquals(rateLimiter.tryAcquire(nodeId, ImmutableSet.<String>of()), 0);
+
+        long delay = rateLimiter.tryAcquire(nodeId, ImmutableSet.<String>of());
+        assertTrue(delay > 0 && delay <= TimeUnit.SECONDS.toNanos(1));
+        assertEquals(rateLimiter.getLimitedNodes(), 1);
+        assertEquals(rateLimiter.getNodeLimitedAnnouncements().getTotalCount(), 1);
+
+        // other nodes have their own bucket
+        assertEquals(rateLimiter.tryAcquire(Id.<Node>random(), ImmutableSet.<String>of()), 0);
+
+        ticker.advance(1, TimeUnit.SECONDS);
+        assertEquals(rateLimiter.tryAcquire(nodeId, ImmutableSet.<String>of()), 0);
+        assertEquals(rateLimiter.getLimitedNodes(), 1);
+
+        ticker.advance(2, TimeUnit.SECONDS);
+        assertEquals(rateLimiter.getLimitedNodes(), 0);
+    }
+
+    @Test
+    public void testTypeLimit()
+    {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(rateLimiter.tryAcquire(Id.<Node>random(), ImmutableSet.of("storage")), 0);
+        }
+
+        Id<Node> nodeId = Id.random();
+        assertTrue(rateLimiter.tryAcquire(nodeId, ImmutableSet.of("web", "storage")) > 0);
+        assertEquals(rateLimiter.getLimitedTypes(), 1);
+        assertEquals(rateLimiter.getTypeLimitedAnnouncements().getTotalCount(), 1);
+
+        // a refused announcement takes no token from any bucket
+        assertEquals(rateLimiter.tryAcquire(nodeId, ImmutableSet.of("web")), 0);
+        assertEquals(rateLimiter.tryAcquire(nodeId, ImmutableSet.of("web")), 0);
+    }
+
+    @Test
+    public void testTypeLimitOffByDefault()
+    {
+        rateLimiter = new AnnouncementRateLimiter(new DiscoveryConfig().setNodeAnnouncementBurst(1000), ticker);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(rateLimiter.tryAcquire(Id.<Node>random(), ImmutableSet.of("storage")), 0);
+        }
+        assertEquals(rateLimiter.getLimitedTypes(), 0);
+        assertEquals(rateLimiter.getTypeLimitedAnnouncements().getTotalCount(), 0);
+    }
+}
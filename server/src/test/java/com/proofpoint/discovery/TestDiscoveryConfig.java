@@ -18,6 +18,7 @@ package com.proofpoint.discovery;
 import com.google.common.collect.ImmutableMap;
 import com.proofpoint.configuration.testing.ConfigAssertions;
 import com.proofpoint.discovery.DiscoveryConfig.StringSet;
+import com.proofpoint.units.DataSize;
 import com.proofpoint.units.Duration;
 import org.testng.annotations.Test;
 
@@ -39,7 +40,27 @@ public class TestDiscoveryConfig
                 .setMaxAge(new Duration(90, TimeUnit.SECONDS))
                 .setProxyProxiedTypes(DiscoveryConfig.StringSet.of())
                 .setProxyEnvironment(null)
-                .setProxyUri(null));
+                .setProxyUri(null)
+                .setIngestionEnabled(false)
+                .setIngestionQueueSize(1000)
+                .setIngestionThreads(4)
+                .setIngestionMaxBatchSize(100)
+                .setIngestionRetryAfter(new Duration(5, TimeUnit.SECONDS))
+                .setNodeAnnouncementRate(1)
+                .setNodeAnnouncementBurst(10)
+                .setTypeAnnouncementRate(0)
+                .setTypeAnnouncementBurst(0)
+                .setFlapHalfLife(new Duration(1, TimeUnit.MINUTES))
+                .setFlapSuppressThreshold(4)
+                .setFlapReuseThreshold(2)
+                .setHeartbeatJitter(0.2)
+                .setMaxDecodedAnnouncementSize(new DataSize(16, DataSize.Unit.MEGABYTE))
+                .setMaxConcurrentAnnouncements(100)
+                .setServiceLayout(false)
+                .setBinaryValues(false)
+                .setDynamicBinaryKeys(false)
+                .setDynamicKeyMigration(true)
+                .setStaticBinaryKeys(false));
     }
 
     @Test
@@ -50,13 +71,53 @@ public class TestDiscoveryConfig
                 .put("discovery.proxy.proxied-types", "foo  ,  bar")
                 .put("discovery.proxy.environment", "pre-release")
                 .put("discovery.proxy.uri", "http://10.20.30.40:4111")
+                .put("discovery.ingestion.enabled", "true")
+                .put("discovery.ingestion.queue-size", "500")
+                .put("discovery.ingestion.threads", "8")
+                .put("discovery.ingestion.max-batch-size", "50")
+                .put("discovery.ingestion.retry-after", "10s")
+                .put("discovery.rate-limit.node-rate", "0.5")
+                .put("discovery.rate-limit.node-burst", "3")
+                .put("discovery.rate-limit.type-rate", "200")
+                .put("discovery.rate-limit.type-burst", "400")
+                .put("discovery.flap-damping.half-life", "5m")
+                .put("discovery.flap-damping.suppress-threshold", "6")
+                .put("discovery.flap-damping.reuse-threshold", "3")
+                .put("discovery.heartbeat.jitter", "0.5")
+                .put("discovery.announcement.max-decoded-size", "1MB")
+                .put("discovery.announcement.max-concurrent-requests", "20")
+                .put("discovery.dynamic.service-layout", "true")
+                .put("discovery.store.binary-values", "true")
+                .put("discovery.dynamic.binary-keys", "true")
+                .put("discovery.dynamic.key-migration", "false")
+                .put("discovery.static.binary-keys", "true")
                 .build();
 
         DiscoveryConfig expected = new DiscoveryConfig()
                 .setMaxAge(new Duration(1, TimeUnit.MINUTES))
                 .setProxyProxiedTypes(DiscoveryConfig.StringSet.of("foo", "bar"))
                 .setProxyEnvironment("pre-release")
-                .setProxyUri(URI.create("http://10.20.30.40:4111"));
+                .setProxyUri(URI.create("http://10.20.30.40:4111"))
+                .setIngestionEnabled(true)
+                .setIngestionQueueSize(500)
+                .setIngestionThreads(8)
+                .setIngestionMaxBatchSize(50)
+                .setIngestionRetryAfter(new Duration(10, TimeUnit.SECONDS))
+                .setNodeAnnouncementRate(0.5)
+                .setNodeAnnouncementBurst(3)
+                .setTypeAnnouncementRate(200)
+                .setTypeAnnouncementBurst(400)
+                .setFlapHalfLife(new Duration(5, TimeUnit.MINUTES))
+                .setFlapSuppressThreshold(6)
+                .setFlapReuseThreshold(3)
+                .setHeartbeatJitter(0.5)
+                .setMaxDecodedAnnouncementSize(new DataSize(1, DataSize.Unit.MEGABYTE))
+                .setMaxConcurrentAnnouncements(20)
+                .setServiceLayout(true)
+                .setBinaryValues(true)
+                .setDynamicBinaryKeys(true)
+                .setDynamicKeyMigration(false)
+                .setStaticBinaryKeys(true);
 
         ConfigAssertions.assertFullMapping(properties, expected);
     }
@@ -107,4 +168,12 @@ public class TestDiscoveryConfig
         assertFailsValidation(config, "proxyTypeAndUri", "discovery.proxy.uri specified if and only if any proxy types",
                 AssertTrue.class);
     }
+
+    @Test
+    public void testTypeRateWithoutBurst()
+    {
+        DiscoveryConfig config = new DiscoveryConfig().setTypeAnnouncementRate(100);
+        assertFailsValidation(config, "typeRateAndBurst", "discovery.rate-limit.type-burst specified if and only if discovery.rate-limit.type-rate",
+                AssertTrue.class);
+    }
 }
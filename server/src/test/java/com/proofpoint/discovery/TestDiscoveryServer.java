@@ -15,6 +15,9 @@
  */
 package com.proofpoint.discovery;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
@@ -28,8 +31,10 @@ import com.proofpoint.discovery.client.ServiceDescriptor;
 import com.proofpoint.discovery.client.ServiceSelector;
 import com.proofpoint.discovery.client.announce.DiscoveryAnnouncementClient;
 import com.proofpoint.discovery.client.announce.ServiceAnnouncement;
+import com.proofpoint.discovery.store.ReplicationCodec;
 import com.proofpoint.event.client.InMemoryEventModule;
 import com.proofpoint.http.client.ApacheHttpClient;
+import com.proofpoint.http.client.BodyGenerator;
 import com.proofpoint.http.client.FullJsonResponseHandler.JsonResponse;
 import com.proofpoint.http.client.HttpClient;
 import com.proofpoint.http.client.Request;
@@ -51,12 +56,15 @@ import org.weakref.jmx.testing.TestingMBeanServer;
 import javax.management.MBeanServer;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.OutputStream;
 import java.net.URI;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
 import static com.proofpoint.bootstrap.Bootstrap.bootstrapApplication;
 import static com.proofpoint.discovery.client.DiscoveryBinder.discoveryBinder;
@@ -65,6 +73,7 @@ import static com.proofpoint.http.client.FullJsonResponseHandler.createFullJsonR
 import static com.proofpoint.http.client.JsonBodyGenerator.jsonBodyGenerator;
 import static com.proofpoint.http.client.Request.Builder.prepareDelete;
 import static com.proofpoint.http.client.Request.Builder.preparePost;
+import static com.proofpoint.http.client.Request.Builder.preparePut;
 import static com.proofpoint.http.client.StatusResponseHandler.createStatusResponseHandler;
 import static com.proofpoint.json.JsonCodec.jsonCodec;
 import static com.proofpoint.json.JsonCodec.mapJsonCodec;
@@ -90,6 +99,7 @@ public class TestDiscoveryServer
         // start server
         Map<String, String> serverProperties = ImmutableMap.<String, String>builder()
                 .put("static.db.location", tempDir.getAbsolutePath())
+                .put("discovery.announcement.max-decoded-size", "4kB")
                 .build();
 
         Injector serverInjector = bootstrapApplication("test-application")
@@ -235,6 +245,154 @@ public class TestDiscoveryServer
         assertTrue(selectorFor("apple", "red").selectAllServices().isEmpty());
     }
 
+    @Test
+    public void testCompressedSmileAnnouncement()
+            throws Exception
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        new ObjectMapper(new SmileFactory()).writeValue(buffer, dynamicAnnouncement("apple", ImmutableMap.of("http", "http://host")));
+
+        StatusResponse response = execute(preparePut(), "/v1/announcement/" + UUID.randomUUID(), "application/x-jackson-smile", ReplicationCodec.GZIP, buffer.toByteArray());
+        assertEquals(response.getStatusCode(), Status.ACCEPTED.getStatusCode());
+
+        List<ServiceDescriptor> services = selectorFor("apple", "red").selectAllServices();
+        assertEquals(services.size(), 1);
+        assertEquals(services.get(0).getLocation(), "/a/b/c");
+        assertEquals(services.get(0).getProperties(), ImmutableMap.of("http", "http://host"));
+    }
+
+    @Test
+    public void testSnappyAnnouncement()
+            throws Exception
+    {
+        byte[] body = jsonCodec(Object.class).toJsonBytes(dynamicAnnouncement("apple", ImmutableMap.of("http", "http://host")));
+
+        StatusResponse response = execute(preparePut(), "/v1/announcement/" + UUID.randomUUID(), MediaType.APPLICATION_JSON, ReplicationCodec.SNAPPY, body);
+        assertEquals(response.getStatusCode(), Status.ACCEPTED.getStatusCode());
+
+        List<ServiceDescriptor> services = selectorFor("apple", "red").selectAllServices();
+        assertEquals(services.size(), 1);
+        assertEquals(services.get(0).getProperties(), ImmutableMap.of("http", "http://host"));
+    }
+
+    @Test
+    public void testCompressedServiceAnnouncement()
+            throws Exception
+    {
+        String nodeId = UUID.randomUUID().toString();
+        StatusResponse response = execute(preparePut(), "/v1/announcement/" + nodeId, MediaType.APPLICATION_JSON, ReplicationCodec.IDENTITY,
+                jsonCodec(Object.class).toJsonBytes(dynamicAnnouncement("apple", ImmutableMap.of("http", "http://host"))));
+        assertEquals(response.getStatusCode(), Status.ACCEPTED.getStatusCode());
+
+        String serviceId = UUID.randomUUID().toString();
+        byte[] service = jsonCodec(Object.class).toJsonBytes(ImmutableMap.of(
+                "id", serviceId,
+                "type", "banana",
+                "properties", ImmutableMap.of("http", "http://other")));
+        response = execute(preparePut(), "/v1/announcement/" + nodeId + "/service/" + serviceId, MediaType.APPLICATION_JSON, ReplicationCodec.GZIP, service);
+        assertEquals(response.getStatusCode(), Status.NO_CONTENT.getStatusCode());
+
+        List<ServiceDescriptor> services = selectorFor("banana", "red").selectAllServices();
+        assertEquals(services.size(), 1);
+        assertEquals(services.get(0).getId().toString(), serviceId);
+        assertEquals(services.get(0).getProperties(), ImmutableMap.of("http", "http://other"));
+    }
+
+    @Test
+    public void testCompressedStaticAnnouncement()
+            throws Exception
+    {
+        byte[] body = jsonCodec(Object.class).toJsonBytes(ImmutableMap.<String, Object>builder()
+                .put("environment", "testing")
+                .put("type", "apple")
+                .put("pool", "red")
+                .put("location", "/a/b/c")
+                .put("properties", ImmutableMap.of("http", "http://host"))
+                .build());
+
+        StatusResponse response = execute(preparePost(), "/v1/announcement/static", MediaType.APPLICATION_JSON, ReplicationCodec.GZIP, body);
+        assertEquals(response.getStatusCode(), Status.CREATED.getStatusCode());
+
+        List<ServiceDescriptor> services = selectorFor("apple", "red").selectAllServices();
+        assertEquals(services.size(), 1);
+        assertNull(services.get(0).getNodeId());
+    }
+
+    @Test
+    public void testUnsupportedContentEncoding()
+            throws Exception
+    {
+        Request request = preparePut()
+                .setUri(uriFor("/v1/announcement/" + UUID.randomUUID()))
+                .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                .setHeader("Content-Encoding", "br")
+                .setBodyGenerator(jsonBodyGenerator(jsonCodec(Object.class), dynamicAnnouncement("apple", ImmutableMap.of("http", "http://host"))))
+                .build();
+        StatusResponse response = new ApacheHttpClient().execute(request, createStatusResponseHandler());
+
+        assertEquals(response.getStatusCode(), Status.UNSUPPORTED_MEDIA_TYPE.getStatusCode());
+        assertEquals(response.getHeader("Accept-Encoding"), ReplicationCodec.ACCEPT_ENCODING);
+        assertTrue(selectorFor("apple", "red").selectAllServices().isEmpty());
+    }
+
+    @Test
+    public void testDecodedAnnouncementTooLarge()
+            throws Exception
+    {
+        // a few bytes compressed, more than the 4kB the server accepts decoded
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 8192; i++) {
+            value.append('x');
+        }
+        byte[] body = jsonCodec(Object.class).toJsonBytes(dynamicAnnouncement("apple", ImmutableMap.of("http", value.toString())));
+
+        StatusResponse response = execute(preparePut(), "/v1/announcement/" + UUID.randomUUID(), MediaType.APPLICATION_JSON, ReplicationCodec.GZIP, body);
+        assertEquals(response.getStatusCode(), Status.REQUEST_ENTITY_TOO_LARGE.getStatusCode());
+        assertTrue(selectorFor("apple", "red").selectAllServices().isEmpty());
+    }
+
+    private static Map<String, Object> dynamicAnnouncement(String type, Map<String, String> properties)
+    {
+        return ImmutableMap.<String, Object>builder()
+                .put("environment", "testing")
+                .put("pool", "red")
+                .put("location", "/a/b/c")
+                .put("services", ImmutableList.of(ImmutableMap.of(
+                        "id", UUID.randomUUID().toString(),
+                        "type", type,
+                        "properties", properties)))
+                .build();
+    }
+
+    /**
+     * Sends a body encoded with the given codec, with the matching Content-Encoding.
+     */
+    private StatusResponse execute(Request.Builder builder, String path, String contentType, ReplicationCodec codec, byte[] body)
+            throws Exception
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (OutputStream out = codec.compress(buffer)) {
+            out.write(body);
+        }
+        final byte[] encoded = buffer.toByteArray();
+
+        builder.setUri(uriFor(path))
+                .setHeader(HttpHeaders.CONTENT_TYPE, contentType)
+                .setBodyGenerator(new BodyGenerator()
+                {
+                    @Override
+                    public void write(OutputStream out)
+                            throws Exception
+                    {
+                        out.write(encoded);
+                    }
+                });
+        if (codec != ReplicationCodec.IDENTITY) {
+            builder.setHeader("Content-Encoding", codec.getEncoding());
+        }
+        return new ApacheHttpClient().execute(builder.build(), createStatusResponseHandler());
+    }
+
     private ServiceSelector selectorFor(final String type, String pool)
             throws Exception
     {
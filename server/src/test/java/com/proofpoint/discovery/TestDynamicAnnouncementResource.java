@@ -23,14 +23,18 @@ import com.proofpoint.node.NodeInfo;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
+import java.util.Map;
+
 import static com.google.common.collect.Iterables.transform;
 import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
 import static com.proofpoint.testing.Assertions.assertEqualsIgnoreOrder;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 public class TestDynamicAnnouncementResource
@@ -42,7 +46,7 @@ public class TestDynamicAnnouncementResource
     public void setup()
     {
         store = new InMemoryDynamicStore(new DiscoveryConfig(), new RealTimeSupplier());
-        resource = new DynamicAnnouncementResource(store, new NodeInfo("testing"), new DiscoveryConfig());
+        resource = resourceOf(new DiscoveryConfig());
     }
 
     @Test
@@ -58,6 +62,10 @@ public class TestDynamicAnnouncementResource
         assertNotNull(response);
         assertEquals(response.getStatus(), Response.Status.ACCEPTED.getStatusCode());
 
+        // a quarter of the max age, less up to a fifth of it
+        int nextAnnouncement = ((CacheControl) response.getMetadata().getFirst("Cache-Control")).getMaxAge();
+        assertTrue(nextAnnouncement >= 18 && nextAnnouncement <= 22, "next announcement in " + nextAnnouncement);
+
         assertEqualsIgnoreOrder(store.getAll(), transform(announcement.getServiceAnnouncements(), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool())));
     }
 
@@ -102,8 +110,7 @@ public class TestDynamicAnnouncementResource
     @Test
     public void testPutProxied()
     {
-        resource = new DynamicAnnouncementResource(store, new NodeInfo("testing"),
-                new DiscoveryConfig().setProxyProxiedTypes(StringSet.of("storage")));
+        resource = resourceOf(new DiscoveryConfig().setProxyProxiedTypes(StringSet.of("storage")));
 
         DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
                 new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
@@ -118,6 +125,132 @@ public class TestDynamicAnnouncementResource
         assertTrue(store.getAll().isEmpty());
     }
 
+    @Test
+    public void testPutTooOften()
+    {
+        resource = resourceOf(new DiscoveryConfig().setNodeAnnouncementBurst(1));
+
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
+        );
+
+        Id<Node> nodeId = Id.random();
+        assertEquals(resource.put(nodeId, announcement).getStatus(), Status.ACCEPTED.getStatusCode());
+
+        Response response = resource.put(nodeId, announcement);
+        assertEquals(response.getStatus(), 429);
+        assertEquals(response.getMetadata().getFirst("Retry-After"), 1L);
+    }
+
+    @Test
+    public void testPutQueued()
+    {
+        DiscoveryConfig config = new DiscoveryConfig()
+                .setIngestionEnabled(true)
+                .setIngestionThreads(1)
+                .setIngestionQueueSize(1);
+        AnnouncementIngester ingester = new AnnouncementIngester(store, config);
+        resource = resourceOf(config, ingester);
+
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
+        );
+
+        Id<Node> nodeId = Id.random();
+        Response response = resource.put(nodeId, announcement);
+        assertEquals(response.getStatus(), Status.ACCEPTED.getStatusCode());
+        assertNull(response.getMetadata().getFirst("ETag"));
+        assertTrue(store.getAll().isEmpty());
+
+        // a newer announcement of the same node takes the place of the queued one
+        response = resource.put(nodeId, announcement);
+        assertEquals(response.getStatus(), Status.ACCEPTED.getStatusCode());
+
+        response = resource.put(Id.<Node>random(), announcement);
+        assertEquals(response.getStatus(), Status.SERVICE_UNAVAILABLE.getStatusCode());
+        assertEquals(response.getMetadata().getFirst("Retry-After"), 5L);
+        assertEquals(ingester.getRejectedAnnouncements().getTotalCount(), 1);
+
+        assertEquals(ingester.drain(), 1);
+        assertEqualsIgnoreOrder(store.getAll(), transform(announcement.getServiceAnnouncements(), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool())));
+    }
+
+    @Test
+    public void testDeleteQueued()
+    {
+        DiscoveryConfig config = new DiscoveryConfig()
+                .setIngestionEnabled(true)
+                .setIngestionThreads(1);
+        AnnouncementIngester ingester = new AnnouncementIngester(store, config);
+        resource = resourceOf(config, ingester);
+
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
+        );
+
+        Id<Node> nodeId = Id.random();
+        Id<Node> otherNodeId = Id.random();
+        assertEquals(resource.put(nodeId, announcement).getStatus(), Status.ACCEPTED.getStatusCode());
+        assertEquals(resource.put(otherNodeId, announcement).getStatus(), Status.ACCEPTED.getStatusCode());
+        assertEquals(ingester.drain(), 2);
+
+        // the deletion of a stored node must not be undone by its queued announcement
+        assertEquals(resource.put(nodeId, announcement).getStatus(), Status.ACCEPTED.getStatusCode());
+        assertEquals(resource.delete(nodeId).getStatus(), Status.NO_CONTENT.getStatusCode());
+        assertEquals(ingester.drain(), 1);
+
+        assertEqualsIgnoreOrder(store.getAll(), transform(announcement.getServiceAnnouncements(), toServiceWith(otherNodeId, announcement.getLocation(), announcement.getPool())));
+    }
+
+    @Test
+    public void testPutServiceQueued()
+    {
+        DiscoveryConfig config = new DiscoveryConfig()
+                .setIngestionEnabled(true)
+                .setIngestionThreads(1);
+        AnnouncementIngester ingester = new AnnouncementIngester(store, config);
+        resource = resourceOf(config, ingester);
+
+        Id<Node> nodeId = Id.random();
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"));
+        DynamicServiceAnnouncement web = new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222"));
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(storage));
+
+        // the service changes must not be undone by the announcement queued before them
+        assertEquals(resource.put(nodeId, announcement).getStatus(), Status.ACCEPTED.getStatusCode());
+        assertEquals(resource.putService(nodeId, web.getId(), web).getStatus(), Status.ACCEPTED.getStatusCode());
+        assertEquals(resource.deleteService(nodeId, storage.getId()).getStatus(), Status.ACCEPTED.getStatusCode());
+        assertTrue(store.getAll().isEmpty());
+
+        assertEquals(ingester.drain(), 1);
+        assertEqualsIgnoreOrder(store.getAll(), transform(ImmutableSet.of(web), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool())));
+        assertEquals(resource.getServiceUpdates().getTotalCount(), 2);
+    }
+
+    @Test
+    public void testPutService()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"));
+        DynamicServiceAnnouncement web = new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222"));
+
+        assertEquals(resource.putService(nodeId, web.getId(), web).getStatus(), Status.NOT_FOUND.getStatusCode());
+        assertEquals(resource.putService(nodeId, Id.<Service>random(), web).getStatus(), Status.BAD_REQUEST.getStatusCode());
+
+        DynamicServiceAnnouncement untyped = new DynamicServiceAnnouncement(Id.<Service>random(), null, ImmutableMap.of("http", "http://localhost:3333"));
+        assertEquals(resource.putService(nodeId, untyped.getId(), untyped).getStatus(), Status.BAD_REQUEST.getStatusCode());
+
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(storage));
+        resource.put(nodeId, announcement);
+
+        assertEquals(resource.putService(nodeId, web.getId(), web).getStatus(), Status.NO_CONTENT.getStatusCode());
+        assertEqualsIgnoreOrder(store.getAll(), transform(ImmutableSet.of(storage, web), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool())));
+
+        assertEquals(resource.deleteService(nodeId, storage.getId()).getStatus(), Status.NO_CONTENT.getStatusCode());
+        assertEquals(resource.deleteService(nodeId, storage.getId()).getStatus(), Status.NOT_FOUND.getStatusCode());
+        assertEqualsIgnoreOrder(store.getAll(), transform(ImmutableSet.of(web), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool())));
+    }
+
     @Test
     public void testDeleteExisting()
     {
@@ -153,6 +286,117 @@ public class TestDynamicAnnouncementResource
         assertTrue(store.getAll().isEmpty());
     }
 
+    @Test
+    public void testPutAll()
+    {
+        Id<Node> blueNodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
+        );
+        Id<Node> redNodeId = Id.random();
+        DynamicAnnouncement red = new DynamicAnnouncement("production", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:2222")))
+        );
+        DynamicAnnouncement invalid = new DynamicAnnouncement("testing", null, "/a/b/c", ImmutableSet.<DynamicServiceAnnouncement>of());
+
+        Map<String, AnnouncementResult> results = resource.putAll(ImmutableMap.of(
+                blueNodeId.toString(), blue,
+                redNodeId.toString(), red,
+                Id.random().toString(), invalid,
+                "not-a-node-id", blue));
+
+        assertEquals(results.size(), 4);
+        assertEquals(results.get(blueNodeId.toString()).getStatus(), Status.ACCEPTED.getStatusCode());
+        assertNotNull(results.get(blueNodeId.toString()).getVersion());
+        assertEquals(results.get(redNodeId.toString()).getStatus(), Status.BAD_REQUEST.getStatusCode());
+        assertEquals(results.get("not-a-node-id").getStatus(), Status.BAD_REQUEST.getStatusCode());
+
+        assertEqualsIgnoreOrder(store.getAll(), transform(blue.getServiceAnnouncements(), toServiceWith(blueNodeId, blue.getLocation(), blue.getPool())));
+        assertEquals(resource.getAnnouncements().getTotalCount(), 1);
+    }
+
+    @Test
+    public void testPutAllRejectsDuplicateNodeIds()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
+        );
+        DynamicAnnouncement red = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222")))
+        );
+
+        Map<String, AnnouncementResult> results = resource.putAll(ImmutableMap.of(
+                nodeId.toString().toLowerCase(), blue,
+                nodeId.toString().toUpperCase(), red));
+
+        assertEquals(results.size(), 2);
+        assertEquals(results.get(nodeId.toString().toLowerCase()).getStatus(), Status.BAD_REQUEST.getStatusCode());
+        assertEquals(results.get(nodeId.toString().toUpperCase()).getStatus(), Status.BAD_REQUEST.getStatusCode());
+        assertTrue(store.getAll().isEmpty());
+    }
+
+    @Test
+    public void testPutAllProxied()
+    {
+        resource = resourceOf(new DiscoveryConfig().setProxyProxiedTypes(StringSet.of("storage")));
+
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
+        );
+
+        Map<String, AnnouncementResult> results = resource.putAll(ImmutableMap.of(nodeId.toString(), announcement));
+
+        assertEquals(results.get(nodeId.toString()).getStatus(), Status.FORBIDDEN.getStatusCode());
+        assertTrue(store.getAll().isEmpty());
+    }
+
+    @Test
+    public void testRenew()
+    {
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
+        );
+
+        Id<Node> nodeId = Id.random();
+        Response response = resource.put(nodeId, announcement);
+        Object tag = response.getMetadata().getFirst("ETag");
+        assertNotNull(tag);
+
+        response = resource.renew(nodeId, tag.toString());
+        assertEquals(response.getStatus(), Status.NO_CONTENT.getStatusCode());
+        assertEquals(resource.getRenewals().getTotalCount(), 1);
+        assertEquals(resource.getRenewalRatio(), 1.0);
+    }
+
+    @Test
+    public void testRenewChanged()
+    {
+        Id<Node> nodeId = Id.random();
+        store.put(nodeId, new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("key", "existing")))
+        ));
+        String version = store.getVersion(nodeId);
+        store.put(nodeId, new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("key", "new")))
+        ));
+
+        Response response = resource.renew(nodeId, "\"" + version + "\"");
+        assertEquals(response.getStatus(), Status.PRECONDITION_FAILED.getStatusCode());
+
+        response = resource.renew(Id.<Node>random(), "\"" + version + "\"");
+        assertEquals(response.getStatus(), Status.PRECONDITION_FAILED.getStatusCode());
+        assertEquals(resource.getRejectedRenewals().getTotalCount(), 2);
+    }
+
+    @Test
+    public void testRenewWithoutTag()
+    {
+        Response response = resource.renew(Id.<Node>random(), null);
+        assertEquals(response.getStatus(), Status.BAD_REQUEST.getStatusCode());
+    }
+
     @Test
     public void testMakesUpLocation()
     {
@@ -171,4 +415,20 @@ public class TestDynamicAnnouncementResource
         assertEquals(service.getId(), service.getId());
         assertNotNull(service.getLocation());
     }
+
+    private DynamicAnnouncementResource resourceOf(DiscoveryConfig config)
+    {
+        return resourceOf(config, new AnnouncementIngester(store, config));
+    }
+
+    private DynamicAnnouncementResource resourceOf(DiscoveryConfig config, AnnouncementIngester ingester)
+    {
+        return new DynamicAnnouncementResource(store,
+                new NodeInfo("testing"),
+                config,
+                ingester,
+                new AnnouncementRateLimiter(config),
+                new FlapDamper(config),
+                new HeartbeatAdvisor(config, ingester));
+    }
 }
@@ -31,6 +31,9 @@ import static com.google.common.collect.Iterables.concat;
 import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
 import static com.proofpoint.testing.Assertions.assertEqualsIgnoreOrder;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 public abstract class TestDynamicStore
@@ -97,6 +100,62 @@ public abstract class TestDynamicStore
         assertEqualsIgnoreOrder(store.getAll(), transform(announcement.getServiceAnnouncements(), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool())));
     }
 
+    @Test
+    public void testRenew()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
+        ));
+
+        assertTrue(store.put(nodeId, blue));
+        String version = store.getVersion(nodeId);
+        assertNotNull(version);
+
+        currentTime.add(new Duration(MAX_AGE.toMillis() / 2, TimeUnit.MILLISECONDS));
+        assertTrue(store.renew(nodeId, version));
+        currentTime.add(new Duration(MAX_AGE.toMillis() / 2 + 1, TimeUnit.MILLISECONDS));
+
+        assertEquals(store.getAll(), transform(blue.getServiceAnnouncements(), toServiceWith(nodeId, blue.getLocation(), blue.getPool())));
+        assertEquals(store.getVersion(nodeId), version);
+    }
+
+    @Test
+    public void testRenewChanged()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement oldAnnouncement = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
+        ));
+        DynamicAnnouncement newAnnouncement = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:2222"))
+        ));
+
+        store.put(nodeId, oldAnnouncement);
+        String version = store.getVersion(nodeId);
+        currentTime.increment();
+        store.put(nodeId, newAnnouncement);
+
+        assertFalse(store.renew(nodeId, version));
+        assertFalse(store.renew(Id.<Node>random(), version));
+    }
+
+    @Test
+    public void testRenewExpired()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
+        ));
+
+        store.put(nodeId, blue);
+        String version = store.getVersion(nodeId);
+        advanceTimeBeyondMaxAge();
+
+        assertFalse(store.renew(nodeId, version));
+        assertNull(store.getVersion(nodeId));
+    }
+
     @Test
     public void testReplace()
     {
@@ -286,6 +345,54 @@ public abstract class TestDynamicStore
         assertEqualsIgnoreOrder(store.getAll(), transform(red.getServiceAnnouncements(), toServiceWith(redNodeId, red.getLocation(), red.getPool())));
     }
 
+    @Test
+    public void testPutService()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"));
+        DynamicServiceAnnouncement web = new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222"));
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(storage, web));
+
+        assertTrue(store.put(nodeId, blue));
+        currentTime.increment();
+
+        DynamicServiceAnnouncement changedWeb = new DynamicServiceAnnouncement(web.getId(), "web", ImmutableMap.of("http", "http://localhost:3333"));
+        assertTrue(store.putService(nodeId, changedWeb));
+        currentTime.increment();
+
+        DynamicServiceAnnouncement monitoring = new DynamicServiceAnnouncement(Id.<Service>random(), "monitoring", ImmutableMap.of("http", "http://localhost:4444"));
+        assertTrue(store.putService(nodeId, monitoring));
+
+        assertEqualsIgnoreOrder(store.getAll(), transform(ImmutableSet.of(storage, changedWeb, monitoring), toServiceWith(nodeId, blue.getLocation(), blue.getPool())));
+    }
+
+    @Test
+    public void testPutServiceUnknownNode()
+    {
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"));
+
+        assertFalse(store.putService(Id.<Node>random(), storage));
+        assertTrue(store.getAll().isEmpty());
+    }
+
+    @Test
+    public void testDeleteService()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"));
+        DynamicServiceAnnouncement web = new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222"));
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(storage, web));
+
+        assertTrue(store.put(nodeId, blue));
+        currentTime.increment();
+
+        assertTrue(store.deleteService(nodeId, web.getId()));
+        assertFalse(store.deleteService(nodeId, web.getId()));
+        assertFalse(store.deleteService(nodeId, Id.<Service>random()));
+
+        assertEqualsIgnoreOrder(store.getAll(), transform(ImmutableSet.of(storage), toServiceWith(nodeId, blue.getLocation(), blue.getPool())));
+    }
+
     @Test
     public void testCanHandleLotsOfAnnouncements()
     {
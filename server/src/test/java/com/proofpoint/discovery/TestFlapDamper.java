@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.proofpoint.units.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestFlapDamper
+{
+    private TestingTicker ticker;
+    private FlapDamper flapDamper;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        ticker = new TestingTicker();
+        flapDamper = new FlapDamper(new DiscoveryConfig()
+                .setFlapHalfLife(new Duration(1, TimeUnit.MINUTES))
+                .setFlapSuppressThreshold(3)
+                .setFlapReuseThreshold(1),
+                ticker);
+    }
+
+    @Test
+    public void testRepeatedAnnouncementsAreNotFlaps()
+    {
+        Id<Node> nodeId = Id.random();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(flapDamper.recordAnnouncement(nodeId));
+        }
+        assertEquals(flapDamper.getFlaps().getTotalCount(), 0);
+    }
+
+    @Test
+    public void testSuppressAndReuse()
+    {
+        Id<Node> nodeId = Id.random();
+        assertTrue(flapDamper.recordAnnouncement(nodeId));
+        assertTrue(flapDamper.recordDeletion(nodeId));
+        assertTrue(flapDamper.recordAnnouncement(nodeId));
+
+        // third flap reaches the threshold: the node stays announced
+        assertFalse(flapDamper.recordDeletion(nodeId));
+        assertEquals(flapDamper.getSuppressedNodes(), 1);
+        assertEquals(flapDamper.getSuppressions().getTotalCount(), 1);
+
+        // refreshing the stored announcement is still allowed, changing a service is not
+        assertTrue(flapDamper.recordAnnouncement(nodeId));
+        assertFalse(flapDamper.recordServiceChange(nodeId));
+        assertFalse(flapDamper.recordDeletion(nodeId));
+        assertEquals(flapDamper.getSuppressedChanges().getTotalCount(), 3);
+
+        // the penalty decays to the reuse threshold in two half-lives or so
+        ticker.advance(3, TimeUnit.MINUTES);
+        assertEquals(flapDamper.getSuppressedNodes(), 0);
+        assertTrue(flapDamper.recordDeletion(nodeId));
+    }
+}
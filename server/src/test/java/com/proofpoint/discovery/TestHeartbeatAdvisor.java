@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.store.RealTimeSupplier;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestHeartbeatAdvisor
+{
+    @Test
+    public void testIdle()
+    {
+        DiscoveryConfig config = new DiscoveryConfig()
+                .setMaxAge(new Duration(80, TimeUnit.SECONDS))
+                .setHeartbeatJitter(0);
+        HeartbeatAdvisor advisor = new HeartbeatAdvisor(config, new AnnouncementIngester(new InMemoryDynamicStore(config, new RealTimeSupplier()), config), null, new TestingTicker());
+
+        assertEquals(advisor.getNextAnnouncementDelay().toMillis(), 20_000);
+        assertEquals(advisor.getBaseDelay(), 20.0);
+    }
+
+    @Test
+    public void testLoaded()
+    {
+        DiscoveryConfig config = new DiscoveryConfig()
+                .setMaxAge(new Duration(80, TimeUnit.SECONDS))
+                .setHeartbeatJitter(0)
+                .setIngestionEnabled(true)
+                .setIngestionThreads(1)
+                .setIngestionQueueSize(2);
+        AnnouncementIngester ingester = new AnnouncementIngester(new InMemoryDynamicStore(config, new RealTimeSupplier()), config);
+        HeartbeatAdvisor advisor = new HeartbeatAdvisor(config, ingester, null, new TestingTicker());
+
+        // the ingester is not started, so the queue fills up
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
+        );
+        ingester.offer(Id.<Node>random(), announcement);
+        assertEquals(advisor.getNextAnnouncementDelay().toMillis(), 30_000);
+
+        ingester.offer(Id.<Node>random(), announcement);
+        assertEquals(advisor.getNextAnnouncementDelay().toMillis(), 40_000);
+    }
+
+    @Test
+    public void testSurge()
+    {
+        DiscoveryConfig config = new DiscoveryConfig()
+                .setMaxAge(new Duration(80, TimeUnit.SECONDS))
+                .setHeartbeatJitter(0);
+        TestingTicker ticker = new TestingTicker();
+        HeartbeatAdvisor advisor = new HeartbeatAdvisor(config, new AnnouncementIngester(new InMemoryDynamicStore(config, new RealTimeSupplier()), config), null, ticker);
+
+        // a steady rate, however high, is no load
+        for (int i = 0; i < 1000; i++) {
+            ticker.advance(100, TimeUnit.MILLISECONDS);
+            advisor.getNextAnnouncementDelay();
+        }
+        assertTrue(advisor.getLoad() < 0.05, "load " + advisor.getLoad());
+
+        // ten times the usual rate for a while
+        for (int i = 0; i < 1000; i++) {
+            ticker.advance(10, TimeUnit.MILLISECONDS);
+            advisor.getNextAnnouncementDelay();
+        }
+        assertTrue(advisor.getLoad() > 0.9, "load " + advisor.getLoad());
+        assertTrue(advisor.getBaseDelay() > 38, "delay " + advisor.getBaseDelay());
+
+        // back to the usual rate
+        for (int i = 0; i < 3000; i++) {
+            ticker.advance(100, TimeUnit.MILLISECONDS);
+            advisor.getNextAnnouncementDelay();
+        }
+        assertTrue(advisor.getLoad() < 0.1, "load " + advisor.getLoad());
+    }
+
+    @Test
+    public void testJitter()
+    {
+        DiscoveryConfig config = new DiscoveryConfig()
+                .setMaxAge(new Duration(80, TimeUnit.SECONDS))
+                .setHeartbeatJitter(0.5);
+        HeartbeatAdvisor advisor = new HeartbeatAdvisor(config, new AnnouncementIngester(new InMemoryDynamicStore(config, new RealTimeSupplier()), config), new Random(42), new TestingTicker());
+
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (int i = 0; i < 1000; i++) {
+            double delay = advisor.getNextAnnouncementDelay().getValue(TimeUnit.SECONDS);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue(min >= 10 && min < 11, "min " + min);
+        assertTrue(max <= 20 && max > 19, "max " + max);
+    }
+}
@@ -49,6 +49,16 @@ public class TestId
         assertEquals(jsonCodec(Holder.class).fromJson(json).getId(), id);
     }
 
+    @Test
+    public void testBinaryBytes()
+    {
+        Id<Holder> id = Id.valueOf("9e9b8190-6abd-4890-bc12-e290ebe20a7f");
+
+        assertEquals(id.getBinaryBytes(), new byte[] {
+                (byte) 0x9e, (byte) 0x9b, (byte) 0x81, (byte) 0x90, 0x6a, (byte) 0xbd, 0x48, (byte) 0x90,
+                (byte) 0xbc, 0x12, (byte) 0xe2, (byte) 0x90, (byte) 0xeb, (byte) 0xe2, 0x0a, 0x7f});
+    }
+
     public static class Holder
     {
         private final Id<Holder> id;
@@ -62,4 +62,23 @@ public class TestInitializationTracker
         task1.complete();
         assertFalse(tracker.isPending());
     }
+
+    @Test
+    public void testStaleTask()
+    {
+        InitializationTracker tracker = new InitializationTracker();
+        CompletionNotifier task = tracker.createTask();
+        assertFalse(tracker.isStale());
+
+        task.allowStale();
+        assertFalse(tracker.isPending());
+        assertTrue(tracker.isStale());
+
+        task.complete();
+        assertFalse(tracker.isStale());
+
+        // a completed task can't become stale again
+        task.allowStale();
+        assertFalse(tracker.isStale());
+    }
 }
@@ -16,26 +16,87 @@
 package com.proofpoint.discovery;
 
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.proofpoint.discovery.store.ConflictResolver;
 import com.proofpoint.discovery.store.DistributedStore;
 import com.proofpoint.discovery.store.Entry;
 import com.proofpoint.discovery.store.InMemoryStore;
 import com.proofpoint.discovery.store.RemoteStore;
 import com.proofpoint.discovery.store.StoreConfig;
+import com.proofpoint.units.Duration;
 import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Iterables.transform;
+import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 
 public class TestReplicatedDynamicStore
     extends TestDynamicStore
 {
+    static final RemoteStore DUMMY = new RemoteStore() {
+        public void put(Entry entry) { }
+        public void touch(Entry entry) { }
+        public void putAll(Collection<Entry> entries) { }
+    };
+
     @Override
     protected DynamicStore initializeStore(DiscoveryConfig config, Supplier<DateTime> timeSupplier)
     {
-        RemoteStore dummy = new RemoteStore() {
-            public void put(Entry entry) { }
+        DistributedStore distributedStore = new DistributedStore("dynamic", new InMemoryStore(new ConflictResolver(), config), DUMMY, new StoreConfig(), timeSupplier);
+
+        return new ReplicatedDynamicStore(distributedStore, config);
+    }
+
+    @Test
+    public void testRenewKeepsConcurrentWrite()
+    {
+        DiscoveryConfig config = new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES));
+        final List<Runnable> racingWrites = new ArrayList<>();
+        InMemoryStore localStore = new InMemoryStore(new ConflictResolver(), config)
+        {
+            @Override
+            public boolean replace(Entry expected, Entry entry)
+            {
+                // a write that lands after the renewal has read the entry
+                List<Runnable> writes = ImmutableList.copyOf(racingWrites);
+                racingWrites.clear();
+                for (Runnable write : writes) {
+                    write.run();
+                }
+                return super.replace(expected, entry);
+            }
         };
+        final DynamicStore racingStore = new ReplicatedDynamicStore(new DistributedStore("dynamic", localStore, DUMMY, new StoreConfig(), currentTime), config);
 
-        DistributedStore distributedStore = new DistributedStore("dynamic", new InMemoryStore(new ConflictResolver(), config), dummy, new StoreConfig(), timeSupplier);
+        final Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))));
+        final DynamicAnnouncement red = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:2222"))));
 
-        return new ReplicatedDynamicStore(distributedStore, config);
+        assertTrue(racingStore.put(nodeId, blue));
+        String version = racingStore.getVersion(nodeId);
+        currentTime.increment();
+
+        racingWrites.add(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                racingStore.put(nodeId, red);
+            }
+        });
+        assertFalse(racingStore.renew(nodeId, version));
+        assertEquals(racingStore.getAll(), ImmutableSet.copyOf(transform(red.getServiceAnnouncements(), toServiceWith(nodeId, red.getLocation(), red.getPool()))));
     }
 }
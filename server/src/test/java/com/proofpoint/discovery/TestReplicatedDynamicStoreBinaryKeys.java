@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.store.ConflictResolver;
+import com.proofpoint.discovery.store.DistributedStore;
+import com.proofpoint.discovery.store.Entry;
+import com.proofpoint.discovery.store.InMemoryStore;
+import com.proofpoint.discovery.store.RemoteStore;
+import com.proofpoint.discovery.store.StoreConfig;
+import com.proofpoint.units.Duration;
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Iterables.transform;
+import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
+import static com.proofpoint.testing.Assertions.assertEqualsIgnoreOrder;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestReplicatedDynamicStoreBinaryKeys
+    extends TestDynamicStore
+{
+    private DistributedStore distributedStore;
+
+    @Override
+    protected DynamicStore initializeStore(DiscoveryConfig config, Supplier<DateTime> timeSupplier)
+    {
+        RemoteStore dummy = new RemoteStore() {
+            public void put(Entry entry) { }
+            public void touch(Entry entry) { }
+            public void putAll(Collection<Entry> entries) { }
+        };
+
+        distributedStore = new DistributedStore("dynamic", new InMemoryStore(new ConflictResolver(), config), dummy, new StoreConfig(), timeSupplier);
+
+        return new ReplicatedDynamicStore(distributedStore, config.setServiceLayout(true).setDynamicBinaryKeys(true));
+    }
+
+    @Test
+    public void testMigratesTextKeys()
+    {
+        DynamicStore textStore = new ReplicatedDynamicStore(distributedStore, new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)));
+
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))));
+        assertTrue(textStore.put(nodeId, blue));
+        currentTime.increment();
+
+        assertEqualsIgnoreOrder(store.getAll(), transform(blue.getServiceAnnouncements(), toServiceWith(nodeId, blue.getLocation(), blue.getPool())));
+        assertNotNull(store.getVersion(nodeId));
+
+        DynamicAnnouncement red = new DynamicAnnouncement("testing", "poolB", "/US/West/SC4/rack1/host1/vm1/slot2", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222"))));
+        assertTrue(store.put(nodeId, red));
+        currentTime.increment();
+
+        assertEqualsIgnoreOrder(store.getAll(), transform(red.getServiceAnnouncements(), toServiceWith(nodeId, red.getLocation(), red.getPool())));
+        for (Entry entry : distributedStore.getAll()) {
+            assertTrue(entry.getKey().length < KeyFormat.TEXT.getIdLength(), "key of " + entry.getKey().length + " bytes");
+        }
+    }
+
+    @Test
+    public void testDeleteTextKeys()
+    {
+        DynamicStore textStore = new ReplicatedDynamicStore(distributedStore, new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)));
+
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))));
+        assertTrue(textStore.put(nodeId, blue));
+        currentTime.increment();
+
+        assertTrue(store.delete(nodeId));
+
+        assertTrue(store.getAll().isEmpty(), "store should be empty");
+    }
+
+    @Test
+    public void testIgnoresTextKeysWithoutMigration()
+    {
+        DynamicStore textStore = new ReplicatedDynamicStore(distributedStore, new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)));
+        DynamicStore binaryStore = new ReplicatedDynamicStore(distributedStore, new DiscoveryConfig()
+                .setMaxAge(new Duration(1, TimeUnit.MINUTES))
+                .setServiceLayout(true)
+                .setDynamicBinaryKeys(true)
+                .setDynamicKeyMigration(false));
+
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))));
+        assertTrue(textStore.put(nodeId, blue));
+        currentTime.increment();
+
+        // only the keys of the configured format are looked up; the text keys expire
+        assertNull(binaryStore.getVersion(nodeId));
+        assertNotNull(store.getVersion(nodeId));
+    }
+}
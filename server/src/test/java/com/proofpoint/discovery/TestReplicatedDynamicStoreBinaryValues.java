@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.store.ConflictResolver;
+import com.proofpoint.discovery.store.DistributedStore;
+import com.proofpoint.discovery.store.Entry;
+import com.proofpoint.discovery.store.InMemoryStore;
+import com.proofpoint.discovery.store.StoreConfig;
+import com.proofpoint.units.Duration;
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Iterables.transform;
+import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
+import static com.proofpoint.testing.Assertions.assertEqualsIgnoreOrder;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestReplicatedDynamicStoreBinaryValues
+    extends TestReplicatedDynamicStore
+{
+    private DistributedStore distributedStore;
+
+    @Override
+    protected DynamicStore initializeStore(DiscoveryConfig config, Supplier<DateTime> timeSupplier)
+    {
+        distributedStore = new DistributedStore("dynamic", new InMemoryStore(new ConflictResolver(), config), DUMMY, new StoreConfig(), timeSupplier);
+
+        return new ReplicatedDynamicStore(distributedStore, config.setBinaryValues(true));
+    }
+
+    @Test
+    public void testReadsValuesOfBothFormats()
+    {
+        DynamicStore jsonStore = new ReplicatedDynamicStore(distributedStore, new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)));
+
+        Id<Node> blueNodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))));
+        assertTrue(jsonStore.put(blueNodeId, blue));
+
+        Id<Node> redNodeId = Id.random();
+        DynamicAnnouncement red = new DynamicAnnouncement("testing", "poolB", "/US/West/SC4/rack1/host1/vm1/slot2", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222", "custom", "value"))));
+        assertTrue(store.put(redNodeId, red));
+        currentTime.increment();
+
+        // a JSON value and a binary value side by side, read the same by either store
+        assertEquals(formatOf(blueNodeId), (byte) '[');
+        assertEquals(formatOf(redNodeId), ServiceCodec.BINARY_FORMAT);
+        Iterable<Service> expected = ImmutableSet.<Service>builder()
+                .addAll(transform(blue.getServiceAnnouncements(), toServiceWith(blueNodeId, blue.getLocation(), blue.getPool())))
+                .addAll(transform(red.getServiceAnnouncements(), toServiceWith(redNodeId, red.getLocation(), red.getPool())))
+                .build();
+        assertEqualsIgnoreOrder(store.getAll(), expected);
+        assertEqualsIgnoreOrder(jsonStore.getAll(), expected);
+
+        // a renewal keeps the stored format, a write replaces it
+        assertTrue(store.renew(blueNodeId, store.getVersion(blueNodeId)));
+        assertEquals(formatOf(blueNodeId), (byte) '[');
+        currentTime.increment();
+        assertTrue(store.put(blueNodeId, blue));
+        assertEquals(formatOf(blueNodeId), ServiceCodec.BINARY_FORMAT);
+        assertEqualsIgnoreOrder(jsonStore.getAll(), expected);
+    }
+
+    private byte formatOf(Id<Node> nodeId)
+    {
+        for (Entry entry : distributedStore.getAll()) {
+            if (Arrays.equals(entry.getKey(), KeyFormat.TEXT.encode(nodeId))) {
+                return entry.getValue()[0];
+            }
+        }
+        throw new AssertionError("nothing stored for node " + nodeId);
+    }
+}
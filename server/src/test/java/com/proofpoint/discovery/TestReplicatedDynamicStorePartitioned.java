@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.client.ServiceSelector;
+import com.proofpoint.discovery.store.ConflictResolver;
+import com.proofpoint.discovery.store.DistributedStore;
+import com.proofpoint.discovery.store.Entry;
+import com.proofpoint.discovery.store.InMemoryReplicationTransport;
+import com.proofpoint.discovery.store.InMemoryStore;
+import com.proofpoint.discovery.store.LocalStore;
+import com.proofpoint.discovery.store.PartitionedReader;
+import com.proofpoint.discovery.store.Partitioner;
+import com.proofpoint.discovery.store.RemoteStore;
+import com.proofpoint.discovery.store.ReplicationEndpoint;
+import com.proofpoint.discovery.store.ReplicationWatermarks;
+import com.proofpoint.discovery.store.StoreConfig;
+import com.proofpoint.discovery.store.Touch;
+import com.proofpoint.discovery.store.TouchStats;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.units.Duration;
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.collect.Iterables.transform;
+import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Runs the service layout tests on a node that owns none of the keys, so every
+ * write goes to the owner and every read of a single key is answered by it.
+ */
+public class TestReplicatedDynamicStorePartitioned
+    extends TestReplicatedDynamicStoreServiceLayout
+{
+    private LocalStore ownerStore;
+
+    @Override
+    protected DynamicStore initializeStore(DiscoveryConfig config, Supplier<DateTime> timeSupplier)
+    {
+        replicated.clear();
+
+        ownerStore = new InMemoryStore(new ConflictResolver(), config);
+        final ReplicationEndpoint owner = new ReplicationEndpoint(
+                ImmutableMap.of("dynamic", ownerStore),
+                ImmutableMap.<String, RemoteStore>of(),
+                ImmutableMap.of("dynamic", new StoreConfig()),
+                ImmutableMap.of("dynamic", new ReplicationWatermarks()),
+                ImmutableMap.of("dynamic", new TouchStats()),
+                timeSupplier,
+                new InitializationTracker());
+        InMemoryReplicationTransport transport = new InMemoryReplicationTransport();
+        transport.register("owner", owner);
+
+        ServiceDescriptor descriptor = mock(ServiceDescriptor.class);
+        when(descriptor.getNodeId()).thenReturn("owner");
+        ServiceSelector selector = mock(ServiceSelector.class);
+        when(selector.selectAllServices()).thenReturn(ImmutableList.of(descriptor));
+
+        Partitioner partitioner = mock(Partitioner.class);
+        when(partitioner.isLocal(any(byte[].class))).thenReturn(false);
+        when(partitioner.isOwner(eq("owner"), any(byte[].class))).thenReturn(true);
+
+        // every read gathers afresh, so it sees the writes the owner has applied
+        StoreConfig storeConfig = new StoreConfig().setPartitioningEnabled(true).setPartitionedReadCacheTtl(new Duration(0, TimeUnit.MILLISECONDS));
+        LocalStore localStore = new InMemoryStore(new ConflictResolver(), config);
+        PartitionedReader reader = new PartitionedReader("dynamic", new NodeInfo("testing"), selector, transport, localStore, new ConflictResolver(), partitioner, storeConfig);
+
+        RemoteStore forwarder = new RemoteStore()
+        {
+            public void put(Entry entry)
+            {
+                putAll(ImmutableList.of(entry));
+            }
+
+            public void touch(Entry entry)
+            {
+                putAll(ImmutableList.<Entry>of(new Touch(entry)));
+            }
+
+            public void putAll(Collection<Entry> entries)
+            {
+                replicated.addAll(entries);
+                ImmutableList.Builder<Entry> delivered = ImmutableList.builder();
+                for (Entry entry : entries) {
+                    // sent in full, as to an owner that may not hold the value being touched
+                    delivered.add(new Entry(entry.getKey(), entry.getValue(), entry.getTimestamp(), entry.getMaxAgeInMs()));
+                }
+                owner.receive("dynamic", delivered.build(), null, null);
+            }
+        };
+
+        DistributedStore distributedStore = new DistributedStore("dynamic", localStore, forwarder, storeConfig, timeSupplier, partitioner, reader);
+        return new ReplicatedDynamicStore(distributedStore, config.setServiceLayout(true));
+    }
+
+    @Test
+    @Override
+    public void testRenew()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))));
+        assertTrue(store.put(nodeId, blue));
+
+        // renewals only extend local entries, so the announcement is sent in full instead
+        assertNull(store.getVersion(nodeId));
+        assertFalse(store.renew(nodeId, "version"));
+        assertEquals(store.getAll(), ImmutableSet.copyOf(transform(blue.getServiceAnnouncements(), toServiceWith(nodeId, blue.getLocation(), blue.getPool()))));
+    }
+
+    @Test
+    public void testReannouncementDeletesDroppedServiceOnOwner()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"));
+        DynamicServiceAnnouncement web = new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222"));
+        DynamicAnnouncement both = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(storage, web));
+        assertTrue(store.put(nodeId, both));
+        currentTime.increment();
+
+        DynamicAnnouncement storageOnly = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(storage));
+        assertTrue(store.put(nodeId, storageOnly));
+
+        Entry dropped = ownerStore.get((nodeId + "/" + web.getId()).getBytes(UTF_8));
+        assertNotNull(dropped);
+        assertNull(dropped.getValue(), "dropped service should be deleted on its owner");
+        assertEquals(store.getAll(), ImmutableSet.copyOf(transform(storageOnly.getServiceAnnouncements(), toServiceWith(nodeId, storageOnly.getLocation(), storageOnly.getPool()))));
+    }
+
+    @Test
+    public void testPutServiceOfNodeHeldByOwner()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"));
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(storage));
+        assertTrue(store.put(nodeId, announcement));
+        currentTime.increment();
+
+        // the node is unknown locally, but its owner has it
+        DynamicServiceAnnouncement web = new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222"));
+        assertTrue(store.putService(nodeId, web));
+        currentTime.increment();
+        assertTrue(store.deleteService(nodeId, storage.getId()));
+
+        assertEquals(store.getAll(), ImmutableSet.copyOf(transform(ImmutableSet.of(web), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool()))));
+    }
+}
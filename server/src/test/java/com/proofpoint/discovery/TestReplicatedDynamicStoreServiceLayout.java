@@ -0,0 +1,226 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.store.ConflictResolver;
+import com.proofpoint.discovery.store.DistributedStore;
+import com.proofpoint.discovery.store.Entry;
+import com.proofpoint.discovery.store.InMemoryStore;
+import com.proofpoint.discovery.store.Partitioner;
+import com.proofpoint.discovery.store.RemoteStore;
+import com.proofpoint.discovery.store.StoreConfig;
+import com.proofpoint.discovery.store.Touch;
+import com.proofpoint.units.Duration;
+import org.joda.time.DateTime;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.collect.Iterables.transform;
+import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestReplicatedDynamicStoreServiceLayout
+    extends TestDynamicStore
+{
+    final List<Entry> replicated = new ArrayList<>();
+
+    @Override
+    protected DynamicStore initializeStore(DiscoveryConfig config, Supplier<DateTime> timeSupplier)
+    {
+        replicated.clear();
+        DistributedStore distributedStore = new DistributedStore("dynamic", new InMemoryStore(new ConflictResolver(), config), recorder(), new StoreConfig(), timeSupplier);
+
+        return new ReplicatedDynamicStore(distributedStore, config.setServiceLayout(true));
+    }
+
+    private RemoteStore recorder()
+    {
+        return new RemoteStore() {
+            public void put(Entry entry) { replicated.add(entry); }
+            public void touch(Entry entry) { replicated.add(new Touch(entry)); }
+            public void putAll(Collection<Entry> entries) { replicated.addAll(entries); }
+        };
+    }
+
+    @Test
+    public void testPutServiceReplicatesOnlyTheService()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"));
+        DynamicServiceAnnouncement web = new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222"));
+        assertTrue(store.put(nodeId, new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(storage, web))));
+        currentTime.increment();
+        replicated.clear();
+
+        assertTrue(store.putService(nodeId, new DynamicServiceAnnouncement(web.getId(), "web", ImmutableMap.of("http", "http://localhost:3333"))));
+
+        assertEquals(replicated.size(), 1);
+        assertEquals(new String(replicated.get(0).getKey(), UTF_8), nodeId + "/" + web.getId());
+    }
+
+    @Test
+    public void testUnchangedAnnouncementReplicatesTouches()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")),
+                new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222"))));
+        assertTrue(store.put(nodeId, blue));
+        currentTime.increment();
+        replicated.clear();
+
+        assertTrue(store.put(nodeId, blue));
+
+        // the manifest and both services
+        assertEquals(replicated.size(), 3);
+        for (Entry entry : replicated) {
+            assertTrue(entry instanceof Touch);
+        }
+    }
+
+    @Test
+    public void testNonOwnerReplicatesTouches()
+    {
+        Partitioner partitioner = mock(Partitioner.class);
+        when(partitioner.isLocal(any(byte[].class))).thenReturn(false);
+        DiscoveryConfig config = new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)).setServiceLayout(true);
+        DistributedStore distributedStore = new DistributedStore("dynamic", new InMemoryStore(new ConflictResolver(), config), recorder(), new StoreConfig(), currentTime, partitioner, null);
+        DynamicStore partitionedStore = new ReplicatedDynamicStore(distributedStore, config);
+        replicated.clear();
+
+        // the values can't be compared here, so the owners are sent touches carrying the values
+        assertTrue(partitionedStore.put(Id.<Node>random(), new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))))));
+
+        assertEquals(replicated.size(), 2);
+        for (Entry entry : replicated) {
+            assertTrue(entry instanceof Touch);
+            assertNotNull(entry.getValue());
+        }
+    }
+
+    @Test
+    public void testNoRenewalUnlessEveryKeyIsLocal()
+    {
+        // with partitioning, this node owns the manifests but none of the services
+        Partitioner partitioner = mock(Partitioner.class);
+        when(partitioner.isLocal(any(byte[].class))).thenAnswer(new Answer<Boolean>()
+        {
+            @Override
+            public Boolean answer(InvocationOnMock invocation)
+            {
+                byte[] key = (byte[]) invocation.getArguments()[0];
+                return key[key.length - 1] == '/';
+            }
+        });
+        DiscoveryConfig config = new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)).setServiceLayout(true);
+        DistributedStore distributedStore = new DistributedStore("dynamic", new InMemoryStore(new ConflictResolver(), config), recorder(), new StoreConfig(), currentTime, partitioner, null);
+        DynamicStore partitionedStore = new ReplicatedDynamicStore(distributedStore, config);
+
+        Id<Node> nodeId = Id.random();
+        assertTrue(partitionedStore.put(nodeId, new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))))));
+        currentTime.increment();
+        replicated.clear();
+
+        // renewals are refused, so the announcement is sent in full and forwarded to the owners
+        assertNull(partitionedStore.getVersion(nodeId));
+        assertFalse(partitionedStore.renew(nodeId, "version"));
+        assertTrue(replicated.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentServiceUpdatesKeepEachOther()
+            throws InterruptedException
+    {
+        DiscoveryConfig config = new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)).setServiceLayout(true);
+        final AtomicReference<Runnable> racingWrite = new AtomicReference<>();
+        InMemoryStore localStore = new InMemoryStore(new ConflictResolver(), config)
+        {
+            @Override
+            public void put(Entry entry)
+            {
+                // another request for the node arrives once this one has read what is stored
+                Runnable write = racingWrite.getAndSet(null);
+                if (write != null) {
+                    write.run();
+                }
+                super.put(entry);
+            }
+        };
+        final DynamicStore racingStore = new ReplicatedDynamicStore(new DistributedStore("dynamic", localStore, recorder(), new StoreConfig(), currentTime), config);
+
+        final Id<Node> nodeId = Id.random();
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"));
+        final DynamicServiceAnnouncement web = new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222"));
+        DynamicServiceAnnouncement admin = new DynamicServiceAnnouncement(Id.<Service>random(), "admin", ImmutableMap.of("http", "http://localhost:3333"));
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(storage));
+        assertTrue(racingStore.put(nodeId, announcement));
+        currentTime.increment();
+
+        final Thread racer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                racingStore.putService(nodeId, web);
+            }
+        };
+        racingWrite.set(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                racer.start();
+                try {
+                    // returns at once unless the racing update waits for this one
+                    racer.join(100);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                currentTime.increment();
+            }
+        });
+        assertTrue(racingStore.putService(nodeId, admin));
+        racer.join();
+
+        assertEquals(racingStore.getAll(), ImmutableSet.copyOf(transform(ImmutableSet.of(storage, web, admin), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool()))));
+
+        // both services are listed for the node
+        currentTime.increment();
+        assertTrue(racingStore.deleteService(nodeId, web.getId()));
+        assertTrue(racingStore.deleteService(nodeId, admin.getId()));
+    }
+}
@@ -16,6 +16,8 @@
 package com.proofpoint.discovery;
 
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.proofpoint.discovery.store.ConflictResolver;
 import com.proofpoint.discovery.store.DistributedStore;
 import com.proofpoint.discovery.store.Entry;
@@ -24,21 +26,48 @@ import com.proofpoint.discovery.store.RemoteStore;
 import com.proofpoint.discovery.store.StoreConfig;
 import com.proofpoint.units.Duration;
 import org.joda.time.DateTime;
+import org.testng.annotations.Test;
 
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 
+import static org.testng.Assert.assertEquals;
+
 public class TestReplicatedStaticStore
     extends TestStaticStore
 {
+    private DiscoveryConfig config;
+    private DistributedStore distributedStore;
+
     @Override
     protected StaticStore initializeStore(Supplier<DateTime> timeSupplier)
     {
         RemoteStore dummy = new RemoteStore() {
             public void put(Entry entry) { }
+            public void touch(Entry entry) { }
+            public void putAll(Collection<Entry> entries) { }
         };
-        DiscoveryConfig config = new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES));
-        DistributedStore distributedStore = new DistributedStore("static", new InMemoryStore(new ConflictResolver(), config), dummy, new StoreConfig(), timeSupplier);
+        config = new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES));
+        distributedStore = new DistributedStore("static", new InMemoryStore(new ConflictResolver(), config), dummy, new StoreConfig(), timeSupplier);
+
+        return new ReplicatedStaticStore(distributedStore, config);
+    }
+
+    @Test
+    public void testMigrateKeys()
+    {
+        Service blue = new Service(Id.<Service>random(), null, "storage", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableMap.of("http", "http://localhost:1111"));
+        store.put(blue);
+        currentTime.increment();
+
+        ReplicatedStaticStore binaryStore = new ReplicatedStaticStore(distributedStore, config.setStaticBinaryKeys(true));
+        assertEquals(binaryStore.getAll(), ImmutableSet.of(blue));
+
+        binaryStore.migrateKeys();
 
-        return new ReplicatedStaticStore(distributedStore);
+        assertEquals(binaryStore.getAll(), ImmutableSet.of(blue));
+        for (Entry entry : distributedStore.getAll()) {
+            assertEquals(entry.getKey(), blue.getId().getBinaryBytes());
+        }
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.proofpoint.json.JsonCodec;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestServiceCodec
+{
+    private static final List<Service> SERVICES = ImmutableList.of(
+            new Service(Id.<Service>random(), Id.<Node>random(), "storage", "general", "/a/b/c",
+                    ImmutableMap.of("http", "http://localhost:1111", "custom", "x")),
+            new Service(Id.<Service>random(), Id.<Node>random(), "web", "general", "/a/b/c",
+                    ImmutableMap.of("https", "https://localhost:2222", "custom", "y", "other", "\u00e9")),
+            new Service(Id.<Service>random(), null, "static", "alpha", "/x",
+                    ImmutableMap.<String, String>of()));
+
+    @Test
+    public void testBinaryRoundTrip()
+    {
+        ServiceCodec codec = new ServiceCodec(true);
+        byte[] value = codec.encode(SERVICES);
+
+        assertEquals(value[0], ServiceCodec.BINARY_FORMAT);
+        assertServicesEqual(codec.decode(value), SERVICES);
+        assertServicesEqual(codec.decode(codec.encode(SERVICES.get(0))), SERVICES.subList(0, 1));
+    }
+
+    @Test
+    public void testBinaryIsSmaller()
+    {
+        byte[] binary = new ServiceCodec(true).encode(SERVICES);
+        byte[] json = new ServiceCodec(false).encode(SERVICES);
+
+        assertTrue(binary.length * 2 < json.length, "binary is " + binary.length + " bytes, JSON is " + json.length);
+    }
+
+    @Test
+    public void testReadsJson()
+    {
+        ServiceCodec codec = new ServiceCodec(true);
+
+        assertServicesEqual(codec.decode(JsonCodec.listJsonCodec(Service.class).toJsonBytes(SERVICES)), SERVICES);
+        assertServicesEqual(codec.decode(JsonCodec.jsonCodec(Service.class).toJsonBytes(SERVICES.get(2))), SERVICES.subList(2, 3));
+    }
+
+    @Test
+    public void testWritesJson()
+    {
+        ServiceCodec codec = new ServiceCodec(false);
+
+        assertServicesEqual(JsonCodec.listJsonCodec(Service.class).fromJson(codec.encode(SERVICES)), SERVICES);
+        assertServicesEqual(ImmutableList.of(JsonCodec.jsonCodec(Service.class).fromJson(codec.encode(SERVICES.get(0)))), SERVICES.subList(0, 1));
+    }
+
+    @Test
+    public void testTruncated()
+    {
+        ServiceCodec codec = new ServiceCodec(true);
+        byte[] value = codec.encode(SERVICES);
+
+        for (int length = 1; length < value.length; length++) {
+            try {
+                codec.decode(Arrays.copyOf(value, length));
+                fail("expected IllegalArgumentException for length " + length);
+            }
+            catch (IllegalArgumentException ignored) {
+            }
+        }
+    }
+
+    private static void assertServicesEqual(List<Service> actual, List<Service> expected)
+    {
+        assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(actual.get(i).getId(), expected.get(i).getId());
+            assertEquals(actual.get(i).getNodeId(), expected.get(i).getNodeId());
+            assertEquals(actual.get(i).getType(), expected.get(i).getType());
+            assertEquals(actual.get(i).getPool(), expected.get(i).getPool());
+            assertEquals(actual.get(i).getLocation(), expected.get(i).getLocation());
+            assertEquals(actual.get(i).getProperties(), expected.get(i).getProperties());
+        }
+    }
+}
@@ -21,7 +21,7 @@ import org.joda.time.DateTime;
 
 import java.util.concurrent.atomic.AtomicLong;
 
-class TestingTimeSupplier
+public class TestingTimeSupplier
         implements Supplier<DateTime>
 {
     private final AtomicLong currentTime = new AtomicLong(System.currentTimeMillis());
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Compares the version 2 replication wire format with the Smile databind encoding
+ * for a batch of announcement-sized entries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkEntryCodec
+{
+    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory()).disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    @Param({"1", "100", "1000"})
+    private int batchSize;
+
+    private List<Entry> entries;
+    private byte[] smile;
+    private byte[] binary;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        Random random = new Random(0);
+        entries = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            String value = "{\"nodeId\":\"" + UUID.randomUUID() + "\",\"pool\":\"general\",\"location\":\"/" + random.nextInt(100) + "\"," +
+                    "\"services\":[{\"id\":\"" + UUID.randomUUID() + "\",\"type\":\"storage\"," +
+                    "\"properties\":{\"http\":\"http://10.0." + random.nextInt(256) + "." + random.nextInt(256) + ":8080\"}}]}";
+            entries.add(new Entry(UUID.randomUUID().toString().getBytes(UTF_8), value.getBytes(UTF_8), System.currentTimeMillis(), 30_000L));
+        }
+        smile = mapper.writeValueAsBytes(entries);
+        binary = encodeBinary();
+    }
+
+    @Benchmark
+    public byte[] encodeSmile()
+            throws IOException
+    {
+        return mapper.writeValueAsBytes(entries);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary()
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EntryCodec.writeEntries(entries, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public List<Entry> decodeSmile()
+            throws IOException
+    {
+        return mapper.readValue(smile, new TypeReference<List<Entry>>() {});
+    }
+
+    @Benchmark
+    public List<Entry> decodeBinary()
+            throws IOException
+    {
+        return EntryCodec.readEntries(new ByteArrayInputStream(binary));
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .include(".*" + BenchmarkEntryCodec.class.getSimpleName() + ".*")
+                .build();
+        new Runner(options).run();
+    }
+}
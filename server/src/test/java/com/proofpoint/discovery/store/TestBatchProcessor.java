@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.proofpoint.discovery.store.BatchProcessor.BatchHandler;
+import com.proofpoint.discovery.store.BatchProcessor.Weigher;
+import com.proofpoint.units.DataSize;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.discovery.store.SmileMapper.VALIDATOR;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestBatchProcessor
+{
+    private static final Weigher<String> LENGTH = new Weigher<String>()
+    {
+        @Override
+        public int weigh(String entry)
+        {
+            return entry.length();
+        }
+    };
+
+    private final List<List<String>> batches = new ArrayList<>();
+    private final BatchHandler<String> recorder = new BatchHandler<String>()
+    {
+        @Override
+        public void processBatch(Collection<String> entries)
+        {
+            batches.add(ImmutableList.copyOf(entries));
+        }
+    };
+
+    @Test
+    public void testMaxBatchSize()
+            throws InterruptedException
+    {
+        BlockingQueue<String> queue = queueOf("a", "b", "c");
+        BatchProcessor<String> processor = new BatchProcessor<>("test", recorder, 2, Long.MAX_VALUE, null, new Duration(0, TimeUnit.MILLISECONDS), queue);
+
+        assertEquals(processor.takeBatch(), ImmutableList.of("a", "b"));
+        assertEquals(processor.takeBatch(), ImmutableList.of("c"));
+    }
+
+    @Test
+    public void testMaxBatchBytesCarriesOverEntry()
+            throws InterruptedException
+    {
+        BlockingQueue<String> queue = queueOf("aaa", "bbb", "cccc", "d");
+        BatchProcessor<String> processor = new BatchProcessor<>("test", recorder, 100, 7, LENGTH, new Duration(0, TimeUnit.MILLISECONDS), queue);
+
+        // "cccc" would make the first batch 10 bytes, so it starts the second batch
+        assertEquals(processor.takeBatch(), ImmutableList.of("aaa", "bbb"));
+        assertEquals(processor.takeBatch(), ImmutableList.of("cccc", "d"));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testHeavyEntryIsSentAlone()
+            throws InterruptedException
+    {
+        BlockingQueue<String> queue = queueOf("aaaaaaaaaa", "b");
+        BatchProcessor<String> processor = new BatchProcessor<>("test", recorder, 100, 5, LENGTH, new Duration(0, TimeUnit.MILLISECONDS), queue);
+
+        assertEquals(processor.takeBatch(), ImmutableList.of("aaaaaaaaaa"));
+        assertEquals(processor.takeBatch(), ImmutableList.of("b"));
+    }
+
+    @Test
+    public void testLingerWaitsForEntries()
+            throws InterruptedException
+    {
+        final BlockingQueue<String> queue = queueOf("a");
+        BatchProcessor<String> processor = new BatchProcessor<>("test", recorder, 2, Long.MAX_VALUE, null, new Duration(10, TimeUnit.SECONDS), queue);
+
+        Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                queue.add("b");
+            }
+        };
+        producer.start();
+
+        // the batch is full before the linger time is up
+        assertEquals(processor.takeBatch(), ImmutableList.of("a", "b"));
+        producer.join();
+    }
+
+    @Test
+    public void testLingerTimesOut()
+            throws InterruptedException
+    {
+        BlockingQueue<String> queue = queueOf("a");
+        BatchProcessor<String> processor = new BatchProcessor<>("test", recorder, 2, Long.MAX_VALUE, null, new Duration(50, TimeUnit.MILLISECONDS), queue);
+
+        long start = System.nanoTime();
+        assertEquals(processor.takeBatch(), ImmutableList.of("a"));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testDrain()
+    {
+        BlockingQueue<String> queue = queueOf("aaa", "bbb", "cccc", "d");
+        BatchProcessor<String> processor = new BatchProcessor<>("test", recorder, 100, 7, LENGTH, new Duration(0, TimeUnit.MILLISECONDS), queue);
+
+        assertEquals(processor.drain(), 4);
+        assertEquals(batches, ImmutableList.of(ImmutableList.of("aaa", "bbb"), ImmutableList.of("cccc", "d")));
+        assertEquals(processor.getProcessedEntries().getTotalCount(), 4);
+    }
+
+    @Test
+    public void testMaxBatchBytesMustBePositive()
+    {
+        assertFalse(VALIDATOR.validate(new StoreConfig().setMaxBatchBytes(new DataSize(0, DataSize.Unit.BYTE))).isEmpty());
+        assertTrue(VALIDATOR.validate(new StoreConfig().setMaxBatchBytes(new DataSize(1, DataSize.Unit.BYTE))).isEmpty());
+    }
+
+    private static BlockingQueue<String> queueOf(String... entries)
+    {
+        BlockingQueue<String> queue = new ArrayBlockingQueue<>(10);
+        for (String entry : entries) {
+            queue.add(entry);
+        }
+        return queue;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.proofpoint.discovery.TestingTicker;
+import com.proofpoint.discovery.store.CircuitBreaker.State;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestCircuitBreaker
+{
+    private TestingTicker ticker;
+    private CircuitBreaker circuitBreaker;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        ticker = new TestingTicker();
+        circuitBreaker = new CircuitBreaker(2, new Duration(1, TimeUnit.SECONDS), new Duration(3, TimeUnit.SECONDS), ticker);
+    }
+
+    @Test
+    public void testOpensAfterThreshold()
+    {
+        circuitBreaker.recordFailure();
+        assertTrue(circuitBreaker.allowRequest());
+
+        circuitBreaker.recordFailure();
+        assertEquals(circuitBreaker.getState(), State.OPEN);
+        assertFalse(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void testHalfOpenAfterBackoff()
+    {
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+
+        ticker.advance(999, TimeUnit.MILLISECONDS);
+        assertFalse(circuitBreaker.allowRequest());
+
+        ticker.advance(1, TimeUnit.MILLISECONDS);
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(circuitBreaker.getState(), State.HALF_OPEN);
+
+        // only one trial request at a time
+        assertFalse(circuitBreaker.allowRequest());
+
+        assertTrue(circuitBreaker.recordSuccess());
+        assertEquals(circuitBreaker.getState(), State.CLOSED);
+        assertEquals(circuitBreaker.getConsecutiveFailures(), 0);
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void testBackoffGrowsUpToMaximum()
+    {
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+
+        // failed trials double the backoff: 1s, 2s, 3s (capped), 3s
+        long[] expectedBackoffs = {1000, 2000, 3000, 3000};
+        for (long backoff : expectedBackoffs) {
+            ticker.advance(backoff - 1, TimeUnit.MILLISECONDS);
+            assertFalse(circuitBreaker.allowRequest());
+            ticker.advance(1, TimeUnit.MILLISECONDS);
+            assertTrue(circuitBreaker.allowRequest());
+            circuitBreaker.recordFailure();
+        }
+    }
+
+    @Test
+    public void testSuccessWhenHealthy()
+    {
+        assertFalse(circuitBreaker.recordSuccess());
+    }
+}
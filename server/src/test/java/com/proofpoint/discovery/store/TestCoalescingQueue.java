@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.proofpoint.discovery.store.BatchProcessor.Coalescer;
+import com.proofpoint.stats.CounterStat;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestCoalescingQueue
+{
+    private CounterStat coalescedEntries;
+    private CoalescingQueue<Entry> queue;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        final ConflictResolver resolver = new ConflictResolver();
+        coalescedEntries = new CounterStat();
+        queue = new CoalescingQueue<>(2, new Coalescer<Entry>()
+        {
+            @Override
+            public Object getKey(Entry entry)
+            {
+                return ByteBuffer.wrap(entry.getKey());
+            }
+
+            @Override
+            public Entry coalesce(Entry pending, Entry entry)
+            {
+                return resolver.resolve(pending, entry);
+            }
+        }, coalescedEntries);
+    }
+
+    @Test
+    public void testKeepsNewestEntryPerKey()
+    {
+        Entry blue1 = entryOf("blue", "apple", 1);
+        Entry red = entryOf("red", "cherry", 1);
+        Entry blue3 = entryOf("blue", "banana", 3);
+        Entry blue2 = entryOf("blue", "grape", 2);
+
+        assertTrue(queue.offer(blue1));
+        assertTrue(queue.offer(red));
+        assertTrue(queue.offer(blue3));
+        assertTrue(queue.offer(blue2));
+
+        assertEquals(queue.size(), 2);
+        assertEquals(coalescedEntries.getTotalCount(), 2);
+
+        // coalesced entries keep the position of the first pending entry for the key
+        List<Entry> drained = new ArrayList<>();
+        queue.drainTo(drained);
+        assertEquals(drained, ImmutableList.of(blue3, red));
+    }
+
+    @Test
+    public void testCapacityBoundsDistinctKeys()
+    {
+        assertTrue(queue.offer(entryOf("blue", "apple", 1)));
+        assertTrue(queue.offer(entryOf("red", "cherry", 1)));
+        assertFalse(queue.offer(entryOf("green", "lime", 1)));
+
+        // existing keys can still be updated when full
+        assertTrue(queue.offer(entryOf("red", "cherry", 2)));
+        assertEquals(queue.remainingCapacity(), 0);
+    }
+
+    @Test
+    public void testPollTimesOut()
+            throws InterruptedException
+    {
+        assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+
+        Entry entry = entryOf("blue", "apple", 1);
+        queue.offer(entry);
+        assertEquals(queue.poll(1, TimeUnit.MILLISECONDS), entry);
+        assertTrue(queue.isEmpty());
+    }
+
+    private static Entry entryOf(String key, String value, long timestamp)
+    {
+        return new Entry(key.getBytes(UTF_8), value.getBytes(UTF_8), timestamp, 60_000L);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestConsistentHashRing
+{
+    @Test
+    public void testDistinctOwners()
+    {
+        ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.of("a", "b", "c"), 10);
+
+        List<String> owners = ring.getOwners(key(1), 2);
+        assertEquals(owners.size(), 2);
+        assertEquals(ImmutableSet.copyOf(owners).size(), 2);
+
+        // asking for more owners than nodes returns every node
+        assertEquals(ImmutableSet.copyOf(ring.getOwners(key(1), 5)), ImmutableSet.of("a", "b", "c"));
+    }
+
+    @Test
+    public void testEmptyRing()
+    {
+        ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.<String>of(), 10);
+        assertTrue(ring.getOwners(key(1), 2).isEmpty());
+    }
+
+    @Test
+    public void testAddingNodeOnlyMovesItsKeys()
+    {
+        ConsistentHashRing before = new ConsistentHashRing(ImmutableList.of("a", "b", "c"), 100);
+        ConsistentHashRing after = new ConsistentHashRing(ImmutableList.of("a", "b", "c", "d"), 100);
+
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            String owner = before.getOwners(key(i), 1).get(0);
+            String newOwner = after.getOwners(key(i), 1).get(0);
+            if (!owner.equals(newOwner)) {
+                assertEquals(newOwner, "d");
+                moved++;
+            }
+        }
+
+        // roughly a quarter of the keys should move to the new node
+        assertTrue(moved > 100 && moved < 450, "moved " + moved);
+    }
+
+    private static byte[] key(int i)
+    {
+        return ("node-" + i).getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestEntryCodec
+{
+    private static final List<Entry> ENTRIES = ImmutableList.of(
+            new Entry("blue".getBytes(UTF_8), "apple".getBytes(UTF_8), 1, 60_000L),
+            new Entry("red".getBytes(UTF_8), new byte[0], 2, null),
+            new Entry("yellow".getBytes(UTF_8), null, 3, null));
+
+    @Test
+    public void testRoundTrip()
+            throws IOException
+    {
+        assertEquals(EntryCodec.readEntries(new ByteArrayInputStream(encode(ENTRIES))), ENTRIES);
+        assertEquals(EntryCodec.readEntries(new ByteArrayInputStream(encode(ImmutableList.<Entry>of()))), ImmutableList.of());
+    }
+
+    @Test
+    public void testTouches()
+            throws IOException
+    {
+        Entry entry = new Entry("blue".getBytes(UTF_8), "apple".getBytes(UTF_8), 5, 60_000L);
+        List<Entry> touches = ImmutableList.<Entry>of(new Touch(entry));
+
+        // sent in full unless the peer applies touches
+        assertEquals(EntryCodec.readEntries(new ByteArrayInputStream(encode(touches))), ImmutableList.of(entry));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EntryCodec.writeEntries(touches, out, true);
+        List<Entry> decoded = EntryCodec.readEntries(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(decoded.size(), 1);
+        assertTrue(decoded.get(0) instanceof Touch);
+
+        Touch touch = (Touch) decoded.get(0);
+        assertEquals(touch.getValue(), null);
+        assertEquals(touch.applyTo(new Entry("blue".getBytes(UTF_8), "apple".getBytes(UTF_8), 1, 60_000L)), entry);
+        assertEquals(touch.applyTo(new Entry("blue".getBytes(UTF_8), "banana".getBytes(UTF_8), 1, 60_000L)), null);
+    }
+
+    @Test
+    public void testSkipsUnknownFields()
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(8 + 8 + 4 + 4 + 4 + 3);
+        output.writeLong(1);
+        output.writeLong(-1);
+        output.writeInt(4);
+        output.write("blue".getBytes(UTF_8));
+        output.writeInt(-1);
+        output.write(new byte[] {1, 2, 3});
+        output.writeInt(-1);
+
+        assertEquals(EntryCodec.readEntries(new ByteArrayInputStream(bytes.toByteArray())),
+                ImmutableList.of(new Entry("blue".getBytes(UTF_8), null, 1, null)));
+    }
+
+    @Test(expectedExceptions = EOFException.class)
+    public void testTruncated()
+            throws IOException
+    {
+        byte[] encoded = encode(ENTRIES);
+        EntryCodec.readEntries(new ByteArrayInputStream(Arrays.copyOf(encoded, encoded.length - 4)));
+    }
+
+    @Test(expectedExceptions = StreamCorruptedException.class)
+    public void testFieldLongerThanFrame()
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(8 + 8 + 4 + 4);
+        output.writeLong(1);
+        output.writeLong(-1);
+        output.writeInt(100);
+
+        EntryCodec.readEntries(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test
+    public void testAccepted()
+    {
+        assertTrue(EntryCodec.isAccepted(EntryCodec.ACCEPT));
+        assertTrue(EntryCodec.isAccepted("application/json, Application/X-Proofpoint-Replication-V2;q=0.9"));
+        assertFalse(EntryCodec.isAccepted("application/x-jackson-smile"));
+        assertFalse(EntryCodec.isAccepted(null));
+    }
+
+    private static byte[] encode(List<Entry> entries)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EntryCodec.writeEntries(entries, out);
+        return out.toByteArray();
+    }
+}
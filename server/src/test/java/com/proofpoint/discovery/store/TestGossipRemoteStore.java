@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.proofpoint.discovery.DiscoveryConfig;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.client.ServiceSelector;
+import com.proofpoint.http.client.AsyncHttpClient;
+import com.proofpoint.http.client.Request;
+import com.proofpoint.http.client.ResponseHandler;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.units.Duration;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+public class TestGossipRemoteStore
+{
+    private LocalStore localStore;
+    private ServiceSelector selector;
+    private AsyncHttpClient httpClient;
+    private GossipRemoteStore gossip;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        localStore = new InMemoryStore(new ConflictResolver(), new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)));
+        selector = mock(ServiceSelector.class);
+        httpClient = mock(AsyncHttpClient.class);
+        gossip = new GossipRemoteStore("dynamic",
+                new NodeInfo("test"),
+                selector,
+                new StoreConfig().setGossipTtl(2),
+                httpClient,
+                new ConflictResolver(),
+                localStore);
+    }
+
+    @Test
+    public void testLocalWriteIsQueued()
+    {
+        gossip.put(entryOf("blue", "apple", 1));
+        gossip.put(entryOf("blue", "banana", 2));
+
+        assertEquals(gossip.getPendingEntries(), 1);
+    }
+
+    @Test
+    public void testNewEntryIsAppliedAndForwarded()
+    {
+        Entry entry = entryOf("blue", "apple", 1);
+        gossip.receive(entry, 1);
+
+        assertEquals(localStore.get(entry.getKey()), entry);
+        assertEquals(gossip.getPendingEntries(), 1);
+    }
+
+    @Test
+    public void testDuplicateIsNotForwarded()
+    {
+        Entry entry = entryOf("blue", "apple", 2);
+        gossip.receive(entry, 1);
+        gossip.receive(entry, 1);
+        gossip.receive(entryOf("blue", "banana", 1), 1);
+
+        assertEquals(localStore.get(entry.getKey()), entry);
+        assertEquals(gossip.getDuplicateEntries().getTotalCount(), 2);
+        assertEquals(gossip.getPendingEntries(), 1);
+    }
+
+    @Test
+    public void testNoHopsRemaining()
+    {
+        Entry entry = entryOf("blue", "apple", 1);
+        gossip.receive(entry, 0);
+
+        assertEquals(localStore.get(entry.getKey()), entry);
+        assertEquals(gossip.getPendingEntries(), 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testPeerWithoutHttpIsSkipped()
+    {
+        when(selector.selectAllServices()).thenReturn(ImmutableList.of(
+                peerOf("no-http", ImmutableMap.<String, String>of()),
+                peerOf("peer", ImmutableMap.of("http", "http://peer:8080"))));
+        when(httpClient.executeAsync(any(Request.class), any(ResponseHandler.class))).thenThrow(new RuntimeException("unreachable"));
+
+        gossip.put(entryOf("blue", "apple", 1));
+        gossip.gossip();
+
+        // the round still reaches the peer that can be addressed
+        ArgumentCaptor<Request> request = ArgumentCaptor.forClass(Request.class);
+        verify(httpClient).executeAsync(request.capture(), any(ResponseHandler.class));
+        assertEquals(request.getValue().getUri(), URI.create("http://peer:8080/v1/store/dynamic"));
+        assertEquals(gossip.getPendingEntries(), 0);
+    }
+
+    private static ServiceDescriptor peerOf(String nodeId, Map<String, String> properties)
+    {
+        ServiceDescriptor descriptor = mock(ServiceDescriptor.class);
+        when(descriptor.getNodeId()).thenReturn(nodeId);
+        when(descriptor.getProperties()).thenReturn(properties);
+        return descriptor;
+    }
+
+    private static Entry entryOf(String key, String value, long timestamp)
+    {
+        return new Entry(key.getBytes(UTF_8), value.getBytes(UTF_8), timestamp, 60_000L);
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.proofpoint.discovery.DiscoveryConfig;
+import com.proofpoint.discovery.TestingTicker;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.client.ServiceSelector;
+import com.proofpoint.discovery.store.CircuitBreaker.State;
+import com.proofpoint.discovery.store.HttpRemoteStore.MyBatchHandler;
+import com.proofpoint.discovery.store.ReplicationTransport.Acknowledgement;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.reporting.ReportExporter;
+import com.proofpoint.units.Duration;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestHttpRemoteStore
+{
+    private TestingTicker ticker;
+    private TestingChannel channel;
+    private ScheduledExecutorService retryExecutor;
+    private LocalStore localStore;
+    private ServiceDescriptor descriptor;
+    private Partitioner partitioner;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        ticker = new TestingTicker();
+        channel = new TestingChannel();
+        // retries are run by the test, so every callback runs on the test thread
+        retryExecutor = mock(ScheduledExecutorService.class);
+        localStore = new InMemoryStore(new ConflictResolver(), new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)));
+
+        descriptor = mock(ServiceDescriptor.class);
+        when(descriptor.getNodeId()).thenReturn("peer");
+        partitioner = new Partitioner(new NodeInfo("testing"), mock(ServiceSelector.class), new StoreConfig());
+    }
+
+    @Test
+    public void testCatchUpAfterFailures()
+            throws Exception
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(3, new Duration(1, TimeUnit.MINUTES), new Duration(1, TimeUnit.MINUTES), ticker);
+        MyBatchHandler handler = createHandler(circuitBreaker, 4, 3);
+        Entry apple = putEntry("apple");
+        Entry banana = putEntry("banana");
+        Entry cherry = putEntry("cherry");
+        Entry durian = putEntry("durian");
+
+        // every attempt at the first batch fails, backing off between them, which opens the circuit
+        handler.processBatch(ImmutableList.of(apple));
+        channel.next().fail();
+        takeRetry(10).run();
+        channel.next().fail();
+        takeRetry(20).run();
+        channel.next().fail();
+
+        assertEquals(circuitBreaker.getState(), State.OPEN);
+        assertEquals(handler.getRetries().getTotalCount(), 2);
+        assertEquals(handler.getFailedBatches().getTotalCount(), 1);
+        assertEquals(handler.getAcknowledgedBatches(), 1);
+
+        // batches are not sent while the circuit is open
+        handler.processBatch(ImmutableList.of(banana));
+        assertTrue(channel.isIdle());
+        assertEquals(handler.getRejectedBatches().getTotalCount(), 1);
+        assertEquals(handler.getUndeliveredKeys(), 2);
+        assertFalse(handler.isCurrent());
+
+        // the trial batch after the backoff is delivered and closes the circuit
+        ticker.advance(1, TimeUnit.MINUTES);
+        handler.processBatch(ImmutableList.of(cherry));
+        channel.next().succeed();
+        assertEquals(circuitBreaker.getState(), State.CLOSED);
+
+        // the next batch is preceded by what the peer missed
+        handler.processBatch(ImmutableList.of(durian));
+        assertEquals(channel.next().succeed(), ImmutableSet.of(apple, banana));
+        assertEquals(channel.next().succeed(), ImmutableSet.of(durian));
+
+        assertEquals(channel.getDelivered(), ImmutableSet.of(apple, banana, cherry, durian));
+        assertEquals(handler.getCatchUpEntries().getTotalCount(), 2);
+        assertEquals(handler.getUndeliveredKeys(), 0);
+        assertEquals(handler.getAcknowledgedBatches(), 4);
+        assertTrue(handler.isCurrent());
+    }
+
+    @Test
+    public void testCatchUpWithoutWrites()
+            throws Exception
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, new Duration(1, TimeUnit.MINUTES), new Duration(1, TimeUnit.MINUTES), ticker);
+        MyBatchHandler handler = createHandler(circuitBreaker, 4, 1);
+        Entry apple = putEntry("apple");
+        Entry banana = putEntry("banana");
+
+        handler.processBatch(ImmutableList.of(apple));
+        channel.next().fail();
+        handler.processBatch(ImmutableList.of(banana));
+        assertEquals(circuitBreaker.getState(), State.OPEN);
+        assertEquals(handler.getUndeliveredKeys(), 2);
+
+        // nothing is sent before the backoff has passed
+        handler.recover();
+        assertTrue(channel.isIdle());
+
+        // with no new write, recovery is the trial request and carries what the peer missed
+        ticker.advance(1, TimeUnit.MINUTES);
+        handler.recover();
+        assertEquals(channel.next().succeed(), ImmutableSet.of(apple, banana));
+        assertTrue(channel.isIdle());
+
+        assertEquals(circuitBreaker.getState(), State.CLOSED);
+        assertEquals(handler.getCatchUpEntries().getTotalCount(), 2);
+        assertEquals(handler.getUndeliveredKeys(), 0);
+        assertTrue(handler.isCurrent());
+
+        // once caught up, recovery has nothing to do
+        handler.recover();
+        assertTrue(channel.isIdle());
+    }
+
+    @Test
+    public void testOutOfOrderCompletions()
+            throws Exception
+    {
+        final MyBatchHandler handler = createHandler(new CircuitBreaker(3, new Duration(1, TimeUnit.MINUTES), new Duration(1, TimeUnit.MINUTES), ticker), 2, 1);
+        Entry apple = putEntry("apple");
+        Entry banana = putEntry("banana");
+        final Entry cherry = putEntry("cherry");
+
+        handler.processBatch(ImmutableList.of(apple));
+        handler.processBatch(ImmutableList.of(banana));
+        TestingChannel.Push first = channel.next();
+        TestingChannel.Push second = channel.next();
+        assertEquals(handler.getInFlightBatches(), 2);
+
+        // a third batch waits until one of the two in flight completes
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> sent = sender.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                        throws Exception
+                {
+                    handler.processBatch(ImmutableList.of(cherry));
+                    return null;
+                }
+            });
+            assertTrue(channel.isIdle(100, TimeUnit.MILLISECONDS));
+
+            // the second batch is delivered first, but is not acknowledged before the first
+            second.succeed();
+            TestingChannel.Push third = channel.next();
+            sent.get(10, TimeUnit.SECONDS);
+            assertEquals(handler.getInFlightBatches(), 2);
+            assertEquals(handler.getAcknowledgedBatches(), 0);
+            assertFalse(handler.isCurrent());
+
+            third.succeed();
+            assertEquals(handler.getAcknowledgedBatches(), 0);
+
+            first.succeed();
+            assertEquals(handler.getAcknowledgedBatches(), 3);
+            assertEquals(handler.getInFlightBatches(), 0);
+            assertTrue(handler.isCurrent());
+            assertEquals(channel.getDelivered(), ImmutableSet.of(apple, banana, cherry));
+        }
+        finally {
+            sender.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testResendsMissedTouches()
+            throws Exception
+    {
+        MyBatchHandler handler = createHandler(new CircuitBreaker(3, new Duration(1, TimeUnit.MINUTES), new Duration(1, TimeUnit.MINUTES), ticker), 4, 1);
+        Entry apple = putEntry("apple");
+        Entry banana = putEntry("banana");
+
+        // the target lacks the value of one of the touches
+        handler.processBatch(ImmutableList.<Entry>of(new Touch(apple), new Touch(banana)));
+        channel.next().succeed(new Acknowledgement(null, 0, ImmutableList.of(apple.getKey())));
+        assertEquals(handler.getAcknowledgedBatches(), 0);
+
+        // which is sent again in full, as part of the same batch
+        TestingChannel.Push resent = channel.next();
+        assertEquals(resent.succeed(), ImmutableSet.of(apple));
+        assertFalse(resent.entries.get(0) instanceof Touch);
+        assertTrue(channel.isIdle());
+        assertEquals(handler.getResentTouches().getTotalCount(), 1);
+        assertEquals(handler.getAcknowledgedBatches(), 1);
+        assertEquals(handler.getInFlightBatches(), 0);
+    }
+
+    @Test
+    public void testRelaySkipsSupersededEntries()
+    {
+        HttpRemoteStore remoteStore = new HttpRemoteStore("dynamic",
+                new NodeInfo("testing"),
+                mock(ServiceSelector.class),
+                new StoreConfig().setTopologyEnabled(true),
+                mock(ReplicationTransport.class),
+                mock(ReportExporter.class),
+                new ConflictResolver(),
+                localStore,
+                partitioner);
+        // alone in its site, the node is the relay
+        remoteStore.updateProcessors(ImmutableList.<ServiceDescriptor>of());
+
+        Entry stale = new Entry("apple".getBytes(UTF_8), "old".getBytes(UTF_8), 1000, 60_000L);
+        Entry current = new Entry("apple".getBytes(UTF_8), "new".getBytes(UTF_8), 2000, 60_000L);
+        localStore.put(current);
+
+        remoteStore.relay(ImmutableList.of(stale), remoteStore.getSite());
+        assertEquals(remoteStore.getReplicationLogSequence(), 0);
+        assertEquals(remoteStore.getSupersededRelays().getTotalCount(), 1);
+
+        remoteStore.relay(ImmutableList.of(current), remoteStore.getSite());
+        assertEquals(remoteStore.getReplicationLogSequence(), 1);
+    }
+
+    private MyBatchHandler createHandler(CircuitBreaker circuitBreaker, int maxInFlightBatches, int maxAttempts)
+    {
+        ReplicationLog replicationLog = new ReplicationLog(16, localStore, null);
+        return new MyBatchHandler("peer",
+                descriptor,
+                channel,
+                retryExecutor,
+                localStore,
+                partitioner,
+                circuitBreaker,
+                replicationLog.newCursor(),
+                maxInFlightBatches,
+                maxAttempts,
+                new Duration(10, TimeUnit.MILLISECONDS),
+                new Duration(40, TimeUnit.MILLISECONDS),
+                10,
+                100);
+    }
+
+    private Runnable takeRetry(long delayMillis)
+    {
+        ArgumentCaptor<Runnable> retry = ArgumentCaptor.forClass(Runnable.class);
+        verify(retryExecutor).schedule(retry.capture(), eq(delayMillis), eq(TimeUnit.MILLISECONDS));
+        return retry.getValue();
+    }
+
+    private Entry putEntry(String key)
+    {
+        Entry entry = new Entry(key.getBytes(UTF_8), "value".getBytes(UTF_8), System.currentTimeMillis(), 60_000L);
+        localStore.put(entry);
+        return entry;
+    }
+
+    private static class TestingChannel
+            implements ReplicationTransport.Channel
+    {
+        private final BlockingQueue<Push> pushes = new LinkedBlockingQueue<>();
+        private final Set<Entry> delivered = new HashSet<>();
+
+        @Override
+        public ListenableFuture<Acknowledgement> push(Collection<Entry> entries)
+        {
+            Push push = new Push(entries);
+            pushes.add(push);
+            return push.future;
+        }
+
+        public Push next()
+                throws InterruptedException
+        {
+            Push push = pushes.poll(10, TimeUnit.SECONDS);
+            assertNotNull(push, "no batch was pushed");
+            return push;
+        }
+
+        public boolean isIdle()
+        {
+            return pushes.isEmpty();
+        }
+
+        public boolean isIdle(long timeout, TimeUnit unit)
+                throws InterruptedException
+        {
+            Push push = pushes.poll(timeout, unit);
+            if (push != null) {
+                pushes.add(push);
+            }
+            return push == null;
+        }
+
+        public synchronized Set<Entry> getDelivered()
+        {
+            return ImmutableSet.copyOf(delivered);
+        }
+
+        private class Push
+        {
+            private final List<Entry> entries;
+            private final SettableFuture<Acknowledgement> future = SettableFuture.create();
+
+            private Push(Collection<Entry> entries)
+            {
+                this.entries = ImmutableList.copyOf(entries);
+            }
+
+            public Set<Entry> succeed()
+            {
+                return succeed(new Acknowledgement(null, 0));
+            }
+
+            public Set<Entry> succeed(Acknowledgement acknowledgement)
+            {
+                synchronized (TestingChannel.this) {
+                    delivered.addAll(entries);
+                }
+                future.set(acknowledgement);
+                return ImmutableSet.copyOf(entries);
+            }
+
+            public void fail()
+            {
+                future.setException(new IOException("peer is down"));
+            }
+        }
+    }
+}
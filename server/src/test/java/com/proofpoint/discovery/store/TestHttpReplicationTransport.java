@@ -0,0 +1,196 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.store.ReplicationTransport.Acknowledgement;
+import com.proofpoint.discovery.store.ReplicationTransport.Channel;
+import com.proofpoint.http.client.AsyncHttpClient;
+import com.proofpoint.http.client.Request;
+import com.proofpoint.http.client.RequestStats;
+import com.proofpoint.http.client.Response;
+import com.proofpoint.http.client.ResponseHandler;
+import com.proofpoint.http.client.balancing.HttpServiceBalancerStats;
+import com.proofpoint.units.DataSize;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestHttpReplicationTransport
+{
+    private static final Collection<Entry> ENTRIES = ImmutableList.of(
+            new Entry("apple".getBytes(UTF_8), "value".getBytes(UTF_8), 1000, 60_000L));
+
+    private TestingHttpClient httpClient;
+    private Channel channel;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        httpClient = new TestingHttpClient();
+        HttpReplicationTransport transport = new HttpReplicationTransport(httpClient,
+                mock(HttpServiceBalancerStats.class),
+                new StoreConfig().setCompressionThreshold(new DataSize(1, DataSize.Unit.BYTE)));
+
+        ServiceDescriptor peer = mock(ServiceDescriptor.class);
+        when(peer.getNodeId()).thenReturn("peer");
+        when(peer.getProperties()).thenReturn(ImmutableMap.of("http", "http://peer.example.com"));
+        channel = transport.connect("dynamic", peer, null, ReplicationCodec.SNAPPY);
+    }
+
+    @Test
+    public void testNegotiatesEncoding()
+            throws Exception
+    {
+        // nothing is compressed until the target has said what it accepts
+        httpClient.respondWith(responseOf(204, "gzip", EntryCodec.MEDIA_TYPE));
+        channel.push(ENTRIES).get();
+        assertEquals(httpClient.getHeaders(0, "Content-Encoding"), ImmutableList.of());
+        assertEquals(httpClient.getHeaders(0, "Content-Type"), ImmutableList.of("application/x-jackson-smile"));
+
+        // the target doesn't accept the preferred codec, so another it accepts is used
+        httpClient.respondWith(responseOf(204, "gzip", EntryCodec.MEDIA_TYPE));
+        channel.push(ENTRIES).get();
+        assertEquals(httpClient.getHeaders(1, "Content-Encoding"), ImmutableList.of("gzip"));
+        assertEquals(httpClient.getHeaders(1, "Content-Type"), ImmutableList.of(EntryCodec.MEDIA_TYPE));
+
+        httpClient.respondWith(responseOf(204, "x-snappy, gzip", EntryCodec.MEDIA_TYPE));
+        channel.push(ENTRIES).get();
+        channel.push(ENTRIES);
+        assertEquals(httpClient.getHeaders(3, "Content-Encoding"), ImmutableList.of("x-snappy"));
+    }
+
+    @Test
+    public void testUnsupportedMediaTypeFallsBackToIdentity()
+            throws Exception
+    {
+        httpClient.respondWith(responseOf(204, "x-snappy", EntryCodec.MEDIA_TYPE));
+        channel.push(ENTRIES).get();
+
+        // the target was downgraded and no longer decodes what it offered
+        httpClient.respondWith(responseOf(415, null, null));
+        ListenableFuture<Acknowledgement> rejected = channel.push(ENTRIES);
+        assertEquals(httpClient.getHeaders(1, "Content-Encoding"), ImmutableList.of("x-snappy"));
+        try {
+            rejected.get();
+            fail("expected the push to fail");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("415"), e.getCause().getMessage());
+        }
+
+        channel.push(ENTRIES);
+        assertEquals(httpClient.getHeaders(2, "Content-Encoding"), ImmutableList.of());
+        assertEquals(httpClient.getHeaders(2, "Content-Type"), ImmutableList.of("application/x-jackson-smile"));
+    }
+
+    private static Response responseOf(int statusCode, String acceptEncoding, String acceptPost)
+    {
+        Response response = mock(Response.class);
+        when(response.getStatusCode()).thenReturn(statusCode);
+        when(response.getHeader("Accept-Encoding")).thenReturn(acceptEncoding);
+        when(response.getHeader("Accept-Post")).thenReturn(acceptPost);
+        return response;
+    }
+
+    /**
+     * Records every request and answers it with the next queued response, or 204 with
+     * no headers once the queue is empty.
+     */
+    private static class TestingHttpClient
+            implements AsyncHttpClient
+    {
+        private final List<Request> requests = new ArrayList<>();
+        private final Deque<Response> responses = new ArrayDeque<>();
+
+        public void respondWith(Response response)
+        {
+            responses.add(response);
+        }
+
+        public List<String> getHeaders(int request, String name)
+        {
+            return requests.get(request).getHeaders().get(name);
+        }
+
+        @Override
+        public <T, E extends Exception> AsyncHttpResponseFuture<T> executeAsync(Request request, ResponseHandler<T, E> responseHandler)
+        {
+            requests.add(request);
+            Response response = responses.poll();
+            if (response == null) {
+                response = responseOf(204, null, null);
+            }
+            return new TestingResponseFuture<>(request, responseHandler, response);
+        }
+
+        @Override
+        public <T, E extends Exception> T execute(Request request, ResponseHandler<T, E> responseHandler)
+                throws E
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public RequestStats getStats()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        private static class TestingResponseFuture<T, E extends Exception>
+                extends AbstractFuture<T>
+                implements AsyncHttpResponseFuture<T>
+        {
+            public TestingResponseFuture(Request request, ResponseHandler<T, E> responseHandler, Response response)
+            {
+                try {
+                    set(responseHandler.handle(request, response));
+                }
+                catch (Exception e) {
+                    setException(e);
+                }
+            }
+
+            @Override
+            public String getState()
+            {
+                return "done";
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.proofpoint.discovery.DiscoveryConfig;
+import com.proofpoint.discovery.InitializationTracker;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.store.ReplicationTransport.Acknowledgement;
+import com.proofpoint.discovery.store.ReplicationTransport.PullResult;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestInMemoryReplicationTransport
+{
+    private InMemoryReplicationTransport transport;
+    private LocalStore store;
+    private ServiceDescriptor peer;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        store = new InMemoryStore(new ConflictResolver(), new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)));
+        ReplicationEndpoint endpoint = new ReplicationEndpoint(
+                ImmutableMap.of("dynamic", store),
+                ImmutableMap.<String, RemoteStore>of(),
+                ImmutableMap.of("dynamic", new StoreConfig()),
+                ImmutableMap.<String, ReplicationWatermarks>of(),
+                ImmutableMap.of("dynamic", new TouchStats()),
+                new RealTimeSupplier(),
+                new InitializationTracker());
+
+        transport = new InMemoryReplicationTransport();
+        transport.register("peer", endpoint);
+
+        peer = mock(ServiceDescriptor.class);
+        when(peer.getNodeId()).thenReturn("peer");
+    }
+
+    @Test
+    public void testPushAndPull()
+            throws Exception
+    {
+        Entry entry = entryOf("blue", "apple");
+        ReplicationTransport.Channel channel = transport.connect("dynamic", peer, null, ReplicationCodec.IDENTITY);
+
+        Acknowledgement acknowledgement = channel.push(ImmutableList.of(entry)).get();
+        assertEquals(acknowledgement.getAppliedTimestamp(), entry.getTimestamp());
+        assertEquals(store.get(entry.getKey()), entry);
+
+        PullResult result = transport.pull("dynamic", peer, null).get();
+        assertFalse(result.isNotModified());
+        assertEquals(result.getEntries(), ImmutableList.of(entry));
+    }
+
+    @Test
+    public void testTouch()
+            throws Exception
+    {
+        Entry entry = entryOf("blue", "apple");
+        store.put(entry);
+        ReplicationTransport.Channel channel = transport.connect("dynamic", peer, null, ReplicationCodec.IDENTITY);
+
+        Entry refreshed = new Entry(entry.getKey(), entry.getValue(), entry.getTimestamp() + 1, 60_000L);
+        channel.push(ImmutableList.<Entry>of(new Touch(refreshed))).get();
+        assertEquals(store.get(entry.getKey()), refreshed);
+
+        // a touch of a value the peer doesn't have is not applied, and is reported back
+        Entry changed = new Entry(entry.getKey(), "banana".getBytes(UTF_8), entry.getTimestamp() + 2, 60_000L);
+        Acknowledgement acknowledgement = channel.push(ImmutableList.<Entry>of(new Touch(changed))).get();
+        assertEquals(store.get(entry.getKey()), refreshed);
+        assertEquals(acknowledgement.getMissedTouches().size(), 1);
+        assertEquals(acknowledgement.getMissedTouches().get(0), entry.getKey());
+    }
+
+    @Test
+    public void testUnreachable()
+            throws Exception
+    {
+        ReplicationTransport.Channel channel = transport.connect("dynamic", peer, null, ReplicationCodec.IDENTITY);
+        transport.setReachable("peer", false);
+
+        try {
+            channel.push(ImmutableList.of(entryOf("blue", "apple"))).get();
+            fail("expected ExecutionException");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(Iterables.isEmpty(store.getAll()));
+
+        transport.setReachable("peer", true);
+        channel.push(ImmutableList.of(entryOf("blue", "apple"))).get();
+        assertEquals(Iterables.size(store.getAll()), 1);
+    }
+
+    @Test(expectedExceptions = ExecutionException.class)
+    public void testUnknownStore()
+            throws Exception
+    {
+        transport.pull("static", peer, null).get();
+    }
+
+    private static Entry entryOf(String key, String value)
+    {
+        return new Entry(key.getBytes(UTF_8), value.getBytes(UTF_8), System.currentTimeMillis(), 60_000L);
+    }
+}
@@ -25,6 +25,7 @@ import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Charsets.UTF_8;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertNull;
 
 public class TestInMemoryStore
@@ -72,6 +73,25 @@ public class TestInMemoryStore
         assertEquals(store.get("blue".getBytes(Charsets.UTF_8)), entry);
     }
 
+    @Test
+    public void testVersion()
+    {
+        byte[] key = "blue".getBytes(Charsets.UTF_8);
+        long initial = store.getVersion();
+
+        store.put(entryOf("blue", "apple", 5));
+        long afterPut = store.getVersion();
+        assertNotEquals(afterPut, initial);
+
+        // stale writes leave the store unchanged
+        store.put(entryOf("blue", "banana", 2));
+        store.delete(key, 2);
+        assertEquals(store.getVersion(), afterPut);
+
+        store.delete(key, 5);
+        assertNotEquals(store.getVersion(), afterPut);
+    }
+
     @Test
     public void testResolvesConflict()
     {
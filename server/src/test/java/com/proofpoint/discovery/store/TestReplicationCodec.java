@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.io.ByteStreams;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.proofpoint.discovery.store.ReplicationCodec.GZIP;
+import static com.proofpoint.discovery.store.ReplicationCodec.IDENTITY;
+import static com.proofpoint.discovery.store.ReplicationCodec.SNAPPY;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestReplicationCodec
+{
+    @Test
+    public void testFromEncoding()
+    {
+        assertEquals(ReplicationCodec.fromEncoding(null), IDENTITY);
+        assertEquals(ReplicationCodec.fromEncoding("identity"), IDENTITY);
+        assertEquals(ReplicationCodec.fromEncoding(" GZIP "), GZIP);
+        assertEquals(ReplicationCodec.fromEncoding("x-snappy"), SNAPPY);
+        assertNull(ReplicationCodec.fromEncoding("br"));
+    }
+
+    @Test
+    public void testNegotiate()
+    {
+        assertEquals(ReplicationCodec.negotiate(null, SNAPPY), IDENTITY);
+        assertEquals(ReplicationCodec.negotiate(ReplicationCodec.ACCEPT_ENCODING, SNAPPY), SNAPPY);
+        assertEquals(ReplicationCodec.negotiate(ReplicationCodec.ACCEPT_ENCODING, GZIP), GZIP);
+        assertEquals(ReplicationCodec.negotiate(ReplicationCodec.ACCEPT_ENCODING, IDENTITY), IDENTITY);
+        assertEquals(ReplicationCodec.negotiate("br, gzip;q=0.5", SNAPPY), GZIP);
+        assertEquals(ReplicationCodec.negotiate("br", SNAPPY), IDENTITY);
+    }
+
+    @Test
+    public void testRoundTrip()
+            throws IOException
+    {
+        byte[] data = "apple banana cherry apple banana cherry apple banana cherry".getBytes(UTF_8);
+        for (ReplicationCodec codec : ReplicationCodec.values()) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            try (OutputStream out = codec.compress(encoded)) {
+                out.write(data);
+            }
+            byte[] decoded = ByteStreams.toByteArray(codec.decompress(new ByteArrayInputStream(encoded.toByteArray())));
+            assertEquals(decoded, data, codec.toString());
+        }
+    }
+
+    @Test
+    public void testCompressionStats()
+            throws IOException
+    {
+        CompressionStats stats = new CompressionStats();
+        byte[] data = new byte[10_000];
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (OutputStream out = stats.compress(GZIP, encoded)) {
+            out.write(data);
+        }
+
+        assertEquals(stats.getUncompressedBytes().getTotalCount(), data.length);
+        assertEquals(stats.getCompressedBytes().getTotalCount(), encoded.size());
+        assertTrue(stats.getCompressionRatio() > 1);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.DiscoveryConfig;
+import com.proofpoint.discovery.InitializationTracker;
+import com.proofpoint.discovery.TestingTimeSupplier;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.client.ServiceSelector;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+
+/**
+ * Runs three nodes replicating over {@link InMemoryReplicationTransport}. Every node
+ * has its own transport, its view of the network, so a partition can cut a node off
+ * in both directions. Writes are pushed synchronously and lost while the target is
+ * unreachable; a replication pass repairs them by pull.
+ */
+public class TestReplicationConvergence
+{
+    private static final List<String> NODE_IDS = ImmutableList.of("a", "b", "c");
+
+    private TestingTimeSupplier timeSupplier;
+    private Map<String, TestingNode> nodes;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        timeSupplier = new TestingTimeSupplier();
+
+        Map<String, ReplicationEndpoint> endpoints = new LinkedHashMap<>();
+        nodes = new LinkedHashMap<>();
+        for (String nodeId : NODE_IDS) {
+            TestingNode node = new TestingNode(nodeId);
+            nodes.put(nodeId, node);
+            endpoints.put(nodeId, node.endpoint);
+        }
+        for (TestingNode node : nodes.values()) {
+            for (Map.Entry<String, ReplicationEndpoint> endpoint : endpoints.entrySet()) {
+                node.transport.register(endpoint.getKey(), endpoint.getValue());
+            }
+        }
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        for (TestingNode node : nodes.values()) {
+            node.store.shutdown();
+        }
+    }
+
+    @Test
+    public void testConvergesAfterPartitionHeals()
+    {
+        node("a").put("blue", "apple");
+        node("a").put("green", "fig");
+        assertConverged();
+
+        partition("c", true);
+
+        // writes on both sides of the partition: a newer value on the isolated node wins
+        timeSupplier.add(new Duration(1, TimeUnit.SECONDS));
+        node("a").put("blue", "banana");
+        node("b").delete("green");
+        timeSupplier.add(new Duration(1, TimeUnit.SECONDS));
+        node("c").put("blue", "durian");
+        node("c").put("red", "cherry");
+
+        assertEquals(node("b").get("blue"), "banana");
+        assertEquals(node("c").get("green"), "fig");
+        assertNull(node("a").get("red"));
+
+        // a pass during the partition only exchanges what is on the same side
+        synchronizeAll();
+        assertEquals(node("a").getContents(), node("b").getContents());
+        assertNotEquals(node("a").getContents(), node("c").getContents());
+
+        partition("c", false);
+        synchronizeAll();
+
+        assertConverged();
+        assertEquals(node("a").get("blue"), "durian");
+        assertEquals(node("a").get("red"), "cherry");
+        assertNull(node("c").get("green"));
+    }
+
+    private TestingNode node(String nodeId)
+    {
+        return nodes.get(nodeId);
+    }
+
+    private void partition(String nodeId, boolean partitioned)
+    {
+        for (TestingNode node : nodes.values()) {
+            if (node.nodeId.equals(nodeId)) {
+                for (String other : NODE_IDS) {
+                    node.transport.setReachable(other, !partitioned);
+                }
+            }
+            else {
+                node.transport.setReachable(nodeId, !partitioned);
+            }
+        }
+    }
+
+    private void synchronizeAll()
+    {
+        for (TestingNode node : nodes.values()) {
+            node.replicator.synchronize();
+        }
+    }
+
+    private void assertConverged()
+    {
+        Set<Entry> expected = node("a").getContents();
+        for (TestingNode node : nodes.values()) {
+            assertEquals(node.getContents(), expected, "contents of node " + node.nodeId);
+        }
+    }
+
+    private static ServiceDescriptor descriptorOf(String nodeId)
+    {
+        ServiceDescriptor descriptor = mock(ServiceDescriptor.class);
+        when(descriptor.getNodeId()).thenReturn(nodeId);
+        return descriptor;
+    }
+
+    private class TestingNode
+    {
+        private final String nodeId;
+        private final InMemoryReplicationTransport transport = new InMemoryReplicationTransport();
+        private final LocalStore localStore;
+        private final DistributedStore store;
+        private final ReplicationEndpoint endpoint;
+        private final Replicator replicator;
+
+        private TestingNode(String nodeId)
+        {
+            this.nodeId = nodeId;
+
+            ImmutableList.Builder<ServiceDescriptor> peers = ImmutableList.builder();
+            for (String other : NODE_IDS) {
+                if (!other.equals(nodeId)) {
+                    peers.add(descriptorOf(other));
+                }
+            }
+            final List<ServiceDescriptor> descriptors = peers.build();
+            ServiceSelector selector = mock(ServiceSelector.class);
+            when(selector.selectAllServices()).thenReturn(descriptors);
+
+            StoreConfig config = new StoreConfig();
+            localStore = new InMemoryStore(new ConflictResolver(), new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)));
+            ReplicationWatermarks watermarks = new ReplicationWatermarks();
+            endpoint = new ReplicationEndpoint(
+                    ImmutableMap.of("dynamic", localStore),
+                    ImmutableMap.<String, RemoteStore>of(),
+                    ImmutableMap.of("dynamic", config),
+                    ImmutableMap.of("dynamic", watermarks),
+                    ImmutableMap.of("dynamic", new TouchStats()),
+                    timeSupplier,
+                    new InitializationTracker());
+
+            final List<ReplicationTransport.Channel> channels = new ArrayList<>();
+            for (ServiceDescriptor descriptor : descriptors) {
+                channels.add(transport.connect("dynamic", descriptor, null, ReplicationCodec.IDENTITY));
+            }
+            RemoteStore pusher = new RemoteStore()
+            {
+                @Override
+                public void put(Entry entry)
+                {
+                    putAll(ImmutableList.of(entry));
+                }
+
+                @Override
+                public void touch(Entry entry)
+                {
+                    putAll(ImmutableList.<Entry>of(new Touch(entry)));
+                }
+
+                @Override
+                public void putAll(Collection<Entry> entries)
+                {
+                    // a failed push is lost, as it is once retries run out
+                    for (ReplicationTransport.Channel channel : channels) {
+                        channel.push(entries);
+                    }
+                }
+            };
+            store = new DistributedStore("dynamic", localStore, pusher, config, timeSupplier);
+
+            NodeInfo node = new NodeInfo("testing");
+            replicator = new Replicator("dynamic",
+                    node,
+                    selector,
+                    transport,
+                    localStore,
+                    config,
+                    new Partitioner(node, selector, config),
+                    watermarks,
+                    new InitializationTracker());
+        }
+
+        public void put(String key, String value)
+        {
+            store.put(key.getBytes(UTF_8), value.getBytes(UTF_8), new Duration(1, TimeUnit.MINUTES));
+        }
+
+        public void delete(String key)
+        {
+            store.delete(key.getBytes(UTF_8));
+        }
+
+        public String get(String key)
+        {
+            byte[] value = store.get(key.getBytes(UTF_8));
+            return (value == null) ? null : new String(value, UTF_8);
+        }
+
+        /**
+         * Returns every entry of the local store, tombstones included.
+         */
+        public Set<Entry> getContents()
+        {
+            return ImmutableSet.copyOf(localStore.getAll());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.DiscoveryConfig;
+import com.proofpoint.discovery.store.ReplicationLog.Source;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TestReplicationLog
+{
+    private LocalStore localStore;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        localStore = new InMemoryStore(new ConflictResolver(), new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)));
+    }
+
+    @Test
+    public void testCursorsReadIndependently()
+    {
+        ReplicationLog log = new ReplicationLog(10, localStore, null);
+        ReplicationLog.Cursor first = log.newCursor();
+
+        Entry blue = entryOf("blue", "apple", 1);
+        Entry red = entryOf("red", "cherry", 1);
+        log.append(blue);
+
+        ReplicationLog.Cursor second = log.newCursor();
+        log.append(red);
+
+        assertEquals(drain(first), ImmutableList.of(blue, red));
+        assertEquals(drain(second), ImmutableList.of(red));
+        assertNull(first.poll());
+        assertEquals(log.getNextSequence(), 2);
+    }
+
+    @Test
+    public void testAppendAll()
+    {
+        ReplicationLog log = new ReplicationLog(10, localStore, null);
+        ReplicationLog.Cursor cursor = log.newCursor();
+
+        Entry blue = entryOf("blue", "apple", 1);
+        Entry red = entryOf("red", "cherry", 1);
+        log.appendAll(ImmutableList.of(blue, red), ReplicationLog.Source.LOCAL);
+
+        assertEquals(drain(cursor), ImmutableList.of(blue, red));
+        assertEquals(log.getNextSequence(), 2);
+    }
+
+    @Test
+    public void testSkipsSupersededEntries()
+    {
+        ReplicationLog log = new ReplicationLog(10, localStore, new ConflictResolver());
+        ReplicationLog.Cursor cursor = log.newCursor();
+
+        Entry blue1 = entryOf("blue", "apple", 1);
+        Entry red = entryOf("red", "cherry", 1);
+        Entry blue2 = entryOf("blue", "banana", 2);
+        log.append(blue1);
+        log.append(red);
+        log.append(blue2);
+
+        assertEquals(drain(cursor), ImmutableList.of(red, blue2));
+        assertEquals(cursor.getCoalescedEntries().getTotalCount(), 1);
+    }
+
+    @Test
+    public void testTouchDoesNotSupersedeValue()
+    {
+        ReplicationLog log = new ReplicationLog(10, localStore, new ConflictResolver());
+        ReplicationLog.Cursor cursor = log.newCursor();
+
+        // the peer may only get the value from the first entry, as the touch doesn't carry it
+        Entry blue1 = entryOf("blue", "apple", 1);
+        Touch blue2 = new Touch(entryOf("blue", "apple", 2));
+        Touch blue3 = new Touch(entryOf("blue", "apple", 3));
+        log.append(blue1);
+        log.append(blue2);
+        log.append(blue3);
+
+        assertEquals(drain(cursor), ImmutableList.of(blue1, blue3));
+        assertEquals(cursor.getCoalescedEntries().getTotalCount(), 1);
+    }
+
+    @Test
+    public void testCatchesUpFromSnapshot()
+    {
+        ReplicationLog log = new ReplicationLog(2, localStore, null);
+        ReplicationLog.Cursor cursor = log.newCursor();
+
+        Entry blue = entryOf("blue", "apple", 1);
+        Entry red = entryOf("red", "cherry", 1);
+        Entry green = entryOf("green", "lime", 1);
+        for (Entry entry : ImmutableList.of(blue, red, green)) {
+            localStore.put(entry);
+            log.append(entry);
+        }
+
+        assertEquals(ImmutableSet.copyOf(drain(cursor)), ImmutableSet.of(blue, red, green));
+        assertEquals(cursor.getSnapshotCatchUps().getTotalCount(), 1);
+        assertEquals(cursor.size(), 0);
+
+        // once caught up, the cursor resumes reading the log
+        Entry yellow = entryOf("yellow", "banana", 1);
+        log.append(yellow);
+        assertEquals(drain(cursor), ImmutableList.of(yellow));
+    }
+
+    @Test
+    public void testCursorFiltersSources()
+    {
+        ReplicationLog log = new ReplicationLog(10, localStore, new ConflictResolver());
+        ReplicationLog.Cursor cursor = log.newCursor(EnumSet.of(Source.LOCAL, Source.REMOTE_SITE));
+
+        Entry blue1 = entryOf("blue", "apple", 1);
+        Entry red = entryOf("red", "cherry", 1);
+        Entry blue2 = entryOf("blue", "banana", 2);
+        log.append(blue1);
+        log.append(red, Source.SITE);
+        log.append(blue2, Source.SITE);
+
+        // entries are only superseded by newer entries the cursor would see
+        assertEquals(drain(cursor), ImmutableList.of(blue1));
+    }
+
+    @Test
+    public void testPrioritizesEntries()
+    {
+        ReplicationLog log = new ReplicationLog(10, localStore, null, true);
+        log.append(entryOf("blue", "apple", 1));
+        log.append(entryOf("red", "cherry", 1));
+        log.append(entryOf("yellow", "banana", 1));
+
+        ReplicationLog.Cursor cursor = log.newCursor();
+        Entry blueRefresh = entryOf("blue", "apple", 2);
+        Entry redChange = entryOf("red", "strawberry", 2);
+        Entry green = entryOf("green", "lime", 2);
+        Entry yellowTombstone = new Entry("yellow".getBytes(UTF_8), null, 2, null);
+        log.append(blueRefresh);
+        log.append(redChange);
+        log.append(green);
+        log.append(yellowTombstone);
+
+        assertEquals(drain(cursor), ImmutableList.of(yellowTombstone, green, redChange, blueRefresh));
+    }
+
+    @Test
+    public void testPollTimesOut()
+            throws InterruptedException
+    {
+        ReplicationLog log = new ReplicationLog(10, localStore, null);
+        ReplicationLog.Cursor cursor = log.newCursor();
+
+        assertNull(cursor.poll(1, TimeUnit.MILLISECONDS));
+
+        Entry entry = entryOf("blue", "apple", 1);
+        log.append(entry);
+        assertEquals(cursor.poll(1, TimeUnit.MILLISECONDS), entry);
+    }
+
+    private static List<Entry> drain(ReplicationLog.Cursor cursor)
+    {
+        List<Entry> entries = new ArrayList<>();
+        cursor.drainTo(entries);
+        return entries;
+    }
+
+    private static Entry entryOf(String key, String value, long timestamp)
+    {
+        return new Entry(key.getBytes(UTF_8), value.getBytes(UTF_8), timestamp, 60_000L);
+    }
+}
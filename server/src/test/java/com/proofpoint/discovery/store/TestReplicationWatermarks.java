@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.proofpoint.discovery.store.ReplicationWatermarks.Watermark;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+
+public class TestReplicationWatermarks
+{
+    @Test
+    public void testWatermarkRoundTrip()
+    {
+        Watermark watermark = new Watermark("a6b1f3e0-0c2d-4b8e-9f61-1d2c3b4a5e6f", 1234);
+        assertEquals(Watermark.valueOf(watermark.toString()), watermark);
+    }
+
+    @Test
+    public void testMalformedWatermark()
+    {
+        assertNull(Watermark.valueOf(null));
+        assertNull(Watermark.valueOf("epoch"));
+        assertNull(Watermark.valueOf(":12"));
+        assertNull(Watermark.valueOf("epoch:twelve"));
+    }
+
+    @Test
+    public void testRecordPull()
+    {
+        ReplicationWatermarks watermarks = new ReplicationWatermarks();
+        Watermark watermark = new Watermark("epoch", 12);
+
+        assertNull(watermarks.getPulled("node"));
+        watermarks.recordPull("node", watermark);
+        assertEquals(watermarks.getPulled("node"), watermark);
+        watermarks.clearPulled("node");
+        assertNull(watermarks.getPulled("node"));
+    }
+
+    @Test
+    public void testEpochsAreDistinct()
+    {
+        assertNotEquals(new ReplicationWatermarks().getEpoch(), new ReplicationWatermarks().getEpoch());
+    }
+}
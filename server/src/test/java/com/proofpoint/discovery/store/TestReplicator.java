@@ -0,0 +1,182 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.proofpoint.discovery.DiscoveryConfig;
+import com.proofpoint.discovery.InitializationTracker;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.client.ServiceSelector;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestReplicator
+{
+    private InMemoryReplicationTransport transport;
+    private Map<String, LocalStore> peerStores;
+    private LocalStore localStore;
+    private InitializationTracker initializationTracker;
+    private Replicator replicator;
+    private Entry startingEntry;
+    private Entry initializedEntry;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        transport = new InMemoryReplicationTransport();
+        peerStores = new HashMap<>();
+
+        // a peer that is still catching up itself, and one that has caught up
+        InitializationTracker startingTracker = new InitializationTracker();
+        startingTracker.createTask();
+        startingEntry = entryOf("apple");
+        register("starting", startingEntry, startingTracker);
+        initializedEntry = entryOf("banana");
+        register("initialized", initializedEntry, new InitializationTracker());
+
+        ServiceSelector selector = mock(ServiceSelector.class);
+        when(selector.selectAllServices()).thenReturn(ImmutableList.of(descriptorOf("starting"), descriptorOf("initialized")));
+
+        NodeInfo node = new NodeInfo("testing");
+        StoreConfig config = new StoreConfig();
+        localStore = newStore();
+        initializationTracker = new InitializationTracker();
+        replicator = new Replicator("dynamic",
+                node,
+                selector,
+                transport,
+                localStore,
+                config,
+                new Partitioner(node, selector, config),
+                new ReplicationWatermarks(),
+                initializationTracker);
+    }
+
+    @Test
+    public void testBootstrapFromInitializedPeer()
+    {
+        assertTrue(initializationTracker.isPending());
+
+        replicator.synchronize();
+
+        assertNotNull(replicator.getBootstrapTime());
+        assertFalse(initializationTracker.isPending());
+        assertEquals(localStore.get(startingEntry.getKey()), startingEntry);
+        assertEquals(localStore.get(initializedEntry.getKey()), initializedEntry);
+    }
+
+    @Test
+    public void testNoBootstrapFromStartingPeer()
+    {
+        transport.setReachable("initialized", false);
+
+        replicator.synchronize();
+
+        // the entries of the starting peer are kept, but only the full pass completes initialization
+        assertNull(replicator.getBootstrapTime());
+        assertEquals(localStore.get(startingEntry.getKey()), startingEntry);
+        assertNull(localStore.get(initializedEntry.getKey()));
+        assertFalse(initializationTracker.isPending());
+    }
+
+    @Test
+    public void testPullRepairsEntriesFromThirdNodes()
+    {
+        replicator.synchronize();
+        assertEquals(replicator.getSkippedPulls().getTotalCount(), 0);
+
+        // nothing changed on either peer since the previous pull
+        replicator.synchronize();
+        assertEquals(replicator.getSkippedPulls().getTotalCount(), 2);
+
+        // an entry written on a third node reaches only one of the peers
+        Entry cherry = entryOf("cherry");
+        peerStores.get("initialized").put(cherry);
+
+        replicator.synchronize();
+        assertEquals(localStore.get(cherry.getKey()), cherry);
+        assertEquals(replicator.getSkippedPulls().getTotalCount(), 3);
+    }
+
+    @Test
+    public void testPullAfterRenewalIsDelta()
+    {
+        LocalStore peerStore = peerStores.get("initialized");
+        for (int i = 0; i < 10; i++) {
+            peerStore.put(entryOf("key-" + i));
+        }
+
+        replicator.synchronize();
+        assertEquals(replicator.getPulledEntries().getTotalCount(), 12);
+
+        // a renewal on one peer is all that is sent again
+        Entry renewed = new Entry(initializedEntry.getKey(), initializedEntry.getValue(), initializedEntry.getTimestamp() + 1, 60_000L);
+        peerStore.put(renewed);
+
+        replicator.synchronize();
+        assertEquals(replicator.getPulledEntries().getTotalCount(), 13);
+        assertEquals(replicator.getSkippedPulls().getTotalCount(), 1);
+        assertEquals(localStore.get(renewed.getKey()), renewed);
+    }
+
+    private void register(String nodeId, Entry entry, InitializationTracker tracker)
+    {
+        LocalStore store = newStore();
+        store.put(entry);
+        peerStores.put(nodeId, store);
+        transport.register(nodeId, new ReplicationEndpoint(
+                ImmutableMap.of("dynamic", store),
+                ImmutableMap.<String, RemoteStore>of(),
+                ImmutableMap.of("dynamic", new StoreConfig()),
+                ImmutableMap.of("dynamic", new ReplicationWatermarks()),
+                ImmutableMap.of("dynamic", new TouchStats()),
+                new RealTimeSupplier(),
+                tracker));
+    }
+
+    private static LocalStore newStore()
+    {
+        return new InMemoryStore(new ConflictResolver(), new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)));
+    }
+
+    private static ServiceDescriptor descriptorOf(String nodeId)
+    {
+        ServiceDescriptor descriptor = mock(ServiceDescriptor.class);
+        when(descriptor.getNodeId()).thenReturn(nodeId);
+        return descriptor;
+    }
+
+    private static Entry entryOf(String key)
+    {
+        return new Entry(key.getBytes(UTF_8), "value".getBytes(UTF_8), System.currentTimeMillis(), 60_000L);
+    }
+}
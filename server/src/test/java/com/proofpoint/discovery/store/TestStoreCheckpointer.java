@@ -0,0 +1,142 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.DiscoveryConfig;
+import com.proofpoint.units.Duration;
+import org.joda.time.DateTime;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestStoreCheckpointer
+{
+    private static final long NOW = 1_000_000L;
+
+    private File directory;
+    private StoreConfig config;
+
+    @BeforeMethod
+    protected void setUp()
+            throws IOException
+    {
+        directory = Files.createTempDirectory("snapshot").toFile();
+        config = new StoreConfig().setSnapshotEnabled(true).setSnapshotDirectory(directory);
+    }
+
+    @AfterMethod
+    protected void tearDown()
+    {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        LocalStore store = newStore();
+        Entry blue = new Entry(bytes("blue"), bytes("apple"), NOW, 60_000L);
+        Entry tombstone = new Entry(bytes("red"), null, NOW, 60_000L);
+        store.put(blue);
+        store.put(tombstone);
+        newCheckpointer(store).checkpoint();
+
+        LocalStore restored = newStore();
+        StoreCheckpointer checkpointer = newCheckpointer(restored);
+        checkpointer.restore();
+
+        assertTrue(checkpointer.isRestored());
+        assertEquals(ImmutableSet.copyOf(restored.getAll()), ImmutableSet.of(blue, tombstone));
+    }
+
+    @Test
+    public void testSkipsExpiredEntries()
+    {
+        LocalStore store = newStore();
+        Entry live = new Entry(bytes("blue"), bytes("apple"), NOW - 1000, 60_000L);
+        store.put(live);
+        store.put(new Entry(bytes("red"), bytes("cherry"), NOW - 120_000, 60_000L));
+        newCheckpointer(store).checkpoint();
+
+        LocalStore restored = newStore();
+        StoreCheckpointer checkpointer = newCheckpointer(restored);
+        checkpointer.restore();
+
+        assertEquals(ImmutableSet.copyOf(restored.getAll()), ImmutableSet.of(live));
+        assertEquals(checkpointer.getExpiredEntries(), 1);
+    }
+
+    @Test
+    public void testIgnoresCorruptSnapshot()
+            throws IOException
+    {
+        LocalStore store = newStore();
+        store.put(new Entry(bytes("blue"), bytes("apple"), NOW, 60_000L));
+        newCheckpointer(store).checkpoint();
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, "dynamic.snapshot"), "rw")) {
+            file.seek(12);
+            file.write(0x7f);
+        }
+
+        LocalStore restored = newStore();
+        StoreCheckpointer checkpointer = newCheckpointer(restored);
+        checkpointer.restore();
+
+        assertFalse(checkpointer.isRestored());
+        assertFalse(restored.getAll().iterator().hasNext());
+    }
+
+    @Test
+    public void testMissingSnapshot()
+    {
+        LocalStore restored = newStore();
+        StoreCheckpointer checkpointer = newCheckpointer(restored);
+        checkpointer.restore();
+
+        assertFalse(checkpointer.isRestored());
+    }
+
+    private StoreCheckpointer newCheckpointer(LocalStore store)
+    {
+        return new StoreCheckpointer("dynamic", store, config, Suppliers.ofInstance(new DateTime(NOW)));
+    }
+
+    private static LocalStore newStore()
+    {
+        return new InMemoryStore(new ConflictResolver(), new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)));
+    }
+
+    private static byte[] bytes(String value)
+    {
+        return value.getBytes(UTF_8);
+    }
+}